@@ -17,7 +17,6 @@
 
 package de.schildbach.wallet;
 
-import java.math.BigInteger;
 
 import javax.annotation.Nonnull;
 
@@ -29,6 +28,7 @@ import android.content.SharedPreferences.Editor;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.text.format.DateUtils;
 import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+import de.schildbach.wallet.util.Money;
 
 /**
  * @author Andreas Schildbach
@@ -52,9 +52,12 @@ public class Configuration
 	private static final String PREFS_KEY_LAST_USED = "last_used";
 	private static final String PREFS_KEY_BEST_CHAIN_HEIGHT_EVER = "best_chain_height_ever";
 	private static final String PREFS_KEY_CACHED_EXCHANGE_CURRENCY = "cached_exchange_currency";
-	private static final String PREFS_KEY_CACHED_EXCHANGE_RATE = "cached_exchange_rate";
+	private static final String PREFS_KEY_CACHED_EXCHANGE_RATE = "cached_exchange_rate_fst"; // per FST, was per BTC
 	private static final String PREFS_KEY_LAST_EXCHANGE_DIRECTION = "last_exchange_direction";
 	private static final String PREFS_KEY_CHANGE_LOG_VERSION = "change_log_version";
+	private static final String PREFS_KEY_BOOTSTRAP_REJECTED_VERSION = "bootstrap_rejected_version";
+	private static final String PREFS_KEY_RESCAN_FROM_HEIGHT = "rescan_from_height";
+	private static final String PREFS_KEY_RESCAN_STARTED_AT = "rescan_started_at";
 	public static final String PREFS_KEY_REMIND_BACKUP = "remind_backup";
 
 	private static final String PREFS_DEFAULT_FST_PRECISION = "4";
@@ -200,12 +203,42 @@ public class Configuration
 		prefs.edit().putInt(PREFS_KEY_BEST_CHAIN_HEIGHT_EVER, bestChainHeightEver).commit();
 	}
 
+	public int getBootstrapRejectedVersionCode()
+	{
+		return prefs.getInt(PREFS_KEY_BOOTSTRAP_REJECTED_VERSION, 0);
+	}
+
+	public void setBootstrapRejectedVersionCode(final int versionCode)
+	{
+		prefs.edit().putInt(PREFS_KEY_BOOTSTRAP_REJECTED_VERSION, versionCode).commit();
+	}
+
+	public int getRescanFromHeight()
+	{
+		return prefs.getInt(PREFS_KEY_RESCAN_FROM_HEIGHT, -1);
+	}
+
+	public long getRescanStartedAt()
+	{
+		return prefs.getLong(PREFS_KEY_RESCAN_STARTED_AT, 0);
+	}
+
+	public void setRescan(final int fromHeight, final long startedAt)
+	{
+		prefs.edit().putInt(PREFS_KEY_RESCAN_FROM_HEIGHT, fromHeight).putLong(PREFS_KEY_RESCAN_STARTED_AT, startedAt).commit();
+	}
+
+	public void clearRescan()
+	{
+		prefs.edit().remove(PREFS_KEY_RESCAN_FROM_HEIGHT).remove(PREFS_KEY_RESCAN_STARTED_AT).commit();
+	}
+
 	public ExchangeRate getCachedExchangeRate()
 	{
 		if (prefs.contains(PREFS_KEY_CACHED_EXCHANGE_CURRENCY) && prefs.contains(PREFS_KEY_CACHED_EXCHANGE_RATE))
 		{
 			final String cachedExchangeCurrency = prefs.getString(PREFS_KEY_CACHED_EXCHANGE_CURRENCY, null);
-			final BigInteger cachedExchangeRate = BigInteger.valueOf(prefs.getLong(PREFS_KEY_CACHED_EXCHANGE_RATE, 0));
+			final Money cachedExchangeRate = Money.valueOf(prefs.getLong(PREFS_KEY_CACHED_EXCHANGE_RATE, 0));
 			return new ExchangeRate(cachedExchangeCurrency, cachedExchangeRate, null);
 		}
 		else
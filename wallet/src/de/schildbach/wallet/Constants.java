@@ -40,6 +40,8 @@ public class Constants
 	private static final String FILENAME_NETWORK_SUFFIX = NETWORK_PARAMETERS.getId().equals(NetworkParameters.ID_MAINNET) ? "" : "-testnet";
 
 	public static final String WALLET_FILENAME_PROTOBUF = "fastcoin-wallet-protobuf" + FILENAME_NETWORK_SUFFIX;
+	public static final String WALLET_JOURNAL_FILENAME = "fastcoin-wallet-journal" + FILENAME_NETWORK_SUFFIX;
+	public static final String TX_ARCHIVE_FILENAME = "fastcoin-tx-archive" + FILENAME_NETWORK_SUFFIX;
 
 	public static final String WALLET_KEY_BACKUP_BASE58 = "fastcoin-key-backup-base58" + FILENAME_NETWORK_SUFFIX;
 	public static final String WALLET_KEY_BACKUP_PROTOBUF = "fastcoin-key-backup-protobuf" + FILENAME_NETWORK_SUFFIX;
@@ -51,6 +53,18 @@ public class Constants
 
 	public static final String CHECKPOINTS_FILENAME = "fastcoin-checkpoints" + FILENAME_NETWORK_SUFFIX;
 
+	public static final String PEERS_FILENAME = "fastcoin-peers" + FILENAME_NETWORK_SUFFIX;
+
+	public static final String TX_OUTBOX_FILENAME = "fastcoin-tx-outbox" + FILENAME_NETWORK_SUFFIX;
+
+	public static final String SYNC_HISTORY_FILENAME = "sync-history" + FILENAME_NETWORK_SUFFIX;
+
+	public static final String EXCHANGE_RATES_FILENAME = "exchange-rates";
+
+	public static final String EXCHANGE_RATES_HISTORY_FILENAME = "exchange-rates-history";
+
+	public static final String STARTUP_TRACE_FILENAME = "startup-trace";
+
 	private static final String EXPLORE_BASE_URL_PROD = ""; //https://www.biteasy.com/
 	private static final String EXPLORE_BASE_URL_TEST = ""; //https://www.biteasy.com/testnet/
 	public static final String EXPLORE_BASE_URL = NETWORK_PARAMETERS.getId().equals(NetworkParameters.ID_MAINNET) ? EXPLORE_BASE_URL_PROD
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+
+/**
+ * In-memory exchange rates, refreshed on a background thread. Reads never block: stale rates are returned while a
+ * refresh is underway, and are refreshed periodically for as long as they are being read.
+ *
+ * @author Andreas Schildbach
+ */
+public final class ExchangeRatesCache
+{
+	public interface Refresher
+	{
+		/**
+		 * Fetches fresh rates. Sources should consult and update the given backoff.
+		 *
+		 * @return rates by currency code, or null if no source could be reached
+		 */
+		@CheckForNull
+		Map<String, ExchangeRate> refresh(@Nonnull Backoff backoff);
+	}
+
+	public interface Listener
+	{
+		void onRefreshed(@Nonnull Map<String, ExchangeRate> rates);
+	}
+
+	/**
+	 * Per-source exponential backoff after failures, so an unreachable source doesn't slow down every refresh.
+	 */
+	public static final class Backoff
+	{
+		private static final long MIN_BACKOFF_MS = 60 * 1000;
+		private static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+
+		private final Map<String, Integer> failures = new HashMap<String, Integer>();
+		private final Map<String, Long> retryAfter = new HashMap<String, Long>();
+
+		public synchronized boolean isAllowed(@Nonnull final String source, final long now)
+		{
+			final Long after = retryAfter.get(source);
+			return after == null || now >= after;
+		}
+
+		public synchronized void succeeded(@Nonnull final String source)
+		{
+			failures.remove(source);
+			retryAfter.remove(source);
+		}
+
+		public synchronized void failed(@Nonnull final String source, final long now)
+		{
+			final Integer previous = failures.get(source);
+			final int count = previous != null ? previous + 1 : 1;
+			failures.put(source, count);
+			retryAfter.put(source, now + Math.min(MIN_BACKOFF_MS << Math.min(count - 1, 16), MAX_BACKOFF_MS));
+		}
+	}
+
+	private final Refresher refresher;
+	private final long ttlMs;
+	@CheckForNull
+	private final Listener listener;
+	private final Backoff backoff = new Backoff();
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, "exchange rates");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	@CheckForNull
+	private volatile Map<String, ExchangeRate> rates = null;
+	private volatile long lastUpdated = 0;
+
+	private boolean refreshing = false;
+	private boolean readSinceRefresh = false;
+	private long numHits = 0;
+	private long numStaleHits = 0;
+	private long numMisses = 0;
+	private long numRefreshes = 0;
+	private long numRefreshFailures = 0;
+	private long lastRefreshLatencyMs = -1;
+
+	private static final Logger log = LoggerFactory.getLogger(ExchangeRatesCache.class);
+
+	/**
+	 * @param ttlMs
+	 *            age after which rates are considered stale, and the period of background refreshes
+	 */
+	public ExchangeRatesCache(@Nonnull final Refresher refresher, final long ttlMs, @CheckForNull final Listener listener)
+	{
+		this.refresher = refresher;
+		this.ttlMs = ttlMs;
+		this.listener = listener;
+
+		executor.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (ExchangeRatesCache.this)
+				{
+					// nobody is looking, so don't bother
+					if (!readSinceRefresh)
+						return;
+				}
+
+				requestRefresh();
+			}
+		}, ttlMs, ttlMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Seeds the cache with previously known rates, e.g. at cold start.
+	 */
+	public void seed(@Nonnull final Map<String, ExchangeRate> rates, final long updated)
+	{
+		if (this.rates == null)
+		{
+			this.lastUpdated = updated;
+			this.rates = Collections.unmodifiableMap(rates);
+		}
+	}
+
+	/**
+	 * Reads the rates from memory, scheduling a refresh if they are missing or stale.
+	 *
+	 * @return rates by currency code, or null if none are known yet
+	 */
+	@CheckForNull
+	public Map<String, ExchangeRate> get()
+	{
+		final Map<String, ExchangeRate> rates = this.rates;
+		final boolean fresh = rates != null && System.currentTimeMillis() - lastUpdated <= ttlMs;
+
+		synchronized (this)
+		{
+			readSinceRefresh = true;
+
+			if (fresh)
+				numHits++;
+			else if (rates != null)
+				numStaleHits++;
+			else
+				numMisses++;
+		}
+
+		if (!fresh)
+			requestRefresh();
+
+		return rates;
+	}
+
+	/**
+	 * Schedules a refresh on the background thread, unless one is already underway.
+	 */
+	public void requestRefresh()
+	{
+		synchronized (this)
+		{
+			if (refreshing)
+				return;
+
+			refreshing = true;
+		}
+
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				refresh();
+			}
+		});
+	}
+
+	private void refresh()
+	{
+		final long start = System.currentTimeMillis();
+		Map<String, ExchangeRate> newRates = null;
+
+		try
+		{
+			newRates = refresher.refresh(backoff);
+		}
+		catch (final RuntimeException x)
+		{
+			log.warn("problem refreshing exchange rates", x);
+		}
+
+		final long latencyMs = System.currentTimeMillis() - start;
+		final boolean succeeded = newRates != null && !newRates.isEmpty();
+		final Map<String, ExchangeRate> rates = succeeded ? Collections.unmodifiableMap(newRates) : null;
+
+		if (succeeded)
+		{
+			this.lastUpdated = System.currentTimeMillis();
+			this.rates = rates;
+		}
+
+		synchronized (this)
+		{
+			refreshing = false;
+			readSinceRefresh = false;
+			lastRefreshLatencyMs = latencyMs;
+			if (succeeded)
+				numRefreshes++;
+			else
+				numRefreshFailures++;
+
+			log.info("{} exchange rates in {}ms: {} hits, {} stale hits, {} misses, {} refreshes, {} failures", new Object[] {
+					succeeded ? "refreshed " + rates.size() : "failed refreshing", latencyMs, numHits, numStaleHits, numMisses, numRefreshes,
+					numRefreshFailures });
+		}
+
+		if (succeeded && listener != null)
+			listener.onRefreshed(rates);
+	}
+
+	public long getLastUpdated()
+	{
+		return lastUpdated;
+	}
+
+	public synchronized long getNumHits()
+	{
+		return numHits;
+	}
+
+	public synchronized long getNumStaleHits()
+	{
+		return numStaleHits;
+	}
+
+	public synchronized long getNumMisses()
+	{
+		return numMisses;
+	}
+
+	public synchronized long getNumRefreshes()
+	{
+		return numRefreshes;
+	}
+
+	public synchronized long getNumRefreshFailures()
+	{
+		return numRefreshFailures;
+	}
+
+	/**
+	 * @return duration of the last refresh, or -1 if none has finished yet
+	 */
+	public synchronized long getLastRefreshLatencyMs()
+	{
+		return lastRefreshLatencyMs;
+	}
+
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+}
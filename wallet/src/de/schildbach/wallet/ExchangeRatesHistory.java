@@ -0,0 +1,410 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+import de.schildbach.wallet.util.Money;
+
+/**
+ * Exchange rates over time, sampled at each refresh, so past transactions can be valued at the rate of their day.
+ *
+ * <p>
+ * Samples are stored in columns: one array of timestamps, and one array of rates per currency with 0 where a currency
+ * was missing from a sample. Samples of the last day are kept at full resolution, of the last week one per hour and
+ * older ones one per day. Lookups are a binary search on the timestamps. Only currencies the user shows are kept, so
+ * the file stays small.
+ * </p>
+ *
+ * @author Andreas Schildbach
+ */
+public final class ExchangeRatesHistory
+{
+	private static final int FILE_VERSION = 1;
+
+	private static final long HOUR_MS = 60 * 60 * 1000;
+	private static final long DAY_MS = 24 * HOUR_MS;
+	private static final long FULL_RESOLUTION_AGE_MS = DAY_MS;
+	private static final long HOURLY_RESOLUTION_AGE_MS = 7 * DAY_MS;
+	static final int MAX_SAMPLES = 2048;
+	private static final long MAX_DISTANCE_MS = DAY_MS;
+	private static final long SAVE_INTERVAL_MS = HOUR_MS;
+
+	private final File file;
+	private long[] times = new long[64];
+	private final Map<String, long[]> columns = new TreeMap<String, long[]>();
+	private int size = 0;
+	private long lastSaved = 0;
+
+	private static SettableFuture<ExchangeRatesHistory> instance;
+
+	private static final Logger log = LoggerFactory.getLogger(ExchangeRatesHistory.class);
+
+	/**
+	 * @return the process wide history, loaded on a background thread on first use
+	 */
+	public static synchronized ListenableFuture<ExchangeRatesHistory> getInstance(@Nonnull final Context context)
+	{
+		if (instance == null)
+		{
+			final SettableFuture<ExchangeRatesHistory> future = SettableFuture.create();
+			final File file = context.getFileStreamPath(Constants.EXCHANGE_RATES_HISTORY_FILENAME);
+
+			final Thread thread = new Thread("exchange rates history loader")
+			{
+				@Override
+				public void run()
+				{
+					future.set(new ExchangeRatesHistory(file));
+				}
+			};
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+
+			instance = future;
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Loads the history from the given file. If there is none or it cannot be read, the history starts empty.
+	 */
+	public ExchangeRatesHistory(@Nonnull final File file)
+	{
+		this.file = file;
+
+		if (file.exists())
+			load();
+	}
+
+	/**
+	 * Records a sample. Samples not newer than the last one are ignored.
+	 */
+	public synchronized void add(@Nonnull final Map<String, ExchangeRate> rates, final long time)
+	{
+		if (size > 0 && time <= times[size - 1])
+			return;
+
+		ensureCapacity(size + 1);
+
+		times[size] = time;
+		for (final long[] column : columns.values())
+			column[size] = 0;
+		for (final ExchangeRate rate : rates.values())
+			column(rate.currencyCode)[size] = rate.rate.longValue();
+		size++;
+
+		downsample(time);
+	}
+
+	/**
+	 * Drops the rates of all other currencies.
+	 */
+	public synchronized void retainCurrencies(@Nonnull final Collection<String> currencyCodes)
+	{
+		for (final Iterator<String> i = columns.keySet().iterator(); i.hasNext();)
+		{
+			final String currencyCode = i.next();
+			if (!currencyCodes.contains(currencyCode))
+			{
+				i.remove();
+				log.info("dropped exchange rates history of {}", currencyCode);
+			}
+		}
+	}
+
+	/**
+	 * @return rate per FST of the sample closest to the given time, or null if there is none within a day
+	 */
+	@CheckForNull
+	public synchronized Money getRate(@Nonnull final String currencyCode, final long time)
+	{
+		final long[] column = columns.get(currencyCode);
+		if (column == null)
+			return null;
+
+		int index = Arrays.binarySearch(times, 0, size, time);
+		if (index < 0)
+			index = -index - 1;
+
+		// closest sample at or before time
+		long rate = 0;
+		long distance = Long.MAX_VALUE;
+		for (int i = index - 1; i >= 0 && time - times[i] <= MAX_DISTANCE_MS; i--)
+		{
+			if (column[i] != 0)
+			{
+				rate = column[i];
+				distance = time - times[i];
+				break;
+			}
+		}
+
+		// a sample after time may be closer
+		for (int i = index; i < size && times[i] - time < distance && times[i] - time <= MAX_DISTANCE_MS; i++)
+		{
+			if (column[i] != 0)
+			{
+				rate = column[i];
+				break;
+			}
+		}
+
+		return rate != 0 ? Money.valueOf(rate) : null;
+	}
+
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Saves the history if it hasn't been saved for an hour. Samples after the last save are lost if the process dies,
+	 * but they would be downsampled to one per hour anyway.
+	 */
+	public void saveIfDue(final long now)
+	{
+		synchronized (this)
+		{
+			if (now - lastSaved < SAVE_INTERVAL_MS)
+				return;
+
+			lastSaved = now;
+		}
+
+		save();
+	}
+
+	/**
+	 * Writes the history to a temporary file first, then renames it. The columns are copied, so lookups aren't held up
+	 * by disk.
+	 */
+	public void save()
+	{
+		final int size;
+		final long[] times;
+		final Map<String, long[]> columns = new TreeMap<String, long[]>();
+
+		synchronized (this)
+		{
+			size = this.size;
+			times = Arrays.copyOf(this.times, size);
+			for (final Map.Entry<String, long[]> entry : this.columns.entrySet())
+				columns.put(entry.getKey(), Arrays.copyOf(entry.getValue(), size));
+		}
+
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		DataOutputStream os = null;
+
+		try
+		{
+			os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			os.writeInt(FILE_VERSION);
+
+			os.writeInt(size);
+			for (int i = 0; i < size; i++)
+				os.writeLong(times[i]);
+
+			os.writeShort(columns.size());
+			for (final Map.Entry<String, long[]> entry : columns.entrySet())
+			{
+				os.writeUTF(entry.getKey());
+				final long[] column = entry.getValue();
+				for (int i = 0; i < size; i++)
+					os.writeLong(column[i]);
+			}
+
+			os.close();
+			os = null;
+
+			if (!tmpFile.renameTo(file))
+				throw new IOException("cannot rename to " + file);
+
+			log.info("saved {} samples of {} exchange rates to '{}'", new Object[] { size, columns.size(), file });
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem saving exchange rates history", x);
+			tmpFile.delete();
+		}
+		finally
+		{
+			if (os != null)
+			{
+				try
+				{
+					os.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+
+	private synchronized void load()
+	{
+		DataInputStream is = null;
+
+		try
+		{
+			is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (is.readInt() != FILE_VERSION)
+				throw new IOException("unknown version");
+
+			final int numSamples = is.readInt();
+			if (numSamples < 0 || numSamples > MAX_SAMPLES)
+				throw new IOException("bad number of samples: " + numSamples);
+
+			final long[] times = new long[Math.max(numSamples, 64)];
+			for (int i = 0; i < numSamples; i++)
+				times[i] = is.readLong();
+
+			final Map<String, long[]> columns = new TreeMap<String, long[]>();
+			final int numColumns = is.readUnsignedShort();
+			for (int c = 0; c < numColumns; c++)
+			{
+				final String currencyCode = is.readUTF();
+				final long[] column = new long[times.length];
+				for (int i = 0; i < numSamples; i++)
+					column[i] = is.readLong();
+				columns.put(currencyCode, column);
+			}
+
+			this.times = times;
+			this.columns.putAll(columns);
+			this.size = numSamples;
+
+			log.info("loaded {} samples of {} exchange rates from '{}'", new Object[] { numSamples, numColumns, file });
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem loading exchange rates history, ignoring", x);
+		}
+		finally
+		{
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+
+	private long[] column(@Nonnull final String currencyCode)
+	{
+		long[] column = columns.get(currencyCode);
+		if (column == null)
+		{
+			column = new long[times.length];
+			columns.put(currencyCode, column);
+		}
+		return column;
+	}
+
+	private void ensureCapacity(final int capacity)
+	{
+		if (capacity <= times.length)
+			return;
+
+		final int newCapacity = Math.max(capacity, times.length * 2);
+		times = Arrays.copyOf(times, newCapacity);
+		for (final Map.Entry<String, long[]> entry : columns.entrySet())
+			entry.setValue(Arrays.copyOf(entry.getValue(), newCapacity));
+	}
+
+	/**
+	 * Keeps the first sample of each hour or day, depending on its age, filling in currencies it lacks from the
+	 * dropped ones. Then drops the oldest samples beyond {@link #MAX_SAMPLES}.
+	 */
+	private void downsample(final long now)
+	{
+		final long[][] columns = this.columns.values().toArray(new long[0][]);
+
+		int kept = 0;
+		long keptResolution = 0;
+		long keptBucket = 0;
+
+		for (int i = 0; i < size; i++)
+		{
+			final long age = now - times[i];
+			final long resolution = age < FULL_RESOLUTION_AGE_MS ? 0 : (age < HOURLY_RESOLUTION_AGE_MS ? HOUR_MS : DAY_MS);
+			final long bucket = resolution > 0 ? times[i] / resolution : i;
+
+			if (kept > 0 && resolution > 0 && resolution == keptResolution && bucket == keptBucket)
+			{
+				// merge into the kept sample
+				for (final long[] column : columns)
+					if (column[kept - 1] == 0)
+						column[kept - 1] = column[i];
+				continue;
+			}
+
+			times[kept] = times[i];
+			for (final long[] column : columns)
+				column[kept] = column[i];
+			kept++;
+			keptResolution = resolution;
+			keptBucket = bucket;
+		}
+
+		final int excess = kept - MAX_SAMPLES;
+		if (excess > 0)
+		{
+			System.arraycopy(times, excess, times, 0, MAX_SAMPLES);
+			for (final long[] column : columns)
+				System.arraycopy(column, excess, column, 0, MAX_SAMPLES);
+			kept = MAX_SAMPLES;
+		}
+
+		size = kept;
+	}
+}
@@ -1,19 +1,23 @@
 
 package de.schildbach.wallet;
 
-import java.io.BufferedInputStream;
-import java.io.IOException;
+import java.io.File;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.math.BigInteger;
-import java.net.HttpURLConnection;
+import java.math.RoundingMode;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.Currency;
-import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -31,9 +35,13 @@ import android.net.Uri;
 import android.preference.PreferenceManager;
 import android.provider.BaseColumns;
 import android.text.format.DateUtils;
-import de.schildbach.wallet.util.GenericUtils;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import de.schildbach.wallet.util.HttpClient;
 import de.schildbach.wallet.util.IOUtils;
-import de.schildbach.wallet.util.Io;
+import de.schildbach.wallet.util.Money;
 
 /**
  * @author Andreas Schildbach
@@ -42,7 +50,7 @@ public class ExchangeRatesProvider extends ContentProvider
 {
     public static class ExchangeRate
     {
-        public ExchangeRate(@Nonnull final String currencyCode, @Nonnull final BigInteger rate, final String source)
+        public ExchangeRate(@Nonnull final String currencyCode, @Nonnull final Money rate, final String source)
         {
             this.currencyCode = currencyCode;
             this.rate = rate;
@@ -50,13 +58,13 @@ public class ExchangeRatesProvider extends ContentProvider
         }
 
         public final String currencyCode;
-        public final BigInteger rate;
+        public final Money rate;
         public final String source;
 
         @Override
         public String toString()
         {
-            return getClass().getSimpleName() + '[' + currencyCode + ':' + GenericUtils.formatValue(rate, Constants.FST_MAX_PRECISION, 0) + ']';
+            return getClass().getSimpleName() + '[' + currencyCode + ':' + rate.format("", "-", Constants.FST_MAX_PRECISION, 0) + ']';
         }
     }
 
@@ -65,11 +73,12 @@ public class ExchangeRatesProvider extends ContentProvider
     private static final String KEY_SOURCE = "source";
 
     private Configuration config;
+    private HttpClient httpClient;
     private String userAgent;
-
-    @CheckForNull
-    private Map<String, ExchangeRate> exchangeRates = null;
-    private long lastUpdated = 0;
+    private ExecutorService executor;
+    private RateAggregator aggregator;
+    private ExchangeRatesCache cache;
+    private ListenableFuture<ExchangeRatesHistory> history;
 
     private static final URL BITCOINAVERAGE_URL;
     private static final String[] BITCOINAVERAGE_FIELDS = new String[] { "24h_avg", "last" };
@@ -91,6 +100,8 @@ public class ExchangeRatesProvider extends ContentProvider
         }
     }
 
+    private static final String CRYPTSY_SOURCE = "pubapi.cryptsy.com";
+
     private static final long UPDATE_FREQ_MS = 10 * DateUtils.MINUTE_IN_MILLIS;
     private static final int TIMEOUT_MS = 15 * (int) DateUtils.SECOND_IN_MILLIS;
 
@@ -103,76 +114,185 @@ public class ExchangeRatesProvider extends ContentProvider
 
         this.config = new Configuration(PreferenceManager.getDefaultSharedPreferences(context));
 
+        this.httpClient = HttpClient.getInstance(context);
         this.userAgent = WalletApplication.httpUserAgent(WalletApplication.packageInfoFromContext(context).versionName);
 
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, "rate source");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+        this.aggregator = new RateAggregator(executor, RateAggregator.Mode.MEDIAN);
+        aggregator.addSource(new JsonTickerRateSource(httpClient, BITCOINAVERAGE_URL, userAgent, BITCOINAVERAGE_FIELDS), Constants.HTTP_TIMEOUT_MS);
+        aggregator.addSource(new JsonTickerRateSource(httpClient, BLOCKCHAININFO_URL, userAgent, BLOCKCHAININFO_FIELDS), Constants.HTTP_TIMEOUT_MS);
+
+        final File snapshotFile = context.getFileStreamPath(Constants.EXCHANGE_RATES_FILENAME);
+        this.history = ExchangeRatesHistory.getInstance(context);
+
+        this.cache = new ExchangeRatesCache(refresher, UPDATE_FREQ_MS, new ExchangeRatesCache.Listener()
+        {
+            @Override
+            public void onRefreshed(final Map<String, ExchangeRate> rates)
+            {
+                final long updated = cache.getLastUpdated();
+                new ExchangeRatesSnapshot(rates, updated).save(snapshotFile);
+                log.info("rate source latencies: {}", httpClient.getStats());
+
+                final ExchangeRate exchangeRateToCache = bestExchangeRate(rates, config.getExchangeCurrencyCode());
+                if (exchangeRateToCache != null)
+                {
+                    config.setCachedExchangeRate(exchangeRateToCache);
+                    addToHistory(exchangeRateToCache, updated);
+                }
+
+                // let loaders pick up the new rates
+                context.getContentResolver().notifyChange(contentUri(context.getPackageName()), null);
+            }
+        });
+
+        // the snapshot is small, so all currencies are there before the first query
+        final ExchangeRatesSnapshot snapshot = ExchangeRatesSnapshot.load(snapshotFile);
         final ExchangeRate cachedExchangeRate = config.getCachedExchangeRate();
-        if (cachedExchangeRate != null)
+        if (snapshot != null)
+        {
+            cache.seed(snapshot.rates, snapshot.timestamp);
+        }
+        else if (cachedExchangeRate != null)
         {
-            exchangeRates = new TreeMap<String, ExchangeRate>();
+            final Map<String, ExchangeRate> exchangeRates = new TreeMap<String, ExchangeRate>();
             exchangeRates.put(cachedExchangeRate.currencyCode, cachedExchangeRate);
+            cache.seed(exchangeRates, 0);
         }
 
         return true;
     }
 
-    public static Uri contentUri(@Nonnull final String packageName)
+    private void addToHistory(@Nonnull final ExchangeRate exchangeRate, final long time)
     {
-        return Uri.parse("content://" + packageName + '.' + "exchange_rates");
+        history.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // transactions are valued in the shown currency only
+                final ExchangeRatesHistory loadedHistory = Futures.getUnchecked(history);
+                loadedHistory.retainCurrencies(Collections.singleton(exchangeRate.currencyCode));
+                loadedHistory.add(Collections.singletonMap(exchangeRate.currencyCode, exchangeRate), time);
+                loadedHistory.saveIfDue(time);
+            }
+        }, executor);
     }
 
-    @Override
-    public Cursor query(final Uri uri, final String[] projection, final String selection, final String[] selectionArgs, final String sortOrder)
+    private final ExchangeRatesCache.Refresher refresher = new ExchangeRatesCache.Refresher()
     {
-        final long now = System.currentTimeMillis();
-
-        Double fst = getCryptsyFSTprice();
+        @CheckForNull
+        private Money lastFstPrice = null;
 
-        if (lastUpdated == 0 || now - lastUpdated > UPDATE_FREQ_MS)
+        @Override
+        public Map<String, ExchangeRate> refresh(final ExchangeRatesCache.Backoff backoff)
         {
-            Map<String, ExchangeRate> newExchangeRates = null;
-            if (newExchangeRates == null)
-                newExchangeRates = requestExchangeRates(BITCOINAVERAGE_URL, userAgent, BITCOINAVERAGE_FIELDS);
-            if (newExchangeRates == null)
-                newExchangeRates = requestExchangeRates(BLOCKCHAININFO_URL, userAgent, BLOCKCHAININFO_FIELDS);
+            // fetch the FST price alongside the tickers
+            Future<Money> fstPriceFuture = null;
+            if (backoff.isAllowed(CRYPTSY_SOURCE, System.currentTimeMillis()))
+            {
+                fstPriceFuture = executor.submit(new Callable<Money>()
+                {
+                    @Override
+                    public Money call()
+                    {
+                        return getCryptsyFSTprice();
+                    }
+                });
+            }
 
-            if (newExchangeRates != null)
+            final RateAggregator.Result result = aggregator.aggregate(backoff);
+
+            if (fstPriceFuture != null)
             {
-                exchangeRates = newExchangeRates;
-                lastUpdated = now;
+                Money fstPrice = null;
+                try
+                {
+                    fstPrice = fstPriceFuture.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+                catch (final Exception x)
+                {
+                    fstPriceFuture.cancel(true);
+                }
 
-                final ExchangeRate exchangeRateToCache = bestExchangeRate(config.getExchangeCurrencyCode());
-                if (exchangeRateToCache != null)
-                    config.setCachedExchangeRate(exchangeRateToCache);
+                if (fstPrice != null)
+                {
+                    backoff.succeeded(CRYPTSY_SOURCE);
+                    lastFstPrice = fstPrice;
+                }
+                else
+                {
+                    backoff.failed(CRYPTSY_SOURCE, System.currentTimeMillis());
+                }
             }
+
+            if (result == null || lastFstPrice == null)
+                return null;
+
+            log.info("fetched exchange rates: {}", result);
+
+            // rates are quoted per BTC, convert to per FST
+            final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+            for (final ExchangeRate rate : result.rates.values())
+                rates.put(rate.currencyCode, new ExchangeRate(rate.currencyCode, rate.rate.multiply(lastFstPrice, RoundingMode.HALF_UP), rate.source));
+            return rates;
         }
+    };
 
-        if (exchangeRates == null)
-            return null;
+    @Override
+    public void shutdown()
+    {
+        cache.shutdown();
+        executor.shutdownNow();
+    }
+
+    public static Uri contentUri(@Nonnull final String packageName)
+    {
+        return Uri.parse("content://" + packageName + '.' + "exchange_rates");
+    }
+
+    @Override
+    public Cursor query(final Uri uri, final String[] projection, final String selection, final String[] selectionArgs, final String sortOrder)
+    {
+        // only reads memory, refreshes happen in the background
+        final Map<String, ExchangeRate> exchangeRates = cache.get();
 
         final MatrixCursor cursor = new MatrixCursor(new String[] { BaseColumns._ID, KEY_CURRENCY_CODE, KEY_RATE, KEY_SOURCE });
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+
+        if (exchangeRates == null)
+            return cursor;
 
         if (selection == null)
         {
             for (final Map.Entry<String, ExchangeRate> entry : exchangeRates.entrySet())
             {
                 final ExchangeRate rate = entry.getValue();
-                cursor.newRow().add(rate.currencyCode.hashCode()).add(rate.currencyCode).add(fst*rate.rate.longValue()).add(rate.source);
-                //cursor.newRow().add(rate.currencyCode.hashCode()).add(rate.currencyCode).add(rate.rate.longValue()).add(rate.source);
+                cursor.newRow().add(rate.currencyCode.hashCode()).add(rate.currencyCode).add(rate.rate.longValue()).add(rate.source);
             }
         }
         else if (selection.equals(KEY_CURRENCY_CODE))
         {
-            final ExchangeRate rate = bestExchangeRate(selectionArgs[0]);
+            final ExchangeRate rate = bestExchangeRate(exchangeRates, selectionArgs[0]);
             if (rate != null)
-                cursor.newRow().add(rate.currencyCode.hashCode()).add(rate.currencyCode).add(fst*rate.rate.longValue()).add(rate.source);
-                //cursor.newRow().add(rate.currencyCode.hashCode()).add(rate.currencyCode).add(rate.rate.longValue()).add(rate.source);
-
+                cursor.newRow().add(rate.currencyCode.hashCode()).add(rate.currencyCode).add(rate.rate.longValue()).add(rate.source);
         }
 
         return cursor;
     }
 
-    private ExchangeRate bestExchangeRate(final String currencyCode)
+    private ExchangeRate bestExchangeRate(@Nonnull final Map<String, ExchangeRate> exchangeRates, final String currencyCode)
     {
         ExchangeRate rate = currencyCode != null ? exchangeRates.get(currencyCode) : null;
         if (rate != null)
@@ -202,7 +322,7 @@ public class ExchangeRatesProvider extends ContentProvider
     public static ExchangeRate getExchangeRate(@Nonnull final Cursor cursor)
     {
         final String currencyCode = cursor.getString(cursor.getColumnIndexOrThrow(ExchangeRatesProvider.KEY_CURRENCY_CODE));
-        final BigInteger rate = BigInteger.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ExchangeRatesProvider.KEY_RATE)));
+        final Money rate = Money.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ExchangeRatesProvider.KEY_RATE)));
         final String source = cursor.getString(cursor.getColumnIndexOrThrow(ExchangeRatesProvider.KEY_SOURCE));
 
         return new ExchangeRate(currencyCode, rate, source);
@@ -232,137 +352,43 @@ public class ExchangeRatesProvider extends ContentProvider
         throw new UnsupportedOperationException();
     }
 
-    private static Map<String, ExchangeRate> requestExchangeRates(final URL url, final String userAgent, final String... fields)
+    @CheckForNull
+    private Money getCryptsyFSTprice()
     {
-        final long start = System.currentTimeMillis();
-
-        HttpURLConnection connection = null;
-        Reader reader = null;
-
+        Money d = null;
+        HttpClient.Response response = null;
         try
         {
-            connection = (HttpURLConnection) url.openConnection();
-
-            connection.setInstanceFollowRedirects(false);
-            connection.setConnectTimeout(Constants.HTTP_TIMEOUT_MS);
-            connection.setReadTimeout(Constants.HTTP_TIMEOUT_MS);
-            connection.addRequestProperty("User-Agent", userAgent);
-            connection.connect();
+            //final URL URL = new URL("http://pubapi.cryptsy.com/api.php?method=marketdata");
+            final URL URL = new URL("http://pubapi.cryptsy.com/api.php?method=singlemarketdata&marketid=44");
+            response = httpClient.execute(new HttpClient.Request(URL).timeout(TIMEOUT_MS).userAgent(userAgent));
 
-            final int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK)
+            if (!response.isOk())
             {
-                reader = new InputStreamReader(new BufferedInputStream(connection.getInputStream(), 1024), Constants.UTF_8);
-                final StringBuilder content = new StringBuilder();
-                Io.copy(reader, content);
-
-                final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+                log.warn("http status {} when fetching {}", response.code, URL);
+                return null;
+            }
 
-                final JSONObject head = new JSONObject(content.toString());
-                for (final Iterator<String> i = head.keys(); i.hasNext();)
-                {
-                    final String currencyCode = i.next();
-                    if (!"timestamp".equals(currencyCode))
-                    {
-                        final JSONObject o = head.getJSONObject(currencyCode);
-
-                        for (final String field : fields)
-                        {
-                            final String rateStr = o.optString(field, null);
-
-                            if (rateStr != null)
-                            {
-                                try
-                                {
-                                    final BigInteger rate = GenericUtils.toNanoCoins(rateStr, 0);
-
-                                    if (rate.signum() > 0)
-                                    {
-                                        rates.put(currencyCode, new ExchangeRate(currencyCode, rate, url.getHost()));
-                                        break;
-                                    }
-                                }
-                                catch (final ArithmeticException x)
-                                {
-                                    log.warn("problem fetching {} exchange rate from {}: {}", new Object[] { currencyCode, url, x.getMessage() });
-                                }
-                            }
-                        }
-                    }
-                }
+            final Reader reader = new InputStreamReader(response.getInputStream(), Constants.UTF_8);
+            final StringBuilder content = new StringBuilder();
+            IOUtils.copy(reader, content);
 
-                log.info("fetched exchange rates from {}, took {} ms", url, (System.currentTimeMillis() - start));
+            final JSONObject head = new JSONObject(content.toString());
+            JSONObject retun = head.getJSONObject("return");
+            JSONObject markets = retun.getJSONObject("markets");
+            JSONObject fst = markets.getJSONObject("FST");
 
-                return rates;
-            }
-            else
-            {
-                log.warn("http status {} when fetching {}", responseCode, url);
-            }
+            // price in BTC, parsed exactly rather than through a double
+            d = Money.parse(fst.getString("lasttradeprice"), 0, RoundingMode.HALF_UP);
         }
         catch (final Exception x)
         {
-            log.warn("problem fetching exchange rates from " + url, x);
+            log.warn("problem fetching fst price from " + CRYPTSY_SOURCE, x);
         }
         finally
         {
-            if (reader != null)
-            {
-                try
-                {
-                    reader.close();
-                }
-                catch (final IOException x)
-                {
-                    // swallow
-                }
-            }
-
-            if (connection != null)
-                connection.disconnect();
-        }
-
-        return null;
-    }
-
-    private static Double getCryptsyFSTprice()
-    {
-        Double d = new Double(0.0);
-        try
-        {
-            //final URL URL = new URL("http://pubapi.cryptsy.com/api.php?method=marketdata");
-            final URL URL = new URL("http://pubapi.cryptsy.com/api.php?method=singlemarketdata&marketid=44");
-            final HttpURLConnection connection = (HttpURLConnection) URL.openConnection();
-            connection.setConnectTimeout(TIMEOUT_MS);
-            connection.setReadTimeout(TIMEOUT_MS);
-            connection.connect();
-
-            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) ;//return null;
-
-            Reader reader = null;
-            try
-            {
-                reader = new InputStreamReader(new BufferedInputStream(connection.getInputStream(), 1024));
-                final StringBuilder content = new StringBuilder();
-                IOUtils.copy(reader, content);
-
-                final JSONObject head = new JSONObject(content.toString());
-                JSONObject retun = head.getJSONObject("return");
-                JSONObject markets = retun.getJSONObject("markets");
-                JSONObject fst = markets.getJSONObject("FST");
-
-                d = fst.getDouble("lasttradeprice");
-
-            }
-            finally
-            {
-                if (reader != null)
-                    reader.close();
-            }
-        }
-        catch (final Exception x)
-        {
-            x.printStackTrace();
+            if (response != null)
+                response.close();
         }
         return d;
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+import de.schildbach.wallet.util.Money;
+
+/**
+ * Last known table of exchange rates on disk, so all currencies are available at cold start and offline. Sources are
+ * stored once in a table and referenced by index, which keeps the file at a few kilobytes.
+ *
+ * @author Andreas Schildbach
+ */
+public final class ExchangeRatesSnapshot
+{
+	private static final int FILE_VERSION = 1;
+
+	public final Map<String, ExchangeRate> rates;
+	public final long timestamp;
+
+	private static final Logger log = LoggerFactory.getLogger(ExchangeRatesSnapshot.class);
+
+	public ExchangeRatesSnapshot(@Nonnull final Map<String, ExchangeRate> rates, final long timestamp)
+	{
+		this.rates = rates;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file first, then renames it, so readers see either the old or the new table.
+	 */
+	public void save(@Nonnull final File file)
+	{
+		final List<String> sources = new ArrayList<String>();
+		final Map<String, Integer> sourceIndexes = new HashMap<String, Integer>();
+		for (final ExchangeRate rate : rates.values())
+		{
+			final String source = rate.source != null ? rate.source : "";
+			if (!sourceIndexes.containsKey(source))
+			{
+				sourceIndexes.put(source, sources.size());
+				sources.add(source);
+			}
+		}
+
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		DataOutputStream os = null;
+
+		try
+		{
+			os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			os.writeInt(FILE_VERSION);
+			os.writeLong(timestamp);
+
+			os.writeShort(sources.size());
+			for (final String source : sources)
+				os.writeUTF(source);
+
+			os.writeShort(rates.size());
+			for (final ExchangeRate rate : rates.values())
+			{
+				os.writeUTF(rate.currencyCode);
+				os.writeLong(rate.rate.longValue());
+				os.writeShort(sourceIndexes.get(rate.source != null ? rate.source : ""));
+			}
+
+			os.close();
+			os = null;
+
+			if (!tmpFile.renameTo(file))
+				throw new IOException("cannot rename to " + file);
+
+			log.info("saved {} exchange rates to '{}'", rates.size(), file);
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem saving exchange rates", x);
+			tmpFile.delete();
+		}
+		finally
+		{
+			if (os != null)
+			{
+				try
+				{
+					os.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return snapshot, or null if there is none or it cannot be read
+	 */
+	@CheckForNull
+	public static ExchangeRatesSnapshot load(@Nonnull final File file)
+	{
+		if (!file.exists())
+			return null;
+
+		DataInputStream is = null;
+
+		try
+		{
+			is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (is.readInt() != FILE_VERSION)
+				throw new IOException("unknown version");
+
+			final long timestamp = is.readLong();
+
+			final int numSources = is.readUnsignedShort();
+			final String[] sources = new String[numSources];
+			for (int i = 0; i < numSources; i++)
+				sources[i] = is.readUTF();
+
+			final int numRates = is.readUnsignedShort();
+			final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+			for (int i = 0; i < numRates; i++)
+			{
+				final String currencyCode = is.readUTF();
+				final Money rate = Money.valueOf(is.readLong());
+				final int sourceIndex = is.readUnsignedShort();
+				if (sourceIndex >= numSources)
+					throw new IOException("bad source index: " + sourceIndex);
+				rates.put(currencyCode, new ExchangeRate(currencyCode, rate, sources[sourceIndex]));
+			}
+
+			log.info("loaded {} exchange rates from '{}'", rates.size(), file);
+
+			return new ExchangeRatesSnapshot(Collections.unmodifiableMap(rates), timestamp);
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem loading exchange rates, ignoring", x);
+			return null;
+		}
+		finally
+		{
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import de.schildbach.wallet.util.Money;
+
+/**
+ * Pulls rates out of a ticker response while streaming it, without building a JSON tree. The response is an object of
+ * currencies, each an object of fields; only the given fields of the wanted currencies are looked at, everything else
+ * is skipped char by char. Rates may be given as JSON numbers or strings, and are converted to nanocoins directly.
+ *
+ * @author Andreas Schildbach
+ */
+public final class JsonTickerParser
+{
+	private static final int NANOCOIN_DECIMALS = 8;
+	private static final long MAX_UNITS = Long.MAX_VALUE / 100000000L - 1;
+
+	private final Reader reader;
+	private final char[] buffer = new char[1024];
+	private int pos = 0;
+	private int limit = 0;
+
+	private char[] token = new char[32];
+	private int tokenLength;
+
+	/**
+	 * @param fields
+	 *            fields to take the rate from, in order of preference
+	 * @param currencies
+	 *            currency codes to extract, or null for all
+	 * @return positive rates per BTC, by currency code
+	 */
+	public static Map<String, Money> parse(@Nonnull final Reader reader, @Nonnull final String[] fields, @CheckForNull final Set<String> currencies)
+			throws IOException
+	{
+		return new JsonTickerParser(reader).parseTicker(fields, currencies);
+	}
+
+	private JsonTickerParser(@Nonnull final Reader reader)
+	{
+		this.reader = reader;
+	}
+
+	private Map<String, Money> parseTicker(@Nonnull final String[] fields, @CheckForNull final Set<String> currencies) throws IOException
+	{
+		final Map<String, Money> rates = new TreeMap<String, Money>();
+
+		expect('{');
+		if (peekNonWhitespace() == '}')
+		{
+			next();
+			return rates;
+		}
+
+		while (true)
+		{
+			readString();
+			expect(':');
+
+			final String currencyCode = wantedCurrency(currencies);
+			if (currencyCode != null && peekNonWhitespace() == '{')
+			{
+				final long rate = parseRate(fields);
+				if (rate > 0)
+					rates.put(currencyCode, Money.valueOf(rate));
+			}
+			else
+			{
+				skipValue();
+			}
+
+			final int c = nextNonWhitespace();
+			if (c == '}')
+				return rates;
+			if (c != ',')
+				throw syntaxError("expected ',' or '}'");
+		}
+	}
+
+	@CheckForNull
+	private String wantedCurrency(@CheckForNull final Set<String> currencies)
+	{
+		if (currencies == null)
+			return tokenEquals("timestamp") ? null : new String(token, 0, tokenLength);
+
+		for (final String currency : currencies)
+			if (tokenEquals(currency))
+				return currency;
+
+		return null;
+	}
+
+	/**
+	 * @return rate from the most preferred field that holds a positive one, or 0 if none does
+	 */
+	private long parseRate(@Nonnull final String[] fields) throws IOException
+	{
+		long rate = 0;
+		int rateField = fields.length;
+
+		expect('{');
+		if (peekNonWhitespace() == '}')
+		{
+			next();
+			return 0;
+		}
+
+		while (true)
+		{
+			readString();
+			expect(':');
+
+			int field = -1;
+			for (int i = 0; i < rateField; i++)
+			{
+				if (tokenEquals(fields[i]))
+				{
+					field = i;
+					break;
+				}
+			}
+
+			final long value = field >= 0 ? readDecimal() : -1;
+			if (field < 0)
+				skipValue();
+
+			if (value > 0)
+			{
+				rate = value;
+				rateField = field;
+			}
+
+			final int c = nextNonWhitespace();
+			if (c == '}')
+				return rate;
+			if (c != ',')
+				throw syntaxError("expected ',' or '}'");
+		}
+	}
+
+	/**
+	 * Reads a number or a string holding a number, converted to nanocoins.
+	 *
+	 * @return value, or -1 if the value is not a number or is negative
+	 */
+	private long readDecimal() throws IOException
+	{
+		final int first = peekNonWhitespace();
+		if (first == '"')
+			readString();
+		else if (first == '-' || (first >= '0' && first <= '9'))
+			readNumber();
+		else
+		{
+			skipValue();
+			return -1;
+		}
+
+		long units = 0;
+		long fraction = 0;
+		int decimals = 0;
+		boolean inFraction = false;
+		boolean roundUp = false;
+
+		for (int i = 0; i < tokenLength; i++)
+		{
+			final char c = token[i];
+			if (c >= '0' && c <= '9')
+			{
+				if (!inFraction)
+				{
+					units = units * 10 + (c - '0');
+					if (units > MAX_UNITS)
+						return -1;
+				}
+				else if (decimals < NANOCOIN_DECIMALS)
+				{
+					fraction = fraction * 10 + (c - '0');
+					decimals++;
+				}
+				else if (decimals == NANOCOIN_DECIMALS)
+				{
+					roundUp = c >= '5';
+					decimals++;
+				}
+			}
+			else if (c == '.' && !inFraction)
+			{
+				inFraction = true;
+			}
+			else if (c == 'e' || c == 'E')
+			{
+				// rare enough to not bother doing it by hand
+				try
+				{
+					final BigDecimal value = new BigDecimal(token, 0, tokenLength).movePointRight(NANOCOIN_DECIMALS);
+					return value.signum() >= 0 && value.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) <= 0 ? value.longValue() : -1;
+				}
+				catch (final NumberFormatException x)
+				{
+					return -1;
+				}
+			}
+			else
+			{
+				return -1;
+			}
+		}
+
+		for (int i = Math.min(decimals, NANOCOIN_DECIMALS); i < NANOCOIN_DECIMALS; i++)
+			fraction *= 10;
+
+		return units * 100000000L + fraction + (roundUp ? 1 : 0);
+	}
+
+	private void readString() throws IOException
+	{
+		if (nextNonWhitespace() != '"')
+			throw syntaxError("expected string");
+
+		tokenLength = 0;
+		while (true)
+		{
+			int c = next();
+			if (c == '"')
+				return;
+			if (c == -1)
+				throw syntaxError("unterminated string");
+
+			if (c == '\\')
+			{
+				c = next();
+				switch (c)
+				{
+					case 'b':
+						c = '\b';
+						break;
+					case 'f':
+						c = '\f';
+						break;
+					case 'n':
+						c = '\n';
+						break;
+					case 'r':
+						c = '\r';
+						break;
+					case 't':
+						c = '\t';
+						break;
+					case 'u':
+						c = 0;
+						for (int i = 0; i < 4; i++)
+							c = (c << 4) + Character.digit(next(), 16);
+						if (c < 0)
+							throw syntaxError("bad unicode escape");
+						break;
+					case '"':
+					case '\\':
+					case '/':
+						break;
+					default:
+						throw syntaxError("bad escape");
+				}
+			}
+
+			appendToken((char) c);
+		}
+	}
+
+	private void readNumber() throws IOException
+	{
+		skipWhitespace();
+
+		tokenLength = 0;
+		while (true)
+		{
+			final int c = peek();
+			if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E')
+				appendToken((char) next());
+			else
+				return;
+		}
+	}
+
+	private void skipValue() throws IOException
+	{
+		int depth = 0;
+
+		do
+		{
+			final int c = peekNonWhitespace();
+			if (c == '"')
+			{
+				skipString();
+			}
+			else if (c == '{' || c == '[')
+			{
+				next();
+				depth++;
+			}
+			else if (c == '}' || c == ']')
+			{
+				next();
+				depth--;
+			}
+			else if (c == ',' || c == ':')
+			{
+				if (depth == 0)
+					throw syntaxError("expected value");
+				next();
+			}
+			else if (c == -1)
+			{
+				throw syntaxError("unexpected end");
+			}
+			else
+			{
+				// number or literal
+				while (true)
+				{
+					final int l = peek();
+					if (l == -1 || l == ',' || l == '}' || l == ']' || l == ':' || Character.isWhitespace(l))
+						break;
+					next();
+				}
+			}
+		}
+		while (depth > 0);
+	}
+
+	private void skipString() throws IOException
+	{
+		next(); // opening quote
+
+		while (true)
+		{
+			final int c = next();
+			if (c == '"')
+				return;
+			if (c == '\\')
+				next();
+			else if (c == -1)
+				throw syntaxError("unterminated string");
+		}
+	}
+
+	private boolean tokenEquals(@Nonnull final String str)
+	{
+		if (str.length() != tokenLength)
+			return false;
+
+		for (int i = 0; i < tokenLength; i++)
+			if (token[i] != str.charAt(i))
+				return false;
+
+		return true;
+	}
+
+	private void appendToken(final char c)
+	{
+		if (tokenLength == token.length)
+		{
+			final char[] newToken = new char[token.length * 2];
+			System.arraycopy(token, 0, newToken, 0, tokenLength);
+			token = newToken;
+		}
+
+		token[tokenLength++] = c;
+	}
+
+	private void expect(final char expected) throws IOException
+	{
+		if (nextNonWhitespace() != expected)
+			throw syntaxError("expected '" + expected + "'");
+	}
+
+	private int nextNonWhitespace() throws IOException
+	{
+		skipWhitespace();
+		return next();
+	}
+
+	private int peekNonWhitespace() throws IOException
+	{
+		skipWhitespace();
+		return peek();
+	}
+
+	private void skipWhitespace() throws IOException
+	{
+		while (true)
+		{
+			final int c = peek();
+			if (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+				next();
+			else
+				return;
+		}
+	}
+
+	private int peek() throws IOException
+	{
+		if (pos == limit && !fill())
+			return -1;
+
+		return buffer[pos];
+	}
+
+	private int next() throws IOException
+	{
+		if (pos == limit && !fill())
+			return -1;
+
+		return buffer[pos++];
+	}
+
+	private boolean fill() throws IOException
+	{
+		final int read = reader.read(buffer, 0, buffer.length);
+		if (read <= 0)
+			return false;
+
+		pos = 0;
+		limit = read;
+		return true;
+	}
+
+	private IOException syntaxError(@Nonnull final String message)
+	{
+		return new IOException("cannot parse ticker: " + message);
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import de.schildbach.wallet.util.HttpClient;
+import de.schildbach.wallet.util.Money;
+
+/**
+ * Ticker returning a JSON object of currencies, each holding its rates per BTC in several fields. The first positive
+ * field in the given order is taken. The response is parsed while it streams in, see {@link JsonTickerParser}. If the
+ * ticker didn't change since the last fetch, the rates parsed then are returned again.
+ *
+ * @author Andreas Schildbach
+ */
+public final class JsonTickerRateSource implements RateSource
+{
+	private final HttpClient httpClient;
+	private final URL url;
+	private final String userAgent;
+	private final String[] fields;
+
+	@CheckForNull
+	private volatile Map<String, Money> lastRates = null;
+
+	public JsonTickerRateSource(@Nonnull final HttpClient httpClient, @Nonnull final URL url, @Nonnull final String userAgent,
+			@Nonnull final String... fields)
+	{
+		this.httpClient = httpClient;
+		this.url = url;
+		this.userAgent = userAgent;
+		this.fields = fields;
+	}
+
+	@Override
+	public String getName()
+	{
+		return url.getHost();
+	}
+
+	@Override
+	public Map<String, Money> fetch(final int timeoutMs) throws IOException
+	{
+		// without rates to keep, a 304 would be of no use
+		final Map<String, Money> lastRates = this.lastRates;
+		final HttpClient.Request request = new HttpClient.Request(url).timeout(timeoutMs).userAgent(userAgent);
+		if (lastRates != null)
+			request.conditional();
+		final HttpClient.Response response = httpClient.execute(request);
+
+		try
+		{
+			if (response.isNotModified() && lastRates != null)
+				return lastRates;
+
+			if (!response.isOk())
+				throw new IOException("http status " + response.code + " when fetching " + url);
+
+			// all currencies are listed to the user, so take them all
+			final Map<String, Money> rates = JsonTickerParser.parse(new InputStreamReader(response.getInputStream(), Constants.UTF_8), fields,
+					null);
+			this.lastRates = rates;
+			response.commit();
+			return rates;
+		}
+		finally
+		{
+			response.close();
+		}
+	}
+}
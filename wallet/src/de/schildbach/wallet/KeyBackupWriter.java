@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.fastcoin.core.AbstractWalletEventListener;
+import com.google.fastcoin.core.ECKey;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.utils.Threading;
+import com.google.protobuf.ByteString;
+
+/**
+ * Writes keys-only wallet backups on a background thread. The backup proto is built straight from the keys, so
+ * transactions are never serialized. Requests arriving in quick succession, like a batch of imported keys, are
+ * coalesced into one write.
+ *
+ * @author Andreas Schildbach
+ */
+public final class KeyBackupWriter
+{
+	private static final long COALESCE_MS = 500;
+	private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+	private final Wallet wallet;
+	private final File dir;
+	private final String filename;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, "key backup");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	private SettableFuture<Void> pending;
+	private long pendingSince;
+	private int pendingRequests;
+	private long lastLatencyMs = -1;
+
+	private static final Logger log = LoggerFactory.getLogger(KeyBackupWriter.class);
+
+	/**
+	 * @param filename
+	 *            name of the backup in the given directory, a day-rotated copy is written next to it
+	 */
+	public KeyBackupWriter(@Nonnull final Wallet wallet, @Nonnull final File dir, @Nonnull final String filename)
+	{
+		this.wallet = wallet;
+		this.dir = dir;
+		this.filename = filename;
+
+		wallet.addEventListener(walletListener, Threading.SAME_THREAD);
+	}
+
+	/**
+	 * Schedules a backup, or joins the one already scheduled.
+	 *
+	 * @return future completing once the backup is on disk
+	 */
+	public synchronized ListenableFuture<Void> requestBackup()
+	{
+		pendingRequests++;
+
+		if (pending == null)
+		{
+			pending = SettableFuture.create();
+			pendingSince = System.currentTimeMillis();
+
+			executor.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					write();
+				}
+			}, COALESCE_MS, TimeUnit.MILLISECONDS);
+		}
+
+		return pending;
+	}
+
+	/**
+	 * @return time from the first coalesced request to the last backup being on disk, or -1 if none was written yet
+	 */
+	public synchronized long getLastLatencyMs()
+	{
+		return lastLatencyMs;
+	}
+
+	private void write()
+	{
+		final SettableFuture<Void> future;
+		final long requestedAt;
+		final int numRequests;
+
+		synchronized (this)
+		{
+			future = pending;
+			requestedAt = pendingSince;
+			numRequests = pendingRequests;
+			pending = null;
+			pendingRequests = 0;
+		}
+
+		try
+		{
+			final long start = System.currentTimeMillis();
+			final List<ECKey> keys = wallet.getKeys();
+			final byte[] backup = keysToProto(wallet, keys).toByteArray();
+			final long built = System.currentTimeMillis();
+
+			final String rotatedFilename = String.format(Locale.US, "%s.%02d", filename, (System.currentTimeMillis() / DAY_MS) % 100l);
+			writeAtomically(new File(dir, filename), backup);
+			writeAtomically(new File(dir, rotatedFilename), backup);
+			final long written = System.currentTimeMillis();
+
+			synchronized (this)
+			{
+				lastLatencyMs = written - requestedAt;
+			}
+
+			log.info("key backup of {} keys ({} bytes) written {}ms after request, coalesced {} requests, build {}ms, write {}ms", new Object[] {
+					keys.size(), backup.length, written - requestedAt, numRequests, built - start, written - built });
+
+			future.set(null);
+		}
+		catch (final IOException x)
+		{
+			log.error("problem writing key backup", x);
+
+			future.setException(x);
+		}
+		catch (final RuntimeException x)
+		{
+			log.error("problem writing key backup", x);
+
+			future.setException(x);
+		}
+	}
+
+	/**
+	 * Builds the same proto as the full wallet serializer, minus transactions and last seen block. Only unencrypted
+	 * keys are supported, like in the rest of the app.
+	 */
+	public static Protos.Wallet keysToProto(@Nonnull final Wallet wallet, @Nonnull final List<ECKey> keys)
+	{
+		final Protos.Wallet.Builder builder = Protos.Wallet.newBuilder();
+		builder.setNetworkIdentifier(wallet.getParams().getId());
+		if (wallet.getDescription() != null)
+			builder.setDescription(wallet.getDescription());
+
+		for (final ECKey key : keys)
+		{
+			final Protos.Key.Builder keyBuilder = Protos.Key.newBuilder();
+			keyBuilder.setType(Protos.Key.Type.ORIGINAL);
+			keyBuilder.setCreationTimestamp(key.getCreationTimeSeconds() * 1000);
+			final byte[] privKeyBytes = key.getPrivKeyBytes();
+			if (privKeyBytes != null)
+				keyBuilder.setPrivateKey(ByteString.copyFrom(privKeyBytes));
+			keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
+			builder.addKey(keyBuilder);
+		}
+
+		builder.setLastSeenBlockHeight(-1);
+
+		final Date keyRotationTime = wallet.getKeyRotationTime();
+		if (keyRotationTime != null)
+			builder.setKeyRotationTime(keyRotationTime.getTime() / 1000);
+
+		return builder.build();
+	}
+
+	private static void writeAtomically(@Nonnull final File file, @Nonnull final byte[] bytes) throws IOException
+	{
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		FileOutputStream os = null;
+
+		try
+		{
+			os = new FileOutputStream(tmpFile);
+			os.write(bytes);
+			os.flush();
+			os.getFD().sync();
+			os.close();
+			os = null;
+
+			if (!tmpFile.renameTo(file))
+				throw new IOException("cannot rename to " + file);
+		}
+		finally
+		{
+			if (os != null)
+			{
+				try
+				{
+					os.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+
+			tmpFile.delete();
+		}
+	}
+
+	private final AbstractWalletEventListener walletListener = new AbstractWalletEventListener()
+	{
+		@Override
+		public void onKeysAdded(final Wallet wallet, final List<ECKey> keys)
+		{
+			requestBackup();
+		}
+	};
+}
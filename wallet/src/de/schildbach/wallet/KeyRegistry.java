@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.google.fastcoin.core.AbstractWalletEventListener;
+import com.google.fastcoin.core.Address;
+import com.google.fastcoin.core.ECKey;
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.utils.Threading;
+
+/**
+ * Index over the wallet's keys, kept up to date as keys are added. Addresses and rotation flags are computed once per
+ * key, so lookups by address and of the default keys don't walk the keychain.
+ *
+ * <p>
+ * Rotation flags are taken when a key is added. Create the registry after setting the key rotation time.
+ * </p>
+ *
+ * @author Andreas Schildbach
+ */
+public final class KeyRegistry
+{
+	public static final class Entry
+	{
+		public final ECKey key;
+		public final Address address;
+		public final String addressString;
+		public final boolean rotating;
+
+		private Entry(@Nonnull final ECKey key, @Nonnull final Address address, final boolean rotating)
+		{
+			this.key = key;
+			this.address = address;
+			this.addressString = address.toString();
+			this.rotating = rotating;
+		}
+	}
+
+	/**
+	 * Usable keys first, then by creation time.
+	 */
+	private static final Comparator<Entry> DISPLAY_ORDER = new Comparator<Entry>()
+	{
+		@Override
+		public int compare(final Entry lhs, final Entry rhs)
+		{
+			if (lhs.rotating != rhs.rotating)
+				return lhs.rotating ? 1 : -1;
+
+			final long lhsTime = lhs.key.getCreationTimeSeconds();
+			final long rhsTime = rhs.key.getCreationTimeSeconds();
+			if (lhsTime != rhsTime)
+				return lhsTime > rhsTime ? 1 : -1;
+
+			return 0;
+		}
+	};
+
+	private final Wallet wallet;
+	private final NetworkParameters params;
+
+	private final Map<String, Entry> byAddress = new HashMap<String, Entry>();
+	private List<Entry> sorted = Collections.emptyList();
+	@CheckForNull
+	private Entry firstUsable;
+
+	public KeyRegistry(@Nonnull final Wallet wallet)
+	{
+		this.wallet = wallet;
+		this.params = wallet.getParams();
+
+		// listen first, so no key slips through; duplicates are ignored
+		wallet.addEventListener(walletListener, Threading.SAME_THREAD);
+
+		add(wallet.getKeys());
+	}
+
+	/**
+	 * @return entry of the key for the given address, or null if not ours
+	 */
+	@CheckForNull
+	public synchronized Entry lookup(@Nonnull final String address)
+	{
+		return byAddress.get(address);
+	}
+
+	/**
+	 * @return the given address if it belongs to a usable key, otherwise the address of the first usable key added, or
+	 *         null if there is none
+	 */
+	@CheckForNull
+	public synchronized Address selectedAddress(@CheckForNull final String selectedAddress)
+	{
+		if (selectedAddress != null)
+		{
+			final Entry entry = byAddress.get(selectedAddress);
+			if (entry != null && !entry.rotating)
+				return entry.address;
+		}
+
+		return firstUsable != null ? firstUsable.address : null;
+	}
+
+	/**
+	 * @return oldest key that is not rotating, or null if there is none
+	 */
+	@CheckForNull
+	public synchronized ECKey oldestUsableKey()
+	{
+		if (sorted.isEmpty())
+			return null;
+
+		final Entry oldest = sorted.get(0);
+		return !oldest.rotating ? oldest.key : null;
+	}
+
+	public synchronized boolean hasUsableKey()
+	{
+		return firstUsable != null;
+	}
+
+	/**
+	 * @return all keys, usable ones first, then by creation time; the list is not modified later on
+	 */
+	public synchronized List<Entry> sortedEntries()
+	{
+		return sorted;
+	}
+
+	private synchronized void add(@Nonnull final List<ECKey> keys)
+	{
+		final List<Entry> newSorted = new ArrayList<Entry>(sorted.size() + keys.size());
+		newSorted.addAll(sorted);
+
+		for (final ECKey key : keys)
+		{
+			final Entry entry = new Entry(key, key.toAddress(params), wallet.isKeyRotating(key));
+			if (byAddress.containsKey(entry.addressString))
+				continue;
+
+			byAddress.put(entry.addressString, entry);
+			newSorted.add(entry);
+
+			if (firstUsable == null && !entry.rotating)
+				firstUsable = entry;
+		}
+
+		// stable, so keys of the same age stay in the order they were added
+		Collections.sort(newSorted, DISPLAY_ORDER);
+		sorted = Collections.unmodifiableList(newSorted);
+	}
+
+	private final AbstractWalletEventListener walletListener = new AbstractWalletEventListener()
+	{
+		@Override
+		public void onKeysAdded(final Wallet wallet, final List<ECKey> keys)
+		{
+			add(keys);
+		}
+	};
+}
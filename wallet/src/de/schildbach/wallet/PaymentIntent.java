@@ -38,6 +38,7 @@ import com.google.fastcoin.uri.BitcoinURI;
 
 import de.schildbach.wallet.util.Bluetooth;
 import de.schildbach.wallet.util.GenericUtils;
+import de.schildbach.wallet.util.Money;
 
 /**
  * @author Andreas Schildbach
@@ -51,10 +52,11 @@ public final class PaymentIntent implements Parcelable
 
 	public final static class Output implements Parcelable
 	{
-		public final BigInteger amount;
+		@CheckForNull
+		public final Money amount;
 		public final Script script;
 
-		public Output(final BigInteger amount, final Script script)
+		public Output(@Nullable final Money amount, final Script script)
 		{
 			this.amount = amount;
 			this.script = script;
@@ -72,7 +74,7 @@ public final class PaymentIntent implements Parcelable
 
 			builder.append(getClass().getSimpleName());
 			builder.append('[');
-			builder.append(hasAmount() ? GenericUtils.formatValue(amount, Constants.FST_MAX_PRECISION, 0) : "null");
+			builder.append(hasAmount() ? amount.format("", "-", Constants.FST_MAX_PRECISION, 0) : "null");
 			builder.append(',');
 			if (script.isSentToAddress() || script.isSentToP2SH())
 				builder.append(script.getToAddress(Constants.NETWORK_PARAMETERS));
@@ -97,7 +99,9 @@ public final class PaymentIntent implements Parcelable
 		@Override
 		public void writeToParcel(final Parcel dest, final int flags)
 		{
-			dest.writeSerializable(amount);
+			dest.writeByte((byte) (amount != null ? 1 : 0));
+			if (amount != null)
+				dest.writeLong(amount.longValue());
 
 			final byte[] program = script.getProgram();
 			dest.writeInt(program.length);
@@ -121,7 +125,7 @@ public final class PaymentIntent implements Parcelable
 
 		private Output(final Parcel in)
 		{
-			amount = (BigInteger) in.readSerializable();
+			amount = in.readByte() != 0 ? Money.valueOf(in.readLong()) : null;
 
 			final int programLength = in.readInt();
 			final byte[] program = new byte[programLength];
@@ -211,7 +215,7 @@ public final class PaymentIntent implements Parcelable
 			if (mayEditAmount())
 			{
 				// put all coins on first output, skip the others
-				outputs = new Output[] { new Output(editedAmount, this.outputs[0].script) };
+				outputs = new Output[] { new Output(editedAmount != null ? Money.valueOf(editedAmount) : null, this.outputs[0].script) };
 			}
 			else
 			{
@@ -232,13 +236,13 @@ public final class PaymentIntent implements Parcelable
 	{
 		final Transaction transaction = new Transaction(Constants.NETWORK_PARAMETERS);
 		for (final PaymentIntent.Output output : outputs)
-			transaction.addOutput(output.amount, output.script);
+			transaction.addOutput(output.amount != null ? output.amount.toBigInteger() : null, output.script);
 		return SendRequest.forTx(transaction);
 	}
 
-	private static Output[] buildSimplePayTo(final BigInteger amount, final Address address)
+	private static Output[] buildSimplePayTo(@Nullable final BigInteger amount, final Address address)
 	{
-		return new Output[] { new Output(amount, ScriptBuilder.createOutputScript(address)) };
+		return new Output[] { new Output(amount != null ? Money.valueOf(amount) : null, ScriptBuilder.createOutputScript(address)) };
 	}
 
 	public boolean hasPayee()
@@ -291,14 +295,14 @@ public final class PaymentIntent implements Parcelable
 
 	public BigInteger getAmount()
 	{
-		BigInteger amount = BigInteger.ZERO;
+		Money amount = Money.ZERO;
 
 		if (hasOutputs())
 			for (final Output output : outputs)
 				if (output.hasAmount())
 					amount = amount.add(output.amount);
 
-		return amount;
+		return amount.toBigInteger();
 	}
 
 	public boolean mayEditAmount()
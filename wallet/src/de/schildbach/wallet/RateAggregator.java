@@ -0,0 +1,419 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+import de.schildbach.wallet.util.Money;
+
+/**
+ * Queries several {@link RateSource}s at once, each with its own deadline, and combines their answers.
+ *
+ * <p>
+ * In {@link Mode#MEDIAN} mode all sources are awaited until their deadlines, and each currency gets the median of the
+ * rates that lie within {@link #MAX_DEVIATION} of the plain median. With fewer than three rates there is no majority,
+ * so they are averaged. In {@link Mode#FASTEST} mode the first source whose
+ * rates are plausible wins; rates are plausible if most of them lie within {@link #MAX_DEVIATION} of the previous
+ * result. If none is, the answers received are combined as in median mode.
+ * </p>
+ *
+ * @author Andreas Schildbach
+ */
+public final class RateAggregator
+{
+	public enum Mode
+	{
+		MEDIAN, FASTEST
+	}
+
+	/**
+	 * Relative deviation beyond which a rate is considered an outlier.
+	 */
+	public static final double MAX_DEVIATION = 0.1;
+
+	/**
+	 * Fewer rates have no majority to tell an outlier by, so they are averaged.
+	 */
+	private static final int MIN_SOURCES_FOR_OUTLIERS = 3;
+
+	public static final class SourceResult
+	{
+		public final String name;
+		public final long latencyMs;
+		@CheckForNull
+		public final Map<String, Money> rates;
+		@CheckForNull
+		public final String error;
+
+		private SourceResult(@Nonnull final String name, final long latencyMs, @CheckForNull final Map<String, Money> rates,
+				@CheckForNull final String error)
+		{
+			this.name = name;
+			this.latencyMs = latencyMs;
+			this.rates = rates;
+			this.error = error;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + (error == null ? " " + latencyMs + "ms" : latencyMs >= 0 ? " " + error + " after " + latencyMs + "ms" : " " + error);
+		}
+	}
+
+	public static final class Result
+	{
+		public final Map<String, ExchangeRate> rates;
+		public final List<SourceResult> sources;
+		public final String winner;
+
+		private Result(@Nonnull final Map<String, ExchangeRate> rates, @Nonnull final List<SourceResult> sources, @Nonnull final String winner)
+		{
+			this.rates = rates;
+			this.sources = sources;
+			this.winner = winner;
+		}
+
+		@Override
+		public String toString()
+		{
+			return rates.size() + " rates, won by " + winner + ", sources: " + sources;
+		}
+	}
+
+	private static final class Entry
+	{
+		public final RateSource source;
+		public final int deadlineMs;
+
+		public Entry(@Nonnull final RateSource source, final int deadlineMs)
+		{
+			this.source = source;
+			this.deadlineMs = deadlineMs;
+		}
+	}
+
+	private final ExecutorService executor;
+	private final Mode mode;
+	private final List<Entry> entries = new LinkedList<Entry>();
+
+	@CheckForNull
+	private Map<String, Money> lastRates = null;
+
+	private static final Logger log = LoggerFactory.getLogger(RateAggregator.class);
+
+	public RateAggregator(@Nonnull final ExecutorService executor, @Nonnull final Mode mode)
+	{
+		this.executor = executor;
+		this.mode = mode;
+	}
+
+	/**
+	 * @param deadlineMs
+	 *            time after which the source is given up on in a round
+	 */
+	public synchronized void addSource(@Nonnull final RateSource source, final int deadlineMs)
+	{
+		entries.add(new Entry(source, deadlineMs));
+	}
+
+	/**
+	 * Runs one round of queries, skipping sources the backoff holds back and reporting failures to it.
+	 *
+	 * @return combined rates, or null if no source answered in time
+	 */
+	@CheckForNull
+	public synchronized Result aggregate(@Nonnull final ExchangeRatesCache.Backoff backoff)
+	{
+		final long start = System.currentTimeMillis();
+		final CompletionService<SourceResult> completion = new ExecutorCompletionService<SourceResult>(executor);
+		final Map<Future<SourceResult>, Entry> pending = new HashMap<Future<SourceResult>, Entry>();
+		final List<SourceResult> results = new ArrayList<SourceResult>(entries.size());
+		SourceResult fastest = null;
+
+		for (final Entry entry : entries)
+		{
+			if (backoff.isAllowed(entry.source.getName(), start))
+				pending.put(completion.submit(fetchCallable(entry, start)), entry);
+			else
+				results.add(new SourceResult(entry.source.getName(), -1, null, "backing off"));
+		}
+
+		try
+		{
+			while (!pending.isEmpty())
+			{
+				final long now = System.currentTimeMillis();
+
+				// give up on sources past their deadline
+				long nextDeadline = Long.MAX_VALUE;
+				for (final Iterator<Map.Entry<Future<SourceResult>, Entry>> i = pending.entrySet().iterator(); i.hasNext();)
+				{
+					final Map.Entry<Future<SourceResult>, Entry> p = i.next();
+					final long deadline = start + p.getValue().deadlineMs;
+					if (now >= deadline)
+					{
+						p.getKey().cancel(true);
+						i.remove();
+						results.add(new SourceResult(p.getValue().source.getName(), now - start, null, "timeout"));
+						backoff.failed(p.getValue().source.getName(), now);
+					}
+					else
+					{
+						nextDeadline = Math.min(nextDeadline, deadline);
+					}
+				}
+				if (pending.isEmpty())
+					break;
+
+				final Future<SourceResult> done = completion.poll(nextDeadline - now, TimeUnit.MILLISECONDS);
+				if (done == null || pending.remove(done) == null)
+					continue;
+
+				final SourceResult result = done.get();
+				results.add(result);
+
+				if (result.rates != null)
+				{
+					backoff.succeeded(result.name);
+
+					if (mode == Mode.FASTEST && isPlausible(result.rates))
+					{
+						fastest = result;
+						break;
+					}
+				}
+				else
+				{
+					backoff.failed(result.name, System.currentTimeMillis());
+				}
+			}
+		}
+		catch (final InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (final ExecutionException x)
+		{
+			throw new RuntimeException(x.getCause()); // cannot happen, failures are results
+		}
+		finally
+		{
+			for (final Map.Entry<Future<SourceResult>, Entry> p : pending.entrySet())
+			{
+				p.getKey().cancel(true);
+				results.add(new SourceResult(p.getValue().source.getName(), -1, null, "cancelled"));
+			}
+		}
+
+		final Map<String, ExchangeRate> rates;
+		final String winner;
+
+		if (fastest != null)
+		{
+			rates = new TreeMap<String, ExchangeRate>();
+			for (final Map.Entry<String, Money> rate : fastest.rates.entrySet())
+				rates.put(rate.getKey(), new ExchangeRate(rate.getKey(), rate.getValue(), fastest.name));
+			winner = fastest.name;
+		}
+		else
+		{
+			// also if no source was plausible on its own, e.g. after a market jump
+			rates = median(results);
+			if (rates.isEmpty())
+				return null;
+			winner = mostFrequentSource(rates);
+		}
+
+		final Map<String, Money> newLastRates = new HashMap<String, Money>(rates.size());
+		for (final ExchangeRate rate : rates.values())
+			newLastRates.put(rate.currencyCode, rate.rate);
+		lastRates = newLastRates;
+
+		return new Result(rates, Collections.unmodifiableList(results), winner);
+	}
+
+	private static Callable<SourceResult> fetchCallable(@Nonnull final Entry entry, final long start)
+	{
+		return new Callable<SourceResult>()
+		{
+			@Override
+			public SourceResult call()
+			{
+				final String name = entry.source.getName();
+
+				try
+				{
+					final Map<String, Money> rates = entry.source.fetch(entry.deadlineMs);
+					final long latencyMs = System.currentTimeMillis() - start;
+
+					return rates.isEmpty() ? new SourceResult(name, latencyMs, null, "no rates") : new SourceResult(name, latencyMs, rates, null);
+				}
+				catch (final IOException x)
+				{
+					return new SourceResult(name, System.currentTimeMillis() - start, null, x.getMessage());
+				}
+				catch (final RuntimeException x)
+				{
+					return new SourceResult(name, System.currentTimeMillis() - start, null, x.toString());
+				}
+			}
+		};
+	}
+
+	private boolean isPlausible(@Nonnull final Map<String, Money> rates)
+	{
+		if (lastRates == null)
+			return true;
+
+		int numCompared = 0;
+		int numDeviating = 0;
+		for (final Map.Entry<String, Money> rate : rates.entrySet())
+		{
+			final Money lastRate = lastRates.get(rate.getKey());
+			if (lastRate != null)
+			{
+				numCompared++;
+				if (deviates(rate.getValue(), lastRate))
+					numDeviating++;
+			}
+		}
+
+		return numDeviating * 2 <= numCompared;
+	}
+
+	private static Map<String, ExchangeRate> median(@Nonnull final List<SourceResult> results)
+	{
+		final Map<String, List<ExchangeRate>> byCurrency = new TreeMap<String, List<ExchangeRate>>();
+		for (final SourceResult result : results)
+		{
+			if (result.rates == null)
+				continue;
+
+			for (final Map.Entry<String, Money> rate : result.rates.entrySet())
+			{
+				List<ExchangeRate> candidates = byCurrency.get(rate.getKey());
+				if (candidates == null)
+				{
+					candidates = new ArrayList<ExchangeRate>(results.size());
+					byCurrency.put(rate.getKey(), candidates);
+				}
+				candidates.add(new ExchangeRate(rate.getKey(), rate.getValue(), result.name));
+			}
+		}
+
+		final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+		for (final Map.Entry<String, List<ExchangeRate>> currency : byCurrency.entrySet())
+		{
+			final List<ExchangeRate> candidates = currency.getValue();
+			Collections.sort(candidates, BY_RATE);
+
+			if (candidates.size() >= MIN_SOURCES_FOR_OUTLIERS)
+			{
+				// reject outliers around the plain median, then take the median of the rest
+				final Money plainMedian = candidates.get((candidates.size() - 1) / 2).rate;
+				for (final Iterator<ExchangeRate> i = candidates.iterator(); i.hasNext();)
+					if (deviates(i.next().rate, plainMedian))
+						i.remove();
+			}
+			else if (candidates.size() == 2 && deviates(candidates.get(1).rate, candidates.get(0).rate))
+			{
+				// no majority to tell which one is off, so both are averaged
+				log.warn("{} sources disagree: {} from {}, {} from {}", new Object[] { currency.getKey(), candidates.get(0).rate,
+						candidates.get(0).source, candidates.get(1).rate, candidates.get(1).source });
+			}
+
+			final int size = candidates.size();
+			final ExchangeRate median;
+			if (size % 2 == 1)
+			{
+				median = candidates.get(size / 2);
+			}
+			else
+			{
+				final ExchangeRate lower = candidates.get(size / 2 - 1);
+				final ExchangeRate upper = candidates.get(size / 2);
+				median = new ExchangeRate(currency.getKey(), lower.rate.add(upper.rate).divide(2, RoundingMode.HALF_EVEN), lower.source.equals(upper.source) ? lower.source
+						: lower.source + ", " + upper.source);
+			}
+			rates.put(currency.getKey(), median);
+		}
+
+		return rates;
+	}
+
+	private static String mostFrequentSource(@Nonnull final Map<String, ExchangeRate> rates)
+	{
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		String winner = null;
+		int winnerCount = 0;
+
+		for (final ExchangeRate rate : rates.values())
+		{
+			final Integer previous = counts.get(rate.source);
+			final int count = previous != null ? previous + 1 : 1;
+			counts.put(rate.source, count);
+
+			if (count > winnerCount)
+			{
+				winner = rate.source;
+				winnerCount = count;
+			}
+		}
+
+		return winner;
+	}
+
+	private static boolean deviates(@Nonnull final Money rate, @Nonnull final Money reference)
+	{
+		return Math.abs((double) rate.longValue() - reference.longValue()) > reference.longValue() * MAX_DEVIATION;
+	}
+
+	private static final Comparator<ExchangeRate> BY_RATE = new Comparator<ExchangeRate>()
+	{
+		@Override
+		public int compare(final ExchangeRate lhs, final ExchangeRate rhs)
+		{
+			return lhs.rate.compareTo(rhs.rate);
+		}
+	};
+}
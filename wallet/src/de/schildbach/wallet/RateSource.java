@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import de.schildbach.wallet.util.Money;
+
+/**
+ * Source of exchange rates, queried by {@link RateAggregator}.
+ *
+ * @author Andreas Schildbach
+ */
+public interface RateSource
+{
+	/**
+	 * @return short name, also shown to the user as the source of a rate
+	 */
+	@Nonnull
+	String getName();
+
+	/**
+	 * Fetches the current rates, blocking the calling thread.
+	 *
+	 * @param timeoutMs
+	 *            time after which to give up on connecting or reading
+	 * @return rates per BTC, by currency code
+	 */
+	@Nonnull
+	Map<String, Money> fetch(int timeoutMs) throws IOException;
+}
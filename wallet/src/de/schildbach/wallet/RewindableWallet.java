@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+
+import org.bitcoinj.wallet.Protos;
+
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.StoredBlock;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.store.UnreadableWalletException;
+import com.google.fastcoin.store.WalletProtobufSerializer;
+
+import de.schildbach.wallet.service.BlockchainRewind;
+
+/**
+ * Wallet that can be rewound to an earlier chain head under its own lock.
+ *
+ * @author Andreas Schildbach
+ */
+public class RewindableWallet extends Wallet
+{
+	public RewindableWallet(@Nonnull final NetworkParameters params)
+	{
+		super(params);
+	}
+
+	/**
+	 * Makes the given block the last block seen and adjusts the depth of confirmed transactions to match, in one step so
+	 * that no other wallet operation sees a half rewound state.
+	 *
+	 * @return number of transactions adjusted
+	 */
+	public int rewind(@Nonnull final StoredBlock head)
+	{
+		lock.lock();
+		try
+		{
+			setLastBlockSeenHash(head.getHeader().getHash());
+			setLastBlockSeenHeight(head.getHeight());
+			return BlockchainRewind.rewindConfidence(this, head.getHeight());
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public static RewindableWallet read(@Nonnull final InputStream is, @Nonnull final NetworkParameters params) throws IOException,
+			UnreadableWalletException
+	{
+		final Protos.Wallet walletProto = WalletProtobufSerializer.parseToProto(is);
+		if (!params.getId().equals(walletProto.getNetworkIdentifier()))
+			throw new UnreadableWalletException("unknown network parameters ID " + walletProto.getNetworkIdentifier());
+
+		final RewindableWallet wallet = new RewindableWallet(params);
+		new WalletProtobufSerializer().readWallet(walletProto, wallet);
+		return wallet;
+	}
+}
@@ -0,0 +1,624 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.fastcoin.core.Block;
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.ProtocolException;
+import com.google.fastcoin.core.ScriptException;
+import com.google.fastcoin.core.Sha256Hash;
+import com.google.fastcoin.core.Transaction;
+import com.google.fastcoin.core.TransactionConfidence;
+import com.google.fastcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.fastcoin.core.TransactionInput;
+import com.google.fastcoin.core.TransactionOutPoint;
+import com.google.fastcoin.core.TransactionOutput;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.store.WalletProtobufSerializer;
+
+/**
+ * Compact store for old, deeply confirmed transactions whose outputs are all spent. They are left out of the wallet
+ * snapshot, so the live wallet only carries what coin selection and confidence tracking need, and are paged in for
+ * history views.
+ *
+ * <p>
+ * The file is append-only: a version header followed by records, each a small index entry and the serialized
+ * transaction. Only the index is kept in memory. A record torn by a crash is cut off on the next load; any other damage
+ * leaves the file untouched and the archive read-only, so no further history is moved out of the wallet.
+ * </p>
+ *
+ * @author Andreas Schildbach
+ */
+public final class TransactionArchive
+{
+	private static final int FILE_VERSION = 2;
+	private static final int HEADER_LENGTH = 4;
+	private static final int MAX_OUTPUTS = 10000;
+	private static final int MAX_TRANSACTION_LENGTH = Block.MAX_BLOCK_SIZE;
+
+	public static final int MIN_DEPTH = 2016;
+	public static final long MIN_AGE_MS = 30l * 24 * 60 * 60 * 1000;
+
+	private static final class Entry
+	{
+		public final Sha256Hash hash;
+		public final long time;
+		public final int height;
+		public final long value;
+		public final long[] outputValues; // per output, 0 if not ours
+		public long offset;
+		public int length;
+
+		public Entry(@Nonnull final Sha256Hash hash, final long time, final int height, final long value, @Nonnull final long[] outputValues)
+		{
+			this.hash = hash;
+			this.time = time;
+			this.height = height;
+			this.value = value;
+			this.outputValues = outputValues;
+		}
+	}
+
+	private static final Comparator<Entry> NEWEST_FIRST = new Comparator<Entry>()
+	{
+		@Override
+		public int compare(final Entry entry1, final Entry entry2)
+		{
+			if (entry1.time > entry2.time)
+				return -1;
+			else if (entry1.time < entry2.time)
+				return 1;
+			else
+				return entry1.hash.toString().compareTo(entry2.hash.toString());
+		}
+	};
+
+	private final File file;
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Map<Sha256Hash, Entry> index = new HashMap<Sha256Hash, Entry>();
+	private long fileLength = 0;
+	private IOException loadProblem = null;
+
+	private static final Logger log = LoggerFactory.getLogger(TransactionArchive.class);
+
+	public TransactionArchive(@Nonnull final File file)
+	{
+		this.file = file;
+
+		load();
+	}
+
+	/**
+	 * @return problem that made the archive unreadable, or null if it is fine. An unreadable archive is kept on disk
+	 *         and retried on the next start, but in the meantime archived history is missing and nothing new is
+	 *         archived.
+	 */
+	public synchronized IOException getLoadProblem()
+	{
+		return loadProblem;
+	}
+
+	/**
+	 * Moves transactions that can no longer affect balance or coin selection into the archive. They stay in the wallet
+	 * object until it is reloaded from a snapshot written by {@link #writeSnapshot(Wallet, File)}.
+	 *
+	 * <p>
+	 * Transactions are only archived together with every wallet transaction they spend from or are spent by, because
+	 * the wallet cannot load a snapshot in which a live transaction references a missing one.
+	 * </p>
+	 *
+	 * @return number of newly archived transactions
+	 */
+	public synchronized int archive(@Nonnull final Wallet wallet, final int minDepth, final long minAgeMs) throws IOException
+	{
+		if (loadProblem != null)
+			return 0;
+
+		final long start = System.currentTimeMillis();
+		final long maxTime = start - minAgeMs;
+
+		final Map<Sha256Hash, Transaction> candidates = new HashMap<Sha256Hash, Transaction>();
+		final Map<Sha256Hash, Long> values = new HashMap<Sha256Hash, Long>();
+		for (final Transaction tx : wallet.getTransactions(false))
+		{
+			if (index.containsKey(tx.getHash()) || !isArchivable(tx, wallet, minDepth, maxTime))
+				continue;
+
+			try
+			{
+				values.put(tx.getHash(), tx.getValue(wallet).longValue());
+				candidates.put(tx.getHash(), tx);
+			}
+			catch (final ScriptException x)
+			{
+				// stays live
+			}
+		}
+
+		// drop candidates connected to live transactions, until the remaining set is closed
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			for (final Iterator<Transaction> i = candidates.values().iterator(); i.hasNext();)
+			{
+				if (!isClosed(i.next(), wallet, candidates.keySet()))
+				{
+					i.remove();
+					changed = true;
+				}
+			}
+		}
+
+		final Map<Entry, byte[]> added = new HashMap<Entry, byte[]>();
+
+		for (final Transaction tx : candidates.values())
+		{
+			final List<TransactionOutput> outputs = tx.getOutputs();
+			final long[] outputValues = new long[outputs.size()];
+			for (int i = 0; i < outputValues.length; i++)
+			{
+				final TransactionOutput output = outputs.get(i);
+				if (output.isMine(wallet))
+					outputValues[i] = output.getValue().longValue();
+			}
+
+			final Entry entry = new Entry(tx.getHash(), tx.getUpdateTime().getTime(), tx.getConfidence().getAppearedAtChainHeight(),
+					values.get(tx.getHash()), outputValues);
+			added.put(entry, tx.bitcoinSerialize());
+		}
+
+		if (added.isEmpty())
+			return 0;
+
+		append(added);
+
+		log.info("archived {} transactions in {}ms, {} in archive", new Object[] { added.size(), System.currentTimeMillis() - start,
+				entries.size() });
+
+		return added.size();
+	}
+
+	private static boolean isArchivable(@Nonnull final Transaction tx, @Nonnull final Wallet wallet, final int minDepth, final long maxTime)
+	{
+		final TransactionConfidence confidence = tx.getConfidence();
+		if (confidence.getConfidenceType() != ConfidenceType.BUILDING || confidence.getDepthInBlocks() < minDepth)
+			return false;
+
+		final Date updateTime = tx.getUpdateTime();
+		if (updateTime == null || updateTime.getTime() > maxTime)
+			return false;
+
+		for (final TransactionOutput output : tx.getOutputs())
+		{
+			if (!output.isMine(wallet))
+				continue;
+
+			if (output.isAvailableForSpending())
+				return false;
+
+			// spender must be buried as well, so no reorg can revive the output
+			final TransactionInput spentBy = output.getSpentBy();
+			if (spentBy == null)
+				return false;
+			final TransactionConfidence spenderConfidence = spentBy.getParentTransaction().getConfidence();
+			if (spenderConfidence.getConfidenceType() != ConfidenceType.BUILDING || spenderConfidence.getDepthInBlocks() < minDepth)
+				return false;
+		}
+
+		return true;
+	}
+
+	private boolean isClosed(@Nonnull final Transaction tx, @Nonnull final Wallet wallet, @Nonnull final Set<Sha256Hash> candidates)
+	{
+		for (final TransactionOutput output : tx.getOutputs())
+		{
+			final TransactionInput spentBy = output.getSpentBy();
+			if (spentBy != null && !isArchivedOrCandidate(spentBy.getParentTransaction().getHash(), wallet, candidates))
+				return false;
+		}
+
+		if (!tx.isCoinBase())
+			for (final TransactionInput input : tx.getInputs())
+				if (!isArchivedOrCandidate(input.getOutpoint().getHash(), wallet, candidates))
+					return false;
+
+		return true;
+	}
+
+	private boolean isArchivedOrCandidate(@Nonnull final Sha256Hash hash, @Nonnull final Wallet wallet, @Nonnull final Set<Sha256Hash> candidates)
+	{
+		return candidates.contains(hash) || index.containsKey(hash) || wallet.getTransaction(hash) == null;
+	}
+
+	public synchronized boolean contains(@Nonnull final Sha256Hash hash)
+	{
+		return index.containsKey(hash);
+	}
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Value of the transaction to the wallet. Works for archived transactions, and corrects live transactions spending
+	 * outputs of archived ones, which the wallet can no longer connect.
+	 */
+	public synchronized BigInteger getValue(@Nonnull final Transaction tx, @Nonnull final Wallet wallet) throws ScriptException
+	{
+		final Entry entry = index.get(tx.getHash());
+		if (entry != null)
+			return BigInteger.valueOf(entry.value);
+
+		BigInteger value = tx.getValue(wallet);
+		if (entries.isEmpty() || tx.isCoinBase())
+			return value;
+
+		for (final TransactionInput input : tx.getInputs())
+		{
+			final TransactionOutPoint outpoint = input.getOutpoint();
+			final Entry spent = index.get(outpoint.getHash());
+			if (spent != null && outpoint.getIndex() < spent.outputValues.length && wallet.getTransaction(outpoint.getHash()) == null)
+				value = value.subtract(BigInteger.valueOf(spent.outputValues[(int) outpoint.getIndex()]));
+		}
+
+		return value;
+	}
+
+	/**
+	 * Reads archived transactions, newest first, with their confidence and update time restored.
+	 */
+	public synchronized List<Transaction> page(@Nonnull final NetworkParameters params, final int bestHeight, final int offset, final int limit)
+			throws IOException
+	{
+		final int end = Math.min(offset + limit, entries.size());
+		if (offset >= end)
+			return Collections.emptyList();
+
+		final List<Transaction> page = new ArrayList<Transaction>(end - offset);
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try
+		{
+			for (final Entry entry : entries.subList(offset, end))
+			{
+				final byte[] payload = new byte[entry.length];
+				raf.seek(entry.offset);
+				raf.readFully(payload);
+
+				final Transaction tx = new Transaction(params, payload);
+				tx.setUpdateTime(new Date(entry.time));
+				final TransactionConfidence confidence = tx.getConfidence();
+				confidence.setAppearedAtChainHeight(entry.height);
+				confidence.setDepthInBlocks(Math.max(bestHeight - entry.height + 1, 1));
+				page.add(tx);
+			}
+		}
+		catch (final ProtocolException x)
+		{
+			throw new IOException("cannot parse archived transaction", x);
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		return page;
+	}
+
+	/**
+	 * Writes the wallet snapshot without archived transactions, through a temp file and rename. Archived transactions
+	 * still referenced from a live one, directly or through other archived ones, are kept so the snapshot always loads.
+	 */
+	public void writeSnapshot(@Nonnull final Wallet wallet, @Nonnull final File snapshotFile) throws IOException
+	{
+		final Protos.Wallet.Builder builder = new WalletProtobufSerializer().walletToProto(wallet).toBuilder();
+
+		synchronized (this)
+		{
+			if (!entries.isEmpty())
+			{
+				final List<Protos.Transaction> transactions = new ArrayList<Protos.Transaction>(builder.getTransactionList());
+				final Map<Sha256Hash, Protos.Transaction> archived = new HashMap<Sha256Hash, Protos.Transaction>();
+				final LinkedList<Protos.Transaction> pending = new LinkedList<Protos.Transaction>();
+				for (final Protos.Transaction tx : transactions)
+				{
+					final Sha256Hash hash = new Sha256Hash(tx.getHash().toByteArray());
+					if (index.containsKey(hash))
+						archived.put(hash, tx);
+					else
+						pending.add(tx);
+				}
+
+				final Set<Sha256Hash> kept = new HashSet<Sha256Hash>();
+				while (!pending.isEmpty())
+				{
+					for (final Sha256Hash reference : references(pending.removeFirst()))
+					{
+						final Protos.Transaction referenced = archived.get(reference);
+						if (referenced != null && kept.add(reference))
+							pending.add(referenced);
+					}
+				}
+
+				if (!kept.isEmpty())
+					log.info("keeping {} archived transactions in snapshot, still referenced by live ones", kept.size());
+
+				builder.clearTransaction();
+				for (final Protos.Transaction tx : transactions)
+				{
+					final Sha256Hash hash = new Sha256Hash(tx.getHash().toByteArray());
+					if (!archived.containsKey(hash) || kept.contains(hash))
+						builder.addTransaction(tx);
+				}
+			}
+		}
+
+		final File tmpFile = new File(snapshotFile.getAbsolutePath() + ".tmp");
+		FileOutputStream os = null;
+
+		try
+		{
+			os = new FileOutputStream(tmpFile);
+			builder.build().writeTo(os);
+			os.flush();
+			os.getFD().sync();
+			os.close();
+			os = null;
+
+			if (!tmpFile.renameTo(snapshotFile))
+				throw new IOException("cannot rename to " + snapshotFile);
+		}
+		finally
+		{
+			if (os != null)
+			{
+				try
+				{
+					os.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+
+			tmpFile.delete();
+		}
+	}
+
+	private static List<Sha256Hash> references(@Nonnull final Protos.Transaction tx)
+	{
+		final List<Sha256Hash> references = new ArrayList<Sha256Hash>();
+
+		for (final Protos.TransactionInput input : tx.getTransactionInputList())
+			references.add(new Sha256Hash(input.getTransactionOutPointHash().toByteArray()));
+
+		for (final Protos.TransactionOutput output : tx.getTransactionOutputList())
+			if (output.hasSpentByTransactionHash())
+				references.add(new Sha256Hash(output.getSpentByTransactionHash().toByteArray()));
+
+		return references;
+	}
+
+	private static int indexLength(final int numOutputs)
+	{
+		return 32 + 8 + 4 + 8 + 4 + numOutputs * 8 + 4;
+	}
+
+	private void append(@Nonnull final Map<Entry, byte[]> added) throws IOException
+	{
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final DataOutputStream os = new DataOutputStream(buffer);
+		if (fileLength == 0)
+			os.writeInt(FILE_VERSION);
+
+		final Map<Entry, Long> offsets = new HashMap<Entry, Long>(added.size());
+
+		for (final Map.Entry<Entry, byte[]> record : added.entrySet())
+		{
+			final Entry entry = record.getKey();
+			final byte[] payload = record.getValue();
+
+			os.write(entry.hash.getBytes());
+			os.writeLong(entry.time);
+			os.writeInt(entry.height);
+			os.writeLong(entry.value);
+			os.writeInt(entry.outputValues.length);
+			for (final long outputValue : entry.outputValues)
+				os.writeLong(outputValue);
+			os.writeInt(payload.length);
+
+			offsets.put(entry, fileLength + os.size());
+			os.write(payload);
+		}
+
+		os.close();
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try
+		{
+			// anything past the known length is a record torn by an earlier failed append
+			raf.setLength(fileLength);
+			raf.seek(fileLength);
+			raf.write(buffer.toByteArray());
+			raf.getFD().sync();
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		fileLength += buffer.size();
+
+		for (final Map.Entry<Entry, byte[]> record : added.entrySet())
+		{
+			final Entry entry = record.getKey();
+			entry.offset = offsets.get(entry);
+			entry.length = record.getValue().length;
+			entries.add(entry);
+			index.put(entry.hash, entry);
+		}
+
+		Collections.sort(entries, NEWEST_FIRST);
+	}
+
+	private void load()
+	{
+		if (!file.exists())
+			return;
+
+		final long start = System.currentTimeMillis();
+		final long length = file.length();
+		long position = 0;
+		DataInputStream is = null;
+
+		try
+		{
+			is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+			if (length >= HEADER_LENGTH)
+			{
+				if (is.readInt() != FILE_VERSION)
+					throw new IOException("unknown version");
+				position = HEADER_LENGTH;
+			}
+
+			while (length - position >= indexLength(0))
+			{
+				final byte[] hash = new byte[32];
+				is.readFully(hash);
+				final long time = is.readLong();
+				final int height = is.readInt();
+				final long value = is.readLong();
+				final int numOutputs = is.readInt();
+				if (numOutputs < 0 || numOutputs > MAX_OUTPUTS)
+					throw new IOException("bad number of outputs at " + position + ": " + numOutputs);
+				if (length - position < indexLength(numOutputs))
+					break;
+
+				final long[] outputValues = new long[numOutputs];
+				for (int j = 0; j < outputValues.length; j++)
+					outputValues[j] = is.readLong();
+
+				final Entry entry = new Entry(new Sha256Hash(hash), time, height, value, outputValues);
+				entry.length = is.readInt();
+				if (entry.length <= 0 || entry.length > MAX_TRANSACTION_LENGTH)
+					throw new IOException("bad transaction length at " + position + ": " + entry.length);
+				entry.offset = position + indexLength(numOutputs);
+				if (entry.offset + entry.length > length)
+					break;
+
+				skipFully(is, entry.length);
+				position = entry.offset + entry.length;
+
+				if (!index.containsKey(entry.hash))
+				{
+					entries.add(entry);
+					index.put(entry.hash, entry);
+				}
+			}
+
+			is.close();
+			is = null;
+
+			if (position < length)
+			{
+				log.warn("cutting off {} bytes of torn record at end of transaction archive", length - position);
+				final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try
+				{
+					raf.setLength(position);
+				}
+				finally
+				{
+					raf.close();
+				}
+			}
+
+			fileLength = position;
+			Collections.sort(entries, NEWEST_FIRST);
+
+			log.info("loaded index of {} archived transactions, took {}ms", entries.size(), System.currentTimeMillis() - start);
+		}
+		catch (final IOException x)
+		{
+			log.error("problem loading transaction archive, keeping it for the next start", x);
+			entries.clear();
+			index.clear();
+			loadProblem = x;
+		}
+		finally
+		{
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+
+	private static void skipFully(@Nonnull final DataInputStream is, final int length) throws IOException
+	{
+		int remaining = length;
+		while (remaining > 0)
+		{
+			final int skipped = is.skipBytes(remaining);
+			if (skipped <= 0)
+				throw new EOFException();
+			remaining -= skipped;
+		}
+	}
+}
@@ -19,16 +19,12 @@ package de.schildbach.wallet;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Locale;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nonnull;
 
-import org.bitcoinj.wallet.Protos;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,33 +36,39 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.StrictMode;
 import android.preference.PreferenceManager;
 import android.text.format.DateUtils;
 import android.widget.Toast;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
 import ch.qos.logback.classic.android.LogcatAppender;
 import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
-import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.core.rolling.RollingFileAppender;
-import ch.qos.logback.core.rolling.TimeBasedRollingPolicy;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.fastcoin.core.Address;
 import com.google.fastcoin.core.ECKey;
 import com.google.fastcoin.core.Transaction;
 import com.google.fastcoin.core.VersionMessage;
 import com.google.fastcoin.core.Wallet;
 import com.google.fastcoin.store.UnreadableWalletException;
-import com.google.fastcoin.store.WalletProtobufSerializer;
 import com.google.fastcoin.utils.Threading;
 import com.google.fastcoin.wallet.WalletFiles;
 
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
+import de.schildbach.wallet.service.SyncScheduler;
+import de.schildbach.wallet.util.AsyncLogAppender;
 import de.schildbach.wallet.util.CrashReporter;
 import de.schildbach.wallet.util.Io;
 import de.schildbach.wallet.util.LinuxSecureRandom;
+import de.schildbach.wallet.util.StartupTrace;
 import de.schildbach.wallet.R;
 
 /**
@@ -82,8 +84,24 @@ public class WalletApplication extends Application
 	private Intent blockchainServiceResetBlockchainIntent;
 
 	private File walletFile;
-	private Wallet wallet;
+	private File walletJournalFile;
+	private volatile RewindableWallet wallet;
+	private WalletJournal walletJournal;
+	private TransactionArchive transactionArchive;
+	private KeyBackupWriter keyBackupWriter;
+	private KeyRegistry keyRegistry;
+	private final SettableFuture<Wallet> walletFuture = SettableFuture.create();
 	private PackageInfo packageInfo;
+	private AsyncLogAppender logAppender;
+	private final Handler handler = new Handler();
+	private final Executor mainThreadExecutor = new Executor()
+	{
+		@Override
+		public void execute(final Runnable command)
+		{
+			handler.post(command);
+		}
+	};
 
 	private static final int KEY_ROTATION_VERSION_CODE = 135;
 
@@ -92,9 +110,13 @@ public class WalletApplication extends Application
 	@Override
 	public void onCreate()
 	{
+		StartupTrace.Span span = StartupTrace.begin("random");
 		new LinuxSecureRandom(); // init proper random number generator
+		span.end();
 
+		span = StartupTrace.begin("logging");
 		initLogging();
+		span.end();
 
 		StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder().detectAll().permitDiskReads().permitDiskWrites().penaltyLog().build());
 
@@ -106,7 +128,9 @@ public class WalletApplication extends Application
 
 		packageInfo = packageInfoFromContext(this);
 
-		CrashReporter.init(getCacheDir());
+		span = StartupTrace.begin("crash reporter");
+		CrashReporter.init(getCacheDir(), logAppender);
+		span.end();
 
 		Threading.uncaughtExceptionHandler = new Thread.UncaughtExceptionHandler()
 		{
@@ -115,9 +139,11 @@ public class WalletApplication extends Application
 			{
 				log.info("bitcoinj uncaught exception", throwable);
 				CrashReporter.saveBackgroundTrace(throwable, packageInfo);
+				CrashReporter.flushLog();
 			}
 		};
 
+		span = StartupTrace.begin("configuration");
 		config = new Configuration(PreferenceManager.getDefaultSharedPreferences(this));
 		activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
 
@@ -127,24 +153,83 @@ public class WalletApplication extends Application
 		blockchainServiceResetBlockchainIntent = new Intent(BlockchainService.ACTION_RESET_BLOCKCHAIN, null, this, BlockchainServiceImpl.class);
 
 		walletFile = getFileStreamPath(Constants.WALLET_FILENAME_PROTOBUF);
+		walletJournalFile = getFileStreamPath(Constants.WALLET_JOURNAL_FILENAME);
+
+		config.updateLastVersionCode(packageInfo.versionCode);
+
+		final boolean keyRotationCrossed = config.versionCodeCrossed(packageInfo.versionCode, KEY_ROTATION_VERSION_CODE);
+		span.end();
 
+		final Thread walletLoader = new Thread("wallet loader")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					loadWallet(keyRotationCrossed);
+
+					walletFuture.set(wallet);
+				}
+				catch (final RuntimeException x)
+				{
+					walletFuture.setException(x);
+					throw x;
+				}
+				catch (final Error x)
+				{
+					walletFuture.setException(x);
+					throw x;
+				}
+			}
+		};
+		walletLoader.setPriority(Thread.MAX_PRIORITY);
+		walletLoader.start();
+	}
+
+	private void loadWallet(final boolean keyRotationCrossed)
+	{
+		StartupTrace.Span span = StartupTrace.begin("wallet load");
 		loadWalletFromProtobuf();
-		wallet.autosaveToFile(walletFile, 1, TimeUnit.SECONDS, new WalletAutosaveEventListener());
+		span.end();
+
+		// recover from crash, then fold the journal into the snapshot
+		span = StartupTrace.begin("wallet journal");
+		final boolean journalLeftOver = WalletJournal.exists(walletJournalFile);
+		WalletJournal.replay(wallet, walletJournalFile);
+		transactionArchive = new TransactionArchive(getFileStreamPath(Constants.TX_ARCHIVE_FILENAME));
+		if (transactionArchive.getLoadProblem() != null)
+		{
+			CrashReporter.saveBackgroundTrace(transactionArchive.getLoadProblem(), packageInfo);
+			toastOnMainThread(getString(R.string.toast_tx_archive_unreadable));
+		}
+		walletJournal = new WalletJournal(wallet, walletFile, walletJournalFile, new WalletSnapshotListener(), transactionArchive);
+		keyBackupWriter = new KeyBackupWriter(wallet, getFilesDir(), Constants.WALLET_KEY_BACKUP_PROTOBUF);
+		if (journalLeftOver)
+			saveWallet();
+		span.end();
 
 		// clean up spam
+		span = StartupTrace.begin("wallet cleanup");
 		wallet.cleanup();
+		span.end();
 
-		config.updateLastVersionCode(packageInfo.versionCode);
-
-		if (config.versionCodeCrossed(packageInfo.versionCode, KEY_ROTATION_VERSION_CODE))
+		span = StartupTrace.begin("ensure key");
+		if (keyRotationCrossed)
 		{
 			log.info("detected version jump crossing key rotation");
 			wallet.setKeyRotationTime(System.currentTimeMillis() / 1000);
+			saveWallet();
 		}
 
+		keyRegistry = new KeyRegistry(wallet);
+
 		ensureKey();
+		span.end();
 
+		span = StartupTrace.begin("migrate backup");
 		migrateBackup();
+		span.end();
 	}
 
 	private void initLogging()
@@ -154,25 +239,10 @@ public class WalletApplication extends Application
 
 		final LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
 
-		final PatternLayoutEncoder filePattern = new PatternLayoutEncoder();
-		filePattern.setContext(context);
-		filePattern.setPattern("%d{HH:mm:ss.SSS} [%thread] %logger{0} - %msg%n");
-		filePattern.start();
-
-		final RollingFileAppender<ILoggingEvent> fileAppender = new RollingFileAppender<ILoggingEvent>();
-		fileAppender.setContext(context);
-		fileAppender.setFile(logFile.getAbsolutePath());
-
-		final TimeBasedRollingPolicy<ILoggingEvent> rollingPolicy = new TimeBasedRollingPolicy<ILoggingEvent>();
-		rollingPolicy.setContext(context);
-		rollingPolicy.setParent(fileAppender);
-		rollingPolicy.setFileNamePattern(logDir.getAbsolutePath() + "/wallet.%d.log.gz");
-		rollingPolicy.setMaxHistory(7);
-		rollingPolicy.start();
-
-		fileAppender.setEncoder(filePattern);
-		fileAppender.setRollingPolicy(rollingPolicy);
-		fileAppender.start();
+		final PatternLayout fileLayout = new PatternLayout();
+		fileLayout.setContext(context);
+		fileLayout.setPattern("%d{HH:mm:ss.SSS} [%thread] %logger{0} - %msg%n");
+		fileLayout.start();
 
 		final PatternLayoutEncoder logcatTagPattern = new PatternLayoutEncoder();
 		logcatTagPattern.setContext(context);
@@ -190,13 +260,22 @@ public class WalletApplication extends Application
 		logcatAppender.setEncoder(logcatPattern);
 		logcatAppender.start();
 
+		// file and logcat I/O happen on the appender's thread, not on the logging one
+		logAppender = new AsyncLogAppender();
+		logAppender.setContext(context);
+		logAppender.setName("async");
+		logAppender.setLayout(fileLayout);
+		logAppender.setFile(logFile);
+		logAppender.setMaxHistory(7);
+		logAppender.addAppender(logcatAppender);
+		logAppender.start();
+
 		final ch.qos.logback.classic.Logger log = context.getLogger(Logger.ROOT_LOGGER_NAME);
-		log.addAppender(fileAppender);
-		log.addAppender(logcatAppender);
+		log.addAppender(logAppender);
 		log.setLevel(Level.INFO);
 	}
 
-	private static final class WalletAutosaveEventListener implements WalletFiles.Listener
+	private static final class WalletSnapshotListener implements WalletFiles.Listener
 	{
 		@Override
 		public void onBeforeAutoSave(final File file)
@@ -217,11 +296,43 @@ public class WalletApplication extends Application
 		return config;
 	}
 
-	public Wallet getWallet()
+	/**
+	 * Blocks until the wallet has finished loading. Use {@link #getWalletFuture()} to avoid blocking the main thread.
+	 */
+	public RewindableWallet getWallet()
 	{
+		if (!walletFuture.isDone() && Looper.myLooper() == Looper.getMainLooper())
+			log.info("main thread waiting for wallet to load");
+
+		Futures.getUnchecked(walletFuture);
 		return wallet;
 	}
 
+	public ListenableFuture<Wallet> getWalletFuture()
+	{
+		return walletFuture;
+	}
+
+	/**
+	 * @return executor running listeners on the main thread, e.g. for {@link #getWalletFuture()}
+	 */
+	public Executor mainThreadExecutor()
+	{
+		return mainThreadExecutor;
+	}
+
+	private void toastOnMainThread(@Nonnull final String text)
+	{
+		handler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Toast.makeText(WalletApplication.this, text, Toast.LENGTH_LONG).show();
+			}
+		});
+	}
+
 	private void loadWalletFromProtobuf()
 	{
 		if (walletFile.exists())
@@ -234,15 +345,15 @@ public class WalletApplication extends Application
 			{
 				walletStream = new FileInputStream(walletFile);
 
-				wallet = new WalletProtobufSerializer().readWallet(walletStream);
+				wallet = RewindableWallet.read(walletStream, Constants.NETWORK_PARAMETERS);
 
 				log.info("wallet loaded from: '" + walletFile + "', took " + (System.currentTimeMillis() - start) + "ms");
 			}
-			catch (final FileNotFoundException x)
+			catch (final IOException x)
 			{
 				log.error("problem loading wallet", x);
 
-				Toast.makeText(WalletApplication.this, x.getClass().getName(), Toast.LENGTH_LONG).show();
+				toastOnMainThread(x.getClass().getName());
 
 				wallet = restoreWalletFromBackup();
 			}
@@ -250,7 +361,7 @@ public class WalletApplication extends Application
 			{
 				log.error("problem loading wallet", x);
 
-				Toast.makeText(WalletApplication.this, x.getClass().getName(), Toast.LENGTH_LONG).show();
+				toastOnMainThread(x.getClass().getName());
 
 				wallet = restoreWalletFromBackup();
 			}
@@ -271,7 +382,7 @@ public class WalletApplication extends Application
 
 			if (!wallet.isConsistent())
 			{
-				Toast.makeText(this, "inconsistent wallet: " + walletFile, Toast.LENGTH_LONG).show();
+				toastOnMainThread("inconsistent wallet: " + walletFile);
 
 				wallet = restoreWalletFromBackup();
 			}
@@ -281,7 +392,7 @@ public class WalletApplication extends Application
 		}
 		else
 		{
-			wallet = new Wallet(Constants.NETWORK_PARAMETERS);
+			wallet = new RewindableWallet(Constants.NETWORK_PARAMETERS);
 
 			log.info("new wallet created");
 		}
@@ -292,7 +403,7 @@ public class WalletApplication extends Application
 				throw new Error("found read-only key, but wallet is likely an encrypted wallet from the future");
 	}
 
-	private Wallet restoreWalletFromBackup()
+	private RewindableWallet restoreWalletFromBackup()
 	{
 		InputStream is = null;
 
@@ -300,14 +411,14 @@ public class WalletApplication extends Application
 		{
 			is = openFileInput(Constants.WALLET_KEY_BACKUP_PROTOBUF);
 
-			final Wallet wallet = new WalletProtobufSerializer().readWallet(is);
+			final RewindableWallet wallet = RewindableWallet.read(is, Constants.NETWORK_PARAMETERS);
 
 			if (!wallet.isConsistent())
 				throw new Error("inconsistent backup");
 
 			resetBlockchain();
 
-			Toast.makeText(this, R.string.toast_wallet_reset, Toast.LENGTH_LONG).show();
+			toastOnMainThread(getString(R.string.toast_wallet_reset));
 
 			log.info("wallet restored from backup: '" + Constants.WALLET_KEY_BACKUP_PROTOBUF + "'");
 
@@ -336,9 +447,8 @@ public class WalletApplication extends Application
 
 	private void ensureKey()
 	{
-		for (final ECKey key : wallet.getKeys())
-			if (!wallet.isKeyRotating(key))
-				return; // found
+		if (keyRegistry.hasUsableKey())
+			return;
 
 		log.info("wallet has no usable key - creating");
 		addNewKeyToWallet();
@@ -346,18 +456,20 @@ public class WalletApplication extends Application
 
 	public void addNewKeyToWallet()
 	{
+		// backed up in the background
 		wallet.addKey(new ECKey());
 
-		backupWallet();
-
 		config.armBackupReminder();
 	}
 
+	/**
+	 * Writes a full snapshot of the wallet, folding in the journal.
+	 */
 	public void saveWallet()
 	{
 		try
 		{
-			protobufSerializeWallet(wallet);
+			walletJournal.compact();
 		}
 		catch (final IOException x)
 		{
@@ -365,75 +477,19 @@ public class WalletApplication extends Application
 		}
 	}
 
-	private void protobufSerializeWallet(@Nonnull final Wallet wallet) throws IOException
+	public WalletJournal getWalletJournal()
 	{
-		final long start = System.currentTimeMillis();
-
-		wallet.saveToFile(walletFile);
-
-		// make wallets world accessible in test mode
-		if (Constants.TEST)
-			Io.chmod(walletFile, 0777);
-
-		log.debug("wallet saved to: '" + walletFile + "', took " + (System.currentTimeMillis() - start) + "ms");
+		return walletJournal;
 	}
 
-	private void backupWallet()
+	/**
+	 * Old transactions left out of the wallet. Blocks until the wallet has finished loading, like {@link #getWallet()}.
+	 */
+	public TransactionArchive getTransactionArchive()
 	{
-		final Protos.Wallet.Builder builder = new WalletProtobufSerializer().walletToProto(wallet).toBuilder();
-
-		// strip redundant
-		builder.clearTransaction();
-		builder.clearLastSeenBlockHash();
-		builder.setLastSeenBlockHeight(-1);
-		builder.clearLastSeenBlockTimeSecs();
-		final Protos.Wallet walletProto = builder.build();
-
-		OutputStream os = null;
+		getWallet();
 
-		try
-		{
-			os = openFileOutput(Constants.WALLET_KEY_BACKUP_PROTOBUF, Context.MODE_PRIVATE);
-			walletProto.writeTo(os);
-		}
-		catch (final IOException x)
-		{
-			log.error("problem writing key backup", x);
-		}
-		finally
-		{
-			try
-			{
-				os.close();
-			}
-			catch (final IOException x)
-			{
-				// swallow
-			}
-		}
-
-		try
-		{
-			final String filename = String.format(Locale.US, "%s.%02d", Constants.WALLET_KEY_BACKUP_PROTOBUF,
-					(System.currentTimeMillis() / DateUtils.DAY_IN_MILLIS) % 100l);
-			os = openFileOutput(filename, Context.MODE_PRIVATE);
-			walletProto.writeTo(os);
-		}
-		catch (final IOException x)
-		{
-			log.error("problem writing key backup", x);
-		}
-		finally
-		{
-			try
-			{
-				os.close();
-			}
-			catch (final IOException x)
-			{
-				// swallow
-			}
-		}
+		return transactionArchive;
 	}
 
 	private void migrateBackup()
@@ -443,7 +499,15 @@ public class WalletApplication extends Application
 			log.info("migrating automatic backup to protobuf");
 
 			// make sure there is at least one recent backup
-			backupWallet();
+			try
+			{
+				Futures.getUnchecked(keyBackupWriter.requestBackup());
+			}
+			catch (final UncheckedExecutionException x)
+			{
+				log.error("problem migrating backup, keeping old backups", x);
+				return;
+			}
 
 			// remove old backups
 			for (final String filename : fileList())
@@ -454,24 +518,17 @@ public class WalletApplication extends Application
 
 	public Address determineSelectedAddress()
 	{
-		final String selectedAddress = config.getSelectedAddress();
-
-		Address firstAddress = null;
-		for (final ECKey key : wallet.getKeys())
-		{
-			if (!wallet.isKeyRotating(key))
-			{
-				final Address address = key.toAddress(Constants.NETWORK_PARAMETERS);
-
-				if (address.toString().equals(selectedAddress))
-					return address;
+		return getKeyRegistry().selectedAddress(config.getSelectedAddress());
+	}
 
-				if (firstAddress == null)
-					firstAddress = address;
-			}
-		}
+	/**
+	 * Blocks until the wallet has finished loading, like {@link #getWallet()}.
+	 */
+	public KeyRegistry getKeyRegistry()
+	{
+		getWallet();
 
-		return firstAddress;
+		return keyRegistry;
 	}
 
 	public void startBlockchainService(final boolean cancelCoinsReceived)
@@ -493,6 +550,20 @@ public class WalletApplication extends Application
 		startService(blockchainServiceResetBlockchainIntent);
 	}
 
+	/**
+	 * Replays the blockchain from the given time on, reusing as much of the block store as possible.
+	 * 
+	 * @param timeSecs
+	 *            usually the creation time of imported keys, 0 to replay everything
+	 */
+	public void rescanBlockchain(final long timeSecs)
+	{
+		// actually stops and restarts the service
+		final Intent intent = new Intent(BlockchainService.ACTION_RESCAN_BLOCKCHAIN, null, this, BlockchainServiceImpl.class);
+		intent.putExtra(BlockchainService.ACTION_RESCAN_BLOCKCHAIN_TIME, timeSecs);
+		startService(intent);
+	}
+
 	public void broadcastTransaction(@Nonnull final Transaction tx)
 	{
 		final Intent intent = new Intent(BlockchainService.ACTION_BROADCAST_TRANSACTION, null, this, BlockchainServiceImpl.class);
@@ -554,14 +625,9 @@ public class WalletApplication extends Application
 		final Configuration config = new Configuration(PreferenceManager.getDefaultSharedPreferences(context));
 		final long lastUsedAgo = config.getLastUsedAgo();
 
-		// apply some backoff
-		final long alarmInterval;
-		if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_JUST_MS)
-			alarmInterval = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
-		else if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_RECENTLY_MS)
-			alarmInterval = AlarmManager.INTERVAL_HALF_DAY;
-		else
-			alarmInterval = AlarmManager.INTERVAL_DAY;
+		// learn from past sessions
+		final SyncScheduler scheduler = new SyncScheduler(context.getFileStreamPath(Constants.SYNC_HISTORY_FILENAME));
+		final long alarmInterval = scheduler.decide(System.currentTimeMillis(), lastUsedAgo).wakeIntervalMs;
 
 		log.info("last used {} minutes ago, rescheduling blockchain sync in roughly {} minutes", lastUsedAgo / DateUtils.MINUTE_IN_MILLIS,
 				alarmInterval / DateUtils.MINUTE_IN_MILLIS);
@@ -51,10 +51,19 @@ public class WalletBalanceWidgetProvider extends AppWidgetProvider
 	public void onUpdate(final Context context, final AppWidgetManager appWidgetManager, final int[] appWidgetIds)
 	{
 		final WalletApplication application = (WalletApplication) context.getApplicationContext();
-		final Wallet wallet = application.getWallet();
-		final BigInteger balance = wallet.getBalance(BalanceType.ESTIMATED);
 
-		updateWidgets(context, appWidgetManager, appWidgetIds, balance);
+		// the receiver must not block the main thread, so widgets are updated once the wallet is loaded
+		application.getWalletFuture().addListener(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final Wallet wallet = application.getWallet();
+				final BigInteger balance = wallet.getBalance(BalanceType.ESTIMATED);
+
+				updateWidgets(application, appWidgetManager, appWidgetIds, balance);
+			}
+		}, application.mainThreadExecutor());
 	}
 
 	public static void updateWidgets(final Context context, @Nonnull final AppWidgetManager appWidgetManager, @Nonnull final int[] appWidgetIds,
@@ -0,0 +1,547 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.fastcoin.core.AbstractWalletEventListener;
+import com.google.fastcoin.core.ECKey;
+import com.google.fastcoin.core.ProtocolException;
+import com.google.fastcoin.core.Sha256Hash;
+import com.google.fastcoin.core.Transaction;
+import com.google.fastcoin.core.TransactionConfidence;
+import com.google.fastcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.fastcoin.core.VerificationException;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.wallet.WalletFiles;
+
+import de.schildbach.wallet.util.Io;
+
+/**
+ * Append-only log of wallet transactions and their confidence type changes, periodically compacted into the protobuf
+ * snapshot. Replaces rewriting the whole snapshot on every wallet change, which during sync happens for every block.
+ *
+ * <p>
+ * Depth changes are not journaled. After a crash, {@link #replay(Wallet, File)} re-adds pending transactions, which
+ * cannot be recovered from the blockchain. Confirmed transactions are picked up again by the rescan from the snapshot's
+ * last seen block.
+ * </p>
+ *
+ * <p>
+ * Compaction runs on its own thread. The journal is set aside while the snapshot is written, and new records go to a
+ * fresh file meanwhile.
+ * </p>
+ *
+ * @author Andreas Schildbach
+ */
+public final class WalletJournal
+{
+	private static final int FILE_VERSION = 1;
+	private static final byte RECORD_TRANSACTION = 1;
+	private static final byte RECORD_CONFIDENCE = 2;
+
+	private static final long MAX_JOURNAL_BYTES = 256 * 1024;
+	private static final long COMPACT_INTERVAL_MS = 15 * 60 * 1000;
+
+	private final Wallet wallet;
+	private final File snapshotFile;
+	private final File journalFile;
+	@CheckForNull
+	private final WalletFiles.Listener snapshotListener;
+	@CheckForNull
+	private final TransactionArchive archive;
+
+	private final File compactingFile;
+	private final Object compactionLock = new Object();
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, "wallet compaction");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// confidence type last persisted, in the snapshot or the journal
+	private final Map<Sha256Hash, ConfidenceType> journaled = new HashMap<Sha256Hash, ConfidenceType>();
+	private DataOutputStream os;
+	private long journalBytes;
+	private long lastCompactedAt;
+	private boolean compactionPending = false;
+
+	private long bytesWritten;
+	private long journalBytesWritten;
+	private int numCompactions;
+
+	private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+	/**
+	 * @param snapshotListener
+	 *            notified around every snapshot write, may be null
+	 * @param archive
+	 *            if not null, old transactions are moved there on compaction and left out of the snapshot
+	 */
+	public WalletJournal(@Nonnull final Wallet wallet, @Nonnull final File snapshotFile, @Nonnull final File journalFile,
+			@CheckForNull final WalletFiles.Listener snapshotListener, @CheckForNull final TransactionArchive archive)
+	{
+		this.wallet = wallet;
+		this.snapshotFile = snapshotFile;
+		this.journalFile = journalFile;
+		this.snapshotListener = snapshotListener;
+		this.archive = archive;
+		this.compactingFile = compactingFile(journalFile);
+		this.lastCompactedAt = System.currentTimeMillis();
+
+		// everything in the wallet now is in the snapshot, or in the journal left over from a crash
+		for (final Transaction tx : wallet.getTransactions(true))
+			journaled.put(tx.getHash(), tx.getConfidence().getConfidenceType());
+
+		wallet.addEventListener(walletListener);
+	}
+
+	private static File compactingFile(@Nonnull final File journalFile)
+	{
+		return new File(journalFile.getAbsolutePath() + ".compacting");
+	}
+
+	/**
+	 * @return true if there are journal records left over that are not yet in the snapshot
+	 */
+	public static boolean exists(@Nonnull final File journalFile)
+	{
+		return journalFile.exists() || compactingFile(journalFile).exists();
+	}
+
+	/**
+	 * Re-adds transactions journaled since the snapshot was written. Call right after loading the snapshot, and
+	 * {@link #compact()} once the journal is constructed.
+	 *
+	 * @return number of transactions re-added
+	 */
+	public static int replay(@Nonnull final Wallet wallet, @Nonnull final File journalFile)
+	{
+		if (!exists(journalFile))
+			return 0;
+
+		final long start = System.currentTimeMillis();
+		final Map<Sha256Hash, byte[]> transactions = new LinkedHashMap<Sha256Hash, byte[]>();
+		final Map<Sha256Hash, ConfidenceType> confidenceTypes = new HashMap<Sha256Hash, ConfidenceType>();
+
+		// a journal set aside by an interrupted compaction is older than the current one
+		final int numRecords = read(compactingFile(journalFile), transactions, confidenceTypes)
+				+ read(journalFile, transactions, confidenceTypes);
+
+		int numReplayed = 0;
+		int numLeftToRescan = 0;
+
+		for (final Map.Entry<Sha256Hash, byte[]> entry : transactions.entrySet())
+		{
+			final Sha256Hash hash = entry.getKey();
+			if (wallet.getTransaction(hash) != null)
+				continue;
+
+			final ConfidenceType confidenceType = confidenceTypes.get(hash);
+			if (confidenceType == ConfidenceType.PENDING || confidenceType == ConfidenceType.UNKNOWN)
+			{
+				try
+				{
+					wallet.receivePending(new Transaction(wallet.getParams(), entry.getValue()), null);
+					numReplayed++;
+				}
+				catch (final ProtocolException x)
+				{
+					log.warn("cannot parse journaled transaction " + hash, x);
+				}
+				catch (final VerificationException x)
+				{
+					log.warn("cannot replay journaled transaction " + hash, x);
+				}
+			}
+			else if (confidenceType != ConfidenceType.DEAD)
+			{
+				numLeftToRescan++;
+			}
+		}
+
+		log.info("replayed {} journal records for {} transactions in {}ms, {} pending re-added, {} confirmed left to rescan", new Object[] {
+				numRecords, transactions.size(), System.currentTimeMillis() - start, numReplayed, numLeftToRescan });
+
+		return numReplayed;
+	}
+
+	private static int read(@Nonnull final File file, @Nonnull final Map<Sha256Hash, byte[]> transactions,
+			@Nonnull final Map<Sha256Hash, ConfidenceType> confidenceTypes)
+	{
+		if (!file.exists())
+			return 0;
+
+		int numRecords = 0;
+		DataInputStream is = null;
+
+		try
+		{
+			is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (is.readInt() != FILE_VERSION)
+				throw new IOException("unknown version");
+
+			while (true)
+			{
+				final int recordType = is.read();
+				if (recordType == -1)
+					break;
+
+				final byte[] hash = new byte[32];
+				is.readFully(hash);
+				final int confidenceOrdinal = is.readByte();
+				if (confidenceOrdinal < 0 || confidenceOrdinal >= ConfidenceType.values().length)
+					throw new IOException("unknown confidence type: " + confidenceOrdinal);
+				final ConfidenceType confidenceType = ConfidenceType.values()[confidenceOrdinal];
+
+				if (recordType == RECORD_TRANSACTION)
+				{
+					final byte[] payload = new byte[is.readInt()];
+					is.readFully(payload);
+					transactions.put(new Sha256Hash(hash), payload);
+				}
+				else if (recordType != RECORD_CONFIDENCE)
+				{
+					throw new IOException("unknown record type: " + recordType);
+				}
+
+				confidenceTypes.put(new Sha256Hash(hash), confidenceType);
+				numRecords++;
+			}
+		}
+		catch (final EOFException x)
+		{
+			log.info("journal '{}' ends with a torn record, ignoring it", file);
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem reading journal '" + file + "', replaying what was read", x);
+		}
+		finally
+		{
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+
+		return numRecords;
+	}
+
+	/**
+	 * Writes the snapshot and truncates the journal. Blocks until done; changes keep being journaled meanwhile.
+	 */
+	public void compact() throws IOException
+	{
+		synchronized (compactionLock)
+		{
+			final long start = System.currentTimeMillis();
+
+			synchronized (this)
+			{
+				closeJournal();
+				setJournalAside();
+				lastCompactedAt = start;
+			}
+
+			if (snapshotListener != null)
+				snapshotListener.onBeforeAutoSave(snapshotFile);
+
+			if (archive != null)
+			{
+				archive.archive(wallet, TransactionArchive.MIN_DEPTH, TransactionArchive.MIN_AGE_MS);
+				archive.writeSnapshot(wallet, snapshotFile);
+			}
+			else
+			{
+				wallet.saveToFile(snapshotFile);
+			}
+
+			if (snapshotListener != null)
+				snapshotListener.onAfterAutoSave(snapshotFile);
+
+			// only delete the set aside journal after the snapshot is safely in place
+			compactingFile.delete();
+
+			final long snapshotBytes = snapshotFile.length();
+			final Set<Sha256Hash> walletHashes = new HashSet<Sha256Hash>();
+			for (final Transaction tx : wallet.getTransactions(true))
+				walletHashes.add(tx.getHash());
+
+			synchronized (this)
+			{
+				// the snapshot covers everything still in the wallet, so forget only what left it
+				journaled.keySet().retainAll(walletHashes);
+
+				bytesWritten += snapshotBytes;
+				numCompactions++;
+			}
+
+			log.debug("wallet compacted to '{}' ({} bytes), took {}ms", new Object[] { snapshotFile, snapshotBytes,
+					System.currentTimeMillis() - start });
+		}
+	}
+
+	/**
+	 * Moves the journal out of the way, so records from now on go to a fresh file. If an earlier compaction failed, its
+	 * set aside journal is extended instead.
+	 */
+	private void setJournalAside() throws IOException
+	{
+		journalBytes = 0;
+
+		if (!journalFile.exists())
+			return;
+
+		if (!compactingFile.exists())
+		{
+			if (!journalFile.renameTo(compactingFile))
+				throw new IOException("cannot rename to " + compactingFile);
+			return;
+		}
+
+		final FileInputStream is = new FileInputStream(journalFile);
+		try
+		{
+			final FileOutputStream os = new FileOutputStream(compactingFile, true);
+			try
+			{
+				// skip version header
+				if (is.skip(4) == 4)
+					Io.copy(is, os);
+				os.getFD().sync();
+			}
+			finally
+			{
+				os.close();
+			}
+		}
+		finally
+		{
+			is.close();
+		}
+
+		journalFile.delete();
+	}
+
+	public synchronized void close()
+	{
+		wallet.removeEventListener(walletListener);
+		closeJournal();
+		executor.shutdown();
+	}
+
+	/**
+	 * @return bytes written to journal and snapshot since construction
+	 */
+	public synchronized long getBytesWritten()
+	{
+		return bytesWritten;
+	}
+
+	public synchronized long getJournalBytesWritten()
+	{
+		return journalBytesWritten;
+	}
+
+	public synchronized int getNumCompactions()
+	{
+		return numCompactions;
+	}
+
+	private synchronized void journal(@Nonnull final Transaction tx)
+	{
+		final Sha256Hash hash = tx.getHash();
+		final TransactionConfidence confidence = tx.getConfidence();
+		final ConfidenceType confidenceType = confidence.getConfidenceType();
+		final boolean known = journaled.containsKey(hash);
+
+		// depth changes on every block, but those can be recovered from the blockchain
+		if (known && journaled.get(hash) == confidenceType)
+			return;
+
+		try
+		{
+			if (os == null)
+				openJournal();
+
+			final int sizeBefore = os.size();
+
+			os.writeByte(known ? RECORD_CONFIDENCE : RECORD_TRANSACTION);
+			os.write(hash.getBytes());
+			os.writeByte(confidenceType.ordinal());
+			if (!known)
+			{
+				final byte[] payload = tx.bitcoinSerialize();
+				os.writeInt(payload.length);
+				os.write(payload);
+			}
+			os.flush();
+
+			final int recordBytes = os.size() - sizeBefore;
+			journalBytes += recordBytes;
+			journalBytesWritten += recordBytes;
+			bytesWritten += recordBytes;
+			journaled.put(hash, confidenceType);
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem appending to journal, compacting instead", x);
+			closeJournal();
+			compactInBackground();
+			return;
+		}
+
+		if (journalBytes >= MAX_JOURNAL_BYTES || System.currentTimeMillis() - lastCompactedAt >= COMPACT_INTERVAL_MS)
+			compactInBackground();
+	}
+
+	private void openJournal() throws IOException
+	{
+		final boolean fresh = !journalFile.exists() || journalFile.length() == 0;
+
+		os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+		if (fresh)
+		{
+			os.writeInt(FILE_VERSION);
+			journalBytes = os.size();
+			journalBytesWritten += os.size();
+			bytesWritten += os.size();
+		}
+		else
+		{
+			journalBytes = journalFile.length();
+		}
+	}
+
+	private void closeJournal()
+	{
+		if (os != null)
+		{
+			try
+			{
+				os.close();
+			}
+			catch (final IOException x)
+			{
+				// swallow
+			}
+
+			os = null;
+		}
+	}
+
+	private synchronized void compactInBackground()
+	{
+		if (compactionPending || executor.isShutdown())
+			return;
+
+		compactionPending = true;
+
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (WalletJournal.this)
+				{
+					compactionPending = false;
+				}
+
+				try
+				{
+					compact();
+				}
+				catch (final IOException x)
+				{
+					log.warn("problem compacting wallet", x);
+				}
+			}
+		});
+	}
+
+	private final AbstractWalletEventListener walletListener = new AbstractWalletEventListener()
+	{
+		@Override
+		public void onCoinsReceived(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance)
+		{
+			journal(tx);
+		}
+
+		@Override
+		public void onCoinsSent(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance)
+		{
+			journal(tx);
+		}
+
+		@Override
+		public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx)
+		{
+			journal(tx);
+		}
+
+		@Override
+		public void onKeysAdded(final Wallet wallet, final List<ECKey> keys)
+		{
+			// keys are never left to the journal
+			compactInBackground();
+		}
+
+		@Override
+		public void onReorganize(final Wallet wallet)
+		{
+			compactInBackground();
+		}
+	};
+}
@@ -44,7 +44,6 @@ import de.schildbach.wallet.WalletApplication;
 public final class AcceptBluetoothService extends Service
 {
 	private WalletApplication application;
-	private Wallet wallet;
 	private WakeLock wakeLock;
 	private AcceptBluetoothThread classicThread;
 	private AcceptBluetoothThread paymentProtocolThread;
@@ -81,7 +80,6 @@ public final class AcceptBluetoothService extends Service
 		super.onCreate();
 
 		this.application = (WalletApplication) getApplication();
-		this.wallet = application.getWallet();
 
 		final BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
@@ -116,6 +114,9 @@ public final class AcceptBluetoothService extends Service
 	{
 		log.info("tx " + tx.getHashAsString() + " arrived via blueooth");
 
+		// called on the accepting threads, so waiting for the wallet to load does not block the main thread
+		final Wallet wallet = application.getWallet();
+
 		try
 		{
 			if (wallet.isTransactionRelevant(tx))
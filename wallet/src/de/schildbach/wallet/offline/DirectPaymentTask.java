@@ -20,9 +20,6 @@ package de.schildbach.wallet.offline;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
 
 import javax.annotation.CheckForNull;
@@ -39,9 +36,9 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
 import android.os.Looper;
-import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.PaymentIntent;
 import de.schildbach.wallet.util.Bluetooth;
+import de.schildbach.wallet.util.HttpClient;
 import de.schildbach.wallet.util.PaymentProtocol;
 import de.schildbach.wallet.R;
 
@@ -72,15 +69,17 @@ public abstract class DirectPaymentTask
 
 	public final static class HttpPaymentTask extends DirectPaymentTask
 	{
+		private final HttpClient httpClient;
 		private final String url;
 		@CheckForNull
 		private final String userAgent;
 
-		public HttpPaymentTask(@Nonnull final Handler backgroundHandler, @Nonnull final ResultCallback resultCallback, @Nonnull final String url,
-				@Nullable final String userAgent)
+		public HttpPaymentTask(@Nonnull final Handler backgroundHandler, @Nonnull final ResultCallback resultCallback,
+				@Nonnull final HttpClient httpClient, @Nonnull final String url, @Nullable final String userAgent)
 		{
 			super(backgroundHandler, resultCallback);
 
+			this.httpClient = httpClient;
 			this.url = url;
 			this.userAgent = userAgent;
 		}
@@ -98,41 +97,19 @@ public abstract class DirectPaymentTask
 
 					log.info("trying to send tx to {}", url);
 
-					HttpURLConnection connection = null;
-					OutputStream os = null;
-					InputStream is = null;
+					HttpClient.Response response = null;
 
 					try
 					{
-						connection = (HttpURLConnection) new URL(url).openConnection();
-
-						connection.setInstanceFollowRedirects(false);
-						connection.setConnectTimeout(Constants.HTTP_TIMEOUT_MS);
-						connection.setReadTimeout(Constants.HTTP_TIMEOUT_MS);
-						connection.setUseCaches(false);
-						connection.setDoInput(true);
-						connection.setDoOutput(true);
-
-						connection.setRequestMethod("POST");
-						connection.setRequestProperty("Content-Type", PaymentProtocol.MIMETYPE_PAYMENT);
-						connection.setRequestProperty("Accept", PaymentProtocol.MIMETYPE_PAYMENTACK);
-						connection.setRequestProperty("Content-Length", Integer.toString(payment.getSerializedSize()));
-						if (userAgent != null)
-							connection.addRequestProperty("User-Agent", userAgent);
-						connection.connect();
-
-						os = connection.getOutputStream();
-						payment.writeTo(os);
-						os.flush();
+						response = httpClient.execute(new HttpClient.Request(new URL(url))
+								.post(PaymentProtocol.MIMETYPE_PAYMENT, payment.toByteArray()).accept(PaymentProtocol.MIMETYPE_PAYMENTACK)
+								.userAgent(userAgent));
 
 						log.info("tx sent via http");
 
-						final int responseCode = connection.getResponseCode();
-						if (responseCode == HttpURLConnection.HTTP_OK)
+						if (response.isOk())
 						{
-							is = connection.getInputStream();
-
-							final Protos.PaymentACK paymentAck = Protos.PaymentACK.parseFrom(is);
+							final Protos.PaymentACK paymentAck = Protos.PaymentACK.parseFrom(response.getInputStream());
 
 							final boolean ack = !"nack".equals(PaymentProtocol.parsePaymentAck(paymentAck));
 
@@ -142,11 +119,9 @@ public abstract class DirectPaymentTask
 						}
 						else
 						{
-							final String responseMessage = connection.getResponseMessage();
-
-							log.info("got http error {}: {}", responseCode, responseMessage);
+							log.info("got http error {}: {}", response.code, response.message);
 
-							onFail(R.string.error_http, responseCode, responseMessage);
+							onFail(R.string.error_http, response.code, response.message);
 						}
 					}
 					catch (final IOException x)
@@ -157,32 +132,8 @@ public abstract class DirectPaymentTask
 					}
 					finally
 					{
-						if (os != null)
-						{
-							try
-							{
-								os.close();
-							}
-							catch (final IOException x)
-							{
-								// swallow
-							}
-						}
-
-						if (is != null)
-						{
-							try
-							{
-								is.close();
-							}
-							catch (final IOException x)
-							{
-								// swallow
-							}
-						}
-
-						if (connection != null)
-							connection.disconnect();
+						if (response != null)
+							response.close();
 					}
 				}
 			});
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Counts events per channel in fixed time slots kept in a ring, and offers windowed sums and an exponentially weighted
+ * moving average per slot. Nothing is allocated after construction, except for {@link #toString()}.
+ *
+ * @author Andreas Schildbach
+ */
+public final class ActivityTracker
+{
+	private final int numChannels;
+	private final int numSlots;
+	private final long slotMs;
+	private final double alpha;
+
+	// one extra slot for the current, incomplete one
+	private final long[][] counts;
+	private final double[] ewma;
+	private long firstSlot = -1;
+	private long currentSlot = -1;
+	private long numEvents = 0;
+
+	/**
+	 * @param numSlots
+	 *            number of completed slots to keep
+	 * @param alpha
+	 *            weight of the latest completed slot in the moving average
+	 */
+	public ActivityTracker(final int numChannels, final int numSlots, final long slotMs, final double alpha)
+	{
+		this.numChannels = numChannels;
+		this.numSlots = numSlots;
+		this.slotMs = slotMs;
+		this.alpha = alpha;
+
+		this.counts = new long[numChannels][numSlots + 1];
+		this.ewma = new double[numChannels];
+	}
+
+	public synchronized void add(final long now, final int channel, final long n)
+	{
+		advance(now);
+
+		counts[channel][index(currentSlot)] += n;
+		numEvents += n;
+	}
+
+	/**
+	 * @return number of events added so far, e.g. to tell whether anything happened since the last look
+	 */
+	public synchronized long numEvents()
+	{
+		return numEvents;
+	}
+
+	/**
+	 * Moves the current slot forward to the given time, folding completed slots into the moving averages.
+	 */
+	public synchronized void advance(final long now)
+	{
+		final long slot = now / slotMs;
+
+		if (currentSlot < 0)
+		{
+			firstSlot = slot;
+			currentSlot = slot;
+			return;
+		}
+
+		if (slot <= currentSlot)
+			return;
+
+		final long gap = slot - currentSlot;
+
+		for (int channel = 0; channel < numChannels; channel++)
+		{
+			ewma[channel] = alpha * counts[channel][index(currentSlot)] + (1 - alpha) * ewma[channel];
+			if (gap > 1)
+				ewma[channel] *= Math.pow(1 - alpha, gap - 1);
+
+			final long numCleared = Math.min(gap, numSlots + 1);
+			for (long s = slot - numCleared + 1; s <= slot; s++)
+				counts[channel][index(s)] = 0;
+		}
+
+		currentSlot = slot;
+	}
+
+	/**
+	 * @return sum of events in the given number of most recent completed slots, or fewer if not collected yet
+	 */
+	public synchronized long sum(final long now, final int channel, final int numRecentSlots)
+	{
+		advance(now);
+
+		final int n = Math.min(numRecentSlots, numCollectedSlots());
+		long sum = 0;
+		for (long s = currentSlot - n; s < currentSlot; s++)
+			sum += counts[channel][index(s)];
+		return sum;
+	}
+
+	/**
+	 * @return events per slot, exponentially weighted over completed slots
+	 */
+	public synchronized double ewma(final long now, final int channel)
+	{
+		advance(now);
+
+		return ewma[channel];
+	}
+
+	/**
+	 * @return number of completed slots since the first event, at most the number of slots kept
+	 */
+	public synchronized int numCollectedSlots()
+	{
+		if (currentSlot < 0)
+			return 0;
+
+		return (int) Math.min(currentSlot - firstSlot, numSlots);
+	}
+
+	/**
+	 * @param idleSlotsPerChannel
+	 *            window per channel, pass a constant array to avoid allocations
+	 * @return true if enough slots were collected and none of the channels saw events within its window
+	 */
+	public synchronized boolean isIdle(final long now, final int minCollectedSlots, @Nonnull final int[] idleSlotsPerChannel)
+	{
+		advance(now);
+
+		if (numCollectedSlots() < minCollectedSlots)
+			return false;
+
+		for (int channel = 0; channel < idleSlotsPerChannel.length; channel++)
+			if (sum(now, channel, idleSlotsPerChannel[channel]) > 0)
+				return false;
+
+		return true;
+	}
+
+	private int index(final long slot)
+	{
+		return (int) (slot % (numSlots + 1));
+	}
+
+	/**
+	 * @return completed slots, most recent first, channels separated by slashes
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		final StringBuilder builder = new StringBuilder();
+
+		for (long s = currentSlot - 1; s >= currentSlot - numCollectedSlots(); s--)
+		{
+			if (builder.length() > 0)
+				builder.append(", ");
+
+			for (int channel = 0; channel < numChannels; channel++)
+			{
+				if (channel > 0)
+					builder.append('/');
+				builder.append(counts[channel][index(s)]);
+			}
+		}
+
+		return builder.toString();
+	}
+}
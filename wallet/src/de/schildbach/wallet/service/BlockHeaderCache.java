@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.google.fastcoin.core.StoredBlock;
+import com.google.fastcoin.store.BlockStore;
+import com.google.fastcoin.store.BlockStoreException;
+
+/**
+ * Bounded ring of the most recent headers of the best chain, indexed by height.
+ *
+ * Lookups never touch the block store. Updates walk back from the new chain head only until they meet a cached block
+ * that is still on the best chain, so after a reorg all replaced heights are overwritten.
+ *
+ * @author Andreas Schildbach
+ */
+public final class BlockHeaderCache
+{
+	private final StoredBlock[] ring;
+	private final int mask;
+	private int tipHeight = -1;
+	private int size = 0;
+
+	public BlockHeaderCache(final int capacity)
+	{
+		if (Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+
+		this.ring = new StoredBlock[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Makes the given block the tip of the cache, filling in any ancestors that are missing or were replaced by a reorg.
+	 */
+	public synchronized void onChainHead(@Nonnull final StoredBlock head, @Nonnull final BlockStore blockStore) throws BlockStoreException
+	{
+		final int headHeight = head.getHeight();
+		final int lowestHeight = Math.max(0, headHeight - ring.length + 1);
+
+		StoredBlock block = head;
+		int lowestFilledHeight = headHeight + 1;
+		boolean joined = false;
+
+		while (block != null && block.getHeight() >= lowestHeight)
+		{
+			final StoredBlock cached = peek(block.getHeight());
+			if (cached != null && cached.getHeader().getHash().equals(block.getHeader().getHash()))
+			{
+				joined = true; // joined the cached chain
+				break;
+			}
+
+			ring[block.getHeight() & mask] = block;
+			lowestFilledHeight = block.getHeight();
+
+			final StoredBlock cachedPrev = peek(block.getHeight() - 1);
+			if (cachedPrev != null && cachedPrev.getHeader().getHash().equals(block.getHeader().getPrevBlockHash()))
+			{
+				joined = true; // joined the cached chain without store access
+				break;
+			}
+
+			block = block.getPrev(blockStore);
+		}
+
+		// ran out of store before joining, so anything below cannot be trusted to be on the best chain
+		if (!joined)
+			for (int height = lowestFilledHeight - 1; height >= lowestHeight; height--)
+				ring[height & mask] = null;
+
+		final int oldTipHeight = tipHeight;
+		tipHeight = headHeight;
+
+		// heights above the new tip belong to an abandoned fork
+		for (int height = headHeight + 1; height <= oldTipHeight && height - headHeight <= ring.length; height++)
+			ring[height & mask] = null;
+
+		size = 0;
+		for (int height = headHeight; height > headHeight - ring.length && height >= 0; height--)
+		{
+			if (peek(height) == null)
+				break;
+			size++;
+		}
+	}
+
+	@CheckForNull
+	public synchronized StoredBlock getChainHead()
+	{
+		return size > 0 ? ring[tipHeight & mask] : null;
+	}
+
+	/**
+	 * @return up to maxBlocks most recent blocks, newest first, or null if the cache cannot satisfy the request
+	 */
+	@CheckForNull
+	public synchronized List<StoredBlock> getRecentBlocks(final int maxBlocks)
+	{
+		final int numBlocks = Math.min(maxBlocks, tipHeight + 1);
+		if (numBlocks > size)
+			return null;
+
+		final List<StoredBlock> blocks = new ArrayList<StoredBlock>(numBlocks);
+		for (int i = 0; i < numBlocks; i++)
+			blocks.add(ring[(tipHeight - i) & mask]);
+
+		return blocks;
+	}
+
+	public synchronized void clear()
+	{
+		for (int i = 0; i < ring.length; i++)
+			ring[i] = null;
+
+		tipHeight = -1;
+		size = 0;
+	}
+
+	@CheckForNull
+	private StoredBlock peek(final int height)
+	{
+		if (height < 0)
+			return null;
+
+		final StoredBlock block = ring[height & mask];
+		return block != null && block.getHeight() == height ? block : null;
+	}
+}
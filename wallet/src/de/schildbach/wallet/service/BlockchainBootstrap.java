@@ -0,0 +1,398 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.Sha256Hash;
+import com.google.fastcoin.core.StoredBlock;
+
+import de.schildbach.wallet.Constants;
+
+/**
+ * Seeds the block store from the bundled SPV block store asset.
+ *
+ * If the asset is stored uncompressed in the APK, it is transferred channel-to-channel straight from the APK file
+ * descriptor, otherwise it is streamed in large chunks. The header chain contained in the asset is verified separately,
+ * so that callers can do it off their critical path.
+ *
+ * @author Andreas Schildbach
+ */
+public final class BlockchainBootstrap
+{
+	public interface VerificationListener
+	{
+		void onVerified(boolean valid, int numHeaders, long durationMs);
+	}
+
+	// layout of SPVBlockStore files, see SPVBlockStore
+	private static final byte[] HEADER_MAGIC = { 'S', 'P', 'V', 'B' };
+	private static final int FILE_PROLOGUE_BYTES = 1024;
+	private static final int CURSOR_OFFSET = 4;
+	private static final int CHAIN_HEAD_OFFSET = 8;
+	private static final int HASH_SIZE = 32;
+	private static final int RECORD_SIZE = HASH_SIZE + StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	private final AssetManager assets;
+	private final String assetName;
+	private final NetworkParameters params;
+
+	private static final Logger log = LoggerFactory.getLogger(BlockchainBootstrap.class);
+
+	public BlockchainBootstrap(@Nonnull final AssetManager assets, @Nonnull final String assetName)
+	{
+		this.assets = assets;
+		this.assetName = assetName;
+		this.params = Constants.NETWORK_PARAMETERS;
+	}
+
+	/**
+	 * Copies the asset to the given file. The copy is written to a temporary file first and only renamed into place if
+	 * it is complete and structurally sound, so a partial copy never ends up as block store.
+	 *
+	 * @return true if the file was bootstrapped, false if the caller should fall back to checkpointing
+	 */
+	public boolean copyTo(@Nonnull final File blockChainFile)
+	{
+		final long start = System.currentTimeMillis();
+		final File tmpFile = new File(blockChainFile.getAbsolutePath() + ".tmp");
+
+		try
+		{
+			long expectedLength;
+			String method;
+
+			try
+			{
+				expectedLength = transferFromFd(tmpFile);
+				method = "channel transfer";
+			}
+			catch (final FileNotFoundException x)
+			{
+				// asset is compressed, no file descriptor available
+				expectedLength = transferFromStream(tmpFile);
+				method = "stream copy";
+			}
+
+			final long length = tmpFile.length();
+			if (expectedLength >= 0 && length != expectedLength)
+				throw new IOException("partial copy: " + length + "/" + expectedLength + " bytes");
+
+			checkPrologue(tmpFile);
+
+			if (!tmpFile.renameTo(blockChainFile))
+				throw new IOException("cannot rename to " + blockChainFile);
+
+			log.info("bootstrapped blockchain from asset '{}' using {}, {} bytes, took {}ms", new Object[] { assetName, method, length,
+					System.currentTimeMillis() - start });
+
+			return true;
+		}
+		catch (final IOException x)
+		{
+			log.warn("cannot bootstrap blockchain from asset '" + assetName + "', falling back to checkpoints", x);
+
+			tmpFile.delete();
+			blockChainFile.delete();
+
+			return false;
+		}
+	}
+
+	private long transferFromFd(@Nonnull final File target) throws IOException
+	{
+		final AssetFileDescriptor fd = assets.openFd(assetName);
+		FileInputStream is = null;
+		FileOutputStream os = null;
+
+		try
+		{
+			is = fd.createInputStream();
+			os = new FileOutputStream(target);
+
+			final FileChannel in = is.getChannel();
+			final FileChannel out = os.getChannel();
+			final long offset = fd.getStartOffset();
+			final long length = fd.getLength();
+
+			long transferred = 0;
+			while (transferred < length)
+			{
+				final long n = in.transferTo(offset + transferred, length - transferred, out);
+				if (n <= 0)
+					break;
+				transferred += n;
+			}
+
+			out.force(false);
+
+			return length;
+		}
+		finally
+		{
+			closeQuietly(os);
+			closeQuietly(is);
+			closeQuietly(fd);
+		}
+	}
+
+	private long transferFromStream(@Nonnull final File target) throws IOException
+	{
+		InputStream is = null;
+		FileOutputStream os = null;
+
+		try
+		{
+			is = assets.open(assetName, AssetManager.ACCESS_STREAMING);
+			os = new FileOutputStream(target);
+
+			final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+			int n;
+			while ((n = is.read(buffer)) != -1)
+				os.write(buffer, 0, n);
+
+			os.getFD().sync();
+
+			return -1; // unknown for compressed assets
+		}
+		finally
+		{
+			closeQuietly(os);
+			closeQuietly(is);
+		}
+	}
+
+	private static void checkPrologue(@Nonnull final File file) throws IOException
+	{
+		final long length = file.length();
+		if (length < FILE_PROLOGUE_BYTES + RECORD_SIZE || (length - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0)
+			throw new IOException("unexpected length: " + length);
+
+		FileInputStream is = null;
+
+		try
+		{
+			is = new FileInputStream(file);
+			final ByteBuffer prologue = ByteBuffer.allocate(CHAIN_HEAD_OFFSET);
+			is.getChannel().read(prologue, 0);
+
+			final byte[] magic = new byte[HEADER_MAGIC.length];
+			prologue.rewind();
+			prologue.get(magic);
+			if (!Arrays.equals(magic, HEADER_MAGIC))
+				throw new IOException("bad magic");
+
+			final int cursor = prologue.getInt(CURSOR_OFFSET);
+			if (cursor < FILE_PROLOGUE_BYTES || cursor > length || (cursor - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0)
+				throw new IOException("bad cursor: " + cursor);
+		}
+		finally
+		{
+			closeQuietly(is);
+		}
+	}
+
+	/**
+	 * Verifies the header chain of the asset on a background thread. Every record must hash to its key, must link to its
+	 * predecessor unless it is the oldest record, and the recorded chain head must be present.
+	 */
+	public void verifyInBackground(@Nonnull final VerificationListener listener)
+	{
+		new Thread("bootstrap verification")
+		{
+			@Override
+			public void run()
+			{
+				android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+
+				final long start = System.currentTimeMillis();
+				int numHeaders = 0;
+				boolean valid;
+
+				try
+				{
+					numHeaders = verify();
+					valid = true;
+				}
+				catch (final Exception x)
+				{
+					log.error("bootstrap asset '" + assetName + "' failed verification", x);
+					valid = false;
+				}
+
+				final long duration = System.currentTimeMillis() - start;
+				if (valid)
+					log.info("bootstrap asset '{}' verified, {} headers, took {}ms", new Object[] { assetName, numHeaders, duration });
+
+				listener.onVerified(valid, numHeaders, duration);
+			}
+		}.start();
+	}
+
+	private int verify() throws IOException
+	{
+		final AssetFileDescriptor fd;
+		try
+		{
+			fd = assets.openFd(assetName);
+		}
+		catch (final FileNotFoundException x)
+		{
+			// compressed asset, cannot be mapped
+			final File tmpFile = File.createTempFile("bootstrap", null);
+			try
+			{
+				transferFromStream(tmpFile);
+				final FileInputStream is = new FileInputStream(tmpFile);
+				try
+				{
+					final FileChannel channel = is.getChannel();
+					return verify(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+				}
+				finally
+				{
+					closeQuietly(is);
+				}
+			}
+			finally
+			{
+				tmpFile.delete();
+			}
+		}
+
+		final FileInputStream is = fd.createInputStream();
+		try
+		{
+			return verify(is.getChannel().map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength()));
+		}
+		finally
+		{
+			closeQuietly(is);
+			closeQuietly(fd);
+		}
+	}
+
+	private int verify(@Nonnull final MappedByteBuffer buffer) throws IOException
+	{
+		final int length = buffer.capacity();
+		if (length < FILE_PROLOGUE_BYTES + RECORD_SIZE || (length - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0)
+			throw new IOException("unexpected length: " + length);
+
+		final byte[] chainHeadHashBytes = new byte[HASH_SIZE];
+		buffer.position(CHAIN_HEAD_OFFSET);
+		buffer.get(chainHeadHashBytes);
+		final Sha256Hash chainHeadHash = new Sha256Hash(chainHeadHashBytes);
+
+		final int numRecords = (length - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+		final Map<Sha256Hash, StoredBlock> blocks = new HashMap<Sha256Hash, StoredBlock>(numRecords * 2);
+		int minHeight = Integer.MAX_VALUE;
+
+		final byte[] hashBytes = new byte[HASH_SIZE];
+		for (int i = 0; i < numRecords; i++)
+		{
+			buffer.position(FILE_PROLOGUE_BYTES + i * RECORD_SIZE);
+			buffer.get(hashBytes);
+
+			if (isZero(hashBytes))
+				continue; // unused slot
+
+			final Sha256Hash hash = new Sha256Hash(hashBytes.clone());
+			final StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
+
+			if (!block.getHeader().getHash().equals(hash))
+				throw new IOException("record " + i + " does not hash to " + hash);
+
+			blocks.put(hash, block);
+			minHeight = Math.min(minHeight, block.getHeight());
+		}
+
+		if (!blocks.containsKey(chainHeadHash))
+			throw new IOException("chain head " + chainHeadHash + " not contained");
+
+		for (final StoredBlock block : blocks.values())
+		{
+			if (block.getHeight() == minHeight)
+				continue;
+
+			final StoredBlock prev = blocks.get(block.getHeader().getPrevBlockHash());
+			if (prev == null || prev.getHeight() != block.getHeight() - 1)
+				throw new IOException("broken link at height " + block.getHeight());
+		}
+
+		return blocks.size();
+	}
+
+	private static boolean isZero(@Nonnull final byte[] bytes)
+	{
+		for (final byte b : bytes)
+			if (b != 0)
+				return false;
+
+		return true;
+	}
+
+	private static void closeQuietly(@Nonnull final AssetFileDescriptor fd)
+	{
+		try
+		{
+			fd.close();
+		}
+		catch (final IOException x)
+		{
+			// swallow
+		}
+	}
+
+	private static void closeQuietly(final Closeable closeable)
+	{
+		if (closeable != null)
+		{
+			try
+			{
+				closeable.close();
+			}
+			catch (final IOException x)
+			{
+				// swallow
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import com.google.fastcoin.core.BlockChain;
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.Peer;
+import com.google.fastcoin.core.PeerGroup;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.utils.Threading;
+
+/**
+ * Wires a {@link PeerGroup} to the peer selection, peer store and metrics components, so the service and the JVM sync
+ * harness run the same setup.
+ *
+ * @author Andreas Schildbach
+ */
+public final class BlockchainPeers
+{
+	private BlockchainPeers()
+	{
+	}
+
+	public static PeerGroup create(@Nonnull final NetworkParameters params, @Nonnull final BlockChain blockChain, @Nonnull final Wallet wallet,
+			@Nonnull final PeerManager peerManager, @Nonnull final PeerAddressStore peerAddressStore, @Nonnull final SyncMetrics syncMetrics,
+			@Nonnull final RacingPeerDiscovery peerDiscovery, final int maxConnections)
+	{
+		final PeerGroup peerGroup = new PeerGroup(params, blockChain)
+		{
+			@Override
+			protected Peer selectDownloadPeer(final List<Peer> peers)
+			{
+				final Peer peer = peerManager.selectDownloadPeer(peers);
+				return peer != null ? peer : super.selectDownloadPeer(peers);
+			}
+		};
+		peerGroup.addWallet(wallet);
+		peerGroup.addEventListener(peerManager);
+		// the library only calls onPreMessageReceived() on listeners running on its own thread
+		peerGroup.addEventListener(peerAddressStore, Threading.SAME_THREAD);
+		peerGroup.addEventListener(syncMetrics, Threading.SAME_THREAD);
+		peerGroup.setMaxConnections(maxConnections);
+		peerGroup.addPeerDiscovery(peerDiscovery);
+
+		return peerGroup;
+	}
+
+	/**
+	 * Detaches the components again, recording peers still connected. Call before stopping the peer group.
+	 */
+	public static void release(@Nonnull final PeerGroup peerGroup, @Nonnull final Wallet wallet, @Nonnull final PeerManager peerManager,
+			@Nonnull final PeerAddressStore peerAddressStore, @Nonnull final SyncMetrics syncMetrics)
+	{
+		peerAddressStore.recordConnectedPeers(peerGroup.getConnectedPeers());
+		peerGroup.removeEventListener(peerManager);
+		peerGroup.removeEventListener(peerAddressStore);
+		peerGroup.removeEventListener(syncMetrics);
+		peerGroup.removeWallet(wallet);
+	}
+}
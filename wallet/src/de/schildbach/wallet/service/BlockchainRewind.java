@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.fastcoin.core.CheckpointManager;
+import com.google.fastcoin.core.StoredBlock;
+import com.google.fastcoin.core.Transaction;
+import com.google.fastcoin.core.TransactionConfidence;
+import com.google.fastcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.store.BlockStore;
+import com.google.fastcoin.store.BlockStoreException;
+
+/**
+ * Rewinds a block store so that the chain is replayed from a given point in time, rather than throwing the whole store
+ * away. Blocks still held by the store are reused; older targets fall back to the nearest checkpoint.
+ *
+ * @author Andreas Schildbach
+ */
+public final class BlockchainRewind
+{
+	private static final Logger log = LoggerFactory.getLogger(BlockchainRewind.class);
+
+	private BlockchainRewind()
+	{
+	}
+
+	/**
+	 * @param timeSecs
+	 *            the new chain head will be the last block mined at or before this time
+	 * @return the new chain head, or null if the store doesn't reach back far enough and no checkpoints are available
+	 */
+	@CheckForNull
+	public static StoredBlock rewind(@Nonnull final BlockStore blockStore, @CheckForNull final CheckpointManager checkpoints, final long timeSecs)
+			throws BlockStoreException
+	{
+		final StoredBlock chainHead = blockStore.getChainHead();
+		StoredBlock block = chainHead;
+
+		while (block.getHeader().getTimeSeconds() > timeSecs)
+		{
+			final StoredBlock prev = block.getPrev(blockStore);
+
+			if (prev == null)
+			{
+				if (checkpoints == null)
+					return null;
+
+				final StoredBlock checkpoint = checkpoints.getCheckpointBefore(timeSecs);
+				log.info("block store reaches back to height {} only, using checkpoint at height {}", block.getHeight(), checkpoint.getHeight());
+
+				blockStore.put(checkpoint);
+				blockStore.setChainHead(checkpoint);
+				return checkpoint;
+			}
+
+			block = prev;
+		}
+
+		if (block != chainHead)
+			blockStore.setChainHead(block);
+
+		log.info("rewound block store from height {} to {}", chainHead.getHeight(), block.getHeight());
+
+		return block;
+	}
+
+	/**
+	 * Sets the depth of transactions confirmed at or below the new chain head as if the chain ended there, so replaying
+	 * the blocks above doesn't count them twice. Transactions confirmed above it are received again during the replay,
+	 * which restarts them at depth one.
+	 *
+	 * Must be called with the wallet lock held, see {@link de.schildbach.wallet.RewindableWallet#rewind(StoredBlock)}.
+	 *
+	 * @return number of transactions adjusted
+	 */
+	public static int rewindConfidence(@Nonnull final Wallet wallet, final int height)
+	{
+		int numAdjusted = 0;
+
+		for (final Transaction tx : wallet.getTransactions(false))
+		{
+			final TransactionConfidence confidence = tx.getConfidence();
+			if (confidence.getConfidenceType() != ConfidenceType.BUILDING)
+				continue;
+
+			final int appearedAtHeight = confidence.getAppearedAtChainHeight();
+			if (appearedAtHeight <= height)
+			{
+				confidence.setDepthInBlocks(height - appearedAtHeight + 1);
+				numAdjusted++;
+			}
+		}
+
+		log.info("rewound confidence of {} transactions to height {}", numAdjusted, height);
+
+		return numAdjusted;
+	}
+}
@@ -38,6 +38,7 @@ public interface BlockchainService
 	public static final String ACTION_BLOCKCHAIN_STATE_BEST_CHAIN_DATE = "best_chain_date";
 	public static final String ACTION_BLOCKCHAIN_STATE_BEST_CHAIN_HEIGHT = "best_chain_height";
 	public static final String ACTION_BLOCKCHAIN_STATE_REPLAYING = "replaying";
+	public static final String ACTION_BLOCKCHAIN_STATE_REPLAY_PROGRESS = "replay_progress";
 	public static final String ACTION_BLOCKCHAIN_STATE_DOWNLOAD = "download";
 	public static final int ACTION_BLOCKCHAIN_STATE_DOWNLOAD_OK = 0;
 	public static final int ACTION_BLOCKCHAIN_STATE_DOWNLOAD_STORAGE_PROBLEM = 1;
@@ -45,6 +46,8 @@ public interface BlockchainService
 
 	public static final String ACTION_CANCEL_COINS_RECEIVED = R.class.getPackage().getName() + ".cancel_coins_received";
 	public static final String ACTION_RESET_BLOCKCHAIN = R.class.getPackage().getName() + ".reset_blockchain";
+	public static final String ACTION_RESCAN_BLOCKCHAIN = R.class.getPackage().getName() + ".rescan_blockchain";
+	public static final String ACTION_RESCAN_BLOCKCHAIN_TIME = "time";
 	public static final String ACTION_BROADCAST_TRANSACTION = R.class.getPackage().getName() + ".broadcast_transaction";
 	public static final String ACTION_BROADCAST_TRANSACTION_HASH = "hash";
 
@@ -52,4 +55,7 @@ public interface BlockchainService
 	List<Peer> getConnectedPeers();
 
 	List<StoredBlock> getRecentBlocks(int maxBlocks);
+
+	@CheckForNull
+	SyncStats getSyncStats();
 }
@@ -18,17 +18,12 @@
 package de.schildbach.wallet.service;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.math.BigInteger;
-import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -61,26 +56,28 @@ import android.os.PowerManager.WakeLock;
 import android.support.v4.app.NotificationCompat;
 import android.text.format.DateUtils;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.fastcoin.core.AbstractPeerEventListener;
 import com.google.fastcoin.core.Address;
 import com.google.fastcoin.core.Block;
 import com.google.fastcoin.core.BlockChain;
 import com.google.fastcoin.core.CheckpointManager;
+import com.google.fastcoin.core.FilteredBlock;
 import com.google.fastcoin.core.Peer;
 import com.google.fastcoin.core.PeerEventListener;
 import com.google.fastcoin.core.PeerGroup;
+import com.google.fastcoin.core.PrunedException;
 import com.google.fastcoin.core.ScriptException;
 import com.google.fastcoin.core.Sha256Hash;
 import com.google.fastcoin.core.StoredBlock;
 import com.google.fastcoin.core.Transaction;
 import com.google.fastcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.fastcoin.core.VerificationException;
 import com.google.fastcoin.core.Wallet;
 import com.google.fastcoin.core.Wallet.BalanceType;
 import com.google.fastcoin.core.WalletEventListener;
 import com.google.fastcoin.net.discovery.DnsDiscovery;
 import com.google.fastcoin.net.discovery.IrcDiscovery;
-import com.google.fastcoin.net.discovery.PeerDiscovery;
-import com.google.fastcoin.net.discovery.PeerDiscoveryException;
 import com.google.fastcoin.store.BlockStore;
 import com.google.fastcoin.store.BlockStoreException;
 import com.google.fastcoin.store.SPVBlockStore;
@@ -89,6 +86,7 @@ import com.google.fastcoin.utils.Threading;
 import de.schildbach.wallet.AddressBookProvider;
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.RewindableWallet;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.WalletBalanceWidgetProvider;
 import de.schildbach.wallet.ui.WalletActivity;
@@ -109,6 +107,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 	private BlockStore blockStore;
 	private File blockChainFile;
 	private BlockChain blockChain;
+	private final BlockHeaderCache blockHeaderCache = new BlockHeaderCache(BLOCK_HEADER_CACHE_SIZE);
 	@CheckForNull
 	private PeerGroup peerGroup;
 
@@ -117,6 +116,15 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 	private WakeLock wakeLock;
 
 	private PeerConnectivityListener peerConnectivityListener;
+	private final PeerManager peerManager = new PeerManager();
+	private PeerAddressStore peerAddressStore;
+	private RacingPeerDiscovery peerDiscovery;
+	private SyncMetrics syncMetrics;
+	private TransactionOutbox outbox;
+	private final AtomicLong peerGroupStartedAt = new AtomicLong(0);
+	private final AtomicBoolean firstPeerConnected = new AtomicBoolean();
+	private final AtomicBoolean tipReached = new AtomicBoolean();
+	private ConnectivityManager connectivityManager;
 	private NotificationManager nm;
 	private static final int NOTIFICATION_ID_CONNECTED = 0;
 	private static final int NOTIFICATION_ID_COINS_RECEIVED = 1;
@@ -124,16 +132,33 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 	private int notificationCount = 0;
 	private BigInteger notificationAccumulatedAmount = BigInteger.ZERO;
 	private final List<Address> notificationAddresses = new LinkedList<Address>();
-	private AtomicInteger transactionsReceived = new AtomicInteger();
+	private final ActivityTracker activityTracker = new ActivityTracker(2, MAX_HISTORY_SIZE, DateUtils.MINUTE_IN_MILLIS,
+			ACTIVITY_EWMA_ALPHA);
+	private final AtomicInteger relevantTransactionsInSession = new AtomicInteger();
+	private final AtomicLong timeToTip = new AtomicLong(-1);
+	private SyncScheduler syncScheduler;
+	private int sessionStartHeight;
+	private long sessionStartWalletBytes;
 	private int bestChainHeightEver;
 	private long serviceCreatedAt;
 	private boolean resetBlockchainOnShutdown = false;
+	private boolean initialized = false;
+	private boolean destroyed = false;
+	private final List<Intent> pendingStartCommands = new LinkedList<Intent>();
+	private long rescanBlockchainOnShutdownTime = -1;
+	private volatile int rescanFromHeight = -1;
+	private int rescanToHeight = -1;
 
 	private static final int MIN_COLLECT_HISTORY = 2;
 	private static final int IDLE_BLOCK_TIMEOUT_MIN = 2;
 	private static final int IDLE_TRANSACTION_TIMEOUT_MIN = 9;
 	private static final int MAX_HISTORY_SIZE = Math.max(IDLE_TRANSACTION_TIMEOUT_MIN, IDLE_BLOCK_TIMEOUT_MIN);
+	// indexed by activity channel
+	private static final int[] IDLE_TIMEOUTS_MIN = { IDLE_TRANSACTION_TIMEOUT_MIN + 1, IDLE_BLOCK_TIMEOUT_MIN + 1 };
+	private static final double ACTIVITY_EWMA_ALPHA = 0.3;
 	private static final long APPWIDGET_THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
+	private static final int BLOCK_HEADER_CACHE_SIZE = 128;
+	private static final long RESCAN_MARGIN_SECS = DateUtils.WEEK_IN_MILLIS / 1000;
 
 	private static final Logger log = LoggerFactory.getLogger(BlockchainServiceImpl.class);
 
@@ -148,7 +173,8 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		@Override
 		public void onCoinsReceived(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance)
 		{
-			transactionsReceived.incrementAndGet();
+			relevantTransactionsInSession.incrementAndGet();
+			syncMetrics.onRelevantTransaction(tx.getHash());
 
 			final int bestChainHeight = blockChain.getBestChainHeight();
 
@@ -181,7 +207,8 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		@Override
 		public void onCoinsSent(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance)
 		{
-			transactionsReceived.incrementAndGet();
+			relevantTransactionsInSession.incrementAndGet();
+			syncMetrics.onRelevantTransaction(tx.getHash());
 		}
 	};
 
@@ -256,6 +283,9 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		@Override
 		public void onPeerConnected(final Peer peer, final int peerCount)
 		{
+			if (firstPeerConnected.compareAndSet(false, true))
+				log.info("time to first peer: {}ms, {}", System.currentTimeMillis() - peerGroupStartedAt.get(), peer);
+
 			this.peerCount = peerCount;
 			changed(peerCount);
 		}
@@ -317,7 +347,15 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		@Override
 		public void onBlocksDownloaded(final Peer peer, final Block block, final int blocksLeft)
 		{
-			bestChainHeightEver = Math.max(bestChainHeightEver, blockChain.getChainHead().getHeight());
+			final StoredBlock chainHead = blockChain.getChainHead();
+			bestChainHeightEver = Math.max(bestChainHeightEver, chainHead.getHeight());
+			updateBlockHeaderCache(chainHead);
+
+			if (rescanFromHeight >= 0 && chainHead.getHeight() >= rescanToHeight)
+				onRescanFinished(chainHead.getHeight());
+
+			if (blocksLeft == 0)
+				onTipReached();
 
 			delayHandler.removeCallbacksAndMessages(null);
 
@@ -329,6 +367,13 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 				delayHandler.postDelayed(runnable, Constants.BLOCKCHAIN_STATE_BROADCAST_THROTTLE_MS);
 		}
 
+		@Override
+		public void onChainDownloadStarted(final Peer peer, final int blocksLeft)
+		{
+			if (blocksLeft == 0)
+				onTipReached();
+		}
+
 		private final Runnable runnable = new Runnable()
 		{
 			@Override
@@ -341,6 +386,25 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		};
 	};
 
+	private final Runnable sessionLimitRunnable = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			log.info("sync session limit reached, stopping service");
+			stopSelf();
+		}
+	};
+
+	private void onTipReached()
+	{
+		if (tipReached.compareAndSet(false, true))
+		{
+			timeToTip.set(System.currentTimeMillis() - peerGroupStartedAt.get());
+			log.info("time to tip: {}ms, {} stored peers", timeToTip.get(), peerAddressStore.size());
+		}
+	}
+
 	private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver()
 	{
 		private boolean hasConnectivity;
@@ -392,79 +456,66 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 				{
 					final String message = "wallet/blockchain out of sync: " + walletLastBlockSeenHeight + "/" + bestChainHeight;
 					log.error(message);
+
+					if (walletLastBlockSeenHeight < bestChainHeight)
+					{
+						// wallet missed blocks, replay them
+						rescanBlockchainOnShutdownTime = walletLastBlockSeenTime(wallet);
+						stopSelf();
+						return;
+					}
+
 					CrashReporter.saveBackgroundTrace(new RuntimeException(message), application.packageInfo());
 				}
 
 				log.info("starting peergroup");
-				peerGroup = new PeerGroup(Constants.NETWORK_PARAMETERS, blockChain);
-				peerGroup.addWallet(wallet);
-				peerGroup.setUserAgent(Constants.USER_AGENT, application.packageInfo().versionName);
-				peerGroup.addEventListener(peerConnectivityListener);
-
-				final int maxConnectedPeers = application.maxConnectedPeers();
-
 				final String trustedPeerHost = config.getTrustedPeerHost();
-				final boolean hasTrustedPeer = !trustedPeerHost.isEmpty();
-
-				final boolean connectTrustedPeerOnly = hasTrustedPeer && config.getTrustedPeerOnly();
-				peerGroup.setMaxConnections(12);//connectTrustedPeerOnly ? 1 : maxConnectedPeers);
-
-                peerGroup.addPeerDiscovery(new IrcDiscovery("#fastcoin00"));
-
+				final boolean connectTrustedPeerOnly = !trustedPeerHost.isEmpty() && config.getTrustedPeerOnly();
 
-                peerGroup.addPeerDiscovery(new PeerDiscovery()
-				{
-					private final PeerDiscovery normalPeerDiscovery = new DnsDiscovery(Constants.NETWORK_PARAMETERS);
-
-					@Override
-					public InetSocketAddress[] getPeers(final long timeoutValue, final TimeUnit timeoutUnit) throws PeerDiscoveryException
-					{
-						final List<InetSocketAddress> peers = new LinkedList<InetSocketAddress>();
+				// trimming is relative to the regular peer count, the trusted-only target of one would trim the trusted peer too
+				peerDiscovery = new RacingPeerDiscovery(trustedPeerHost, Constants.NETWORK_PARAMETERS.getPort(), connectTrustedPeerOnly,
+						application.maxConnectedPeers());
+				peerDiscovery.addSource("stored", peerAddressStore);
+				peerDiscovery.addSource("dns", new DnsDiscovery(Constants.NETWORK_PARAMETERS));
+				peerDiscovery.addSource("irc", new IrcDiscovery("#fastcoin00"));
 
-						boolean needsTrimPeersWorkaround = false;
-
-						if (hasTrustedPeer)
-						{
-							log.info("trusted peer '" + trustedPeerHost + "'" + (connectTrustedPeerOnly ? " only" : ""));
-
-							final InetSocketAddress addr = new InetSocketAddress(trustedPeerHost, Constants.NETWORK_PARAMETERS.getPort());
-							if (addr.getAddress() != null)
-							{
-								peers.add(addr);
-								needsTrimPeersWorkaround = true;
-							}
-						}
-
-						if (!connectTrustedPeerOnly)
-							peers.addAll(Arrays.asList(normalPeerDiscovery.getPeers(timeoutValue, timeoutUnit)));
-
-						// workaround because PeerGroup will shuffle peers
-						if (needsTrimPeersWorkaround)
-							while (peers.size() >= maxConnectedPeers)
-								peers.remove(peers.size() - 1);
-
-						return peers.toArray(new InetSocketAddress[0]);
-					}
-
-					@Override
-					public void shutdown()
-					{
-						normalPeerDiscovery.shutdown();
-					}
-				});
+				peerGroup = BlockchainPeers.create(Constants.NETWORK_PARAMETERS, blockChain, wallet, peerManager, peerAddressStore, syncMetrics,
+						peerDiscovery, targetConnections());
+				peerGroup.setUserAgent(Constants.USER_AGENT, application.packageInfo().versionName);
+				peerGroup.addEventListener(peerConnectivityListener);
 
-                // start peergroup
+				// start peergroup
+				peerGroupStartedAt.set(System.currentTimeMillis());
+				firstPeerConnected.set(false);
+				tipReached.set(false);
 				peerGroup.start();
 				peerGroup.startBlockChainDownload(blockchainDownloadListener);
+
+				drainOutbox();
+
+				handler.postDelayed(peerCheckRunnable, PeerManager.CHECK_INTERVAL_MS);
+			}
+			else if (hasEverything && peerGroup != null)
+			{
+				// network may have changed
+				final int maxConnectedPeers = targetConnections();
+				if (maxConnectedPeers != peerGroup.getMaxConnections())
+				{
+					log.info("adjusting max connections to " + maxConnectedPeers);
+					peerGroup.setMaxConnections(maxConnectedPeers);
+				}
 			}
 			else if (!hasEverything && peerGroup != null)
 			{
 				log.info("stopping peergroup");
+				handler.removeCallbacks(peerCheckRunnable);
+				BlockchainPeers.release(peerGroup, wallet, peerManager, peerAddressStore, syncMetrics);
 				peerGroup.removeEventListener(peerConnectivityListener);
-				peerGroup.removeWallet(wallet);
 				peerGroup.stop();
 				peerGroup = null;
 
+				peerAddressStore.save();
+
 				log.debug("releasing wakelock");
 				wakeLock.release();
 			}
@@ -476,84 +527,60 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		}
 	};
 
-	private final static class ActivityHistoryEntry
+	private final Runnable peerCheckRunnable = new Runnable()
 	{
-		public final int numTransactionsReceived;
-		public final int numBlocksDownloaded;
-
-		public ActivityHistoryEntry(final int numTransactionsReceived, final int numBlocksDownloaded)
-		{
-			this.numTransactionsReceived = numTransactionsReceived;
-			this.numBlocksDownloaded = numBlocksDownloaded;
-		}
-
 		@Override
-		public String toString()
+		public void run()
 		{
-			return numTransactionsReceived + "/" + numBlocksDownloaded;
+			if (peerGroup != null)
+			{
+				peerManager.check(peerGroup);
+				drainOutbox();
+
+				handler.postDelayed(this, PeerManager.CHECK_INTERVAL_MS);
+			}
 		}
+	};
+
+	private void drainOutbox()
+	{
+		final int peerThreshold = Math.max(1, peerGroup.getMaxConnections() / 2);
+		outbox.drain(peerGroup, application.getWallet(), peerThreshold);
+	}
+
+	private int targetConnections()
+	{
+		final boolean connectTrustedPeerOnly = !config.getTrustedPeerHost().isEmpty() && config.getTrustedPeerOnly();
+
+		return PeerManager.targetConnections(application.maxConnectedPeers(), connectTrustedPeerOnly,
+				PeerManager.isLowBandwidth(connectivityManager));
 	}
 
 	private final BroadcastReceiver tickReceiver = new BroadcastReceiver()
 	{
-		private int lastChainHeight = 0;
-		private final List<ActivityHistoryEntry> activityHistory = new LinkedList<ActivityHistoryEntry>();
+		private long numEventsLogged = -1;
 
 		@Override
 		public void onReceive(final Context context, final Intent intent)
 		{
-			final int chainHeight = blockChain.getBestChainHeight();
+			final long now = System.currentTimeMillis();
+			activityTracker.advance(now);
 
-			if (lastChainHeight > 0)
+			// formatting allocates, so only log when there was something new
+			final long numEvents = activityTracker.numEvents();
+			if (numEvents != numEventsLogged)
 			{
-				final int numBlocksDownloaded = chainHeight - lastChainHeight;
-				final int numTransactionsReceived = transactionsReceived.getAndSet(0);
-
-				// push history
-				activityHistory.add(0, new ActivityHistoryEntry(numTransactionsReceived, numBlocksDownloaded));
-
-				// trim
-				while (activityHistory.size() > MAX_HISTORY_SIZE)
-					activityHistory.remove(activityHistory.size() - 1);
-
-				// print
-				final StringBuilder builder = new StringBuilder();
-				for (final ActivityHistoryEntry entry : activityHistory)
-				{
-					if (builder.length() > 0)
-						builder.append(", ");
-					builder.append(entry);
-				}
-				log.info("History of transactions/blocks: " + builder);
-
-				// determine if block and transaction activity is idling
-				boolean isIdle = false;
-				if (activityHistory.size() >= MIN_COLLECT_HISTORY)
-				{
-					isIdle = true;
-					for (int i = 0; i < activityHistory.size(); i++)
-					{
-						final ActivityHistoryEntry entry = activityHistory.get(i);
-						final boolean blocksActive = entry.numBlocksDownloaded > 0 && i <= IDLE_BLOCK_TIMEOUT_MIN;
-						final boolean transactionsActive = entry.numTransactionsReceived > 0 && i <= IDLE_TRANSACTION_TIMEOUT_MIN;
-
-						if (blocksActive || transactionsActive)
-						{
-							isIdle = false;
-							break;
-						}
-					}
-				}
-
-				// if idling, shutdown service
-				if (isIdle)
-				{
-					log.info("idling detected, stopping service");
-					stopSelf();
-				}
+				numEventsLogged = numEvents;
+				log.info("History of transactions/blocks: {}", activityTracker);
+				log.info("Sync stats: {}", getSyncStats());
 			}
 
-			lastChainHeight = chainHeight;
+			// if idling, shutdown service
+			if (activityTracker.isIdle(now, MIN_COLLECT_HISTORY, IDLE_TIMEOUTS_MIN))
+			{
+				log.info("idling detected, stopping service");
+				stopSelf();
+			}
 		}
 	};
 
@@ -592,6 +619,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		super.onCreate();
 
 		nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
 
 		final String lockName = getPackageName() + " blockchain sync";
 
@@ -600,11 +628,45 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
 		application = (WalletApplication) getApplication();
 		config = application.getConfiguration();
+
+		final ListenableFuture<Wallet> walletFuture = application.getWalletFuture();
+		if (walletFuture.isDone())
+		{
+			onWalletLoaded();
+		}
+		else
+		{
+			log.info("waiting for wallet to load");
+
+			walletFuture.addListener(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (!destroyed)
+						onWalletLoaded();
+				}
+			}, application.mainThreadExecutor());
+		}
+	}
+
+	private void onWalletLoaded()
+	{
 		final Wallet wallet = application.getWallet();
+		log.info("wallet available {}ms after service creation", System.currentTimeMillis() - serviceCreatedAt);
 
 		bestChainHeightEver = config.getBestChainHeightEver();
 
+		rescanFromHeight = config.getRescanFromHeight();
+		rescanToHeight = bestChainHeightEver;
+		if (rescanFromHeight >= 0)
+			log.info("rescanning blockchain from height " + rescanFromHeight + " to " + rescanToHeight);
+
+		syncMetrics = new SyncMetrics(wallet, activityTracker);
+		outbox = new TransactionOutbox(getFileStreamPath(Constants.TX_OUTBOX_FILENAME));
+
 		peerConnectivityListener = new PeerConnectivityListener();
+		peerAddressStore = new PeerAddressStore(new File(getDir("blockstore", Context.MODE_PRIVATE), Constants.PEERS_FILENAME));
 
 		sendBroadcastPeerState(0);
 
@@ -615,48 +677,39 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		registerReceiver(connectivityReceiver, intentFilter);
 
 		blockChainFile = new File(getDir("blockstore", Context.MODE_PRIVATE), Constants.BLOCKCHAIN_FILENAME);
-		 boolean blockChainFileExists = blockChainFile.exists();
-/*
-		if (!blockChainFileExists)
-		{
-			log.info("blockchain does not exist, resetting wallet");
+		boolean blockChainFileExists = blockChainFile.exists();
 
-			wallet.clearTransactions(0);
-			wallet.setLastBlockSeenHeight(-1); // magic value
-			wallet.setLastBlockSeenHash(null);
-		}
-*/
-        if (!blockChainFileExists)
-        {
-            try {
+		final int versionCode = application.packageInfo().versionCode;
+		final BlockchainBootstrap bootstrap = new BlockchainBootstrap(getAssets(), Constants.BLOCKCHAIN_FILENAME);
+		boolean bootstrapped = false;
 
-                //final InputStream checkpointsInputStream = getAssets().open(Constants.BLOCKCHAIN_FILENAME);
-
-                    InputStream in = null;
-                    OutputStream out = null;
-
-                    in = getAssets().open(Constants.BLOCKCHAIN_FILENAME);
-                    File outFile = new File(getDir("blockstore", Context.MODE_WORLD_READABLE | Context.MODE_WORLD_WRITEABLE),Constants.BLOCKCHAIN_FILENAME);
-
-                    out = new FileOutputStream(outFile);
-                    copyFile(in, out);
-                    in.close();
-                    in = null;
-                    out.flush();
-                    out.close();
-                    out = null;
-
-                blockChainFileExists=true;
-
-            } catch (Exception e) {}
-
-            // wallet.clearTransactions(0);
-        }
+		if (!blockChainFileExists && config.getBootstrapRejectedVersionCode() != versionCode)
+		{
+			bootstrapped = bootstrap.copyTo(blockChainFile);
+			blockChainFileExists = bootstrapped;
+		}
 
 		try
 		{
-			blockStore = new SPVBlockStore(Constants.NETWORK_PARAMETERS, blockChainFile);
-			blockStore.getChainHead(); // detect corruptions as early as possible
+			try
+			{
+				blockStore = new SPVBlockStore(Constants.NETWORK_PARAMETERS, blockChainFile);
+				blockStore.getChainHead(); // detect corruptions as early as possible
+			}
+			catch (final BlockStoreException x)
+			{
+				if (!bootstrapped)
+					throw x;
+
+				log.warn("bootstrapped blockstore unusable, falling back to checkpoints", x);
+				config.setBootstrapRejectedVersionCode(versionCode);
+				blockChainFile.delete();
+				blockChainFileExists = false;
+				bootstrapped = false;
+
+				blockStore = new SPVBlockStore(Constants.NETWORK_PARAMETERS, blockChainFile);
+				blockStore.getChainHead();
+			}
 
 			final long earliestKeyCreationTime = wallet.getEarliestKeyCreationTime();
 
@@ -682,22 +735,88 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 			throw new Error(msg, x);
 		}
 
+		if (bootstrapped)
+		{
+			bootstrap.verifyInBackground(new BlockchainBootstrap.VerificationListener()
+			{
+				@Override
+				public void onVerified(final boolean valid, final int numHeaders, final long durationMs)
+				{
+					if (valid)
+						return;
+
+					handler.post(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							log.warn("bootstrapped blockchain is corrupt, will fall back to checkpoints on next start");
+
+							config.setBootstrapRejectedVersionCode(versionCode);
+							resetBlockchainOnShutdown = true;
+							stopSelf();
+						}
+					});
+				}
+			});
+		}
+
 		log.info("using " + blockStore.getClass().getName());
 
 		try
 		{
-			blockChain = new BlockChain(Constants.NETWORK_PARAMETERS, wallet, blockStore);
+			blockChain = new BlockChain(Constants.NETWORK_PARAMETERS, wallet, blockStore)
+			{
+				@Override
+				public boolean add(final Block block) throws VerificationException, PrunedException
+				{
+					final long start = System.nanoTime();
+					try
+					{
+						return super.add(block);
+					}
+					finally
+					{
+						syncMetrics.onChainAdd(System.nanoTime() - start);
+					}
+				}
+
+				@Override
+				public boolean add(final FilteredBlock block) throws VerificationException, PrunedException
+				{
+					final long start = System.nanoTime();
+					try
+					{
+						return super.add(block);
+					}
+					finally
+					{
+						syncMetrics.onChainAdd(System.nanoTime() - start);
+					}
+				}
+			};
 		}
 		catch (final BlockStoreException x)
 		{
 			throw new Error("blockchain cannot be created", x);
 		}
 
+		updateBlockHeaderCache(blockChain.getChainHead());
+		sessionStartHeight = blockChain.getBestChainHeight();
+		sessionStartWalletBytes = application.getWalletJournal().getBytesWritten();
+		syncScheduler = new SyncScheduler(getFileStreamPath(Constants.SYNC_HISTORY_FILENAME));
+
 		application.getWallet().addEventListener(walletEventListener, Threading.SAME_THREAD);
 
 		registerReceiver(tickReceiver, new IntentFilter(Intent.ACTION_TIME_TICK));
 
 		maybeRotateKeys();
+
+		initialized = true;
+
+		for (final Intent intent : pendingStartCommands)
+			handleStartCommand(intent);
+		pendingStartCommands.clear();
 	}
 
 	@Override
@@ -706,8 +825,26 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		log.info("service start command: " + intent
 				+ (intent.hasExtra(Intent.EXTRA_ALARM_COUNT) ? " (alarm count: " + intent.getIntExtra(Intent.EXTRA_ALARM_COUNT, 0) + ")" : ""));
 
+		if (initialized)
+			handleStartCommand(intent);
+		else
+			pendingStartCommands.add(intent);
+
+		return START_NOT_STICKY;
+	}
+
+	private void handleStartCommand(@Nonnull final Intent intent)
+	{
 		final String action = intent.getAction();
 
+		if (intent.hasExtra(Intent.EXTRA_ALARM_COUNT))
+		{
+			final long maxSessionMs = syncScheduler.decide(System.currentTimeMillis(), config.getLastUsedAgo()).maxSessionMs;
+			handler.removeCallbacks(sessionLimitRunnable);
+			if (maxSessionMs > 0)
+				handler.postDelayed(sessionLimitRunnable, maxSessionMs);
+		}
+
 		if (BlockchainService.ACTION_CANCEL_COINS_RECEIVED.equals(action))
 		{
 			notificationCount = 0;
@@ -723,23 +860,29 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 			resetBlockchainOnShutdown = true;
 			stopSelf();
 		}
+		else if (BlockchainService.ACTION_RESCAN_BLOCKCHAIN.equals(action))
+		{
+			rescanBlockchainOnShutdownTime = intent.getLongExtra(BlockchainService.ACTION_RESCAN_BLOCKCHAIN_TIME, 0);
+			log.info("will rewind blockchain to " + rescanBlockchainOnShutdownTime + " on service shutdown");
+
+			stopSelf();
+		}
 		else if (BlockchainService.ACTION_BROADCAST_TRANSACTION.equals(action))
 		{
 			final Sha256Hash hash = new Sha256Hash(intent.getByteArrayExtra(BlockchainService.ACTION_BROADCAST_TRANSACTION_HASH));
-			final Transaction tx = application.getWallet().getTransaction(hash);
+
+			outbox.enqueue(hash);
 
 			if (peerGroup != null)
 			{
-				log.info("broadcasting transaction " + tx.getHashAsString());
-				peerGroup.broadcastTransaction(tx);
+				log.info("broadcasting transaction " + hash);
+				drainOutbox();
 			}
 			else
 			{
-				log.info("peergroup not available, not broadcasting transaction " + tx.getHashAsString());
+				log.info("peergroup not available, queued transaction " + hash + " for broadcast");
 			}
 		}
-
-		return START_NOT_STICKY;
 	}
 
 	@Override
@@ -747,19 +890,46 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 	{
 		log.debug(".onDestroy()");
 
+		destroyed = true;
+
+		if (!initialized)
+		{
+			WalletApplication.scheduleStartBlockchainService(this);
+
+			if (!pendingStartCommands.isEmpty())
+				replayOnceWalletLoaded(new ArrayList<Intent>(pendingStartCommands));
+			pendingStartCommands.clear();
+
+			super.onDestroy();
+
+			log.info("service destroyed before wallet was loaded");
+			return;
+		}
+
+		final SyncStats syncStats = getSyncStats();
+		final long numBytes = syncStats.bytesIn >= 0 && syncStats.bytesOut >= 0 ? syncStats.bytesIn + syncStats.bytesOut : -1;
+		final int numBlocks = blockChain.getBestChainHeight() - sessionStartHeight;
+		syncScheduler.recordSession(new SyncScheduler.Session(serviceCreatedAt, System.currentTimeMillis() - serviceCreatedAt, numBlocks, timeToTip
+				.get(), numBytes, relevantTransactionsInSession.get()));
+
 		WalletApplication.scheduleStartBlockchainService(this);
 
 		unregisterReceiver(tickReceiver);
 
 		application.getWallet().removeEventListener(walletEventListener);
 
+		handler.removeCallbacks(peerCheckRunnable);
+		handler.removeCallbacks(sessionLimitRunnable);
+
 		if (peerGroup != null)
 		{
+			BlockchainPeers.release(peerGroup, application.getWallet(), peerManager, peerAddressStore, syncMetrics);
 			peerGroup.removeEventListener(peerConnectivityListener);
-			peerGroup.removeWallet(application.getWallet());
 			peerGroup.stopAndWait();
 
 			log.info("peergroup stopped");
+
+			peerAddressStore.save();
 		}
 
 		peerConnectivityListener.stop();
@@ -773,6 +943,10 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
 		delayHandler.removeCallbacksAndMessages(null);
 
+		final boolean rescan = rescanBlockchainOnShutdownTime >= 0 && !resetBlockchainOnShutdown;
+		if (rescan)
+			rewindBlockchain(rescanBlockchainOnShutdownTime);
+
 		try
 		{
 			blockStore.close();
@@ -784,6 +958,10 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
 		application.saveWallet();
 
+		final long walletBytes = application.getWalletJournal().getBytesWritten() - sessionStartWalletBytes;
+		log.info("wallet persistence wrote {} bytes for {} blocks synced ({} bytes/block)", new Object[] { walletBytes, numBlocks,
+				numBlocks > 0 ? walletBytes / numBlocks : walletBytes });
+
 		if (wakeLock.isHeld())
 		{
 			log.debug("wakelock still held, releasing");
@@ -794,10 +972,14 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		{
 			log.info("removing blockchain");
 			blockChainFile.delete();
+			config.clearRescan();
 		}
 
 		super.onDestroy();
 
+		if (rescan)
+			application.startBlockchainService(false);
+
 		log.info("service was up for " + ((System.currentTimeMillis() - serviceCreatedAt) / 1000 / 60) + " minutes");
 	}
 
@@ -817,9 +999,43 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 			return null;
 	}
 
+	private void replayOnceWalletLoaded(@Nonnull final List<Intent> intents)
+	{
+		final Context context = getApplicationContext();
+
+		// commands would otherwise be lost with this instance, so deliver them to a new one
+		application.getWalletFuture().addListener(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				log.info("replaying {} start commands queued before service was destroyed", intents.size());
+
+				for (final Intent intent : intents)
+					context.startService(intent);
+			}
+		}, application.mainThreadExecutor());
+	}
+
+	@Override
+	public SyncStats getSyncStats()
+	{
+		if (!initialized)
+			return null;
+
+		return syncMetrics.getStats(outbox.size(), outbox.oldestAgeMs());
+	}
+
 	@Override
 	public List<StoredBlock> getRecentBlocks(final int maxBlocks)
 	{
+		if (!initialized)
+			return new ArrayList<StoredBlock>(0);
+
+		final List<StoredBlock> cachedBlocks = blockHeaderCache.getRecentBlocks(maxBlocks);
+		if (cachedBlocks != null)
+			return cachedBlocks;
+
 		final List<StoredBlock> blocks = new ArrayList<StoredBlock>(maxBlocks);
 
 		try
@@ -844,6 +1060,113 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		return blocks;
 	}
 
+	private long walletLastBlockSeenTime(@Nonnull final Wallet wallet)
+	{
+		try
+		{
+			final StoredBlock block = blockStore.get(wallet.getLastBlockSeenHash());
+			if (block != null)
+				return block.getHeader().getTimeSeconds();
+		}
+		catch (final BlockStoreException x)
+		{
+			log.info("problem looking up last block seen by wallet", x);
+		}
+
+		return wallet.getEarliestKeyCreationTime();
+	}
+
+	private void rewindBlockchain(final long timeSecs)
+	{
+		final RewindableWallet wallet = application.getWallet();
+		final long genesisTime = Constants.NETWORK_PARAMETERS.getGenesisBlock().getTimeSeconds();
+		final int chainHeight = blockChain.getBestChainHeight();
+
+		CheckpointManager checkpoints = null;
+		InputStream is = null;
+
+		try
+		{
+			is = getAssets().open(Constants.CHECKPOINTS_FILENAME);
+			checkpoints = new CheckpointManager(Constants.NETWORK_PARAMETERS, is);
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem reading checkpoints, rewinding within block store only", x);
+		}
+		finally
+		{
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+
+		try
+		{
+			final long start = System.currentTimeMillis();
+			final StoredBlock head = BlockchainRewind.rewind(blockStore, checkpoints,
+					Math.max(timeSecs - RESCAN_MARGIN_SECS, genesisTime + 1));
+
+			if (head == null)
+			{
+				log.info("cannot rewind blockchain, removing it instead");
+				resetBlockchainOnShutdown = true;
+				return;
+			}
+
+			wallet.rewind(head);
+			config.setRescan(head.getHeight(), System.currentTimeMillis());
+
+			final String fullReset;
+			if (checkpoints != null)
+				fullReset = Integer.toString(chainHeight - checkpoints.getCheckpointBefore(
+						Math.max(wallet.getEarliestKeyCreationTime() - RESCAN_MARGIN_SECS, genesisTime + 1)).getHeight());
+			else
+				fullReset = "unknown";
+
+			log.info("rewound blockchain to height " + head.getHeight() + " in " + (System.currentTimeMillis() - start) + " ms, "
+					+ (chainHeight - head.getHeight()) + " blocks to replay, full reset would replay " + fullReset);
+		}
+		catch (final BlockStoreException x)
+		{
+			log.warn("problem rewinding blockchain, removing it instead", x);
+			resetBlockchainOnShutdown = true;
+		}
+	}
+
+	private void onRescanFinished(final int height)
+	{
+		final long durationMs = System.currentTimeMillis() - config.getRescanStartedAt();
+		final int numBlocks = height - rescanFromHeight;
+
+		log.info("rescan from height " + rescanFromHeight + " finished: " + numBlocks + " blocks in " + durationMs / 1000 + " s ("
+				+ (durationMs > 0 ? numBlocks * 1000L / durationMs : 0) + " blocks/s)");
+
+		rescanFromHeight = -1;
+		config.clearRescan();
+	}
+
+	private void updateBlockHeaderCache(final StoredBlock chainHead)
+	{
+		try
+		{
+			blockHeaderCache.onChainHead(chainHead, blockStore);
+		}
+		catch (final BlockStoreException x)
+		{
+			log.info("problem updating block header cache, clearing", x);
+			blockHeaderCache.clear();
+		}
+	}
+
 	private void sendBroadcastPeerState(final int numPeers)
 	{
 		final Intent broadcast = new Intent(ACTION_PEER_STATE);
@@ -866,6 +1189,9 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		broadcast.putExtra(ACTION_BLOCKCHAIN_STATE_BEST_CHAIN_DATE, chainHead.getHeader().getTime());
 		broadcast.putExtra(ACTION_BLOCKCHAIN_STATE_BEST_CHAIN_HEIGHT, chainHead.getHeight());
 		broadcast.putExtra(ACTION_BLOCKCHAIN_STATE_REPLAYING, chainHead.getHeight() < bestChainHeightEver);
+		if (rescanFromHeight >= 0 && rescanToHeight > rescanFromHeight)
+			broadcast.putExtra(ACTION_BLOCKCHAIN_STATE_REPLAY_PROGRESS,
+					(int) ((long) (chainHead.getHeight() - rescanFromHeight) * 100 / (rescanToHeight - rescanFromHeight)));
 		broadcast.putExtra(ACTION_BLOCKCHAIN_STATE_DOWNLOAD, download);
 
 		sendStickyBroadcast(broadcast);
@@ -918,13 +1244,4 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 			}
 		}.start();
 	}
-
-    private void copyFile(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[1024];
-        int read;
-        while((read = in.read(buffer)) != -1){
-            out.write(buffer, 0, read);
-        }
-    }
-
 }
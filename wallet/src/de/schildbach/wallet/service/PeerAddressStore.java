@@ -0,0 +1,494 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.fastcoin.core.AbstractPeerEventListener;
+import com.google.fastcoin.core.AddressMessage;
+import com.google.fastcoin.core.Message;
+import com.google.fastcoin.core.Peer;
+import com.google.fastcoin.core.PeerAddress;
+import com.google.fastcoin.net.discovery.PeerDiscovery;
+
+/**
+ * Small on-disk database of peers that were connected to successfully, used as the first source of peers on startup.
+ *
+ * It only answers the first discovery request of a session. Later requests mean its peers were used up, so they are
+ * left to the network based discoveries. Loading and saving happen on the store's own thread. It must be registered
+ * with {@link com.google.fastcoin.utils.Threading#SAME_THREAD} to see addr messages.
+ *
+ * @author Andreas Schildbach
+ */
+public final class PeerAddressStore extends AbstractPeerEventListener implements PeerDiscovery
+{
+	private static final int FILE_VERSION = 1;
+	private static final int MAX_ENTRIES = 256;
+	private static final int MAX_FAILURES = 3;
+	private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(14);
+	private static final int MAX_PEERS_RETURNED = 32;
+
+	public static final class Entry
+	{
+		public final InetSocketAddress address;
+		public long lastSuccess;
+		public long lastSeen;
+		public int latencyMs = -1;
+		public int failures;
+
+		private Entry(@Nonnull final InetSocketAddress address)
+		{
+			this.address = address;
+		}
+
+		private Entry copy()
+		{
+			final Entry copy = new Entry(address);
+			copy.lastSuccess = lastSuccess;
+			copy.lastSeen = lastSeen;
+			copy.latencyMs = latencyMs;
+			copy.failures = failures;
+			return copy;
+		}
+	}
+
+	private static final Comparator<Entry> RANKING = new Comparator<Entry>()
+	{
+		@Override
+		public int compare(final Entry lhs, final Entry rhs)
+		{
+			final boolean lhsGood = lhs.lastSuccess > 0;
+			final boolean rhsGood = rhs.lastSuccess > 0;
+			if (lhsGood != rhsGood)
+				return lhsGood ? -1 : 1;
+			if (lhs.failures != rhs.failures)
+				return lhs.failures < rhs.failures ? -1 : 1;
+
+			final int lhsLatency = lhs.latencyMs >= 0 ? lhs.latencyMs : Integer.MAX_VALUE;
+			final int rhsLatency = rhs.latencyMs >= 0 ? rhs.latencyMs : Integer.MAX_VALUE;
+			if (lhsLatency != rhsLatency)
+				return lhsLatency < rhsLatency ? -1 : 1;
+
+			final long lhsTime = Math.max(lhs.lastSuccess, lhs.lastSeen);
+			final long rhsTime = Math.max(rhs.lastSuccess, rhs.lastSeen);
+			return lhsTime > rhsTime ? -1 : (lhsTime < rhsTime ? 1 : 0);
+		}
+	};
+
+	private final File file;
+	private final Future<?> loading;
+	private final Map<InetSocketAddress, Entry> entries = new HashMap<InetSocketAddress, Entry>();
+	private final Set<InetSocketAddress> tried = new HashSet<InetSocketAddress>();
+	private final Set<InetSocketAddress> connected = new HashSet<InetSocketAddress>();
+	private boolean answered = false;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, "peer address store");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	private static final Logger log = LoggerFactory.getLogger(PeerAddressStore.class);
+
+	/**
+	 * Starts loading the store in the background. Peers recorded meanwhile are merged with the loaded ones.
+	 */
+	public PeerAddressStore(@Nonnull final File file)
+	{
+		this.file = file;
+
+		loading = executor.submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				load();
+			}
+		});
+	}
+
+	@Override
+	public InetSocketAddress[] getPeers(final long timeoutValue, final TimeUnit timeoutUnit)
+	{
+		awaitLoading(timeoutValue, timeoutUnit);
+
+		return offerPeers();
+	}
+
+	private synchronized InetSocketAddress[] offerPeers()
+	{
+		if (answered)
+			return new InetSocketAddress[0];
+		answered = true;
+
+		final long now = System.currentTimeMillis();
+		final List<Entry> candidates = new ArrayList<Entry>(entries.size());
+		for (final Entry entry : entries.values())
+			if (entry.failures < MAX_FAILURES && now - Math.max(entry.lastSuccess, entry.lastSeen) < MAX_AGE_MS)
+				candidates.add(entry);
+		Collections.sort(candidates, RANKING);
+
+		final int numPeers = Math.min(candidates.size(), MAX_PEERS_RETURNED);
+		final InetSocketAddress[] peers = new InetSocketAddress[numPeers];
+		for (int i = 0; i < numPeers; i++)
+			peers[i] = candidates.get(i).address;
+
+		log.info("offering {} of {} stored peers", numPeers, entries.size());
+
+		return peers;
+	}
+
+	@Override
+	public void shutdown()
+	{
+	}
+
+	@Override
+	public void onPeerConnected(final Peer peer, final int peerCount)
+	{
+		recordSuccess(peer.getAddress().toSocketAddress(), System.currentTimeMillis());
+	}
+
+	@Override
+	public void onPeerDisconnected(final Peer peer, final int peerCount)
+	{
+		// also called for connection attempts that failed
+		final InetSocketAddress address = peer.getAddress().toSocketAddress();
+		recordAttempt(address);
+
+		final long pingTime = peer.getPingTime();
+		if (pingTime != Long.MAX_VALUE)
+			recordLatency(address, pingTime);
+	}
+
+	/**
+	 * Records latencies of peers still connected. Call before removing this listener from the peer group, as those peers
+	 * won't report a disconnect.
+	 */
+	public void recordConnectedPeers(@Nonnull final List<Peer> peers)
+	{
+		for (final Peer peer : peers)
+		{
+			final long pingTime = peer.getPingTime();
+			if (pingTime != Long.MAX_VALUE)
+				recordLatency(peer.getAddress().toSocketAddress(), pingTime);
+		}
+	}
+
+	public synchronized void recordSuccess(@Nonnull final InetSocketAddress address, final long time)
+	{
+		final Entry entry = entryFor(address);
+		entry.lastSuccess = time;
+		entry.failures = 0;
+		tried.add(address);
+		connected.add(address);
+	}
+
+	public synchronized void recordAttempt(@Nonnull final InetSocketAddress address)
+	{
+		tried.add(address);
+	}
+
+	public synchronized void recordLatency(@Nonnull final InetSocketAddress address, final long latencyMs)
+	{
+		entryFor(address).latencyMs = (int) Math.min(latencyMs, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public Message onPreMessageReceived(final Peer peer, final Message m)
+	{
+		if (m instanceof AddressMessage)
+		{
+			final long now = System.currentTimeMillis();
+
+			synchronized (this)
+			{
+				for (final PeerAddress peerAddress : ((AddressMessage) m).getAddresses())
+				{
+					final InetSocketAddress address = peerAddress.toSocketAddress();
+					if (entries.containsKey(address) || entries.size() < MAX_ENTRIES * 2)
+						entryFor(address).lastSeen = now;
+				}
+			}
+		}
+
+		return m;
+	}
+
+	/**
+	 * Records peers tried but never connected to as failures and trims the store. It is written to disk in the
+	 * background, after loading has finished.
+	 *
+	 * @return future completing once the store is on disk
+	 */
+	public synchronized Future<?> save()
+	{
+		final Set<InetSocketAddress> failed = new HashSet<InetSocketAddress>(tried);
+		failed.removeAll(connected);
+		tried.clear();
+		connected.clear();
+		answered = false;
+
+		return executor.submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				write(trim(failed));
+			}
+		});
+	}
+
+	private synchronized List<Entry> trim(@Nonnull final Set<InetSocketAddress> failed)
+	{
+		for (final InetSocketAddress address : failed)
+		{
+			final Entry entry = entries.get(address);
+			if (entry != null)
+				entry.failures++;
+		}
+
+		if (entries.size() > MAX_ENTRIES)
+		{
+			final List<Entry> ranked = new ArrayList<Entry>(entries.values());
+			Collections.sort(ranked, RANKING);
+			for (final Entry entry : ranked.subList(MAX_ENTRIES, ranked.size()))
+				entries.remove(entry.address);
+		}
+
+		final List<Entry> snapshot = new ArrayList<Entry>(entries.size());
+		for (final Entry entry : entries.values())
+			snapshot.add(entry.copy());
+		return snapshot;
+	}
+
+	private void write(@Nonnull final List<Entry> snapshot)
+	{
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		DataOutputStream os = null;
+
+		try
+		{
+			os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			os.writeInt(FILE_VERSION);
+			os.writeInt(snapshot.size());
+
+			for (final Entry entry : snapshot)
+			{
+				final byte[] addr = entry.address.getAddress().getAddress();
+				os.writeByte(addr.length);
+				os.write(addr);
+				os.writeShort(entry.address.getPort());
+				os.writeLong(entry.lastSuccess);
+				os.writeLong(entry.lastSeen);
+				os.writeInt(entry.latencyMs);
+				os.writeInt(entry.failures);
+			}
+
+			os.close();
+			os = null;
+
+			if (!tmpFile.renameTo(file))
+				throw new IOException("cannot rename to " + file);
+
+			log.info("saved {} peers to '{}'", snapshot.size(), file);
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem saving peers", x);
+			tmpFile.delete();
+		}
+		finally
+		{
+			if (os != null)
+			{
+				try
+				{
+					os.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+
+	public int size()
+	{
+		awaitLoading(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+		synchronized (this)
+		{
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return copy of the entry for the given address, or null if there is none
+	 */
+	@CheckForNull
+	synchronized Entry getEntry(@Nonnull final InetSocketAddress address)
+	{
+		final Entry entry = entries.get(address);
+		return entry != null ? entry.copy() : null;
+	}
+
+	private void awaitLoading(final long timeoutValue, final TimeUnit timeoutUnit)
+	{
+		try
+		{
+			loading.get(timeoutValue, timeoutUnit);
+		}
+		catch (final InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (final ExecutionException x)
+		{
+			log.warn("problem loading peers", x);
+		}
+		catch (final TimeoutException x)
+		{
+			log.info("peers not loaded in time");
+		}
+	}
+
+	private void load()
+	{
+		if (!file.exists())
+			return;
+
+		final Map<InetSocketAddress, Entry> loaded = new HashMap<InetSocketAddress, Entry>();
+		DataInputStream is = null;
+
+		try
+		{
+			is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (is.readInt() != FILE_VERSION)
+				throw new IOException("unknown version");
+
+			final int numEntries = is.readInt();
+			for (int i = 0; i < numEntries; i++)
+			{
+				final byte[] addr = new byte[is.readUnsignedByte()];
+				is.readFully(addr);
+				final int port = is.readUnsignedShort();
+
+				final Entry entry = new Entry(new InetSocketAddress(InetAddress.getByAddress(addr), port));
+				entry.lastSuccess = is.readLong();
+				entry.lastSeen = is.readLong();
+				entry.latencyMs = is.readInt();
+				entry.failures = is.readInt();
+				loaded.put(entry.address, entry);
+			}
+
+			merge(loaded);
+
+			log.info("loaded {} peers from '{}'", loaded.size(), file);
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem loading peers, starting empty", x);
+		}
+		finally
+		{
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+
+	private synchronized void merge(@Nonnull final Map<InetSocketAddress, Entry> loaded)
+	{
+		for (final Entry entry : loaded.values())
+		{
+			final Entry recorded = entries.get(entry.address);
+			if (recorded == null)
+			{
+				entries.put(entry.address, entry);
+			}
+			else
+			{
+				// recorded while loading, so it is the more recent
+				recorded.lastSeen = Math.max(recorded.lastSeen, entry.lastSeen);
+				if (recorded.lastSuccess == 0)
+				{
+					recorded.lastSuccess = entry.lastSuccess;
+					recorded.failures = entry.failures;
+				}
+				if (recorded.latencyMs < 0)
+					recorded.latencyMs = entry.latencyMs;
+			}
+		}
+	}
+
+	private Entry entryFor(@Nonnull final InetSocketAddress address)
+	{
+		Entry entry = entries.get(address);
+		if (entry == null)
+		{
+			entry = new Entry(address);
+			entries.put(address, entry);
+		}
+		return entry;
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+import android.text.format.DateUtils;
+
+import com.google.fastcoin.core.AbstractPeerEventListener;
+import com.google.fastcoin.core.Block;
+import com.google.fastcoin.core.Peer;
+import com.google.fastcoin.core.PeerGroup;
+
+/**
+ * Keeps per-peer statistics and uses them to size the peer group, pick the download peer and drop slow or stalled peers.
+ *
+ * Statistics are keyed by peer address, so they survive reconnects within a service lifetime. Only the most recently
+ * seen peers are remembered.
+ *
+ * @author Andreas Schildbach
+ */
+public final class PeerManager extends AbstractPeerEventListener
+{
+	public static final long CHECK_INTERVAL_MS = 10 * DateUtils.SECOND_IN_MILLIS;
+	private static final long STALL_TIMEOUT_MS = 30 * DateUtils.SECOND_IN_MILLIS;
+	private static final long EVICT_MIN_PING_MS = 2 * DateUtils.SECOND_IN_MILLIS;
+	private static final int EVICT_PING_FACTOR = 4;
+	private static final long UNKNOWN_PING_MS = 5 * DateUtils.SECOND_IN_MILLIS;
+	private static final int MAX_STATS = 64;
+
+	public static final class PeerStats
+	{
+		public final InetSocketAddress address;
+		public long connectedAt;
+		public long handshakeRttMs = -1;
+		public long pingRttMs = -1;
+		public int blocksDelivered;
+		public long lastBlockAt;
+		public int stalls;
+
+		private PeerStats(@Nonnull final InetSocketAddress address)
+		{
+			this.address = address;
+		}
+
+		private PeerStats copy()
+		{
+			final PeerStats copy = new PeerStats(address);
+			copy.connectedAt = connectedAt;
+			copy.handshakeRttMs = handshakeRttMs;
+			copy.pingRttMs = pingRttMs;
+			copy.blocksDelivered = blocksDelivered;
+			copy.lastBlockAt = lastBlockAt;
+			copy.stalls = stalls;
+			return copy;
+		}
+
+		public double blocksPerSecond(final long now)
+		{
+			final long connectedMs = now - connectedAt;
+			return connectedMs > 0 ? blocksDelivered * 1000.0 / connectedMs : 0;
+		}
+
+		private long cost(final long now)
+		{
+			final long ping = pingRttMs >= 0 ? pingRttMs : UNKNOWN_PING_MS;
+			// proven throughput makes up for latency
+			return (long) (ping * (1 + stalls) / (1 + blocksPerSecond(now)));
+		}
+
+		@Override
+		public String toString()
+		{
+			return address + " [handshake " + handshakeRttMs + "ms, ping " + pingRttMs + "ms, " + blocksDelivered + " blocks, " + stalls
+					+ " stalls]";
+		}
+	}
+
+	// least recently used first, so statistics of peers not seen for a while are dropped
+	private final Map<InetSocketAddress, PeerStats> stats = new LinkedHashMap<InetSocketAddress, PeerStats>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<InetSocketAddress, PeerStats> eldest)
+		{
+			return size() > MAX_STATS;
+		}
+	};
+	private volatile int blocksLeft = 0;
+
+	private static final Logger log = LoggerFactory.getLogger(PeerManager.class);
+
+	/**
+	 * @return number of connections to maintain, given the memory based limit and the current network
+	 */
+	public static int targetConnections(final int maxConnectedPeers, final boolean trustedPeerOnly, final boolean lowBandwidth)
+	{
+		if (trustedPeerOnly)
+			return 1;
+		else if (lowBandwidth)
+			return Math.max(2, maxConnectedPeers / 2);
+		else
+			return maxConnectedPeers;
+	}
+
+	public static boolean isLowBandwidth(@Nonnull final ConnectivityManager connectivityManager)
+	{
+		final NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+		if (info == null || info.getType() == ConnectivityManager.TYPE_WIFI || info.getType() == ConnectivityManager.TYPE_ETHERNET)
+			return false;
+		if (info.isRoaming())
+			return true;
+
+		switch (info.getSubtype())
+		{
+			case TelephonyManager.NETWORK_TYPE_GPRS:
+			case TelephonyManager.NETWORK_TYPE_EDGE:
+			case TelephonyManager.NETWORK_TYPE_CDMA:
+			case TelephonyManager.NETWORK_TYPE_1xRTT:
+			case TelephonyManager.NETWORK_TYPE_IDEN:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	@Override
+	public void onPeerConnected(final Peer peer, final int peerCount)
+	{
+		synchronized (stats)
+		{
+			final PeerStats peerStats = statsFor(peer);
+			peerStats.connectedAt = System.currentTimeMillis();
+			peerStats.handshakeRttMs = -1;
+			peerStats.pingRttMs = -1;
+			peerStats.blocksDelivered = 0;
+			peerStats.lastBlockAt = peerStats.connectedAt;
+		}
+	}
+
+	@Override
+	public void onBlocksDownloaded(final Peer peer, final Block block, final int blocksLeft)
+	{
+		this.blocksLeft = blocksLeft;
+
+		synchronized (stats)
+		{
+			final PeerStats peerStats = statsFor(peer);
+			peerStats.blocksDelivered++;
+			peerStats.lastBlockAt = System.currentTimeMillis();
+		}
+	}
+
+	@Override
+	public void onChainDownloadStarted(final Peer peer, final int blocksLeft)
+	{
+		this.blocksLeft = blocksLeft;
+
+		synchronized (stats)
+		{
+			statsFor(peer).lastBlockAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Picks the cheapest peer among those that are at the best known height.
+	 */
+	@CheckForNull
+	public Peer selectDownloadPeer(@Nonnull final List<Peer> peers)
+	{
+		long bestHeight = -1;
+		for (final Peer peer : peers)
+			bestHeight = Math.max(bestHeight, peer.getBestHeight());
+
+		final long now = System.currentTimeMillis();
+		Peer selected = null;
+		long selectedCost = Long.MAX_VALUE;
+
+		synchronized (stats)
+		{
+			for (final Peer peer : peers)
+			{
+				if (peer.getBestHeight() < bestHeight)
+					continue;
+
+				final long cost = statsFor(peer).cost(now);
+				if (cost < selectedCost)
+				{
+					selected = peer;
+					selectedCost = cost;
+				}
+			}
+		}
+
+		if (selected != null)
+			log.info("selected download peer {}", statsFor(selected));
+
+		return selected;
+	}
+
+	/**
+	 * Refreshes ping statistics, moves the chain download away from a stalled download peer and evicts the slowest peer if
+	 * the group is full. Meant to be called every {@link #CHECK_INTERVAL_MS}.
+	 */
+	public void check(@Nonnull final PeerGroup peerGroup)
+	{
+		final long now = System.currentTimeMillis();
+		final List<Peer> peers = peerGroup.getConnectedPeers();
+		final Peer downloadPeer = peerGroup.getDownloadPeer();
+
+		Peer stalledPeer = null;
+		Peer slowestPeer = null;
+		final long[] pings = new long[peers.size()];
+		int numPings = 0;
+
+		synchronized (stats)
+		{
+			long slowestPing = -1;
+
+			for (final Peer peer : peers)
+			{
+				final PeerStats peerStats = statsFor(peer);
+
+				final long lastPing = peer.getLastPingTime();
+				if (lastPing != Long.MAX_VALUE)
+				{
+					if (peerStats.handshakeRttMs < 0)
+						peerStats.handshakeRttMs = lastPing;
+					peerStats.pingRttMs = peer.getPingTime();
+					pings[numPings++] = peerStats.pingRttMs;
+
+					if (peer != downloadPeer && peerStats.pingRttMs > slowestPing)
+					{
+						slowestPeer = peer;
+						slowestPing = peerStats.pingRttMs;
+					}
+				}
+
+				if (peer == downloadPeer && blocksLeft > 0 && now - peerStats.lastBlockAt > STALL_TIMEOUT_MS)
+				{
+					peerStats.stalls++;
+					stalledPeer = peer;
+				}
+			}
+
+			if (slowestPeer != null && numPings > 1)
+			{
+				Arrays.sort(pings, 0, numPings);
+				final long medianPing = pings[numPings / 2];
+
+				if (slowestPing < EVICT_MIN_PING_MS || slowestPing < medianPing * EVICT_PING_FACTOR)
+					slowestPeer = null;
+			}
+			else
+			{
+				slowestPeer = null;
+			}
+		}
+
+		if (stalledPeer != null && peers.size() > 1)
+		{
+			log.info("download peer stalled, disconnecting: {}", statsFor(stalledPeer));
+			stalledPeer.close(); // peergroup will select a new download peer
+		}
+		else if (slowestPeer != null && peers.size() >= peerGroup.getMaxConnections())
+		{
+			log.info("evicting slow peer: {}", statsFor(slowestPeer));
+			slowestPeer.close();
+		}
+	}
+
+	/**
+	 * @return copies of the statistics of all peers seen, not updated later on
+	 */
+	public List<PeerStats> getStats()
+	{
+		synchronized (stats)
+		{
+			final List<PeerStats> copy = new ArrayList<PeerStats>(stats.size());
+			for (final PeerStats peerStats : stats.values())
+				copy.add(peerStats.copy());
+			return copy;
+		}
+	}
+
+	@Nonnull
+	private PeerStats statsFor(@Nonnull final Peer peer)
+	{
+		synchronized (stats)
+		{
+			final InetSocketAddress address = peer.getAddress().toSocketAddress();
+			PeerStats peerStats = stats.get(address);
+			if (peerStats == null)
+			{
+				peerStats = new PeerStats(address);
+				stats.put(address, peerStats);
+			}
+			return peerStats;
+		}
+	}
+}
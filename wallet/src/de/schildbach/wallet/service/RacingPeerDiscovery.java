@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.fastcoin.net.discovery.PeerDiscovery;
+import com.google.fastcoin.net.discovery.PeerDiscoveryException;
+
+/**
+ * Queries all peer discoveries in parallel and returns as soon as enough distinct addresses arrived or the deadline
+ * passed. A trusted peer, if configured, is always waited for and always comes first.
+ *
+ * @author Andreas Schildbach
+ */
+public final class RacingPeerDiscovery implements PeerDiscovery
+{
+	private final List<String> names = new ArrayList<String>();
+	private final List<PeerDiscovery> sources = new ArrayList<PeerDiscovery>();
+	@CheckForNull
+	private final String trustedPeerHost;
+	private final int port;
+	private final boolean trustedPeerOnly;
+	private final int maxConnectedPeers;
+	private final int enoughPeers;
+	private final ExecutorService executor;
+
+	private static final String TRUSTED = "trusted";
+
+	private static final Logger log = LoggerFactory.getLogger(RacingPeerDiscovery.class);
+
+	public RacingPeerDiscovery(@CheckForNull final String trustedPeerHost, final int port, final boolean trustedPeerOnly,
+			final int maxConnectedPeers)
+	{
+		this.trustedPeerHost = trustedPeerHost != null && !trustedPeerHost.isEmpty() ? trustedPeerHost : null;
+		this.port = port;
+		this.trustedPeerOnly = this.trustedPeerHost != null && trustedPeerOnly;
+		this.maxConnectedPeers = maxConnectedPeers;
+		this.enoughPeers = maxConnectedPeers * 2;
+
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable r)
+			{
+				final Thread thread = new Thread(r, "peer discovery");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public RacingPeerDiscovery addSource(@Nonnull final String name, @Nonnull final PeerDiscovery source)
+	{
+		names.add(name);
+		sources.add(source);
+		return this;
+	}
+
+	@Override
+	public InetSocketAddress[] getPeers(final long timeoutValue, final TimeUnit timeoutUnit) throws PeerDiscoveryException
+	{
+		final long start = System.currentTimeMillis();
+		final long deadline = start + timeoutUnit.toMillis(timeoutValue);
+
+		final CompletionService<Result> completionService = new ExecutorCompletionService<Result>(executor);
+		final List<Future<Result>> futures = new LinkedList<Future<Result>>();
+
+		if (trustedPeerHost != null)
+		{
+			log.info("trusted peer '" + trustedPeerHost + "'" + (trustedPeerOnly ? " only" : ""));
+			futures.add(completionService.submit(new Query(TRUSTED, start, new Callable<InetSocketAddress[]>()
+			{
+				@Override
+				public InetSocketAddress[] call()
+				{
+					final InetSocketAddress addr = new InetSocketAddress(trustedPeerHost, port);
+					return addr.getAddress() != null ? new InetSocketAddress[] { addr } : new InetSocketAddress[0];
+				}
+			})));
+		}
+
+		if (!trustedPeerOnly)
+		{
+			for (int i = 0; i < sources.size(); i++)
+			{
+				final PeerDiscovery source = sources.get(i);
+				futures.add(completionService.submit(new Query(names.get(i), start, new Callable<InetSocketAddress[]>()
+				{
+					@Override
+					public InetSocketAddress[] call() throws PeerDiscoveryException
+					{
+						return source.getPeers(timeoutValue, timeoutUnit);
+					}
+				})));
+			}
+		}
+
+		final List<InetSocketAddress> trusted = new LinkedList<InetSocketAddress>();
+		final Set<InetSocketAddress> others = new LinkedHashSet<InetSocketAddress>();
+		final StringBuilder report = new StringBuilder();
+		boolean trustedPending = trustedPeerHost != null;
+		int pending = futures.size();
+
+		try
+		{
+			while (pending > 0)
+			{
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+
+				final Future<Result> future = completionService.poll(remaining, TimeUnit.MILLISECONDS);
+				if (future == null)
+					break; // deadline
+
+				pending--;
+
+				final Result result = getQuietly(future);
+				if (result == null)
+					continue;
+
+				if (report.length() > 0)
+					report.append(", ");
+				report.append(result.name).append(' ').append(result.latencyMs).append("ms/").append(result.peers.length);
+
+				if (TRUSTED.equals(result.name))
+				{
+					trusted.addAll(Arrays.asList(result.peers));
+					trustedPending = false;
+				}
+				else
+				{
+					others.addAll(Arrays.asList(result.peers));
+				}
+
+				if (!trustedPending && trusted.size() + others.size() >= enoughPeers)
+					break;
+			}
+		}
+		catch (final InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			for (final Future<Result> future : futures)
+				future.cancel(true);
+		}
+
+		final List<InetSocketAddress> peers = new LinkedList<InetSocketAddress>(trusted);
+		others.removeAll(trusted);
+		peers.addAll(others);
+
+		// workaround because PeerGroup will shuffle peers
+		if (!trusted.isEmpty() && !trustedPeerOnly)
+			while (peers.size() >= maxConnectedPeers)
+				peers.remove(peers.size() - 1);
+
+		log.info("discovered {} peers in {}ms ({}{})", new Object[] { peers.size(), System.currentTimeMillis() - start, report,
+				pending > 0 ? ", " + pending + " abandoned" : "" });
+
+		return peers.toArray(new InetSocketAddress[0]);
+	}
+
+	@Override
+	public void shutdown()
+	{
+		executor.shutdownNow();
+
+		for (final PeerDiscovery source : sources)
+			source.shutdown();
+	}
+
+	@CheckForNull
+	private static Result getQuietly(@Nonnull final Future<Result> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (final InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (final ExecutionException x)
+		{
+			throw new RuntimeException(x.getCause()); // queries catch their own exceptions
+		}
+	}
+
+	private static final class Result
+	{
+		public final String name;
+		public final InetSocketAddress[] peers;
+		public final long latencyMs;
+
+		public Result(@Nonnull final String name, @Nonnull final InetSocketAddress[] peers, final long latencyMs)
+		{
+			this.name = name;
+			this.peers = peers;
+			this.latencyMs = latencyMs;
+		}
+	}
+
+	private static final class Query implements Callable<Result>
+	{
+		private final String name;
+		private final long start;
+		private final Callable<InetSocketAddress[]> query;
+
+		public Query(@Nonnull final String name, final long start, @Nonnull final Callable<InetSocketAddress[]> query)
+		{
+			this.name = name;
+			this.start = start;
+			this.query = query;
+		}
+
+		@Override
+		public Result call()
+		{
+			InetSocketAddress[] peers;
+
+			try
+			{
+				peers = query.call();
+			}
+			catch (final Exception x)
+			{
+				log.info("peer discovery '" + name + "' failed: " + x);
+				peers = null;
+			}
+
+			return new Result(name, peers != null ? peers : new InetSocketAddress[0], System.currentTimeMillis() - start);
+		}
+	}
+}
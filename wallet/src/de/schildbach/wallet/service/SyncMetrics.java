@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import android.net.TrafficStats;
+import android.text.format.DateUtils;
+
+import com.google.fastcoin.core.AbstractPeerEventListener;
+import com.google.fastcoin.core.Block;
+import com.google.fastcoin.core.FilteredBlock;
+import com.google.fastcoin.core.HeadersMessage;
+import com.google.fastcoin.core.Message;
+import com.google.fastcoin.core.Peer;
+import com.google.fastcoin.core.Sha256Hash;
+import com.google.fastcoin.core.VerificationException;
+import com.google.fastcoin.core.Wallet;
+
+/**
+ * Collects sync throughput numbers from peer events and chain adds, and hands out {@link SyncStats} snapshots. Must be
+ * registered with {@link com.google.fastcoin.utils.Threading#SAME_THREAD}, otherwise the library doesn't pass it the
+ * received messages.
+ *
+ * @author Andreas Schildbach
+ */
+public final class SyncMetrics extends AbstractPeerEventListener
+{
+	/** channels of the activity tracker passed in */
+	public static final int ACTIVITY_TRANSACTIONS = 0;
+	public static final int ACTIVITY_BLOCKS = 1;
+
+	private static final int WINDOW_SECONDS = 60;
+	private static final int RATE_BLOCKS = 0;
+	private static final int RATE_HEADERS = 1;
+	private static final int MESSAGE_HEADER_SIZE = 24;
+	private static final int MAX_PENDING_MATCHES = 1000;
+
+	/**
+	 * Network byte counters of the process, -1 if unsupported.
+	 */
+	interface Traffic
+	{
+		long rxBytes();
+
+		long txBytes();
+	}
+
+	private static final class UidTraffic implements Traffic
+	{
+		private final int uid = android.os.Process.myUid();
+
+		@Override
+		public long rxBytes()
+		{
+			final long bytes = TrafficStats.getUidRxBytes(uid);
+			return bytes != TrafficStats.UNSUPPORTED ? bytes : -1;
+		}
+
+		@Override
+		public long txBytes()
+		{
+			final long bytes = TrafficStats.getUidTxBytes(uid);
+			return bytes != TrafficStats.UNSUPPORTED ? bytes : -1;
+		}
+	}
+
+	private final Wallet wallet;
+	private final ActivityTracker activity;
+	private final Traffic traffic;
+
+	private final ActivityTracker rates = new ActivityTracker(2, WINDOW_SECONDS, DateUtils.SECOND_IN_MILLIS, 0.1);
+	private volatile int blocksLeft = 0;
+
+	private final Map<InetSocketAddress, Long> bytesInPerPeer = new HashMap<InetSocketAddress, Long>();
+	private final long bytesInBase;
+	private final long bytesOutBase;
+
+	private int filteredBlocks;
+	private int matchedTransactions;
+	private int relevantTransactions;
+	private final Set<Sha256Hash> pendingMatches = new LinkedHashSet<Sha256Hash>();
+
+	private int chainAdds;
+	private long chainAddTotalNanos;
+	private long chainAddMaxNanos;
+
+	/**
+	 * @param activity
+	 *            tracker with {@link #ACTIVITY_TRANSACTIONS} and {@link #ACTIVITY_BLOCKS} channels, shared with the idle
+	 *            detection
+	 */
+	public SyncMetrics(@Nonnull final Wallet wallet, @Nonnull final ActivityTracker activity)
+	{
+		this(wallet, activity, new UidTraffic());
+	}
+
+	SyncMetrics(@Nonnull final Wallet wallet, @Nonnull final ActivityTracker activity, @Nonnull final Traffic traffic)
+	{
+		this.wallet = wallet;
+		this.activity = activity;
+		this.traffic = traffic;
+		this.bytesInBase = traffic.rxBytes();
+		this.bytesOutBase = traffic.txBytes();
+	}
+
+	@Override
+	public Message onPreMessageReceived(final Peer peer, final Message m)
+	{
+		final long now = System.currentTimeMillis();
+		final InetSocketAddress address = peer.getAddress().toSocketAddress();
+
+		synchronized (this)
+		{
+			final Long bytes = bytesInPerPeer.get(address);
+			bytesInPerPeer.put(address, (bytes != null ? bytes : 0) + MESSAGE_HEADER_SIZE + m.getMessageSize());
+		}
+
+		if (m instanceof HeadersMessage)
+			rates.add(now, RATE_HEADERS, ((HeadersMessage) m).getBlockHeaders().size());
+
+		if (m instanceof FilteredBlock)
+			onFilteredBlock((FilteredBlock) m);
+
+		return m;
+	}
+
+	@Override
+	public void onBlocksDownloaded(final Peer peer, final Block block, final int blocksLeft)
+	{
+		this.blocksLeft = blocksLeft;
+
+		final long now = System.currentTimeMillis();
+		rates.add(now, RATE_BLOCKS, 1);
+		activity.add(now, ACTIVITY_BLOCKS, 1);
+	}
+
+	@Override
+	public void onChainDownloadStarted(final Peer peer, final int blocksLeft)
+	{
+		this.blocksLeft = blocksLeft;
+	}
+
+	private void onFilteredBlock(@Nonnull final FilteredBlock filteredBlock)
+	{
+		try
+		{
+			int matched = 0;
+			int relevant = 0;
+
+			for (final Sha256Hash hash : filteredBlock.getTransactionHashes())
+			{
+				matched++;
+
+				if (wallet.getTransaction(hash) != null)
+					relevant++;
+				else
+					synchronized (this)
+					{
+						if (pendingMatches.size() < MAX_PENDING_MATCHES)
+							pendingMatches.add(hash);
+					}
+			}
+
+			synchronized (this)
+			{
+				filteredBlocks++;
+				matchedTransactions += matched;
+				relevantTransactions += relevant;
+			}
+		}
+		catch (final VerificationException x)
+		{
+			// peer will be dealt with by the chain, not our business
+		}
+	}
+
+	/**
+	 * To be called when a transaction turned out to be relevant to the wallet.
+	 */
+	public void onRelevantTransaction(@Nonnull final Sha256Hash hash)
+	{
+		activity.add(System.currentTimeMillis(), ACTIVITY_TRANSACTIONS, 1);
+
+		synchronized (this)
+		{
+			if (pendingMatches.remove(hash))
+				relevantTransactions++;
+		}
+	}
+
+	/**
+	 * To be called after each chain add. The wallet lock is held for most of it.
+	 */
+	public synchronized void onChainAdd(final long durationNanos)
+	{
+		chainAdds++;
+		chainAddTotalNanos += durationNanos;
+		chainAddMaxNanos = Math.max(chainAddMaxNanos, durationNanos);
+	}
+
+	public synchronized SyncStats getStats(final int outboxDepth, final long outboxOldestAgeMs)
+	{
+		final long now = System.currentTimeMillis();
+
+		final double blocksPerSecond = (double) rates.sum(now, RATE_BLOCKS, WINDOW_SECONDS) / WINDOW_SECONDS;
+		final double headersPerSecond = (double) rates.sum(now, RATE_HEADERS, WINDOW_SECONDS) / WINDOW_SECONDS;
+		final double blocksPerMinuteEwma = activity.ewma(now, ACTIVITY_BLOCKS);
+		final double transactionsPerMinuteEwma = activity.ewma(now, ACTIVITY_TRANSACTIONS);
+		final int blocksLeft = this.blocksLeft;
+		final long etaSeconds = blocksLeft == 0 ? 0 : (blocksPerSecond > 0 ? (long) (blocksLeft / blocksPerSecond) : -1);
+
+		final long rx = traffic.rxBytes();
+		final long tx = traffic.txBytes();
+		final long bytesIn = rx >= 0 && bytesInBase >= 0 ? rx - bytesInBase : -1;
+		final long bytesOut = tx >= 0 && bytesOutBase >= 0 ? tx - bytesOutBase : -1;
+
+		return new SyncStats(blocksPerSecond, headersPerSecond, blocksLeft, etaSeconds, Collections.unmodifiableMap(new HashMap<InetSocketAddress, Long>(
+				bytesInPerPeer)), bytesIn, bytesOut, filteredBlocks, matchedTransactions, Math.max(0, matchedTransactions - relevantTransactions),
+				chainAdds, chainAdds > 0 ? chainAddTotalNanos / 1e6 / chainAdds : 0, chainAddMaxNanos / 1e6, outboxDepth, outboxOldestAgeMs,
+				blocksPerMinuteEwma, transactionsPerMinuteEwma);
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.text.format.DateUtils;
+import de.schildbach.wallet.Constants;
+
+/**
+ * Learns from past sync sessions when to wake up next and how long to stay up. The wake interval trades the radio time
+ * spent per wake against the expected delay in noticing a relevant transaction, bounded by how recently the app was
+ * used.
+ *
+ * @author Andreas Schildbach
+ */
+public final class SyncScheduler
+{
+	private static final int FILE_VERSION = 1;
+	private static final int MAX_SESSIONS = 32;
+	private static final int MIN_SESSIONS = 3;
+
+	private static final long MIN_INTERVAL_MS = 15 * DateUtils.MINUTE_IN_MILLIS;
+	private static final long MIN_SESSION_MS = 3 * DateUtils.MINUTE_IN_MILLIS;
+	private static final long MAX_SESSION_MS = 30 * DateUtils.MINUTE_IN_MILLIS;
+
+	/** radio milliseconds we are willing to spend to notice a relevant transaction one millisecond earlier */
+	private static final double LATENCY_COST = 0.005;
+
+	public static final class Session
+	{
+		public final long startedAt;
+		public final long durationMs;
+		public final int numBlocks;
+		public final long timeToTipMs;
+		public final long numBytes;
+		public final int numRelevantTransactions;
+
+		/**
+		 * @param timeToTipMs
+		 *            -1 if the tip was never reached
+		 * @param numBytes
+		 *            -1 if unknown
+		 */
+		public Session(final long startedAt, final long durationMs, final int numBlocks, final long timeToTipMs, final long numBytes,
+				final int numRelevantTransactions)
+		{
+			this.startedAt = startedAt;
+			this.durationMs = durationMs;
+			this.numBlocks = numBlocks;
+			this.timeToTipMs = timeToTipMs;
+			this.numBytes = numBytes;
+			this.numRelevantTransactions = numRelevantTransactions;
+		}
+
+		public long radioMs()
+		{
+			return timeToTipMs >= 0 ? timeToTipMs : durationMs;
+		}
+	}
+
+	public static final class Decision
+	{
+		public final long wakeIntervalMs;
+		public final long maxSessionMs;
+
+		public Decision(final long wakeIntervalMs, final long maxSessionMs)
+		{
+			this.wakeIntervalMs = wakeIntervalMs;
+			this.maxSessionMs = maxSessionMs;
+		}
+	}
+
+	private final File file;
+	private final LinkedList<Session> sessions = new LinkedList<Session>();
+
+	private static final Logger log = LoggerFactory.getLogger(SyncScheduler.class);
+
+	public SyncScheduler(@Nonnull final File file)
+	{
+		this.file = file;
+
+		load();
+	}
+
+	public synchronized void recordSession(@Nonnull final Session session)
+	{
+		sessions.add(session);
+		while (sessions.size() > MAX_SESSIONS)
+			sessions.removeFirst();
+
+		save();
+	}
+
+	/**
+	 * @param lastUsedAgo
+	 *            milliseconds since the user last opened the app, bounds the wake interval
+	 */
+	public synchronized Decision decide(final long now, final long lastUsedAgo)
+	{
+		final long maxIntervalMs;
+		if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_JUST_MS)
+			maxIntervalMs = DateUtils.HOUR_IN_MILLIS;
+		else if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_RECENTLY_MS)
+			maxIntervalMs = DateUtils.DAY_IN_MILLIS / 2;
+		else
+			maxIntervalMs = DateUtils.DAY_IN_MILLIS;
+
+		final long spanMs = sessions.isEmpty() ? 0 : now - sessions.getFirst().startedAt;
+
+		if (sessions.size() < MIN_SESSIONS || spanMs < MIN_INTERVAL_MS)
+		{
+			final long intervalMs = lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_JUST_MS ? MIN_INTERVAL_MS : maxIntervalMs;
+			log.info("sync scheduler: {} sessions of history, waking in {} minutes, no session limit", sessions.size(), intervalMs
+					/ DateUtils.MINUTE_IN_MILLIS);
+			return new Decision(intervalMs, 0);
+		}
+
+		long totalRadioMs = 0;
+		long totalBytes = 0;
+		int totalBlocks = 0;
+		int relevantSessions = 0;
+		long totalTimeToTipMs = 0;
+		int tipSessions = 0;
+
+		for (final Session session : sessions)
+		{
+			totalRadioMs += session.radioMs();
+			if (session.numBytes > 0)
+				totalBytes += session.numBytes;
+			totalBlocks += session.numBlocks;
+			if (session.numRelevantTransactions > 0)
+				relevantSessions++;
+			if (session.timeToTipMs >= 0)
+			{
+				totalTimeToTipMs += session.timeToTipMs;
+				tipSessions++;
+			}
+		}
+
+		// cost per unit time: radioPerWake / T + LATENCY_COST * relevantRate * T / 2, minimal at T = sqrt(2 * radioPerWake / (LATENCY_COST * relevantRate))
+		final double radioPerWakeMs = (double) totalRadioMs / sessions.size();
+		final double relevantRate = (double) relevantSessions / spanMs;
+		final long optimalIntervalMs = relevantRate > 0 ? (long) Math.sqrt(2 * radioPerWakeMs / (LATENCY_COST * relevantRate)) : Long.MAX_VALUE;
+		final long intervalMs = Math.max(MIN_INTERVAL_MS, Math.min(optimalIntervalMs, maxIntervalMs));
+
+		final long avgTimeToTipMs = tipSessions > 0 ? totalTimeToTipMs / tipSessions : MAX_SESSION_MS;
+		final long maxSessionMs = Math.max(MIN_SESSION_MS, Math.min(3 * avgTimeToTipMs, MAX_SESSION_MS));
+
+		log.info(String.format(Locale.US, "sync scheduler: %d sessions over %d h, %.1f s radio/wake, %.1f relevant/day, "
+				+ "%.0f ms radio/block, %d bytes/block -> waking in %d minutes, session limit %d minutes", sessions.size(), spanMs
+				/ DateUtils.HOUR_IN_MILLIS, radioPerWakeMs / 1000, relevantRate * DateUtils.DAY_IN_MILLIS,
+				totalBlocks > 0 ? (double) totalRadioMs / totalBlocks : 0.0, totalBlocks > 0 ? totalBytes / totalBlocks : 0, intervalMs
+						/ DateUtils.MINUTE_IN_MILLIS, maxSessionMs / DateUtils.MINUTE_IN_MILLIS));
+
+		return new Decision(intervalMs, maxSessionMs);
+	}
+
+	public synchronized List<Session> getSessions()
+	{
+		return new LinkedList<Session>(sessions);
+	}
+
+	private void save()
+	{
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		DataOutputStream os = null;
+
+		try
+		{
+			os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			os.writeInt(FILE_VERSION);
+			os.writeInt(sessions.size());
+
+			for (final Session session : sessions)
+			{
+				os.writeLong(session.startedAt);
+				os.writeLong(session.durationMs);
+				os.writeInt(session.numBlocks);
+				os.writeLong(session.timeToTipMs);
+				os.writeLong(session.numBytes);
+				os.writeInt(session.numRelevantTransactions);
+			}
+
+			os.close();
+			os = null;
+
+			if (!tmpFile.renameTo(file))
+				throw new IOException("cannot rename to " + file);
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem saving sync history", x);
+			tmpFile.delete();
+		}
+		finally
+		{
+			if (os != null)
+			{
+				try
+				{
+					os.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+
+	private void load()
+	{
+		if (!file.exists())
+			return;
+
+		DataInputStream is = null;
+
+		try
+		{
+			is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (is.readInt() != FILE_VERSION)
+				throw new IOException("unknown version");
+
+			final int numSessions = is.readInt();
+			for (int i = 0; i < numSessions; i++)
+				sessions.add(new Session(is.readLong(), is.readLong(), is.readInt(), is.readLong(), is.readLong(), is.readInt()));
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem loading sync history, starting empty", x);
+			sessions.clear();
+		}
+		finally
+		{
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Immutable snapshot of blockchain sync throughput, as returned by {@link BlockchainService#getSyncStats()}.
+ *
+ * <p>
+ * Bytes in are counted per peer from message sizes. The library has no hook for outgoing messages, so bytes out are
+ * only known for the whole process.
+ * </p>
+ *
+ * @author Andreas Schildbach
+ */
+public final class SyncStats
+{
+	public final double blocksPerSecond;
+	public final double headersPerSecond;
+	public final int blocksLeft;
+	public final long etaSeconds;
+	public final Map<InetSocketAddress, Long> bytesInPerPeer;
+	public final long bytesIn;
+	public final long bytesOut;
+	public final int filteredBlocks;
+	public final int matchedTransactions;
+	public final int falsePositiveTransactions;
+	public final int chainAdds;
+	public final double chainAddAvgMs;
+	public final double chainAddMaxMs;
+	public final int outboxDepth;
+	public final long outboxOldestAgeMs;
+	public final double blocksPerMinuteEwma;
+	public final double transactionsPerMinuteEwma;
+
+	public SyncStats(final double blocksPerSecond, final double headersPerSecond, final int blocksLeft, final long etaSeconds,
+			@Nonnull final Map<InetSocketAddress, Long> bytesInPerPeer, final long bytesIn, final long bytesOut, final int filteredBlocks,
+			final int matchedTransactions, final int falsePositiveTransactions, final int chainAdds, final double chainAddAvgMs,
+			final double chainAddMaxMs, final int outboxDepth, final long outboxOldestAgeMs, final double blocksPerMinuteEwma,
+			final double transactionsPerMinuteEwma)
+	{
+		this.blocksPerSecond = blocksPerSecond;
+		this.headersPerSecond = headersPerSecond;
+		this.blocksLeft = blocksLeft;
+		this.etaSeconds = etaSeconds;
+		this.bytesInPerPeer = bytesInPerPeer;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.filteredBlocks = filteredBlocks;
+		this.matchedTransactions = matchedTransactions;
+		this.falsePositiveTransactions = falsePositiveTransactions;
+		this.chainAdds = chainAdds;
+		this.chainAddAvgMs = chainAddAvgMs;
+		this.chainAddMaxMs = chainAddMaxMs;
+		this.outboxDepth = outboxDepth;
+		this.outboxOldestAgeMs = outboxOldestAgeMs;
+		this.blocksPerMinuteEwma = blocksPerMinuteEwma;
+		this.transactionsPerMinuteEwma = transactionsPerMinuteEwma;
+	}
+
+	/**
+	 * @return share of transactions matched by the bloom filter that were not relevant to the wallet, or 0 if none matched
+	 */
+	public double falsePositiveRate()
+	{
+		return matchedTransactions > 0 ? (double) falsePositiveTransactions / matchedTransactions : 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.US, "%.1f blocks/s, %.1f headers/s, %d left, eta %ds, %d/%d bytes in/out, %d peers, "
+				+ "fp %.3f (%d/%d), chain add %.1fms avg %.1fms max (%d), outbox %d (oldest %ds), ewma %.1f blocks/min %.1f txs/min",
+				blocksPerSecond, headersPerSecond, blocksLeft, etaSeconds, bytesIn, bytesOut, bytesInPerPeer.size(), falsePositiveRate(),
+				falsePositiveTransactions, matchedTransactions, chainAddAvgMs, chainAddMaxMs, chainAdds, outboxDepth, outboxOldestAgeMs / 1000,
+				blocksPerMinuteEwma, transactionsPerMinuteEwma);
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.text.format.DateUtils;
+
+import com.google.fastcoin.core.PeerGroup;
+import com.google.fastcoin.core.Sha256Hash;
+import com.google.fastcoin.core.Transaction;
+import com.google.fastcoin.core.TransactionConfidence;
+import com.google.fastcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.fastcoin.core.Wallet;
+
+/**
+ * Persistent queue of transactions waiting to be broadcast. Entries are rebroadcast with exponential backoff until
+ * enough peers announced them back, or until they are confirmed or dead.
+ *
+ * Changes are written in the background, one snapshot after the other, so enqueuing and draining never block on disk.
+ *
+ * @author Andreas Schildbach
+ */
+public final class TransactionOutbox
+{
+	private static final int FILE_VERSION = 1;
+	private static final long INITIAL_BACKOFF_MS = 30 * DateUtils.SECOND_IN_MILLIS;
+	private static final long MAX_BACKOFF_MS = 30 * DateUtils.MINUTE_IN_MILLIS;
+
+	private static final class Entry
+	{
+		public final Sha256Hash hash;
+		public final long enqueuedAt;
+		public int attempts;
+		public long nextAttemptAt;
+
+		public Entry(@Nonnull final Sha256Hash hash, final long enqueuedAt)
+		{
+			this.hash = hash;
+			this.enqueuedAt = enqueuedAt;
+		}
+
+		public Entry copy()
+		{
+			final Entry copy = new Entry(hash, enqueuedAt);
+			copy.attempts = attempts;
+			copy.nextAttemptAt = nextAttemptAt;
+			return copy;
+		}
+	}
+
+	private final File file;
+	private final Map<Sha256Hash, Entry> entries = new LinkedHashMap<Sha256Hash, Entry>();
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, "transaction outbox");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	private static final Logger log = LoggerFactory.getLogger(TransactionOutbox.class);
+
+	public TransactionOutbox(@Nonnull final File file)
+	{
+		this.file = file;
+
+		load();
+	}
+
+	public synchronized void enqueue(@Nonnull final Sha256Hash hash)
+	{
+		if (!entries.containsKey(hash))
+		{
+			entries.put(hash, new Entry(hash, System.currentTimeMillis()));
+			save();
+		}
+	}
+
+	/**
+	 * Broadcasts all due transactions in one go and drops those that have reached enough peers, got confirmed, died or
+	 * vanished from the wallet.
+	 */
+	public synchronized void drain(@Nonnull final PeerGroup peerGroup, @Nonnull final Wallet wallet, final int peerThreshold)
+	{
+		if (entries.isEmpty())
+			return;
+
+		final long now = System.currentTimeMillis();
+		int numBroadcast = 0;
+		boolean changed = false;
+
+		for (final Iterator<Entry> i = entries.values().iterator(); i.hasNext();)
+		{
+			final Entry entry = i.next();
+			final Transaction tx = wallet.getTransaction(entry.hash);
+
+			if (tx == null)
+			{
+				log.info("dropping transaction {} from outbox, not in wallet", entry.hash);
+				i.remove();
+				changed = true;
+				continue;
+			}
+
+			final TransactionConfidence confidence = tx.getConfidence();
+			final ConfidenceType confidenceType = confidence.getConfidenceType();
+			if (confidenceType == ConfidenceType.BUILDING || confidenceType == ConfidenceType.DEAD
+					|| confidence.numBroadcastPeers() >= peerThreshold)
+			{
+				log.info("transaction {} done after {} attempts, {}ms in outbox, {}", new Object[] { entry.hash, entry.attempts,
+						now - entry.enqueuedAt, confidence });
+				i.remove();
+				changed = true;
+				continue;
+			}
+
+			if (now >= entry.nextAttemptAt)
+			{
+				peerGroup.broadcastTransaction(tx);
+
+				entry.attempts++;
+				entry.nextAttemptAt = now + Math.min(INITIAL_BACKOFF_MS << Math.min(entry.attempts - 1, 16), MAX_BACKOFF_MS);
+				numBroadcast++;
+				changed = true;
+			}
+		}
+
+		if (numBroadcast > 0)
+			log.info("broadcast {} transactions from outbox, {} queued", numBroadcast, entries.size());
+
+		if (changed)
+			save();
+	}
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @return age of the oldest queued transaction in milliseconds, or 0 if the queue is empty
+	 */
+	public synchronized long oldestAgeMs()
+	{
+		if (entries.isEmpty())
+			return 0;
+
+		return System.currentTimeMillis() - entries.values().iterator().next().enqueuedAt;
+	}
+
+	private void save()
+	{
+		final List<Entry> snapshot = new ArrayList<Entry>(entries.size());
+		for (final Entry entry : entries.values())
+			snapshot.add(entry.copy());
+
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				write(snapshot);
+			}
+		});
+	}
+
+	private void write(@Nonnull final List<Entry> snapshot)
+	{
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		DataOutputStream os = null;
+
+		try
+		{
+			os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			os.writeInt(FILE_VERSION);
+			os.writeInt(snapshot.size());
+
+			for (final Entry entry : snapshot)
+			{
+				os.write(entry.hash.getBytes());
+				os.writeLong(entry.enqueuedAt);
+				os.writeInt(entry.attempts);
+				os.writeLong(entry.nextAttemptAt);
+			}
+
+			os.close();
+			os = null;
+
+			if (!tmpFile.renameTo(file))
+				throw new IOException("cannot rename to " + file);
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem saving outbox", x);
+			tmpFile.delete();
+		}
+		finally
+		{
+			if (os != null)
+			{
+				try
+				{
+					os.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+
+	private void load()
+	{
+		if (!file.exists())
+			return;
+
+		DataInputStream is = null;
+
+		try
+		{
+			is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (is.readInt() != FILE_VERSION)
+				throw new IOException("unknown version");
+
+			final int numEntries = is.readInt();
+			for (int i = 0; i < numEntries; i++)
+			{
+				final byte[] hash = new byte[32];
+				is.readFully(hash);
+
+				final Entry entry = new Entry(new Sha256Hash(hash), is.readLong());
+				entry.attempts = is.readInt();
+				entry.nextAttemptAt = 0; // retry right away after restart
+				is.readLong();
+				entries.put(entry.hash, entry);
+			}
+
+			log.info("loaded {} transactions from outbox", entries.size());
+		}
+		catch (final IOException x)
+		{
+			log.warn("problem loading outbox, starting empty", x);
+			entries.clear();
+		}
+		finally
+		{
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+}
@@ -32,8 +32,20 @@ public abstract class AbstractOnDemandServiceActivity extends AbstractWalletActi
 {
 	protected void processDirectTransaction(@Nonnull final Transaction tx)
 	{
-		final Wallet wallet = getWalletApplication().getWallet();
+		final WalletApplication application = getWalletApplication();
 
+		application.getWalletFuture().addListener(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				processDirectTransaction(application.getWallet(), tx);
+			}
+		}, application.mainThreadExecutor());
+	}
+
+	private void processDirectTransaction(@Nonnull final Wallet wallet, @Nonnull final Transaction tx)
+	{
 		try
 		{
 			if (wallet.isTransactionRelevant(tx))
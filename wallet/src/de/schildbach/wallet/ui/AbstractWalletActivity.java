@@ -18,6 +18,7 @@
 package de.schildbach.wallet.ui;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,16 +29,31 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.actionbarsherlock.app.SherlockFragmentActivity;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.fastcoin.core.Wallet;
 
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.R;
 
 /**
+ * Base for activities of the wallet. Activities that need the wallet build their content in
+ * {@link #onWalletLoaded(Bundle)}, so they can show up while the wallet is still loading.
+ *
+ * <p>
+ * If the activity is recreated from saved state before the wallet has loaded, typically after the process was killed in
+ * the background, the saved state is not handed to the framework in {@link #onCreate(Bundle)}, because restored
+ * fragments would access the wallet right away. As a consequence, the fragment back stack, open dialog fragments and
+ * everything fragments saved in {@link android.support.v4.app.Fragment#onSaveInstanceState(Bundle)} is lost in that
+ * case; the fragments are created anew by {@link #onWalletLoaded(Bundle)}. Only the view state of the activity is
+ * restored, once the content exists. Once the wallet is loaded, state is restored as usual.
+ * </p>
+ *
  * @author Andreas Schildbach
  */
 public abstract class AbstractWalletActivity extends SherlockFragmentActivity
 {
 	private WalletApplication application;
+	private boolean destroyed = false;
 
 	protected static final Logger log = LoggerFactory.getLogger(AbstractWalletActivity.class);
 
@@ -46,7 +62,55 @@ public abstract class AbstractWalletActivity extends SherlockFragmentActivity
 	{
 		application = (WalletApplication) getApplication();
 
-		super.onCreate(savedInstanceState);
+		// restored fragments would need the wallet right away, so they are recreated once it is loaded, losing their
+		// saved state (see class doc)
+		super.onCreate(application.getWalletFuture().isDone() ? savedInstanceState : null);
+	}
+
+	@Override
+	protected void onDestroy()
+	{
+		destroyed = true;
+
+		super.onDestroy();
+	}
+
+	/**
+	 * Calls {@link #onWalletLoaded(Bundle)} on the main thread once the wallet is loaded, showing a progress placeholder
+	 * until then. Activities call this from {@link #onCreate(Bundle)} instead of inflating content that needs the wallet.
+	 */
+	protected final void whenWalletLoaded(@Nullable final Bundle savedInstanceState)
+	{
+		final ListenableFuture<Wallet> walletFuture = application.getWalletFuture();
+		if (walletFuture.isDone())
+		{
+			onWalletLoaded(savedInstanceState);
+			return;
+		}
+
+		setContentView(R.layout.wallet_loading);
+
+		walletFuture.addListener(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (destroyed || isFinishing())
+					return;
+
+				onWalletLoaded(savedInstanceState);
+
+				// the content did not exist yet when the framework restored it; fragment state is not part of this
+				if (savedInstanceState != null)
+					onRestoreInstanceState(savedInstanceState);
+
+				supportInvalidateOptionsMenu();
+			}
+		}, application.mainThreadExecutor());
+	}
+
+	protected void onWalletLoaded(@Nullable final Bundle savedInstanceState)
+	{
 	}
 
 	protected WalletApplication getWalletApplication()
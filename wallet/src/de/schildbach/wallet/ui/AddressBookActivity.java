@@ -65,11 +65,17 @@ public final class AddressBookActivity extends AbstractWalletActivity
 	{
 		super.onCreate(savedInstanceState);
 
-		setContentView(R.layout.address_book_content);
-
 		final ActionBar actionBar = getSupportActionBar();
 		actionBar.setDisplayHomeAsUpEnabled(true);
 
+		whenWalletLoaded(savedInstanceState);
+	}
+
+	@Override
+	protected void onWalletLoaded(final Bundle savedInstanceState)
+	{
+		setContentView(R.layout.address_book_content);
+
 		final FragmentManager fragmentManager = getSupportFragmentManager();
 
 		walletAddressesFragment = (WalletAddressesFragment) fragmentManager.findFragmentByTag(TAG_LEFT);
@@ -232,8 +232,8 @@ public final class BlockListFragment extends SherlockListFragment
 	{
 		private static final int ROW_BASE_CHILD_COUNT = 2;
 		private static final int ROW_INSERT_INDEX = 1;
-		private final TransactionsListAdapter transactionsAdapter = new TransactionsListAdapter(activity, wallet, application.maxConnectedPeers(),
-				false);
+		private final TransactionsListAdapter transactionsAdapter = new TransactionsListAdapter(activity, wallet,
+				application.getTransactionArchive(), application.maxConnectedPeers(), false);
 
 		private final List<StoredBlock> blocks = new ArrayList<StoredBlock>(MAX_BLOCKS);
 
@@ -34,10 +34,16 @@ public final class ExchangeRatesActivity extends AbstractWalletActivity
 	{
 		super.onCreate(savedInstanceState);
 
-		setContentView(R.layout.exchange_rates_content);
-
 		final ActionBar actionBar = getSupportActionBar();
 		actionBar.setDisplayHomeAsUpEnabled(true);
+
+		whenWalletLoaded(savedInstanceState);
+	}
+
+	@Override
+	protected void onWalletLoaded(final Bundle savedInstanceState)
+	{
+		setContentView(R.layout.exchange_rates_content);
 	}
 
 	@Override
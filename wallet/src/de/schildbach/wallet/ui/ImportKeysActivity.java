@@ -63,11 +63,18 @@ public final class ImportKeysActivity extends AbstractWalletActivity
 	{
 		super.onCreate(savedInstanceState);
 
-		wallet = getWalletApplication().getWallet();
 		contentResolver = getContentResolver();
 
 		backupFileUri = getIntent().getData();
 
+		whenWalletLoaded(savedInstanceState);
+	}
+
+	@Override
+	protected void onWalletLoaded(final Bundle savedInstanceState)
+	{
+		wallet = getWalletApplication().getWallet();
+
 		showDialog(DIALOG_IMPORT_KEYS);
 	}
 
@@ -208,7 +215,7 @@ public final class ImportKeysActivity extends AbstractWalletActivity
 					@Override
 					public void onClick(final DialogInterface dialog, final int id)
 					{
-						getWalletApplication().resetBlockchain();
+						getWalletApplication().rescanBlockchain(WalletUtils.earliestKeyCreationTime(importedKeys));
 						finish();
 					}
 				});
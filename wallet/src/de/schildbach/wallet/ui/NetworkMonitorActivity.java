@@ -42,11 +42,17 @@ public final class NetworkMonitorActivity extends AbstractWalletActivity
 	{
 		super.onCreate(savedInstanceState);
 
-		setContentView(R.layout.network_monitor_content);
-
 		final ActionBar actionBar = getSupportActionBar();
 		actionBar.setDisplayHomeAsUpEnabled(true);
 
+		whenWalletLoaded(savedInstanceState);
+	}
+
+	@Override
+	protected void onWalletLoaded(final Bundle savedInstanceState)
+	{
+		setContentView(R.layout.network_monitor_content);
+
 		final ViewPager pager = (ViewPager) findViewById(R.id.network_monitor_pager);
 
 		final FragmentManager fm = getSupportFragmentManager();
@@ -23,6 +23,7 @@ import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.RejectedExecutionException;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import org.slf4j.Logger;
@@ -44,6 +45,7 @@ import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
 import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
@@ -55,6 +57,7 @@ import com.google.fastcoin.core.VersionMessage;
 
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
+import de.schildbach.wallet.service.SyncStats;
 import de.schildbach.wallet.R;
 
 /**
@@ -66,6 +69,8 @@ public final class PeerListFragment extends SherlockListFragment
 	private LoaderManager loaderManager;
 
 	private BlockchainService service;
+	@CheckForNull
+	private SyncStats syncStats;
 	private ArrayAdapter<Peer> adapter;
 
 	private final Handler handler = new Handler();
@@ -136,7 +141,9 @@ public final class PeerListFragment extends SherlockListFragment
 				rowVersion.setTypeface(isDownloading ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
 
 				final TextView rowProtocol = (TextView) row.findViewById(R.id.peer_list_row_protocol);
-				rowProtocol.setText("protocol: " + versionMessage.clientVersion);
+				final Long bytesIn = syncStats != null ? syncStats.bytesInPerPeer.get(peer.getAddress().toSocketAddress()) : null;
+				rowProtocol.setText("protocol: " + versionMessage.clientVersion
+						+ (bytesIn != null ? ", " + getString(R.string.peer_list_row_bytes_in, Formatter.formatShortFileSize(activity, bytesIn)) : ""));
 				rowProtocol.setTypeface(isDownloading ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
 
 				final TextView rowPing = (TextView) row.findViewById(R.id.peer_list_row_ping);
@@ -166,6 +173,7 @@ public final class PeerListFragment extends SherlockListFragment
 			@Override
 			public void run()
 			{
+				updateSyncStats();
 				adapter.notifyDataSetChanged();
 
 				final Loader<String> loader = loaderManager.getLoader(ID_REVERSE_DNS_LOADER);
@@ -194,6 +202,16 @@ public final class PeerListFragment extends SherlockListFragment
 		}, REFRESH_MS);
 	}
 
+	private void updateSyncStats()
+	{
+		// same numbers as the service logs every minute
+		syncStats = service != null ? service.getSyncStats() : null;
+
+		activity.getSupportActionBar().setSubtitle(
+				syncStats != null ? getString(R.string.network_monitor_sync_stats, syncStats.blocksPerSecond, syncStats.headersPerSecond,
+						syncStats.falsePositiveRate() * 100) : null);
+	}
+
 	@Override
 	public void onPause()
 	{
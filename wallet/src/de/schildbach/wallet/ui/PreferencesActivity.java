@@ -159,6 +159,9 @@ public final class PreferencesActivity extends SherlockPreferenceActivity implem
 				@Override
 				protected CharSequence collectWalletDump()
 				{
+					if (!application.getWalletFuture().isDone())
+						return null;
+
 					return application.getWallet().toString(false, true, true, null);
 				}
 			};
@@ -35,10 +35,16 @@ public final class RequestCoinsActivity extends AbstractBindServiceActivity
 	{
 		super.onCreate(savedInstanceState);
 
-		setContentView(R.layout.request_coins_content);
-
 		final ActionBar actionBar = getSupportActionBar();
 		actionBar.setDisplayHomeAsUpEnabled(true);
+
+		whenWalletLoaded(savedInstanceState);
+	}
+
+	@Override
+	protected void onWalletLoaded(final Bundle savedInstanceState)
+	{
+		setContentView(R.layout.request_coins_content);
 	}
 
 	@Override
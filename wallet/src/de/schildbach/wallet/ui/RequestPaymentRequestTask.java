@@ -18,8 +18,6 @@
 package de.schildbach.wallet.ui;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
 
 import javax.annotation.CheckForNull;
@@ -34,9 +32,9 @@ import android.os.Looper;
 
 import com.google.fastcoin.core.Transaction;
 
-import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.PaymentIntent;
 import de.schildbach.wallet.offline.DirectPaymentTask;
+import de.schildbach.wallet.util.HttpClient;
 import de.schildbach.wallet.util.PaymentProtocol;
 import de.schildbach.wallet.R;
 
@@ -67,14 +65,16 @@ public abstract class RequestPaymentRequestTask
 
 	public final static class HttpRequestTask extends RequestPaymentRequestTask
 	{
+		private final HttpClient httpClient;
 		@CheckForNull
 		private final String userAgent;
 
 		public HttpRequestTask(@Nonnull final Handler backgroundHandler, @Nonnull final ResultCallback resultCallback,
-				@Nullable final String userAgent)
+				@Nonnull final HttpClient httpClient, @Nullable final String userAgent)
 		{
 			super(backgroundHandler, resultCallback);
 
+			this.httpClient = httpClient;
 			this.userAgent = userAgent;
 		}
 
@@ -88,32 +88,16 @@ public abstract class RequestPaymentRequestTask
 				{
 					log.info("trying to request payment request from {}", url);
 
-					HttpURLConnection connection = null;
-					InputStream is = null;
+					HttpClient.Response response = null;
 
 					try
 					{
-						connection = (HttpURLConnection) new URL(url).openConnection();
-
-						connection.setInstanceFollowRedirects(false);
-						connection.setConnectTimeout(Constants.HTTP_TIMEOUT_MS);
-						connection.setReadTimeout(Constants.HTTP_TIMEOUT_MS);
-						connection.setUseCaches(false);
-						connection.setDoInput(true);
-						connection.setDoOutput(false);
-
-						connection.setRequestMethod("GET");
-						connection.setRequestProperty("Accept", PaymentProtocol.MIMETYPE_PAYMENTREQUEST);
-						if (userAgent != null)
-							connection.addRequestProperty("User-Agent", userAgent);
-						connection.connect();
-
-						final int responseCode = connection.getResponseCode();
-						if (responseCode == HttpURLConnection.HTTP_OK)
-						{
-							is = connection.getInputStream();
+						response = httpClient.execute(new HttpClient.Request(new URL(url)).accept(PaymentProtocol.MIMETYPE_PAYMENTREQUEST).userAgent(
+								userAgent));
 
-							new InputParser.StreamInputParser(connection.getContentType(), is)
+						if (response.isOk())
+						{
+							new InputParser.StreamInputParser(response.contentType, response.getInputStream())
 							{
 								@Override
 								protected void handlePaymentIntent(@Nonnull PaymentIntent paymentIntent)
@@ -139,11 +123,9 @@ public abstract class RequestPaymentRequestTask
 						}
 						else
 						{
-							final String responseMessage = connection.getResponseMessage();
+							log.info("got http error {}: {}", response.code, response.message);
 
-							log.info("got http error {}: {}", responseCode, responseMessage);
-
-							onFail(R.string.error_http, responseCode, responseMessage);
+							onFail(R.string.error_http, response.code, response.message);
 						}
 					}
 					catch (final IOException x)
@@ -154,20 +136,8 @@ public abstract class RequestPaymentRequestTask
 					}
 					finally
 					{
-						if (is != null)
-						{
-							try
-							{
-								is.close();
-							}
-							catch (final IOException x)
-							{
-								// swallow
-							}
-						}
-
-						if (connection != null)
-							connection.disconnect();
+						if (response != null)
+							response.close();
 					}
 				}
 			});
@@ -49,12 +49,18 @@ public final class SendCoinsActivity extends AbstractBindServiceActivity
 	{
 		super.onCreate(savedInstanceState);
 
-		setContentView(R.layout.send_coins_content);
-
 		getWalletApplication().startBlockchainService(false);
 
 		final ActionBar actionBar = getSupportActionBar();
 		actionBar.setDisplayHomeAsUpEnabled(true);
+
+		whenWalletLoaded(savedInstanceState);
+	}
+
+	@Override
+	protected void onWalletLoaded(final Bundle savedInstanceState)
+	{
+		setContentView(R.layout.send_coins_content);
 	}
 
 	@Override
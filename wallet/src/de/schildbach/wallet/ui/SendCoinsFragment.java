@@ -102,6 +102,7 @@ import de.schildbach.wallet.ui.InputParser.BinaryInputParser;
 import de.schildbach.wallet.ui.InputParser.StreamInputParser;
 import de.schildbach.wallet.ui.InputParser.StringInputParser;
 import de.schildbach.wallet.util.GenericUtils;
+import de.schildbach.wallet.util.HttpClient;
 import de.schildbach.wallet.util.Nfc;
 import de.schildbach.wallet.util.PaymentProtocol;
 import de.schildbach.wallet.util.WalletUtils;
@@ -464,7 +465,8 @@ public final class SendCoinsFragment extends SherlockFragment
 		directPaymentMessageView = (TextView) view.findViewById(R.id.send_coins_direct_payment_message);
 
 		sentTransactionView = (ListView) view.findViewById(R.id.send_coins_sent_transaction);
-		sentTransactionListAdapter = new TransactionsListAdapter(activity, wallet, application.maxConnectedPeers(), false);
+		sentTransactionListAdapter = new TransactionsListAdapter(activity, wallet, application.getTransactionArchive(),
+				application.maxConnectedPeers(), false);
 		sentTransactionView.setAdapter(sentTransactionListAdapter);
 
 		viewGo = (Button) view.findViewById(R.id.send_coins_go);
@@ -831,7 +833,7 @@ public final class SendCoinsFragment extends SherlockFragment
 
 		// prepare send request
 		final SendRequest sendRequest = finalPaymentIntent.toSendRequest();
-		final Address returnAddress = WalletUtils.pickOldestKey(wallet).toAddress(Constants.NETWORK_PARAMETERS);
+		final Address returnAddress = application.getKeyRegistry().oldestUsableKey().toAddress(Constants.NETWORK_PARAMETERS);
 		sendRequest.changeAddress = returnAddress;
 		sendRequest.emptyWallet = paymentIntent.mayEditAmount() && finalAmount.equals(wallet.getBalance(BalanceType.AVAILABLE));
 
@@ -904,7 +906,8 @@ public final class SendCoinsFragment extends SherlockFragment
 
 					if (paymentIntent.isHttpPaymentUrl())
 					{
-						new DirectPaymentTask.HttpPaymentTask(backgroundHandler, callback, paymentIntent.paymentUrl, application.httpUserAgent())
+						new DirectPaymentTask.HttpPaymentTask(backgroundHandler, callback, HttpClient.getInstance(activity), paymentIntent.paymentUrl,
+								application.httpUserAgent())
 								.send(paymentIntent.standard, payment);
 					}
 					else if (paymentIntent.isBluetoothPaymentUrl() && bluetoothAdapter != null && bluetoothAdapter.isEnabled())
@@ -1334,7 +1337,7 @@ public final class SendCoinsFragment extends SherlockFragment
 				dialog.setNegativeButton(R.string.button_dismiss, null);
 				dialog.show();
 			}
-		}, application.httpUserAgent()).requestPaymentRequest(paymentRequestUrl);
+		}, HttpClient.getInstance(activity), application.httpUserAgent()).requestPaymentRequest(paymentRequestUrl);
 	}
 
 	private static Payment createPaymentMessage(@Nonnull final Transaction transaction, @Nullable final Address refundAddress,
@@ -25,7 +25,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -50,7 +52,10 @@ import com.google.fastcoin.wallet.DefaultCoinSelector;
 
 import de.schildbach.wallet.AddressBookProvider;
 import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.ExchangeRatesHistory;
+import de.schildbach.wallet.TransactionArchive;
 import de.schildbach.wallet.util.CircularProgressView;
+import de.schildbach.wallet.util.Money;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet.R;
 
@@ -62,6 +67,7 @@ public class TransactionsListAdapter extends BaseAdapter
 	private final Context context;
 	private final LayoutInflater inflater;
 	private final Wallet wallet;
+	private final TransactionArchive archive;
 	private final int maxConnectedPeers;
 
 	private final List<Transaction> transactions = new ArrayList<Transaction>();
@@ -69,6 +75,10 @@ public class TransactionsListAdapter extends BaseAdapter
 	private int shift = 0;
 	private boolean showEmptyText = false;
 	private boolean showBackupWarning = false;
+	@CheckForNull
+	private ExchangeRatesHistory exchangeRatesHistory = null;
+	@CheckForNull
+	private String exchangeCurrencyCode = null;
 
 	private final int colorSignificant;
 	private final int colorInsignificant;
@@ -86,12 +96,14 @@ public class TransactionsListAdapter extends BaseAdapter
 	private static final int VIEW_TYPE_TRANSACTION = 0;
 	private static final int VIEW_TYPE_WARNING = 1;
 
-	public TransactionsListAdapter(final Context context, @Nonnull final Wallet wallet, final int maxConnectedPeers, final boolean showBackupWarning)
+	public TransactionsListAdapter(final Context context, @Nonnull final Wallet wallet, @Nonnull final TransactionArchive archive,
+			final int maxConnectedPeers, final boolean showBackupWarning)
 	{
 		this.context = context;
 		inflater = LayoutInflater.from(context);
 
 		this.wallet = wallet;
+		this.archive = archive;
 		this.maxConnectedPeers = maxConnectedPeers;
 		this.showBackupWarning = showBackupWarning;
 
@@ -111,6 +123,17 @@ public class TransactionsListAdapter extends BaseAdapter
 		notifyDataSetChanged();
 	}
 
+	/**
+	 * Values transactions in the given currency, at the rate of the time they happened.
+	 */
+	public void setExchangeRates(@Nullable final ExchangeRatesHistory exchangeRatesHistory, @Nullable final String exchangeCurrencyCode)
+	{
+		this.exchangeRatesHistory = exchangeRatesHistory;
+		this.exchangeCurrencyCode = exchangeCurrencyCode;
+
+		notifyDataSetChanged();
+	}
+
 	public void clear()
 	{
 		transactions.clear();
@@ -231,7 +254,7 @@ public class TransactionsListAdapter extends BaseAdapter
 
 		try
 		{
-			final BigInteger value = tx.getValue(wallet);
+			final BigInteger value = archive.getValue(tx, wallet);
 			final boolean sent = value.signum() < 0;
 
 			final CircularProgressView rowConfidenceCircular = (CircularProgressView) row.findViewById(R.id.transaction_row_confidence_circular);
@@ -331,6 +354,30 @@ public class TransactionsListAdapter extends BaseAdapter
 			rowValue.setPrecision(precision, shift);
 			rowValue.setAmount(value);
 
+			// value in local currency, at the time of the transaction
+			final CurrencyTextView rowFiat = (CurrencyTextView) row.findViewById(R.id.transaction_row_fiat);
+			if (rowFiat != null)
+			{
+				final Date time = tx.getUpdateTime();
+				final Money rate = exchangeRatesHistory != null && exchangeCurrencyCode != null && time != null ? exchangeRatesHistory
+						.getRate(exchangeCurrencyCode, time.getTime()) : null;
+
+				if (rate != null)
+				{
+					rowFiat.setVisibility(View.VISIBLE);
+					rowFiat.setTextColor(colorInsignificant);
+					rowFiat.setAlwaysSigned(true);
+					rowFiat.setPrecision(Constants.LOCAL_PRECISION, 0);
+					rowFiat.setInsignificantRelativeSize(1);
+					rowFiat.setPrefix(Constants.PREFIX_ALMOST_EQUAL_TO + exchangeCurrencyCode);
+					rowFiat.setAmount(WalletUtils.localValue(value, rate));
+				}
+				else
+				{
+					rowFiat.setVisibility(View.GONE);
+				}
+			}
+
 			// extended message
 			final View rowExtend = row.findViewById(R.id.transaction_row_extend);
 			if (rowExtend != null)
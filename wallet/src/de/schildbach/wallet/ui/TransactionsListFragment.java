@@ -17,6 +17,7 @@
 
 package de.schildbach.wallet.ui;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.text.DateFormat;
 import java.util.ArrayList;
@@ -55,6 +56,8 @@ import android.text.SpannableStringBuilder;
 import android.text.format.DateUtils;
 import android.text.style.StyleSpan;
 import android.view.View;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.ListView;
 
 import com.actionbarsherlock.app.SherlockListFragment;
@@ -62,6 +65,8 @@ import com.actionbarsherlock.view.ActionMode;
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.fastcoin.core.Address;
 import com.google.fastcoin.core.ScriptException;
 import com.google.fastcoin.core.Transaction;
@@ -73,6 +78,9 @@ import com.google.fastcoin.utils.Threading;
 import de.schildbach.wallet.AddressBookProvider;
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.ExchangeRatesHistory;
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+import de.schildbach.wallet.TransactionArchive;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.util.BitmapFragment;
 import de.schildbach.wallet.util.Nfc;
@@ -95,6 +103,7 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 	private WalletApplication application;
 	private Configuration config;
 	private Wallet wallet;
+	private TransactionArchive archive;
 	private NfcManager nfcManager;
 	private ContentResolver resolver;
 	private LoaderManager loaderManager;
@@ -104,10 +113,14 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 	@CheckForNull
 	private Direction direction;
 
+	private int archiveLimit = ARCHIVE_PAGE_SIZE;
+	private boolean archivePaging = false;
+
 	private final Handler handler = new Handler();
 
 	private static final String KEY_DIRECTION = "direction";
 	private static final long THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
+	private static final int ARCHIVE_PAGE_SIZE = 50;
 	private static final Uri KEY_ROTATION_URI = Uri.parse("http://bitcoin.org/en/alert/2013-08-11-android");
 
 	private static final Logger log = LoggerFactory.getLogger(TransactionsListFragment.class);
@@ -141,6 +154,7 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 		this.application = (WalletApplication) activity.getApplication();
 		this.config = application.getConfiguration();
 		this.wallet = application.getWallet();
+		this.archive = application.getTransactionArchive();
 		this.nfcManager = (NfcManager) activity.getSystemService(Context.NFC_SERVICE);
 		this.resolver = activity.getContentResolver();
 		this.loaderManager = getLoaderManager();
@@ -157,7 +171,7 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 
 		final boolean showBackupWarning = direction == null || direction == Direction.RECEIVED;
 
-		adapter = new TransactionsListAdapter(activity, wallet, application.maxConnectedPeers(), showBackupWarning);
+		adapter = new TransactionsListAdapter(activity, wallet, archive, application.maxConnectedPeers(), showBackupWarning);
 		setListAdapter(adapter);
 	}
 
@@ -190,6 +204,27 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 			emptyText.append("\n\n").append(getString(R.string.wallet_transactions_fragment_empty_text_howto));
 
 		setEmptyText(emptyText);
+
+		getListView().setOnScrollListener(new OnScrollListener()
+		{
+			@Override
+			public void onScrollStateChanged(final AbsListView view, final int scrollState)
+			{
+			}
+
+			@Override
+			public void onScroll(final AbsListView view, final int firstVisibleItem, final int visibleItemCount, final int totalItemCount)
+			{
+				// page in more of the archive when reaching the end of the list
+				if (!archivePaging && totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount
+						&& archiveLimit < archive.size())
+				{
+					archivePaging = true;
+					archiveLimit += ARCHIVE_PAGE_SIZE;
+					loaderManager.restartLoader(0, null, TransactionsListFragment.this);
+				}
+			}
+		});
 	}
 
 	@Override
@@ -250,7 +285,7 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 					mode.setTitle(time != null ? (DateUtils.isToday(time.getTime()) ? getString(R.string.time_today) : dateFormat.format(time))
 							+ ", " + timeFormat.format(time) : null);
 
-					final BigInteger value = tx.getValue(wallet);
+					final BigInteger value = archive.getValue(tx, wallet);
 					final boolean sent = value.signum() < 0;
 
 					address = sent ? WalletUtils.getFirstToAddress(tx) : WalletUtils.getFirstFromAddress(tx);
@@ -346,13 +381,14 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 	@Override
 	public Loader<List<Transaction>> onCreateLoader(final int id, final Bundle args)
 	{
-		return new TransactionsLoader(activity, wallet, direction);
+		return new TransactionsLoader(activity, wallet, archive, direction, archiveLimit);
 	}
 
 	@Override
 	public void onLoadFinished(final Loader<List<Transaction>> loader, final List<Transaction> transactions)
 	{
 		adapter.replace(transactions);
+		archivePaging = false;
 	}
 
 	@Override
@@ -373,15 +409,20 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 	private static class TransactionsLoader extends AsyncTaskLoader<List<Transaction>>
 	{
 		private final Wallet wallet;
+		private final TransactionArchive archive;
 		@CheckForNull
 		private final Direction direction;
+		private final int archiveLimit;
 
-		private TransactionsLoader(final Context context, @Nonnull final Wallet wallet, @Nullable final Direction direction)
+		private TransactionsLoader(final Context context, @Nonnull final Wallet wallet, @Nonnull final TransactionArchive archive,
+				@Nullable final Direction direction, final int archiveLimit)
 		{
 			super(context);
 
 			this.wallet = wallet;
+			this.archive = archive;
 			this.direction = direction;
+			this.archiveLimit = archiveLimit;
 		}
 
 		@Override
@@ -408,27 +449,39 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 		public List<Transaction> loadInBackground()
 		{
 			final Set<Transaction> transactions = wallet.getTransactions(true);
-			final List<Transaction> filteredTransactions = new ArrayList<Transaction>(transactions.size());
+			final List<Transaction> filteredTransactions = new ArrayList<Transaction>(transactions.size() + archiveLimit);
 
 			try
 			{
 				for (final Transaction tx : transactions)
-				{
-					final boolean sent = tx.getValue(wallet).signum() < 0;
-					if ((direction == Direction.RECEIVED && !sent) || direction == null || (direction == Direction.SENT && sent))
+					if (matchesDirection(tx))
+						filteredTransactions.add(tx);
+
+				// archived transactions are older than most live ones, so only page in the newest
+				for (final Transaction tx : archive.page(wallet.getParams(), wallet.getLastBlockSeenHeight(), 0, archiveLimit))
+					if (!transactions.contains(tx) && matchesDirection(tx))
 						filteredTransactions.add(tx);
-				}
 			}
 			catch (final ScriptException x)
 			{
 				throw new RuntimeException(x);
 			}
+			catch (final IOException x)
+			{
+				log.warn("problem paging in archived transactions", x);
+			}
 
 			Collections.sort(filteredTransactions, TRANSACTION_COMPARATOR);
 
 			return filteredTransactions;
 		}
 
+		private boolean matchesDirection(@Nonnull final Transaction tx) throws ScriptException
+		{
+			final boolean sent = archive.getValue(tx, wallet).signum() < 0;
+			return (direction == Direction.RECEIVED && !sent) || direction == null || (direction == Direction.SENT && sent);
+		}
+
 		private final ThrottlingWalletChangeListener transactionAddRemoveListener = new ThrottlingWalletChangeListener(THROTTLE_MS, true, true, false)
 		{
 			@Override
@@ -474,7 +527,7 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 	@Override
 	public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, final String key)
 	{
-		if (Configuration.PREFS_KEY_FST_PRECISION.equals(key))
+		if (Configuration.PREFS_KEY_FST_PRECISION.equals(key) || Configuration.PREFS_KEY_EXCHANGE_CURRENCY.equals(key))
 			updateView();
 	}
 
@@ -485,5 +538,23 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 
 		adapter.setPrecision(fstPrecision, fstShift);
 		adapter.clearLabelCache();
+
+		// the cached rate is in the configured currency, or the default one
+		final String exchangeCurrencyCode = config.getExchangeCurrencyCode();
+		final ExchangeRate cachedExchangeRate = config.getCachedExchangeRate();
+		final String currencyCode = exchangeCurrencyCode != null ? exchangeCurrencyCode : (cachedExchangeRate != null ? cachedExchangeRate.currencyCode
+				: null);
+
+		// the history is loaded in the background, values appear once it is there
+		final ListenableFuture<ExchangeRatesHistory> history = ExchangeRatesHistory.getInstance(activity);
+		history.addListener(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (isAdded())
+					adapter.setExchangeRates(Futures.getUnchecked(history), currencyCode);
+			}
+		}, application.mainThreadExecutor());
 	}
 }
@@ -80,9 +80,11 @@ import de.schildbach.wallet.ui.InputParser.BinaryInputParser;
 import de.schildbach.wallet.ui.InputParser.StringInputParser;
 import de.schildbach.wallet.util.CrashReporter;
 import de.schildbach.wallet.util.Crypto;
+import de.schildbach.wallet.util.HttpClient;
 import de.schildbach.wallet.util.HttpGetThread;
 import de.schildbach.wallet.util.Iso8601Format;
 import de.schildbach.wallet.util.Nfc;
+import de.schildbach.wallet.util.StartupTrace;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet.R;
 
@@ -98,6 +100,7 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 	private WalletApplication application;
 	private Configuration config;
 	private Wallet wallet;
+	private StartupTrace.Span walletWait;
 
 	private static final int REQUEST_CODE_SCAN = 0;
 
@@ -110,15 +113,40 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 
 		application = getWalletApplication();
 		config = application.getConfiguration();
+
+		walletWait = StartupTrace.begin("wallet wait");
+		whenWalletLoaded(savedInstanceState);
+
+		config.touchLastUsed();
+	}
+
+	@Override
+	protected void onWalletLoaded(final Bundle savedInstanceState)
+	{
+		walletWait.end();
+
 		wallet = application.getWallet();
 
+		final StartupTrace.Span span = StartupTrace.begin("inflate");
 		setContentView(R.layout.wallet_content);
+		span.end();
+
+		if (!StartupTrace.isFinished())
+		{
+			// runs after the first traversal, so the trace ends with the first frame
+			getWindow().getDecorView().post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					StartupTrace.finish(getFileStreamPath(Constants.STARTUP_TRACE_FILENAME));
+				}
+			});
+		}
 
 		if (savedInstanceState == null)
 			checkAlerts();
 
-		config.touchLastUsed();
-
 		handleIntent(getIntent());
 	}
 
@@ -135,7 +163,10 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 	@Override
 	protected void onNewIntent(final Intent intent)
 	{
-		handleIntent(intent);
+		if (wallet != null)
+			handleIntent(intent);
+		else
+			setIntent(intent); // handled once loaded
 	}
 
 	private void handleIntent(@Nonnull final Intent intent)
@@ -206,6 +237,9 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 	{
 		super.onCreateOptionsMenu(menu);
 
+		if (wallet == null)
+			return false; // still loading
+
 		getSupportMenuInflater().inflate(R.menu.wallet_options, menu);
 		menu.findItem(R.id.wallet_options_donate).setVisible(!Constants.TEST);
 
@@ -217,6 +251,9 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 	{
 		super.onPrepareOptionsMenu(menu);
 
+		if (wallet == null)
+			return false;
+
 		final Resources res = getResources();
 		final String externalStorageState = Environment.getExternalStorageState();
 
@@ -574,7 +611,7 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 		final String base = Constants.VERSION_URL + (versionNameSplit >= 0 ? packageInfo.versionName.substring(versionNameSplit) : "");
 		final String url = base + "?package=" + packageInfo.packageName + "&current=" + packageInfo.versionCode;
 
-		new HttpGetThread(getAssets(), url, application.httpUserAgent())
+		new HttpGetThread(HttpClient.getInstance(this), url, application.httpUserAgent())
 		{
 			@Override
 			protected void handleLine(final String line, final long serverTime)
@@ -825,7 +862,7 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 					@Override
 					public void onClick(final DialogInterface dialog, final int id)
 					{
-						getWalletApplication().resetBlockchain();
+						getWalletApplication().rescanBlockchain(WalletUtils.earliestKeyCreationTime(importedKeys));
 						finish();
 					}
 				});
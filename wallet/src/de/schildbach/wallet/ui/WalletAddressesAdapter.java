@@ -36,10 +36,10 @@ import android.widget.TextView;
 
 import com.google.fastcoin.core.Address;
 import com.google.fastcoin.core.ECKey;
-import com.google.fastcoin.core.Wallet;
 
 import de.schildbach.wallet.AddressBookProvider;
 import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.KeyRegistry;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet.R;
 
@@ -49,22 +49,20 @@ import de.schildbach.wallet.R;
 public class WalletAddressesAdapter extends BaseAdapter
 {
 	private final Context context;
-	private final Wallet wallet;
 	private final DateFormat dateFormat;
 	private final int colorSignificant;
 	private final int colorInsignificant;
 	private final int colorLessSignificant;
 	private final LayoutInflater inflater;
 
-	private final List<ECKey> keys = new ArrayList<ECKey>();
+	private final List<KeyRegistry.Entry> keys = new ArrayList<KeyRegistry.Entry>();
 	private String selectedAddress = null;
 
-	public WalletAddressesAdapter(final Context context, @Nonnull final Wallet wallet)
+	public WalletAddressesAdapter(final Context context)
 	{
 		final Resources res = context.getResources();
 
 		this.context = context;
-		this.wallet = wallet;
 		dateFormat = android.text.format.DateFormat.getDateFormat(context);
 		colorSignificant = res.getColor(R.color.fg_significant);
 		colorInsignificant = res.getColor(R.color.fg_insignificant);
@@ -72,7 +70,7 @@ public class WalletAddressesAdapter extends BaseAdapter
 		inflater = LayoutInflater.from(context);
 	}
 
-	public void replace(@Nonnull final Collection<ECKey> keys)
+	public void replace(@Nonnull final Collection<KeyRegistry.Entry> keys)
 	{
 		this.keys.clear();
 		this.keys.addAll(keys);
@@ -102,7 +100,7 @@ public class WalletAddressesAdapter extends BaseAdapter
 	@Override
 	public long getItemId(final int position)
 	{
-		return keys.get(position).hashCode();
+		return keys.get(position).key.hashCode();
 	}
 
 	@Override
@@ -114,14 +112,15 @@ public class WalletAddressesAdapter extends BaseAdapter
 	@Override
 	public View getView(final int position, View row, final ViewGroup parent)
 	{
-		final ECKey key = (ECKey) getItem(position);
-		final Address address = key.toAddress(Constants.NETWORK_PARAMETERS);
-		final boolean isRotateKey = wallet.isKeyRotating(key);
+		final KeyRegistry.Entry entry = (KeyRegistry.Entry) getItem(position);
+		final ECKey key = entry.key;
+		final Address address = entry.address;
+		final boolean isRotateKey = entry.rotating;
 
 		if (row == null)
 			row = inflater.inflate(R.layout.address_book_row, null);
 
-		final boolean isDefaultAddress = address.toString().equals(selectedAddress);
+		final boolean isDefaultAddress = entry.addressString.equals(selectedAddress);
 
 		row.setBackgroundResource(isDefaultAddress ? R.color.bg_list_selected : R.color.bg_list);
 
@@ -130,7 +129,7 @@ public class WalletAddressesAdapter extends BaseAdapter
 		addressView.setTextColor(isRotateKey ? colorInsignificant : colorSignificant);
 
 		final TextView labelView = (TextView) row.findViewById(R.id.address_book_row_label);
-		final String label = AddressBookProvider.resolveLabel(context, address.toString());
+		final String label = AddressBookProvider.resolveLabel(context, entry.addressString);
 		if (label != null)
 		{
 			labelView.setText(label);
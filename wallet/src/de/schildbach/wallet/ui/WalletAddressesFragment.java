@@ -17,8 +17,6 @@
 
 package de.schildbach.wallet.ui;
 
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import javax.annotation.Nonnull;
@@ -54,6 +52,7 @@ import com.google.fastcoin.utils.Threading;
 import de.schildbach.wallet.AddressBookProvider;
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.KeyRegistry;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.util.BitmapFragment;
 import de.schildbach.wallet.util.Qr;
@@ -92,7 +91,7 @@ public final class WalletAddressesFragment extends SherlockListFragment
 
 		setHasOptionsMenu(true);
 
-		adapter = new WalletAddressesAdapter(activity, wallet);
+		adapter = new WalletAddressesAdapter(activity);
 
 		final Address selectedAddress = application.determineSelectedAddress();
 		adapter.setSelectedAddress(selectedAddress.toString());
@@ -180,9 +179,7 @@ public final class WalletAddressesFragment extends SherlockListFragment
 			@Override
 			public boolean onPrepareActionMode(final ActionMode mode, final Menu menu)
 			{
-				final ECKey key = getKey(position);
-
-				final String address = key.toAddress(Constants.NETWORK_PARAMETERS).toString();
+				final String address = getEntry(position).addressString;
 				final String label = AddressBookProvider.resolveLabel(activity, address);
 				mode.setTitle(label != null ? label : WalletUtils.formatHash(address, Constants.ADDRESS_FORMAT_GROUP_SIZE, 0));
 
@@ -234,14 +231,14 @@ public final class WalletAddressesFragment extends SherlockListFragment
 			{
 			}
 
-			private ECKey getKey(final int position)
+			private KeyRegistry.Entry getEntry(final int position)
 			{
-				return (ECKey) getListAdapter().getItem(position);
+				return (KeyRegistry.Entry) getListAdapter().getItem(position);
 			}
 
 			private Address getAddress(final int position)
 			{
-				return getKey(position).toAddress(Constants.NETWORK_PARAMETERS);
+				return getEntry(position).address;
 			}
 
 			private void handleEdit(@Nonnull final Address address)
@@ -295,25 +292,8 @@ public final class WalletAddressesFragment extends SherlockListFragment
 		@Override
 		public void onKeysAdded(final Wallet w, final List<ECKey> keysAdded)
 		{
-			final List<ECKey> keys = wallet.getKeys();
-
-			Collections.sort(keys, new Comparator<ECKey>()
-			{
-				@Override
-				public int compare(final ECKey lhs, final ECKey rhs)
-				{
-					final boolean lhsRotating = wallet.isKeyRotating(lhs);
-					final boolean rhsRotating = wallet.isKeyRotating(rhs);
-
-					if (lhsRotating != rhsRotating)
-						return lhsRotating ? 1 : -1;
-
-					if (lhs.getCreationTimeSeconds() != rhs.getCreationTimeSeconds())
-						return lhs.getCreationTimeSeconds() > rhs.getCreationTimeSeconds() ? 1 : -1;
-
-					return 0;
-				}
-			});
+			// already sorted by the registry
+			final List<KeyRegistry.Entry> keys = application.getKeyRegistry().sortedEntries();
 
 			handler.post(new Runnable()
 			{
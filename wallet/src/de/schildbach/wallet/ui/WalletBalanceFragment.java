@@ -80,6 +80,7 @@ public final class WalletBalanceFragment extends Fragment
 	@CheckForNull
 	private Date bestChainDate = null;
 	private boolean replaying = false;
+	private int replayProgress = -1;
 
 	private static final int ID_BALANCE_LOADER = 0;
 	private static final int ID_RATE_LOADER = 1;
@@ -181,8 +182,13 @@ public final class WalletBalanceFragment extends Fragment
 
 			showProgress = !(blockchainUptodate || !replaying);
 
-			final String downloading = getString(downloadOk ? R.string.blockchain_state_progress_downloading
-					: R.string.blockchain_state_progress_stalled);
+			final String downloading;
+			if (!downloadOk)
+				downloading = getString(R.string.blockchain_state_progress_stalled);
+			else if (replaying && replayProgress >= 0)
+				downloading = getString(R.string.blockchain_state_progress_replaying, replayProgress);
+			else
+				downloading = getString(R.string.blockchain_state_progress_downloading);
 
 			if (blockchainLag < 2 * DateUtils.DAY_IN_MILLIS)
 			{
@@ -264,6 +270,7 @@ public final class WalletBalanceFragment extends Fragment
 			download = intent.getIntExtra(BlockchainService.ACTION_BLOCKCHAIN_STATE_DOWNLOAD, BlockchainService.ACTION_BLOCKCHAIN_STATE_DOWNLOAD_OK);
 			bestChainDate = (Date) intent.getSerializableExtra(BlockchainService.ACTION_BLOCKCHAIN_STATE_BEST_CHAIN_DATE);
 			replaying = intent.getBooleanExtra(BlockchainService.ACTION_BLOCKCHAIN_STATE_REPLAYING, false);
+			replayProgress = intent.getIntExtra(BlockchainService.ACTION_BLOCKCHAIN_STATE_REPLAY_PROGRESS, -1);
 
 			updateView();
 		}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.Layout;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import de.schildbach.wallet.Constants;
+
+/**
+ * Appender that hands events to a background thread through a bounded ring buffer, so logging threads never wait for
+ * disk or logcat. The background thread writes to the log file in batches and feeds the attached appenders.
+ *
+ * <p>
+ * If the buffer is full, events below WARN are dropped, while WARN and ERROR events evict the oldest event. Drops are
+ * counted and noted in the log file. The log file is rotated at midnight and when it exceeds the maximum size; rotated
+ * files are compressed and kept for the given number of days.
+ * </p>
+ *
+ * @author Andreas Schildbach
+ */
+public final class AsyncLogAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+{
+	private static final long FLUSH_INTERVAL_MS = 500;
+	private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+	private Layout<ILoggingEvent> layout;
+	private File file;
+	private int capacity = 1024;
+	private long maxFileSize = 1024 * 1024;
+	private int maxHistory = 7;
+	private final List<Appender<ILoggingEvent>> appenders = new LinkedList<Appender<ILoggingEvent>>();
+
+	private ILoggingEvent[] buffer;
+	private int head = 0;
+	private int size = 0;
+	private long numAppended = 0;
+	private long numDropped = 0;
+	private long numDroppedUnreported = 0;
+	private long numBatches = 0;
+	private boolean flushRequested = false;
+	private long numRoundsStarted = 0;
+	private long numRoundsDone = 0;
+
+	private Thread writerThread;
+	@CheckForNull
+	private Writer writer;
+	private String day;
+	private final DateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+
+	public void setLayout(@Nonnull final Layout<ILoggingEvent> layout)
+	{
+		this.layout = layout;
+	}
+
+	public void setFile(@Nonnull final File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * @param capacity
+	 *            number of events the ring buffer holds, defaults to 1024
+	 */
+	public void setCapacity(final int capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param maxFileSize
+	 *            size in bytes after which the log file is rotated, defaults to 1 MB
+	 */
+	public void setMaxFileSize(final long maxFileSize)
+	{
+		this.maxFileSize = maxFileSize;
+	}
+
+	/**
+	 * @param maxHistory
+	 *            days to keep rotated log files, defaults to 7
+	 */
+	public void setMaxHistory(final int maxHistory)
+	{
+		this.maxHistory = maxHistory;
+	}
+
+	/**
+	 * Attaches an appender to be fed from the background thread, e.g. for logcat.
+	 */
+	public void addAppender(@Nonnull final Appender<ILoggingEvent> appender)
+	{
+		appenders.add(appender);
+	}
+
+	@Override
+	public void start()
+	{
+		if (layout == null || file == null)
+		{
+			addError("layout and file must be set for appender " + name);
+			return;
+		}
+
+		buffer = new ILoggingEvent[capacity];
+		day = dayFormat.format(new Date(file.exists() ? file.lastModified() : System.currentTimeMillis()));
+
+		writerThread = new Thread("log writer")
+		{
+			@Override
+			public void run()
+			{
+				writeLoop();
+			}
+		};
+		writerThread.setDaemon(true);
+		writerThread.setPriority(Thread.MIN_PRIORITY);
+
+		super.start();
+		writerThread.start();
+	}
+
+	/**
+	 * Stops accepting events and waits for the buffered ones to be written.
+	 */
+	@Override
+	public void stop()
+	{
+		if (!isStarted())
+			return;
+
+		super.stop();
+
+		synchronized (this)
+		{
+			notifyAll();
+		}
+
+		try
+		{
+			writerThread.join(FLUSH_INTERVAL_MS * 4);
+		}
+		catch (final InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Asks the background thread to write out what is buffered, rather than waiting for the flush interval or for the
+	 * buffer to fill up.
+	 */
+	public synchronized void flush()
+	{
+		flushRequested = true;
+		notifyAll();
+	}
+
+	/**
+	 * Like {@link #flush()}, but waits until the events buffered so far have been written, e.g. before the process dies
+	 * from a crash.
+	 *
+	 * @return true if everything was written in time
+	 */
+	public synchronized boolean flushAndWait(final long timeoutMs)
+	{
+		if (!isStarted() || Thread.currentThread() == writerThread)
+			return false;
+
+		// a round in progress may have taken its batch before the events now buffered
+		final long target = size > 0 ? numRoundsStarted + 1 : numRoundsStarted;
+		flushRequested = true;
+		notifyAll();
+
+		final long deadline = System.currentTimeMillis() + timeoutMs;
+		while (numRoundsDone < target)
+		{
+			final long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+
+			try
+			{
+				wait(remaining);
+			}
+			catch (final InterruptedException x)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	protected void append(final ILoggingEvent event)
+	{
+		// capture thread name, formatted message and MDC on the calling thread
+		event.prepareForDeferredProcessing();
+
+		synchronized (this)
+		{
+			if (size == capacity)
+			{
+				numDropped++;
+				numDroppedUnreported++;
+
+				if (!event.getLevel().isGreaterOrEqual(Level.WARN))
+					return;
+
+				// evict oldest
+				buffer[head] = null;
+				head = (head + 1) % capacity;
+				size--;
+			}
+
+			buffer[(head + size) % capacity] = event;
+			size++;
+			numAppended++;
+
+			// wake the writer only if it's worth a batch, or for events we don't want to lose on a crash
+			if (size == capacity / 2 || event.getLevel().isGreaterOrEqual(Level.WARN))
+				notifyAll();
+		}
+	}
+
+	public synchronized long getNumAppended()
+	{
+		return numAppended;
+	}
+
+	public synchronized long getNumDropped()
+	{
+		return numDropped;
+	}
+
+	public synchronized long getNumBatches()
+	{
+		return numBatches;
+	}
+
+	private void writeLoop()
+	{
+		final ILoggingEvent[] batch = new ILoggingEvent[capacity];
+
+		while (true)
+		{
+			final int batchSize;
+			final long dropped;
+			final boolean stopping;
+
+			synchronized (this)
+			{
+				// batch up events for the flush interval, unless woken early
+				if (size < capacity / 2 && !flushRequested && isStarted())
+				{
+					try
+					{
+						wait(FLUSH_INTERVAL_MS);
+					}
+					catch (final InterruptedException x)
+					{
+						// swallow
+					}
+				}
+
+				batchSize = size;
+				for (int i = 0; i < batchSize; i++)
+				{
+					batch[i] = buffer[head];
+					buffer[head] = null;
+					head = (head + 1) % capacity;
+				}
+				size = 0;
+
+				dropped = numDroppedUnreported;
+				numDroppedUnreported = 0;
+				flushRequested = false;
+				stopping = !isStarted();
+
+				if (batchSize > 0)
+					numBatches++;
+				numRoundsStarted++;
+			}
+
+			if (batchSize > 0 || dropped > 0)
+				writeBatch(batch, batchSize, dropped);
+
+			for (int i = 0; i < batchSize; i++)
+			{
+				for (final Appender<ILoggingEvent> appender : appenders)
+					appender.doAppend(batch[i]);
+				batch[i] = null;
+			}
+
+			synchronized (this)
+			{
+				numRoundsDone++;
+				notifyAll();
+			}
+
+			if (stopping)
+			{
+				closeWriter();
+				return;
+			}
+		}
+	}
+
+	private void writeBatch(final ILoggingEvent[] batch, final int batchSize, final long dropped)
+	{
+		final StringBuilder text = new StringBuilder(batchSize * 128);
+		if (dropped > 0)
+			text.append("log buffer full, dropped ").append(dropped).append(" events\n");
+		for (int i = 0; i < batchSize; i++)
+			text.append(layout.doLayout(batch[i]));
+
+		try
+		{
+			rotateIfNeeded();
+
+			if (writer == null)
+				writer = new OutputStreamWriter(new FileOutputStream(file, true), Constants.UTF_8);
+
+			writer.write(text.toString());
+			writer.flush();
+		}
+		catch (final IOException x)
+		{
+			addError("problem writing " + file, x);
+			closeWriter();
+		}
+	}
+
+	private void rotateIfNeeded() throws IOException
+	{
+		final String today = dayFormat.format(new Date());
+		if (day.equals(today) && file.length() < maxFileSize)
+			return;
+
+		closeWriter();
+
+		final String rotatedDay = day;
+		day = today;
+		if (!file.exists())
+			return;
+
+		final String baseName = file.getName().replaceFirst("\\.log$", "");
+		final File dir = file.getParentFile();
+		File rotated;
+		int index = 0;
+		do
+			rotated = new File(dir, String.format(Locale.US, "%s.%s.%d.log.gz", baseName, rotatedDay, index++));
+		while (rotated.exists());
+
+		compress(file, rotated);
+		file.delete();
+
+		// purge rotated files that are too old
+		final long purgeBefore = System.currentTimeMillis() - maxHistory * DAY_MS;
+		final File[] files = dir.listFiles();
+		if (files != null)
+			for (final File f : files)
+				if (f.getName().startsWith(baseName + ".") && f.getName().endsWith(".log.gz") && f.lastModified() < purgeBefore)
+					f.delete();
+	}
+
+	private static void compress(@Nonnull final File source, @Nonnull final File target) throws IOException
+	{
+		InputStream is = null;
+		OutputStream os = null;
+
+		try
+		{
+			is = new FileInputStream(source);
+			os = new GZIPOutputStream(new FileOutputStream(target));
+			Io.copy(is, os);
+		}
+		finally
+		{
+			if (os != null)
+			{
+				try
+				{
+					os.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+
+	private void closeWriter()
+	{
+		if (writer != null)
+		{
+			try
+			{
+				writer.close();
+			}
+			catch (final IOException x)
+			{
+				// swallow
+			}
+
+			writer = null;
+		}
+	}
+}
@@ -31,6 +31,7 @@ import java.util.Formatter;
 import java.util.List;
 import java.util.Set;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import org.slf4j.Logger;
@@ -63,13 +64,22 @@ public class CrashReporter
 
 	private static File backgroundTracesFile;
 	private static File crashTraceFile;
+	@CheckForNull
+	private static AsyncLogAppender logAppender;
+
+	private static final long LOG_FLUSH_TIMEOUT_MS = 1000;
 
 	private static final Logger log = LoggerFactory.getLogger(CrashReporter.class);
 
-	public static void init(@Nonnull final File cacheDir)
+	/**
+	 * @param logAppender
+	 *            appender whose buffered events are written out before the process dies from a crash
+	 */
+	public static void init(@Nonnull final File cacheDir, @CheckForNull final AsyncLogAppender logAppender)
 	{
 		backgroundTracesFile = new File(cacheDir, BACKGROUND_TRACES_FILENAME);
 		crashTraceFile = new File(cacheDir, CRASH_TRACE_FILENAME);
+		CrashReporter.logAppender = logAppender;
 
 		Thread.setDefaultUncaughtExceptionHandler(new ExceptionHandler(Thread.getDefaultUncaughtExceptionHandler()));
 	}
@@ -206,7 +216,26 @@ public class CrashReporter
 		report.append("Time of last update: " + String.format("%tF %tT %tz", pi.lastUpdateTime, pi.lastUpdateTime, pi.lastUpdateTime) + "\n");
 		report.append("Time of first install: " + String.format("%tF %tT %tz", pi.firstInstallTime, pi.firstInstallTime, pi.firstInstallTime) + "\n");
 		report.append("Network: " + Constants.NETWORK_PARAMETERS.getId() + "\n");
-		final Wallet wallet = application.getWallet();
+		if (application.getWalletFuture().isDone())
+			appendWalletInfo(report, application.getWallet());
+		else
+			report.append("Wallet: still loading\n");
+
+		report.append("Databases:");
+		for (final String db : application.databaseList())
+			report.append(" " + db);
+		report.append("\n");
+
+		final File filesDir = application.getFilesDir();
+		report.append("\nContents of FilesDir " + filesDir + ":\n");
+		appendDir(report, filesDir, 0);
+		final File logDir = application.getDir("log", Context.MODE_PRIVATE);
+		report.append("\nContents of LogDir " + logDir + ":\n");
+		appendDir(report, logDir, 0);
+	}
+
+	private static void appendWalletInfo(@Nonnull final Appendable report, @Nonnull final Wallet wallet) throws IOException
+	{
 		report.append("Keychain size: " + wallet.getKeychainSize() + "\n");
 
 		final Set<Transaction> transactions = wallet.getTransactions(true);
@@ -228,18 +257,6 @@ public class CrashReporter
 		report.append("Inputs: " + numInputs + "\n");
 		report.append("Outputs: " + numOutputs + " (spent: " + numSpentOutputs + ")\n");
 		report.append("Last block seen: " + wallet.getLastBlockSeenHeight() + " (" + wallet.getLastBlockSeenHash() + ")\n");
-
-		report.append("Databases:");
-		for (final String db : application.databaseList())
-			report.append(" " + db);
-		report.append("\n");
-
-		final File filesDir = application.getFilesDir();
-		report.append("\nContents of FilesDir " + filesDir + ":\n");
-		appendDir(report, filesDir, 0);
-		final File logDir = application.getDir("log", Context.MODE_PRIVATE);
-		report.append("\nContents of LogDir " + logDir + ":\n");
-		appendDir(report, logDir, 0);
 	}
 
 	private static void appendDir(@Nonnull final Appendable report, @Nonnull final File file, final int indent) throws IOException
@@ -297,6 +314,15 @@ public class CrashReporter
 		}
 	}
 
+	/**
+	 * Writes out buffered log events synchronously, so the lines leading up to a crash are not lost with the process.
+	 */
+	public static void flushLog()
+	{
+		if (logAppender != null)
+			logAppender.flushAndWait(LOG_FLUSH_TIMEOUT_MS);
+	}
+
 	private static class ExceptionHandler implements Thread.UncaughtExceptionHandler
 	{
 		private final Thread.UncaughtExceptionHandler previousHandler;
@@ -318,6 +344,8 @@ public class CrashReporter
 				log.info("problem writing crash trace", x);
 			}
 
+			flushLog();
+
 			previousHandler.uncaughtException(t, exception);
 		}
 
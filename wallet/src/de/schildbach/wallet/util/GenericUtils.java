@@ -18,9 +18,8 @@
 package de.schildbach.wallet.util;
 
 import java.lang.reflect.Method;
-import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.util.Locale;
+import java.math.RoundingMode;
 
 import javax.annotation.Nonnull;
 
@@ -37,8 +36,7 @@ public class GenericUtils
 	public static final BigInteger ONE_FST = new BigInteger("100000000", 10);
 	public static final BigInteger ONE_MFST = new BigInteger("100000", 10);
 
-	private static final int ONE_FST_INT = ONE_FST.intValue();
-	private static final int ONE_MFST_INT = ONE_MFST.intValue();
+	private static final Money MAX_MONEY = Money.valueOf(NetworkParameters.MAX_MONEY);
 
 	public static String formatValue(@Nonnull final BigInteger value, final int precision, final int shift)
 	{
@@ -48,74 +46,19 @@ public class GenericUtils
 	public static String formatValue(@Nonnull final BigInteger value, @Nonnull final String plusSign, @Nonnull final String minusSign,
 			final int precision, final int shift)
 	{
-		long longValue = value.longValue();
-
-		final String sign = longValue < 0 ? minusSign : plusSign;
-
-		if (shift == 0)
-		{
-			if (precision == 2)
-				longValue = longValue - longValue % 1000000 + longValue % 1000000 / 500000 * 1000000;
-			else if (precision == 4)
-				longValue = longValue - longValue % 10000 + longValue % 10000 / 5000 * 10000;
-			else if (precision == 6)
-				longValue = longValue - longValue % 100 + longValue % 100 / 50 * 100;
-			else if (precision == 8)
-				;
-			else
-				throw new IllegalArgumentException("cannot handle precision/shift: " + precision + "/" + shift);
-
-			final long absValue = Math.abs(longValue);
-			final long coins = absValue / ONE_FST_INT;
-			final int satoshis = (int) (absValue % ONE_FST_INT);
-
-			if (satoshis % 1000000 == 0)
-				return String.format(Locale.US, "%s%d.%02d", sign, coins, satoshis / 1000000);
-			else if (satoshis % 10000 == 0)
-				return String.format(Locale.US, "%s%d.%04d", sign, coins, satoshis / 10000);
-			else if (satoshis % 100 == 0)
-				return String.format(Locale.US, "%s%d.%06d", sign, coins, satoshis / 100);
-			else
-				return String.format(Locale.US, "%s%d.%08d", sign, coins, satoshis);
-		}
-		else if (shift == 3)
-		{
-			if (precision == 2)
-				longValue = longValue - longValue % 1000 + longValue % 1000 / 500 * 1000;
-			else if (precision == 4)
-				longValue = longValue - longValue % 10 + longValue % 10 / 5 * 10;
-			else if (precision == 5)
-				;
-			else
-				throw new IllegalArgumentException("cannot handle precision/shift: " + precision + "/" + shift);
-
-			final long absValue = Math.abs(longValue);
-			final long coins = absValue / ONE_MFST_INT;
-			final int satoshis = (int) (absValue % ONE_MFST_INT);
-
-			if (satoshis % 1000 == 0)
-				return String.format(Locale.US, "%s%d.%02d", sign, coins, satoshis / 1000);
-			else if (satoshis % 10 == 0)
-				return String.format(Locale.US, "%s%d.%04d", sign, coins, satoshis / 10);
-			else
-				return String.format(Locale.US, "%s%d.%05d", sign, coins, satoshis);
-		}
-		else
-		{
-			throw new IllegalArgumentException("cannot handle shift: " + shift);
-		}
+		return Money.valueOf(value).format(plusSign, minusSign, precision, shift);
 	}
 
 	public static BigInteger toNanoCoins(final String value, final int shift) throws ArithmeticException
 	{
-		final BigInteger nanoCoins = new BigDecimal(value).movePointRight(8 - shift).toBigIntegerExact();
+		final Money nanoCoins = Money.parse(value, shift, RoundingMode.UNNECESSARY);
 
 		if (nanoCoins.signum() < 0)
 			throw new ArithmeticException("negative amount: " + value);
-		if (nanoCoins.compareTo(NetworkParameters.MAX_MONEY) > 0)
+		if (nanoCoins.compareTo(MAX_MONEY) > 0)
 			throw new ArithmeticException("amount too large: " + value);
 
-		return nanoCoins;
+		return nanoCoins.toBigInteger();
 	}
 
 	public static boolean startsWithIgnoreCase(final String string, final String prefix)
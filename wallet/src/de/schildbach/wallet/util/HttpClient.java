@@ -0,0 +1,433 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import de.schildbach.wallet.Constants;
+
+/**
+ * HTTP layer shared by everything in the app that talks to web servers.
+ *
+ * <p>
+ * Connections are kept alive and reused: responses are read to the end and closed, rather than the connection being
+ * disconnected. Responses are requested gzipped. Conditional requests send the ETag and Last-Modified validators of the
+ * last committed response per URL and report a 304 as not modified, so the caller can keep what it parsed before. The TLS context trusting the
+ * bundled keystore is built once. Latencies are recorded per host.
+ * </p>
+ *
+ * @author Andreas Schildbach
+ */
+public final class HttpClient
+{
+	private static final int MAX_CONNECTIONS = 8;
+	private static final int MAX_VALIDATORS = 32;
+
+	public static final class Request
+	{
+		private final URL url;
+		private String method = "GET";
+		@CheckForNull
+		private String userAgent;
+		@CheckForNull
+		private String accept;
+		@CheckForNull
+		private String contentType;
+		@CheckForNull
+		private byte[] body;
+		private int timeoutMs = Constants.HTTP_TIMEOUT_MS;
+		private boolean conditional = false;
+		private boolean useKeyStore = false;
+
+		public Request(@Nonnull final URL url)
+		{
+			this.url = url;
+		}
+
+		/**
+		 * Turns the request into a POST of the given body.
+		 */
+		public Request post(@Nonnull final String contentType, @Nonnull final byte[] body)
+		{
+			this.method = "POST";
+			this.contentType = contentType;
+			this.body = body;
+			return this;
+		}
+
+		public Request userAgent(@CheckForNull final String userAgent)
+		{
+			this.userAgent = userAgent;
+			return this;
+		}
+
+		public Request accept(@Nonnull final String accept)
+		{
+			this.accept = accept;
+			return this;
+		}
+
+		public Request timeout(final int timeoutMs)
+		{
+			this.timeoutMs = timeoutMs;
+			return this;
+		}
+
+		/**
+		 * Sends the validators of the last committed response to this URL, see {@link Response#isNotModified()} and
+		 * {@link Response#commit()}.
+		 */
+		public Request conditional()
+		{
+			this.conditional = true;
+			return this;
+		}
+
+		/**
+		 * Trusts only the certificates in the bundled keystore.
+		 */
+		public Request useKeyStore()
+		{
+			this.useKeyStore = true;
+			return this;
+		}
+	}
+
+	public final class Response
+	{
+		private final Request request;
+		private final HttpURLConnection connection;
+		private final long start;
+		public final int code;
+		@CheckForNull
+		public final String message;
+		@CheckForNull
+		public final String contentType;
+		public final long date;
+		@CheckForNull
+		private InputStream is;
+
+		private Response(@Nonnull final Request request, @Nonnull final HttpURLConnection connection, final long start) throws IOException
+		{
+			this.request = request;
+			this.connection = connection;
+			this.start = start;
+			this.code = connection.getResponseCode();
+			this.message = connection.getResponseMessage();
+			this.contentType = connection.getContentType();
+			this.date = connection.getDate();
+		}
+
+		public boolean isOk()
+		{
+			return code == HttpURLConnection.HTTP_OK;
+		}
+
+		/**
+		 * @return true if the request was conditional and the resource didn't change since the last response
+		 */
+		public boolean isNotModified()
+		{
+			return code == HttpURLConnection.HTTP_NOT_MODIFIED;
+		}
+
+		/**
+		 * @return body of the response, decompressed
+		 */
+		public InputStream getInputStream() throws IOException
+		{
+			if (is == null)
+			{
+				final InputStream raw = connection.getInputStream();
+				is = "gzip".equalsIgnoreCase(connection.getContentEncoding()) ? new GZIPInputStream(raw) : raw;
+			}
+
+			return is;
+		}
+
+		/**
+		 * Remembers the validators of this response for the next conditional request. Call this only once the body has
+		 * been used successfully, otherwise the next request may be answered with a 304 for content that was never
+		 * taken.
+		 */
+		public void commit()
+		{
+			if (request.conditional && isOk())
+				rememberValidators(request.url, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+		}
+
+		/**
+		 * Reads the rest of the body and closes it, so the connection goes back to the pool.
+		 */
+		public void close()
+		{
+			try
+			{
+				final InputStream body = code < 400 ? getInputStream() : connection.getErrorStream();
+				if (body != null)
+				{
+					final byte[] buffer = new byte[1024];
+					while (body.read(buffer) != -1)
+						;
+					body.close();
+				}
+			}
+			catch (final IOException x)
+			{
+				// cannot reuse this one
+				connection.disconnect();
+			}
+
+			record(request.url.getHost(), System.currentTimeMillis() - start, isNotModified(), false);
+		}
+	}
+
+	public static final class HostStats
+	{
+		public int numRequests;
+		public int numFailures;
+		public int numNotModified;
+		public long totalMs;
+		public long maxMs;
+
+		public long averageMs()
+		{
+			return numRequests > 0 ? totalMs / numRequests : -1;
+		}
+
+		@Override
+		public String toString()
+		{
+			return numRequests + " requests, " + numFailures + " failures, " + numNotModified + " not modified, avg " + averageMs() + "ms, max "
+					+ maxMs + "ms";
+		}
+	}
+
+	private static HttpClient instance;
+
+	private final AssetManager assets;
+	@CheckForNull
+	private SSLSocketFactory keyStoreSocketFactory;
+	private final Map<String, String[]> validators = new LinkedHashMap<String, String[]>(MAX_VALIDATORS, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, String[]> eldest)
+		{
+			return size() > MAX_VALIDATORS;
+		}
+	};
+	private final Map<String, HostStats> stats = new HashMap<String, HostStats>();
+
+	private static final Logger log = LoggerFactory.getLogger(HttpClient.class);
+
+	/**
+	 * @return the process wide client
+	 */
+	public static synchronized HttpClient getInstance(@Nonnull final Context context)
+	{
+		if (instance == null)
+		{
+			// default of 5 idle connections is a bit tight for parallel rate sources
+			System.setProperty("http.keepAlive", "true");
+			System.setProperty("http.maxConnections", Integer.toString(MAX_CONNECTIONS));
+
+			instance = new HttpClient(context.getApplicationContext().getAssets());
+		}
+
+		return instance;
+	}
+
+	HttpClient(@Nonnull final AssetManager assets)
+	{
+		this.assets = assets;
+	}
+
+	/**
+	 * Sends the request and receives the response headers. The caller must {@link Response#close()} the response.
+	 */
+	public Response execute(@Nonnull final Request request) throws IOException
+	{
+		final long start = System.currentTimeMillis();
+
+		try
+		{
+			final HttpURLConnection connection = (HttpURLConnection) request.url.openConnection();
+
+			if (request.useKeyStore && connection instanceof HttpsURLConnection)
+				((HttpsURLConnection) connection).setSSLSocketFactory(keyStoreSocketFactory());
+
+			connection.setInstanceFollowRedirects(false);
+			connection.setConnectTimeout(request.timeoutMs);
+			connection.setReadTimeout(request.timeoutMs);
+			connection.setUseCaches(false);
+			connection.setRequestMethod(request.method);
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			connection.setRequestProperty("Accept-Charset", "utf-8");
+			if (request.accept != null)
+				connection.setRequestProperty("Accept", request.accept);
+			if (request.userAgent != null)
+				connection.setRequestProperty("User-Agent", request.userAgent);
+
+			if (request.conditional)
+			{
+				final String[] urlValidators = validators(request.url);
+				if (urlValidators != null && urlValidators[0] != null)
+					connection.setRequestProperty("If-None-Match", urlValidators[0]);
+				if (urlValidators != null && urlValidators[1] != null)
+					connection.setRequestProperty("If-Modified-Since", urlValidators[1]);
+			}
+
+			if (request.body != null)
+			{
+				connection.setDoOutput(true);
+				connection.setRequestProperty("Content-Type", request.contentType);
+				connection.setFixedLengthStreamingMode(request.body.length);
+
+				final OutputStream os = connection.getOutputStream();
+				os.write(request.body);
+				os.close();
+			}
+
+			return new Response(request, connection, start);
+		}
+		catch (final IOException x)
+		{
+			record(request.url.getHost(), System.currentTimeMillis() - start, false, true);
+			throw x;
+		}
+	}
+
+	/**
+	 * @return copy of the latency statistics, by host. The exchange rates provider logs them after each refresh.
+	 */
+	public synchronized Map<String, HostStats> getStats()
+	{
+		final Map<String, HostStats> copy = new HashMap<String, HostStats>(stats.size());
+		for (final Map.Entry<String, HostStats> entry : stats.entrySet())
+		{
+			final HostStats s = new HostStats();
+			s.numRequests = entry.getValue().numRequests;
+			s.numFailures = entry.getValue().numFailures;
+			s.numNotModified = entry.getValue().numNotModified;
+			s.totalMs = entry.getValue().totalMs;
+			s.maxMs = entry.getValue().maxMs;
+			copy.put(entry.getKey(), s);
+		}
+		return copy;
+	}
+
+	private synchronized void record(@Nonnull final String host, final long latencyMs, final boolean notModified, final boolean failed)
+	{
+		HostStats hostStats = stats.get(host);
+		if (hostStats == null)
+		{
+			hostStats = new HostStats();
+			stats.put(host, hostStats);
+		}
+
+		hostStats.numRequests++;
+		if (failed)
+			hostStats.numFailures++;
+		if (notModified)
+			hostStats.numNotModified++;
+		hostStats.totalMs += latencyMs;
+		hostStats.maxMs = Math.max(hostStats.maxMs, latencyMs);
+
+		log.debug("{} took {}ms, {}", new Object[] { host, latencyMs, hostStats });
+	}
+
+	@CheckForNull
+	private synchronized String[] validators(@Nonnull final URL url)
+	{
+		return validators.get(url.toString());
+	}
+
+	private synchronized void rememberValidators(@Nonnull final URL url, @CheckForNull final String eTag, @CheckForNull final String lastModified)
+	{
+		if (eTag != null || lastModified != null)
+			validators.put(url.toString(), new String[] { eTag, lastModified });
+		else
+			validators.remove(url.toString());
+	}
+
+	private synchronized SSLSocketFactory keyStoreSocketFactory() throws IOException
+	{
+		if (keyStoreSocketFactory == null)
+		{
+			InputStream keystoreInputStream = null;
+
+			try
+			{
+				keystoreInputStream = assets.open("ssl-keystore");
+
+				final KeyStore keystore = KeyStore.getInstance("BKS");
+				keystore.load(keystoreInputStream, "password".toCharArray());
+
+				final TrustManagerFactory tmf = TrustManagerFactory.getInstance("X509");
+				tmf.init(keystore);
+
+				final SSLContext sslContext = SSLContext.getInstance("TLS");
+				sslContext.init(null, tmf.getTrustManagers(), null);
+
+				keyStoreSocketFactory = sslContext.getSocketFactory();
+			}
+			catch (final GeneralSecurityException x)
+			{
+				throw new IOException("cannot load keystore: " + x.getMessage());
+			}
+			finally
+			{
+				if (keystoreInputStream != null)
+				{
+					try
+					{
+						keystoreInputStream.close();
+					}
+					catch (final IOException x)
+					{
+						// swallow
+					}
+				}
+			}
+		}
+
+		return keyStoreSocketFactory;
+	}
+}
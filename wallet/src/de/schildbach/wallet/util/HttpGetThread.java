@@ -18,23 +18,16 @@
 package de.schildbach.wallet.util;
 
 import java.io.BufferedReader;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.URL;
-import java.security.KeyStore;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import android.content.res.AssetManager;
 import de.schildbach.wallet.Constants;
 
 /**
@@ -42,16 +35,16 @@ import de.schildbach.wallet.Constants;
  */
 public abstract class HttpGetThread extends Thread
 {
-	private final AssetManager assets;
+	private final HttpClient httpClient;
 	private final String url;
 	@CheckForNull
 	private final String userAgent;
 
 	private static final Logger log = LoggerFactory.getLogger(HttpGetThread.class);
 
-	public HttpGetThread(@Nonnull final AssetManager assets, @Nonnull final String url, @Nullable final String userAgent)
+	public HttpGetThread(@Nonnull final HttpClient httpClient, @Nonnull final String url, @Nullable final String userAgent)
 	{
-		this.assets = assets;
+		this.httpClient = httpClient;
 		this.url = url;
 		this.userAgent = userAgent;
 	}
@@ -59,47 +52,21 @@ public abstract class HttpGetThread extends Thread
 	@Override
 	public void run()
 	{
-		HttpURLConnection connection = null;
+		HttpClient.Response response = null;
 
 		log.debug("querying \"" + url + "\"...");
 
 		try
 		{
-			connection = (HttpURLConnection) new URL(url).openConnection();
+			response = httpClient.execute(new HttpClient.Request(new URL(url)).useKeyStore().userAgent(userAgent));
 
-			if (connection instanceof HttpsURLConnection)
+			if (response.isOk())
 			{
-				final InputStream keystoreInputStream = assets.open("ssl-keystore");
+				final long serverTime = response.date;
+				// TODO parse response.contentType for charset
 
-				final KeyStore keystore = KeyStore.getInstance("BKS");
-				keystore.load(keystoreInputStream, "password".toCharArray());
-				keystoreInputStream.close();
-
-				final TrustManagerFactory tmf = TrustManagerFactory.getInstance("X509");
-				tmf.init(keystore);
-
-				final SSLContext sslContext = SSLContext.getInstance("TLS");
-				sslContext.init(null, tmf.getTrustManagers(), null);
-
-				((HttpsURLConnection) connection).setSSLSocketFactory(sslContext.getSocketFactory());
-			}
-
-			connection.setInstanceFollowRedirects(false);
-			connection.setConnectTimeout(Constants.HTTP_TIMEOUT_MS);
-			connection.setReadTimeout(Constants.HTTP_TIMEOUT_MS);
-			connection.setRequestProperty("Accept-Charset", "utf-8");
-			if (userAgent != null)
-				connection.addRequestProperty("User-Agent", userAgent);
-			connection.connect();
-
-			if (connection.getResponseCode() == HttpURLConnection.HTTP_OK)
-			{
-				final long serverTime = connection.getDate();
-				// TODO parse connection.getContentType() for charset
-
-				final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), Constants.UTF_8), 64);
+				final BufferedReader reader = new BufferedReader(new InputStreamReader(response.getInputStream(), Constants.UTF_8), 64);
 				final String line = reader.readLine().trim();
-				reader.close();
 
 				handleLine(line, serverTime);
 			}
@@ -110,8 +77,8 @@ public abstract class HttpGetThread extends Thread
 		}
 		finally
 		{
-			if (connection != null)
-				connection.disconnect();
+			if (response != null)
+				response.close();
 		}
 	}
 
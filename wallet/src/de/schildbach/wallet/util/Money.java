@@ -0,0 +1,410 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Immutable fixed-point number with 8 decimals, backed by a long. Used for amounts of coins or local currency, and for
+ * exchange rates per coin.
+ *
+ * <p>
+ * Arithmetic is exact or rounds with an explicit {@link RoundingMode}, and throws {@link ArithmeticException} rather
+ * than overflowing. Multiplication and division use 128 bit intermediates, so converting an amount at a rate doesn't
+ * allocate anything but the result.
+ * </p>
+ *
+ * @author Andreas Schildbach
+ */
+public final class Money implements Comparable<Money>
+{
+	public static final int SCALE = 8;
+	public static final long ONE_UNIT = 100000000;
+
+	public static final Money ZERO = new Money(0);
+	public static final Money ONE = new Money(ONE_UNIT);
+
+	private static final long[] POWERS_OF_TEN = { 1l, 10l, 100l, 1000l, 10000l, 100000l, 1000000l, 10000000l, 100000000l };
+	private static final long LOW_MASK = 0xffffffffl;
+
+	private final long nanos;
+
+	private Money(final long nanos)
+	{
+		this.nanos = nanos;
+	}
+
+	public static Money valueOf(final long nanos)
+	{
+		return nanos == 0 ? ZERO : new Money(nanos);
+	}
+
+	/**
+	 * @throws ArithmeticException
+	 *             if the value doesn't fit into a long
+	 */
+	public static Money valueOf(@Nonnull final BigInteger nanos)
+	{
+		if (nanos.bitLength() > 63)
+			throw new ArithmeticException("out of range: " + nanos);
+
+		return valueOf(nanos.longValue());
+	}
+
+	/**
+	 * Parses a decimal number like "-12.345".
+	 *
+	 * @param shift
+	 *            number of decimals the value is shifted by, e.g. 3 for milli units
+	 * @param roundingMode
+	 *            applied to decimals beyond the scale, {@link RoundingMode#UNNECESSARY} to reject them
+	 * @throws NumberFormatException
+	 *             if the string is not a decimal number
+	 * @throws ArithmeticException
+	 *             if the value is out of range or needs rounding that isn't allowed
+	 */
+	public static Money parse(@Nonnull final String value, final int shift, @Nonnull final RoundingMode roundingMode)
+	{
+		final int length = value.length();
+		if (value.indexOf('e') >= 0 || value.indexOf('E') >= 0)
+			return valueOf(new BigDecimal(value).movePointRight(SCALE - shift).setScale(0, roundingMode).toBigIntegerExact());
+
+		int i = 0;
+		boolean negative = false;
+		if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+'))
+			negative = value.charAt(i++) == '-';
+
+		final int decimals = SCALE - shift;
+		long units = 0;
+		long fraction = 0;
+		int numFractionDigits = 0;
+		int numDigits = 0;
+		boolean inFraction = false;
+		boolean discardedNonZero = false;
+		int firstDiscarded = -1;
+
+		for (; i < length; i++)
+		{
+			final char c = value.charAt(i);
+			if (c == '.' && !inFraction)
+			{
+				inFraction = true;
+			}
+			else if (c >= '0' && c <= '9')
+			{
+				numDigits++;
+				final int digit = c - '0';
+				if (!inFraction)
+				{
+					if (units > (Long.MAX_VALUE - digit) / 10)
+						throw new ArithmeticException("out of range: " + value);
+					units = units * 10 + digit;
+				}
+				else if (numFractionDigits < decimals)
+				{
+					fraction = fraction * 10 + digit;
+					numFractionDigits++;
+				}
+				else if (firstDiscarded < 0)
+				{
+					firstDiscarded = digit;
+				}
+				else if (digit != 0)
+				{
+					discardedNonZero = true;
+				}
+			}
+			else
+			{
+				throw new NumberFormatException("not a decimal number: " + value);
+			}
+		}
+
+		if (numDigits == 0)
+			throw new NumberFormatException("not a decimal number: " + value);
+
+		final long unit = POWERS_OF_TEN[decimals];
+		if (units > Long.MAX_VALUE / unit)
+			throw new ArithmeticException("out of range: " + value);
+		long magnitude = units * unit + fraction * POWERS_OF_TEN[decimals - numFractionDigits];
+		if (magnitude < 0)
+			throw new ArithmeticException("out of range: " + value);
+
+		if (firstDiscarded > 0 || discardedNonZero)
+		{
+			// compare the discarded digits against one half
+			final int half = firstDiscarded > 5 || (firstDiscarded == 5 && discardedNonZero) ? 1 : (firstDiscarded == 5 ? 0 : -1);
+			if (roundAwayFromZero(magnitude, negative, half, roundingMode))
+				magnitude = checkedIncrement(magnitude);
+		}
+
+		return valueOf(negative ? -magnitude : magnitude);
+	}
+
+	public long longValue()
+	{
+		return nanos;
+	}
+
+	public BigInteger toBigInteger()
+	{
+		return BigInteger.valueOf(nanos);
+	}
+
+	public int signum()
+	{
+		return Long.signum(nanos);
+	}
+
+	public Money add(@Nonnull final Money other)
+	{
+		final long result = nanos + other.nanos;
+		// overflow iff both operands have the same sign and the result's sign differs
+		if (((nanos ^ result) & (other.nanos ^ result)) < 0)
+			throw new ArithmeticException("overflow: " + this + " + " + other);
+		return valueOf(result);
+	}
+
+	public Money subtract(@Nonnull final Money other)
+	{
+		final long result = nanos - other.nanos;
+		if (((nanos ^ other.nanos) & (nanos ^ result)) < 0)
+			throw new ArithmeticException("overflow: " + this + " - " + other);
+		return valueOf(result);
+	}
+
+	public Money negate()
+	{
+		if (nanos == Long.MIN_VALUE)
+			throw new ArithmeticException("overflow: -" + this);
+		return valueOf(-nanos);
+	}
+
+	public Money abs()
+	{
+		return nanos < 0 ? negate() : this;
+	}
+
+	/**
+	 * @return this times the given factor, e.g. an amount of coins at a rate per coin
+	 */
+	public Money multiply(@Nonnull final Money factor, @Nonnull final RoundingMode roundingMode)
+	{
+		return valueOf(multiplyDivide(nanos, factor.nanos, ONE_UNIT, roundingMode));
+	}
+
+	/**
+	 * @return this divided by the given divisor, e.g. an amount of local currency at a rate per coin
+	 */
+	public Money divide(@Nonnull final Money divisor, @Nonnull final RoundingMode roundingMode)
+	{
+		return valueOf(multiplyDivide(nanos, ONE_UNIT, divisor.nanos, roundingMode));
+	}
+
+	/**
+	 * @return this divided by the given integer, e.g. for averages
+	 */
+	public Money divide(final long divisor, @Nonnull final RoundingMode roundingMode)
+	{
+		return valueOf(multiplyDivide(nanos, 1, divisor, roundingMode));
+	}
+
+	/**
+	 * Computes a * b / c, with a 128 bit intermediate product.
+	 *
+	 * @throws ArithmeticException
+	 *             if c is zero, the result doesn't fit into a long, or rounding is necessary but not allowed
+	 */
+	public static long multiplyDivide(final long a, final long b, final long c, @Nonnull final RoundingMode roundingMode)
+	{
+		if (c == 0)
+			throw new ArithmeticException("division by zero");
+		if (a == Long.MIN_VALUE || b == Long.MIN_VALUE || c == Long.MIN_VALUE)
+			throw new ArithmeticException("out of range");
+		if (a == 0 || b == 0)
+			return 0;
+
+		final boolean negative = (a < 0) ^ (b < 0) ^ (c < 0);
+		final long x = Math.abs(a);
+		final long y = Math.abs(b);
+		final long divisor = Math.abs(c);
+
+		long quotient;
+		long remainder;
+
+		if (x <= Long.MAX_VALUE / y)
+		{
+			final long product = x * y;
+			quotient = product / divisor;
+			remainder = product % divisor;
+		}
+		else
+		{
+			// 128 bit product of two 63 bit values, in 32 bit halves
+			final long xHigh = x >>> 32, xLow = x & LOW_MASK;
+			final long yHigh = y >>> 32, yLow = y & LOW_MASK;
+			final long lowLow = xLow * yLow;
+			final long middle1 = xHigh * yLow + (lowLow >>> 32);
+			final long middle2 = xLow * yHigh + (middle1 & LOW_MASK);
+			final long high = xHigh * yHigh + (middle1 >>> 32) + (middle2 >>> 32);
+			long low = (middle2 << 32) | (lowLow & LOW_MASK);
+
+			if (high >= divisor)
+				throw new ArithmeticException("overflow: " + a + " * " + b + " / " + c);
+
+			// long division, one bit at a time
+			quotient = 0;
+			remainder = high;
+			for (int i = 0; i < 64; i++)
+			{
+				// remainder is below divisor, so after shifting it's below 2^64; negative means at least 2^63
+				remainder = (remainder << 1) | (low >>> 63);
+				low <<= 1;
+				quotient <<= 1;
+				if (remainder < 0 || remainder >= divisor)
+				{
+					remainder -= divisor;
+					quotient |= 1;
+				}
+			}
+
+			if (quotient < 0)
+				throw new ArithmeticException("overflow: " + a + " * " + b + " / " + c);
+		}
+
+		if (remainder != 0)
+		{
+			final long complement = divisor - remainder;
+			final int half = remainder > complement ? 1 : (remainder == complement ? 0 : -1);
+			if (roundAwayFromZero(quotient, negative, half, roundingMode))
+				quotient = checkedIncrement(quotient);
+		}
+
+		return negative ? -quotient : quotient;
+	}
+
+	/**
+	 * @param half
+	 *            comparison of the discarded fraction against one half, the fraction being non-zero
+	 */
+	private static boolean roundAwayFromZero(final long truncated, final boolean negative, final int half, @Nonnull final RoundingMode roundingMode)
+	{
+		switch (roundingMode)
+		{
+			case UP:
+				return true;
+			case DOWN:
+				return false;
+			case CEILING:
+				return !negative;
+			case FLOOR:
+				return negative;
+			case HALF_UP:
+				return half >= 0;
+			case HALF_DOWN:
+				return half > 0;
+			case HALF_EVEN:
+				return half > 0 || (half == 0 && (truncated & 1) == 1);
+			default:
+				throw new ArithmeticException("rounding necessary");
+		}
+	}
+
+	private static long checkedIncrement(final long magnitude)
+	{
+		if (magnitude == Long.MAX_VALUE)
+			throw new ArithmeticException("overflow");
+		return magnitude + 1;
+	}
+
+	/**
+	 * Formats with the given number of decimals, rounding half up. Trailing zeros are cut in groups of two, down to two
+	 * decimals.
+	 *
+	 * @param shift
+	 *            0 for coins, 3 for milli coins
+	 */
+	public String format(@Nonnull final String plusSign, @Nonnull final String minusSign, final int precision, final int shift)
+	{
+		final StringBuilder builder = new StringBuilder(24);
+		appendTo(builder, nanos, plusSign, minusSign, precision, shift);
+		return builder.toString();
+	}
+
+	public static void appendTo(@Nonnull final StringBuilder builder, final long nanos, @Nonnull final String plusSign,
+			@Nonnull final String minusSign, final int precision, final int shift)
+	{
+		final int decimals = SCALE - shift;
+		if ((shift != 0 && shift != 3) || precision < 2 || precision > decimals || (precision < decimals && precision % 2 != 0))
+			throw new IllegalArgumentException("cannot handle precision/shift: " + precision + "/" + shift);
+
+		final long rounded = multiplyDivide(nanos, 1, POWERS_OF_TEN[decimals - precision], RoundingMode.HALF_UP)
+				* POWERS_OF_TEN[decimals - precision];
+		final long magnitude = Math.abs(rounded);
+		final long unit = POWERS_OF_TEN[decimals];
+		long fraction = magnitude % unit;
+
+		// cut trailing zeros in pairs, after the odd fifth decimal of milli coins
+		int numFractionDigits = decimals;
+		while (numFractionDigits > 2 && fraction % POWERS_OF_TEN[numFractionDigits % 2 == 0 ? 2 : 1] == 0)
+		{
+			final int cut = numFractionDigits % 2 == 0 ? 2 : 1;
+			fraction /= POWERS_OF_TEN[cut];
+			numFractionDigits -= cut;
+		}
+
+		builder.append(nanos < 0 ? minusSign : plusSign);
+		builder.append(magnitude / unit);
+		builder.append('.');
+		for (int i = numFractionDigits - 1; i > 0 && fraction < POWERS_OF_TEN[i]; i--)
+			builder.append('0');
+		builder.append(fraction);
+	}
+
+	@Override
+	public int compareTo(final Money other)
+	{
+		return nanos < other.nanos ? -1 : (nanos == other.nanos ? 0 : 1);
+	}
+
+	@Override
+	public boolean equals(final Object o)
+	{
+		if (o == this)
+			return true;
+		if (!(o instanceof Money))
+			return false;
+		return nanos == ((Money) o).nanos;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return (int) (nanos ^ (nanos >>> 32));
+	}
+
+	@Override
+	public String toString()
+	{
+		return format("", "-", SCALE, 0);
+	}
+}
@@ -27,6 +27,7 @@ import javax.annotation.Nullable;
 import org.bitcoin.protocols.payments.Protos;
 
 import com.google.fastcoin.core.Address;
+import com.google.fastcoin.core.NetworkParameters;
 import com.google.fastcoin.core.Transaction;
 
 import com.google.fastcoin.protocols.payments.PaymentRequestException;
@@ -50,6 +51,8 @@ public final class PaymentProtocol
 	public static final String MIMETYPE_PAYMENT = "application/bitcoin-payment"; // BIP 71
 	public static final String MIMETYPE_PAYMENTACK = "application/bitcoin-paymentack"; // BIP 71
 
+	private static final Money MAX_MONEY = Money.valueOf(NetworkParameters.MAX_MONEY);
+
 	public static Protos.PaymentRequest createPaymentRequest(final BigInteger amount, @Nonnull final Address toAddress, final String memo,
 			final String paymentUrl)
 	{
@@ -118,9 +121,17 @@ public final class PaymentProtocol
 				throw new PaymentRequestException.InvalidNetwork("cannot handle payment request network: " + paymentDetails.getNetwork());
 
 			final ArrayList<PaymentIntent.Output> outputs = new ArrayList<PaymentIntent.Output>(paymentDetails.getOutputsCount());
+			Money totalAmount = Money.ZERO;
 			for (final Protos.Output output : paymentDetails.getOutputsList())
 			{
-				final BigInteger amount = BigInteger.valueOf(output.getAmount());
+				// amounts are unchecked input, and summing them must not overflow
+				final Money amount = Money.valueOf(output.getAmount());
+				if (amount.signum() < 0 || amount.compareTo(MAX_MONEY) > 0)
+					throw new PaymentRequestException("output amount out of range: " + output.getAmount());
+				totalAmount = totalAmount.add(amount);
+				if (totalAmount.compareTo(MAX_MONEY) > 0)
+					throw new PaymentRequestException("total amount out of range");
+
 				final Script script = new Script(output.getScript().toByteArray());
 				outputs.add(new PaymentIntent.Output(amount, script));
 			}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.schildbach.wallet.Constants;
+
+/**
+ * Records named spans of the cold start on a monotonic clock, from the first use of this class until the first frame
+ * of the main screen. On {@link #finish(File)} the spans are written to a trace file, one per line as name, thread,
+ * start and duration in microseconds (-1 if still open), and summarised in the log.
+ *
+ * @author Andreas Schildbach
+ */
+public final class StartupTrace
+{
+	private static final int MAX_SPANS = 64;
+
+	public static final class Span
+	{
+		public final String name;
+		public final String thread;
+		public final long startNanos;
+		private long endNanos = -1;
+
+		private Span(@Nonnull final String name, @Nonnull final String thread, final long startNanos)
+		{
+			this.name = name;
+			this.thread = thread;
+			this.startNanos = startNanos;
+		}
+
+		public void end()
+		{
+			synchronized (StartupTrace.class)
+			{
+				if (endNanos < 0)
+					endNanos = System.nanoTime();
+			}
+		}
+
+		public long durationNanos()
+		{
+			synchronized (StartupTrace.class)
+			{
+				return endNanos >= 0 ? endNanos - startNanos : -1;
+			}
+		}
+	}
+
+	private static long originNanos = System.nanoTime();
+	private static final List<Span> spans = new ArrayList<Span>();
+	private static boolean finished = false;
+
+	private static final Logger log = LoggerFactory.getLogger(StartupTrace.class);
+
+	private StartupTrace()
+	{
+	}
+
+	/**
+	 * Starts a span, to be closed with {@link Span#end()}. Spans started after {@link #finish(File)} are not recorded.
+	 */
+	public static synchronized Span begin(@Nonnull final String name)
+	{
+		final Span span = new Span(name, Thread.currentThread().getName(), System.nanoTime());
+
+		if (!finished && spans.size() < MAX_SPANS)
+			spans.add(span);
+
+		return span;
+	}
+
+	public static synchronized boolean isFinished()
+	{
+		return finished;
+	}
+
+	/**
+	 * Ends the trace, writes it to the given file and logs a summary. Only the first call has an effect.
+	 */
+	public static void finish(@Nonnull final File traceFile)
+	{
+		final long totalNanos;
+		final List<Span> finishedSpans;
+
+		synchronized (StartupTrace.class)
+		{
+			if (finished)
+				return;
+
+			finished = true;
+			totalNanos = System.nanoTime() - originNanos;
+			finishedSpans = new ArrayList<Span>(spans);
+		}
+
+		final StringBuilder summary = new StringBuilder();
+		Writer writer = null;
+
+		try
+		{
+			writer = new OutputStreamWriter(new FileOutputStream(traceFile), Constants.UTF_8);
+			writer.write("total\tmain\t0\t" + totalNanos / 1000 + "\n");
+
+			for (final Span span : finishedSpans)
+			{
+				final long durationNanos = span.durationNanos();
+				writer.write(span.name + "\t" + span.thread + "\t" + (span.startNanos - originNanos) / 1000 + "\t"
+						+ (durationNanos >= 0 ? durationNanos / 1000 : -1) + "\n");
+
+				if (summary.length() > 0)
+					summary.append(", ");
+				summary.append(span.name).append(' ').append(durationNanos >= 0 ? durationNanos / 1000000 + "ms" : "open");
+			}
+		}
+		catch (final IOException x)
+		{
+			log.info("problem writing startup trace", x);
+		}
+		finally
+		{
+			if (writer != null)
+			{
+				try
+				{
+					writer.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+
+		log.info("startup took {}ms: {}", totalNanos / 1000000, summary);
+	}
+
+	/**
+	 * Reads a trace file written by {@link #finish(File)}.
+	 *
+	 * @return lines split into name, thread, start and duration in microseconds; the first line is the total
+	 */
+	public static List<String[]> read(@Nonnull final File traceFile) throws IOException
+	{
+		final List<String[]> lines = new ArrayList<String[]>();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(traceFile), Constants.UTF_8));
+
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				final String[] fields = line.split("\t");
+				if (fields.length != 4)
+					throw new IOException("cannot parse: " + line);
+				lines.add(fields);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Starts over, for benchmarks that trace repeated runs in one process.
+	 */
+	public static synchronized void reset()
+	{
+		originNanos = System.nanoTime();
+		spans.clear();
+		finished = false;
+	}
+}
@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Writer;
 import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.util.Date;
@@ -55,7 +56,6 @@ import com.google.fastcoin.core.Sha256Hash;
 import com.google.fastcoin.core.Transaction;
 import com.google.fastcoin.core.TransactionInput;
 import com.google.fastcoin.core.TransactionOutput;
-import com.google.fastcoin.core.Wallet;
 import com.google.fastcoin.script.Script;
 
 import de.schildbach.wallet.Constants;
@@ -131,14 +131,20 @@ public class WalletUtils
 		}
 	}
 
-	public static BigInteger localValue(@Nonnull final BigInteger fstValue, @Nonnull final BigInteger rate)
+	/**
+	 * @return value in local currency at the given rate per FST, rounded half up for display
+	 */
+	public static BigInteger localValue(@Nonnull final BigInteger fstValue, @Nonnull final Money rate)
 	{
-		return fstValue.multiply(rate).divide(GenericUtils.ONE_FST);
+		return Money.valueOf(fstValue).multiply(rate, RoundingMode.HALF_UP).toBigInteger();
 	}
 
-	public static BigInteger fstValue(@Nonnull final BigInteger localValue, @Nonnull final BigInteger rate)
+	/**
+	 * @return value in FST at the given rate per FST, rounded down so that no more is sent than was entered
+	 */
+	public static BigInteger fstValue(@Nonnull final BigInteger localValue, @Nonnull final Money rate)
 	{
-		return localValue.multiply(GenericUtils.ONE_FST).divide(rate);
+		return Money.valueOf(localValue).divide(rate, RoundingMode.DOWN).toBigInteger();
 	}
 
 	@CheckForNull
@@ -294,16 +300,16 @@ public class WalletUtils
 		}
 	};
 
-	@CheckForNull
-	public static ECKey pickOldestKey(@Nonnull final Wallet wallet)
+	/**
+	 * @return earliest creation time of the given keys in seconds, or 0 if any of them doesn't know its creation time
+	 */
+	public static long earliestKeyCreationTime(@Nonnull final List<ECKey> keys)
 	{
-		ECKey oldestKey = null;
+		long earliestTime = Long.MAX_VALUE;
 
-		for (final ECKey key : wallet.getKeys())
-			if (!wallet.isKeyRotating(key))
-				if (oldestKey == null || key.getCreationTimeSeconds() < oldestKey.getCreationTimeSeconds())
-					oldestKey = key;
+		for (final ECKey key : keys)
+			earliestTime = Math.min(earliestTime, key.getCreationTimeSeconds());
 
-		return oldestKey;
+		return earliestTime != Long.MAX_VALUE ? earliestTime : 0;
 	}
 }
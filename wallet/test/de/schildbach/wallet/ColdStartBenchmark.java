@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.params.UnitTestParams;
+
+import de.schildbach.wallet.util.StartupTrace;
+
+/**
+ * Repeats the wallet phases of the cold start, as done by the wallet loader thread, on a synthetic wallet and reports
+ * the median of each phase as read back from the trace file. Run with the number of transactions, the number of runs
+ * and optional budgets like {@code "wallet load=200"}; exits with status 1 if a phase median exceeds its budget.
+ *
+ * @author Andreas Schildbach
+ */
+public final class ColdStartBenchmark
+{
+	public static void main(final String[] args) throws Exception
+	{
+		final int numTransactions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		final int numRuns = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		final Map<String, Long> medians = run(numTransactions, numRuns);
+		System.out.println(format(numTransactions, numRuns, medians));
+
+		boolean exceeded = false;
+		for (int i = 2; i < args.length; i++)
+		{
+			final String[] budget = args[i].split("=");
+			final Long medianMs = medians.get(budget[0]);
+			if (medianMs == null)
+				throw new IllegalArgumentException("unknown phase: " + budget[0]);
+			if (medianMs > Long.parseLong(budget[1]))
+			{
+				System.out.println("phase '" + budget[0] + "' took " + medianMs + "ms, budget " + budget[1] + "ms");
+				exceeded = true;
+			}
+		}
+
+		if (exceeded)
+			System.exit(1);
+	}
+
+	/**
+	 * @return median milliseconds per phase, in order of appearance, including the total
+	 */
+	public static Map<String, Long> run(final int numTransactions, final int numRuns) throws Exception
+	{
+		final File dir = File.createTempFile("coldstart", null);
+		dir.delete();
+		dir.mkdir();
+		final File walletFile = new File(dir, Constants.WALLET_FILENAME_PROTOBUF);
+		final File journalFile = new File(dir, Constants.WALLET_JOURNAL_FILENAME);
+		final File archiveFile = new File(dir, Constants.TX_ARCHIVE_FILENAME);
+		final File traceFile = new File(dir, Constants.STARTUP_TRACE_FILENAME);
+
+		final Map<String, List<Long>> durations = new LinkedHashMap<String, List<Long>>();
+
+		try
+		{
+			TransactionArchiveBenchmark.history(UnitTestParams.get(), numTransactions).saveToFile(walletFile);
+
+			for (int run = 0; run < numRuns; run++)
+			{
+				StartupTrace.reset();
+
+				StartupTrace.Span span = StartupTrace.begin("wallet load");
+				final Wallet wallet = Wallet.loadFromFile(walletFile);
+				span.end();
+
+				span = StartupTrace.begin("wallet journal");
+				WalletJournal.replay(wallet, journalFile);
+				final WalletJournal journal = new WalletJournal(wallet, walletFile, journalFile, null, new TransactionArchive(archiveFile));
+				span.end();
+
+				span = StartupTrace.begin("wallet cleanup");
+				wallet.cleanup();
+				span.end();
+
+				span = StartupTrace.begin("ensure key");
+				new KeyRegistry(wallet).hasUsableKey();
+				span.end();
+
+				StartupTrace.finish(traceFile);
+				journal.close();
+
+				for (final String[] line : StartupTrace.read(traceFile))
+				{
+					List<Long> phase = durations.get(line[0]);
+					if (phase == null)
+					{
+						phase = new ArrayList<Long>(numRuns);
+						durations.put(line[0], phase);
+					}
+					phase.add(Long.parseLong(line[3]) / 1000);
+				}
+			}
+		}
+		finally
+		{
+			for (final File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+
+		final Map<String, Long> medians = new LinkedHashMap<String, Long>();
+		for (final Map.Entry<String, List<Long>> entry : durations.entrySet())
+		{
+			final Long[] sorted = entry.getValue().toArray(new Long[0]);
+			Arrays.sort(sorted);
+			medians.put(entry.getKey(), sorted[sorted.length / 2]);
+		}
+		return medians;
+	}
+
+	public static String format(final int numTransactions, final int numRuns, final Map<String, Long> medians)
+	{
+		final StringBuilder builder = new StringBuilder(String.format(Locale.US, "%d txs, median of %d runs:", numTransactions, numRuns));
+		for (final Map.Entry<String, Long> entry : medians.entrySet())
+			builder.append(String.format(Locale.US, " %s %dms;", entry.getKey(), entry.getValue()));
+		builder.setLength(builder.length() - 1);
+		return builder.toString();
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+import de.schildbach.wallet.util.Money;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ExchangeRatesCacheTest
+{
+	@Test
+	public void staleWhileRevalidate() throws Exception
+	{
+		final AtomicInteger numFetches = new AtomicInteger();
+		final CountDownLatch refreshed = new CountDownLatch(1);
+
+		final ExchangeRatesCache cache = new ExchangeRatesCache(new ExchangeRatesCache.Refresher()
+		{
+			@Override
+			public Map<String, ExchangeRate> refresh(final ExchangeRatesCache.Backoff backoff)
+			{
+				numFetches.incrementAndGet();
+				return rates(2);
+			}
+		}, 60000, new ExchangeRatesCache.Listener()
+		{
+			@Override
+			public void onRefreshed(final Map<String, ExchangeRate> rates)
+			{
+				refreshed.countDown();
+			}
+		});
+
+		try
+		{
+			cache.seed(rates(1), 0);
+
+			// stale, but returned right away
+			assertEquals(Money.valueOf(1), cache.get().get("USD").rate);
+			assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+
+			assertEquals(Money.valueOf(2), cache.get().get("USD").rate);
+			assertEquals(1, numFetches.get());
+			assertEquals(1, cache.getNumHits());
+			assertEquals(1, cache.getNumStaleHits());
+			assertEquals(0, cache.getNumMisses());
+			assertEquals(1, cache.getNumRefreshes());
+			assertTrue(cache.getLastRefreshLatencyMs() >= 0);
+		}
+		finally
+		{
+			cache.shutdown();
+		}
+	}
+
+	@Test
+	public void miss() throws Exception
+	{
+		final CountDownLatch fetched = new CountDownLatch(1);
+
+		final ExchangeRatesCache cache = new ExchangeRatesCache(new ExchangeRatesCache.Refresher()
+		{
+			@Override
+			public Map<String, ExchangeRate> refresh(final ExchangeRatesCache.Backoff backoff)
+			{
+				fetched.countDown();
+				return null;
+			}
+		}, 60000, null);
+
+		try
+		{
+			assertNull(cache.get());
+			assertTrue(fetched.await(5, TimeUnit.SECONDS));
+			assertEquals(1, cache.getNumMisses());
+		}
+		finally
+		{
+			cache.shutdown();
+		}
+	}
+
+	@Test
+	public void backoff()
+	{
+		final ExchangeRatesCache.Backoff backoff = new ExchangeRatesCache.Backoff();
+		final long now = 1000000;
+
+		assertTrue(backoff.isAllowed("a", now));
+		backoff.failed("a", now);
+		assertFalse(backoff.isAllowed("a", now + 59999));
+		assertTrue(backoff.isAllowed("a", now + 60000));
+		assertTrue(backoff.isAllowed("b", now));
+
+		backoff.failed("a", now);
+		assertFalse(backoff.isAllowed("a", now + 60000));
+		assertTrue(backoff.isAllowed("a", now + 120000));
+
+		backoff.succeeded("a");
+		assertTrue(backoff.isAllowed("a", now));
+	}
+
+	private static Map<String, ExchangeRate> rates(final long rate)
+	{
+		final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+		rates.put("USD", new ExchangeRate("USD", Money.valueOf(rate), "test"));
+		return rates;
+	}
+}
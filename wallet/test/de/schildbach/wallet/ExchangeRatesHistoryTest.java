@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+import de.schildbach.wallet.util.Money;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ExchangeRatesHistoryTest
+{
+	private static final long MINUTE = 60 * 1000;
+	private static final long HOUR = 60 * MINUTE;
+	private static final long DAY = 24 * HOUR;
+	private static final long START = 1400000000000l / DAY * DAY;
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = File.createTempFile("exchange-rates-history", null);
+		file.delete();
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	@Test
+	public void closestSample() throws Exception
+	{
+		final ExchangeRatesHistory history = new ExchangeRatesHistory(file);
+		history.add(rates("USD", 100), START);
+		history.add(rates("USD", 200), START + 10 * MINUTE);
+		history.add(rates("EUR", 300), START + 20 * MINUTE);
+
+		assertEquals(Money.valueOf(100), history.getRate("USD", START));
+		assertEquals(Money.valueOf(100), history.getRate("USD", START + 4 * MINUTE));
+		assertEquals(Money.valueOf(200), history.getRate("USD", START + 6 * MINUTE));
+		// missing from the last sample
+		assertEquals(Money.valueOf(200), history.getRate("USD", START + 20 * MINUTE));
+		assertEquals(Money.valueOf(100), history.getRate("USD", START - HOUR));
+		assertNull(history.getRate("USD", START - 2 * DAY));
+		assertNull(history.getRate("JPY", START));
+	}
+
+	@Test
+	public void downsample() throws Exception
+	{
+		final ExchangeRatesHistory history = new ExchangeRatesHistory(file);
+
+		// a sample every 10 minutes for 30 days
+		final int numSamples = 30 * 24 * 6;
+		for (int i = 0; i < numSamples; i++)
+			history.add(rates("USD", i + 1), START + i * 10 * MINUTE);
+
+		// full resolution for a day, hourly for a week, daily before
+		final int expected = 24 * 6 + 6 * 24 + 23;
+		assertTrue("size: " + history.size(), Math.abs(history.size() - expected) <= 2);
+
+		// first sample of each day is kept
+		assertEquals(Money.valueOf(6 * 24 + 1), history.getRate("USD", START + DAY + 3 * HOUR));
+		// the latest at full resolution
+		assertEquals(Money.valueOf(numSamples), history.getRate("USD", START + (numSamples - 1) * 10 * MINUTE));
+	}
+
+	@Test
+	public void maxSamples() throws Exception
+	{
+		final ExchangeRatesHistory history = new ExchangeRatesHistory(file);
+
+		for (int i = 0; i < ExchangeRatesHistory.MAX_SAMPLES + 100; i++)
+			history.add(rates("USD", i + 1), START + i * DAY);
+
+		assertEquals(ExchangeRatesHistory.MAX_SAMPLES, history.size());
+		assertNull(history.getRate("USD", START));
+	}
+
+	@Test
+	public void retainCurrencies() throws Exception
+	{
+		final ExchangeRatesHistory history = new ExchangeRatesHistory(file);
+		final Map<String, ExchangeRate> rates = rates("USD", 100);
+		rates.put("EUR", new ExchangeRate("EUR", Money.valueOf(200), null));
+		history.add(rates, START);
+
+		history.retainCurrencies(Collections.singleton("EUR"));
+
+		assertNull(history.getRate("USD", START));
+		assertEquals(Money.valueOf(200), history.getRate("EUR", START));
+	}
+
+	@Test
+	public void roundTrip() throws Exception
+	{
+		final ExchangeRatesHistory history = new ExchangeRatesHistory(file);
+		for (int i = 0; i < 100; i++)
+		{
+			final Map<String, ExchangeRate> rates = rates("USD", 1000 + i);
+			rates.put("EUR", new ExchangeRate("EUR", Money.valueOf(2000 + i), null));
+			history.add(rates, START + i * 10 * MINUTE);
+		}
+		history.save();
+
+		final ExchangeRatesHistory loaded = new ExchangeRatesHistory(file);
+		assertEquals(history.size(), loaded.size());
+		assertEquals(Money.valueOf(1050), loaded.getRate("USD", START + 50 * 10 * MINUTE));
+		assertEquals(Money.valueOf(2099), loaded.getRate("EUR", START + 99 * 10 * MINUTE));
+
+		// appending to a loaded history
+		loaded.add(rates("USD", 5000), START + 100 * 10 * MINUTE);
+		assertEquals(Money.valueOf(5000), loaded.getRate("USD", START + 100 * 10 * MINUTE));
+	}
+
+	private static Map<String, ExchangeRate> rates(final String currencyCode, final long rate)
+	{
+		final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+		rates.put(currencyCode, new ExchangeRate(currencyCode, Money.valueOf(rate), "test"));
+		return rates;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+import de.schildbach.wallet.util.Money;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ExchangeRatesSnapshotTest
+{
+	@Test
+	public void roundTrip() throws Exception
+	{
+		final File file = File.createTempFile("exchange-rates", null);
+
+		try
+		{
+			final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+			rates.put("EUR", new ExchangeRate("EUR", Money.valueOf(4012345), "a"));
+			rates.put("USD", new ExchangeRate("USD", Money.valueOf(5012345), "a, b"));
+			rates.put("JPY", new ExchangeRate("JPY", Money.valueOf(512345678), "a"));
+			new ExchangeRatesSnapshot(rates, 1234567890123l).save(file);
+
+			final ExchangeRatesSnapshot loaded = ExchangeRatesSnapshot.load(file);
+			assertEquals(1234567890123l, loaded.timestamp);
+			assertEquals(3, loaded.rates.size());
+			for (final ExchangeRate rate : rates.values())
+			{
+				final ExchangeRate loadedRate = loaded.rates.get(rate.currencyCode);
+				assertEquals(rate.rate, loadedRate.rate);
+				assertEquals(rate.source, loadedRate.source);
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void corrupt() throws Exception
+	{
+		final File file = File.createTempFile("exchange-rates", null);
+
+		try
+		{
+			final FileOutputStream os = new FileOutputStream(file);
+			os.write(new byte[] { 0, 0, 0, 1, 0, 0 });
+			os.close();
+
+			assertNull(ExchangeRatesSnapshot.load(file));
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
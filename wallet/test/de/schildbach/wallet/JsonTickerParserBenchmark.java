@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Currency;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.json.JSONObject;
+
+import de.schildbach.wallet.util.GenericUtils;
+import de.schildbach.wallet.util.Io;
+import de.schildbach.wallet.util.Money;
+
+/**
+ * Compares {@link JsonTickerParser} against reading the whole response and building a JSON tree, as done before, on
+ * payloads shaped like the bitcoinaverage "global/all" and blockchain.info tickers. Run with the number of iterations,
+ * defaults to 1000. The tree path needs a working org.json on the classpath, e.g. on a device.
+ *
+ * @author Andreas Schildbach
+ */
+public final class JsonTickerParserBenchmark
+{
+	private static final String[] BITCOINAVERAGE_FIELDS = new String[] { "24h_avg", "last" };
+	private static final String[] BLOCKCHAININFO_FIELDS = new String[] { "15m" };
+
+	public static void main(final String[] args) throws Exception
+	{
+		final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+		final String bitcoinaverage = bitcoinaveragePayload();
+		final String blockchaininfo = blockchaininfoPayload();
+
+		System.out.println(run("bitcoinaverage", bitcoinaverage, BITCOINAVERAGE_FIELDS, iterations));
+		System.out.println(run("blockchain.info", blockchaininfo, BLOCKCHAININFO_FIELDS, iterations));
+	}
+
+	public static String run(final String name, final String payload, final String[] fields, final int iterations) throws Exception
+	{
+		final StringBuilder report = new StringBuilder(String.format(Locale.US, "%s, %d kB:", name, payload.length() / 1024));
+
+		final long[] streaming = measure(payload, fields, iterations, true);
+		report.append(String.format(Locale.US, " streaming %dus %d bytes per parse;", streaming[0] / 1000, streaming[1]));
+
+		try
+		{
+			final long[] tree = measure(payload, fields, iterations, false);
+			report.append(String.format(Locale.US, " tree %dus %d bytes per parse", tree[0] / 1000, tree[1]));
+		}
+		catch (final RuntimeException x)
+		{
+			report.append(" tree not available: " + x.getMessage());
+		}
+
+		return report.toString();
+	}
+
+	/**
+	 * @return nanos and allocated bytes per parse, the latter -1 if the JVM can't tell
+	 */
+	private static long[] measure(final String payload, final String[] fields, final int iterations, final boolean streaming) throws Exception
+	{
+		// warm up
+		for (int i = 0; i < iterations / 10 + 1; i++)
+			parse(payload, fields, streaming);
+
+		final long startBytes = allocatedBytes();
+		final long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			parse(payload, fields, streaming);
+		final long nanos = System.nanoTime() - start;
+		final long bytes = startBytes >= 0 ? allocatedBytes() - startBytes : -1;
+
+		return new long[] { nanos / iterations, bytes >= 0 ? bytes / iterations : -1 };
+	}
+
+	static Map<String, Money> parse(final String payload, final String[] fields, final boolean streaming) throws Exception
+	{
+		if (streaming)
+			return JsonTickerParser.parse(new StringReader(payload), fields, null);
+
+		// the way it was done before
+		final StringBuilder content = new StringBuilder();
+		Io.copy(new StringReader(payload), content);
+
+		final Map<String, Money> rates = new TreeMap<String, Money>();
+		final JSONObject head = new JSONObject(content.toString());
+		for (final Iterator<String> i = head.keys(); i.hasNext();)
+		{
+			final String currencyCode = i.next();
+			if (!"timestamp".equals(currencyCode))
+			{
+				final JSONObject o = head.getJSONObject(currencyCode);
+				for (final String field : fields)
+				{
+					final String rateStr = o.optString(field, null);
+					if (rateStr != null)
+					{
+						final Money rate = Money.valueOf(GenericUtils.toNanoCoins(rateStr, 0));
+						if (rate.signum() > 0)
+						{
+							rates.put(currencyCode, rate);
+							break;
+						}
+					}
+				}
+			}
+		}
+		return rates;
+	}
+
+	private static long allocatedBytes()
+	{
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		else
+			return -1;
+	}
+
+	static Set<String> currencyCodes()
+	{
+		final Set<String> codes = new TreeSet<String>();
+		for (final Locale locale : Locale.getAvailableLocales())
+		{
+			try
+			{
+				if (locale.getCountry().length() == 2)
+					codes.add(Currency.getInstance(locale).getCurrencyCode());
+			}
+			catch (final IllegalArgumentException x)
+			{
+				// no currency for locale
+			}
+		}
+		return codes;
+	}
+
+	static String bitcoinaveragePayload()
+	{
+		final StringBuilder payload = new StringBuilder("{\n");
+		int i = 0;
+		for (final String code : currencyCodes())
+		{
+			final String rate = String.format(Locale.US, "%d.%02d", 400 + i * 7, i % 100);
+			payload.append(String.format(Locale.US, "  \"%s\": {\n    \"24h_avg\": %s,\n    \"ask\": %s,\n    \"bid\": %s,\n"
+					+ "    \"last\": %s,\n    \"timestamp\": \"Mon, 17 Mar 2014 12:00:00 -0000\",\n    \"volume_btc\": 123.45,\n"
+					+ "    \"volume_percent\": 0.12\n  },\n", code, rate, rate, rate, rate));
+			i++;
+		}
+		payload.append("  \"timestamp\": \"Mon, 17 Mar 2014 12:00:00 -0000\"\n}");
+		return payload.toString();
+	}
+
+	static String blockchaininfoPayload()
+	{
+		final StringBuilder payload = new StringBuilder("{\n");
+		int i = 0;
+		for (final String code : currencyCodes())
+		{
+			if (i > 0)
+				payload.append(",\n");
+			final String rate = String.format(Locale.US, "%d.%02d", 400 + i * 7, i % 100);
+			payload.append(String.format(Locale.US, "  \"%s\" : {\"15m\" : %s, \"last\" : %s, \"buy\" : %s, \"sell\" : %s,  \"symbol\" : \"\\u00a4\"}",
+					code, rate, rate, rate, rate));
+			i++;
+		}
+		payload.append("\n}");
+		return payload.toString();
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.schildbach.wallet.util.Money;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class JsonTickerParserTest
+{
+	private static final String[] FIELDS = new String[] { "24h_avg", "last" };
+
+	@Test
+	public void fieldPreference() throws Exception
+	{
+		final Map<String, Money> rates = parse("{\"USD\": {\"ask\": 1.5, \"last\": 502, \"24h_avg\": \"501.12345678\"},"
+				+ " \"EUR\": {\"24h_avg\": 0, \"last\": \"400.5\"}, \"timestamp\": \"Mon, 17 Mar 2014\"}");
+
+		assertEquals(2, rates.size());
+		assertEquals(Money.valueOf(50112345678l), rates.get("USD"));
+		assertEquals(Money.valueOf(40050000000l), rates.get("EUR"));
+	}
+
+	@Test
+	public void skipsNestedAndEscaped() throws Exception
+	{
+		final Map<String, Money> rates = parse("{\"USD\": {\"x\": [1, {\"a\": \"}\\\"\"}], \"b\": null, \"last\": 3e2},"
+				+ " \"X\\u0041\": {\"last\": true}}");
+
+		assertEquals(Money.valueOf(30000000000l), rates.get("USD"));
+		assertNull(rates.get("XA"));
+	}
+
+	@Test
+	public void roundsBeyondNanocoins() throws Exception
+	{
+		assertEquals(Money.valueOf(40012345679l), parse("{\"EUR\": {\"last\": \"400.123456789\"}}").get("EUR"));
+	}
+
+	@Test
+	public void onlyWantedCurrencies() throws Exception
+	{
+		final Map<String, Money> rates = JsonTickerParser.parse(new StringReader(JsonTickerParserBenchmark.bitcoinaveragePayload()), FIELDS,
+				Collections.singleton("EUR"));
+
+		assertEquals(1, rates.size());
+		assertFalse(rates.get("EUR").signum() <= 0);
+	}
+
+	@Test
+	public void allCurrencies() throws Exception
+	{
+		final int numCurrencies = JsonTickerParserBenchmark.currencyCodes().size();
+
+		assertEquals(numCurrencies, parse(JsonTickerParserBenchmark.bitcoinaveragePayload()).size());
+		assertEquals(numCurrencies, JsonTickerParser.parse(new StringReader(JsonTickerParserBenchmark.blockchaininfoPayload()), new String[] { "15m" },
+				null).size());
+	}
+
+	@Test(expected = IOException.class)
+	public void truncated() throws Exception
+	{
+		parse("{\"USD\": {\"last\": 5");
+	}
+
+	private static Map<String, Money> parse(final String payload) throws IOException
+	{
+		return JsonTickerParser.parse(new StringReader(payload), FIELDS, null);
+	}
+}
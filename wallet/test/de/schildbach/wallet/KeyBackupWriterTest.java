@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.fastcoin.core.ECKey;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.store.WalletProtobufSerializer;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class KeyBackupWriterTest
+{
+	private static final String FILENAME = "key-backup";
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		dir = File.createTempFile("backup", null);
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void tearDown()
+	{
+		for (final File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void coalescesKeyAdditions() throws Exception
+	{
+		final Wallet wallet = new Wallet(UnitTestParams.get());
+		final KeyBackupWriter writer = new KeyBackupWriter(wallet, dir, FILENAME);
+
+		for (int i = 0; i < 5; i++)
+			wallet.addKey(new ECKey());
+
+		final ListenableFuture<Void> backup = writer.requestBackup();
+		assertSame(backup, writer.requestBackup());
+		backup.get();
+
+		assertTrue(writer.getLastLatencyMs() >= 0);
+		assertEquals(2, dir.listFiles().length); // backup and day-rotated copy, no temp files
+
+		final InputStream is = new FileInputStream(new File(dir, FILENAME));
+		try
+		{
+			final Wallet restored = new WalletProtobufSerializer().readWallet(is);
+			assertEquals(5, restored.getKeychainSize());
+			assertEquals(0, restored.getTransactions(true).size());
+		}
+		finally
+		{
+			is.close();
+		}
+
+		assertFalse(writer.requestBackup() == backup);
+	}
+}
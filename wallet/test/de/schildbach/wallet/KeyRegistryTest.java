@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.fastcoin.core.Address;
+import com.google.fastcoin.core.ECKey;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.params.UnitTestParams;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class KeyRegistryTest
+{
+	private static final long ROTATION_TIME = 2000;
+
+	private Wallet wallet;
+
+	@Before
+	public void setUp()
+	{
+		wallet = new Wallet(UnitTestParams.get());
+	}
+
+	@Test
+	public void selectedAddressFallsBackToFirstUsableKey()
+	{
+		final ECKey rotatingKey = key(1000);
+		final ECKey usableKey = key(3000);
+		final ECKey otherUsableKey = key(4000);
+		wallet.addKeys(Arrays.asList(rotatingKey, usableKey, otherUsableKey));
+		wallet.setKeyRotationTime(ROTATION_TIME);
+
+		final KeyRegistry registry = new KeyRegistry(wallet);
+
+		assertEquals(address(usableKey), registry.selectedAddress(null));
+		assertEquals(address(usableKey), registry.selectedAddress("unknown"));
+		assertEquals(address(usableKey), registry.selectedAddress(address(rotatingKey).toString()));
+		assertEquals(address(otherUsableKey), registry.selectedAddress(address(otherUsableKey).toString()));
+	}
+
+	@Test
+	public void rotatingKeysSortLast()
+	{
+		final ECKey rotatingKey = key(1000);
+		final ECKey usableKey = key(3000);
+		final ECKey newerUsableKey = key(4000);
+		wallet.addKeys(Arrays.asList(newerUsableKey, rotatingKey, usableKey));
+		wallet.setKeyRotationTime(ROTATION_TIME);
+
+		final KeyRegistry registry = new KeyRegistry(wallet);
+
+		final List<KeyRegistry.Entry> entries = registry.sortedEntries();
+		assertEquals(3, entries.size());
+		assertSame(usableKey, entries.get(0).key);
+		assertSame(newerUsableKey, entries.get(1).key);
+		assertSame(rotatingKey, entries.get(2).key);
+		assertTrue(entries.get(2).rotating);
+		assertSame(usableKey, registry.oldestUsableKey());
+	}
+
+	@Test
+	public void keysAddedLaterAreVisible()
+	{
+		final KeyRegistry registry = new KeyRegistry(wallet);
+		assertFalse(registry.hasUsableKey());
+		assertNull(registry.selectedAddress(null));
+
+		final ECKey key = key(3000);
+		wallet.addKey(key);
+
+		final KeyRegistry.Entry entry = registry.lookup(address(key).toString());
+		assertNotNull(entry);
+		assertSame(key, entry.key);
+		assertTrue(registry.hasUsableKey());
+		assertEquals(address(key), registry.selectedAddress(null));
+		assertEquals(1, registry.sortedEntries().size());
+	}
+
+	@Test
+	public void duplicatesAreIgnored()
+	{
+		final ECKey key = key(3000);
+		wallet.addKey(key);
+
+		final KeyRegistry registry = new KeyRegistry(wallet);
+
+		final ECKey newKey = key(4000);
+		wallet.addKeys(Arrays.asList(key, newKey));
+
+		final List<KeyRegistry.Entry> entries = registry.sortedEntries();
+		assertEquals(2, entries.size());
+		assertSame(key, entries.get(0).key);
+		assertSame(newKey, entries.get(1).key);
+	}
+
+	private static ECKey key(final long creationTimeSeconds)
+	{
+		final ECKey key = new ECKey();
+		key.setCreationTimeSeconds(creationTimeSeconds);
+		return key;
+	}
+
+	private static Address address(final ECKey key)
+	{
+		return key.toAddress(UnitTestParams.get());
+	}
+}
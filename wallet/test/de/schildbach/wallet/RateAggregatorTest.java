@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.RoundingMode;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+import de.schildbach.wallet.util.Money;
+
+/**
+ * Runs the aggregator against local HTTP servers standing in for the tickers.
+ *
+ * @author Andreas Schildbach
+ */
+public class RateAggregatorTest
+{
+	private HttpServer server;
+	private ExecutorService executor;
+	private final Map<String, String> rates = new HashMap<String, String>();
+	private final Map<String, Integer> delays = new HashMap<String, Integer>();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		executor = Executors.newCachedThreadPool();
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler()
+		{
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException
+			{
+				final String name = exchange.getRequestURI().getPath().substring(1);
+				final Integer delay;
+				final String rate;
+				synchronized (rates)
+				{
+					delay = delays.get(name);
+					rate = rates.get(name);
+				}
+
+				try
+				{
+					if (delay != null)
+						Thread.sleep(delay);
+				}
+				catch (final InterruptedException x)
+				{
+					// swallow
+				}
+
+				final byte[] body = ("USD " + rate + "\n").getBytes(Constants.UTF_8);
+				exchange.sendResponseHeaders(rate != null ? 200 : 404, body.length);
+				final OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		server.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void medianRejectsOutlier() throws Exception
+	{
+		serve("a", "500", 0);
+		serve("b", "510", 0);
+		serve("c", "900", 0);
+
+		final RateAggregator aggregator = new RateAggregator(executor, RateAggregator.Mode.MEDIAN);
+		aggregator.addSource(source("a"), 2000);
+		aggregator.addSource(source("b"), 2000);
+		aggregator.addSource(source("c"), 2000);
+
+		final RateAggregator.Result result = aggregator.aggregate(new ExchangeRatesCache.Backoff());
+		assertNotNull(result);
+
+		final ExchangeRate usd = result.rates.get("USD");
+		assertEquals(Money.parse("505", 0, RoundingMode.UNNECESSARY), usd.rate);
+		assertEquals("a, b", usd.source);
+		assertEquals(3, result.sources.size());
+	}
+
+	@Test
+	public void medianOfTwoAverages() throws Exception
+	{
+		serve("a", "500", 0);
+		serve("b", "600", 0);
+
+		final RateAggregator aggregator = new RateAggregator(executor, RateAggregator.Mode.MEDIAN);
+		aggregator.addSource(source("a"), 2000);
+		aggregator.addSource(source("b"), 2000);
+
+		final RateAggregator.Result result = aggregator.aggregate(new ExchangeRatesCache.Backoff());
+		assertNotNull(result);
+
+		// no majority, so neither is taken as the outlier
+		final ExchangeRate usd = result.rates.get("USD");
+		assertEquals(Money.parse("550", 0, RoundingMode.UNNECESSARY), usd.rate);
+		assertEquals("a, b", usd.source);
+	}
+
+	@Test
+	public void fastestWins() throws Exception
+	{
+		serve("fast", "500", 0);
+		serve("slow", "510", 1000);
+
+		final RateAggregator aggregator = new RateAggregator(executor, RateAggregator.Mode.FASTEST);
+		aggregator.addSource(source("slow"), 2000);
+		aggregator.addSource(source("fast"), 2000);
+
+		final RateAggregator.Result result = aggregator.aggregate(new ExchangeRatesCache.Backoff());
+		assertNotNull(result);
+		assertEquals("fast", result.winner);
+		assertEquals(Money.parse("500", 0, RoundingMode.UNNECESSARY), result.rates.get("USD").rate);
+	}
+
+	@Test
+	public void fastestSkipsImplausible() throws Exception
+	{
+		serve("a", "500", 0);
+		serve("b", "505", 300);
+
+		final RateAggregator aggregator = new RateAggregator(executor, RateAggregator.Mode.FASTEST);
+		aggregator.addSource(source("a"), 2000);
+		aggregator.addSource(source("b"), 2000);
+		assertEquals("a", aggregator.aggregate(new ExchangeRatesCache.Backoff()).winner);
+
+		serve("a", "900", 0);
+		final RateAggregator.Result result = aggregator.aggregate(new ExchangeRatesCache.Backoff());
+		assertEquals("b", result.winner);
+		assertEquals(Money.parse("505", 0, RoundingMode.UNNECESSARY), result.rates.get("USD").rate);
+	}
+
+	@Test
+	public void deadline() throws Exception
+	{
+		serve("fast", "500", 0);
+		serve("slow", "510", 2000);
+
+		final RateAggregator aggregator = new RateAggregator(executor, RateAggregator.Mode.MEDIAN);
+		aggregator.addSource(source("fast"), 2000);
+		aggregator.addSource(source("slow"), 300);
+
+		final ExchangeRatesCache.Backoff backoff = new ExchangeRatesCache.Backoff();
+		final long start = System.currentTimeMillis();
+		final RateAggregator.Result result = aggregator.aggregate(backoff);
+		assertNotNull(result);
+		assertFalse(System.currentTimeMillis() - start >= 2000);
+
+		assertEquals(Money.parse("500", 0, RoundingMode.UNNECESSARY), result.rates.get("USD").rate);
+		for (final RateAggregator.SourceResult source : result.sources)
+			if (source.name.equals("slow"))
+				assertEquals("timeout", source.error);
+		assertFalse(backoff.isAllowed("slow", System.currentTimeMillis()));
+	}
+
+	private void serve(final String name, final String rate, final int delayMs)
+	{
+		synchronized (rates)
+		{
+			rates.put(name, rate);
+			delays.put(name, delayMs);
+		}
+	}
+
+	private RateSource source(final String name)
+	{
+		return new RateSource()
+		{
+			@Override
+			public String getName()
+			{
+				return name;
+			}
+
+			@Override
+			public Map<String, Money> fetch(final int timeoutMs) throws IOException
+			{
+				final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/" + name)
+						.openConnection();
+				connection.setConnectTimeout(timeoutMs);
+				connection.setReadTimeout(timeoutMs);
+
+				try
+				{
+					if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+						throw new IOException("http status " + connection.getResponseCode());
+
+					final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), Constants.UTF_8));
+					final Map<String, Money> rates = new TreeMap<String, Money>();
+					String line;
+					while ((line = reader.readLine()) != null)
+					{
+						final String[] fields = line.split(" ");
+						rates.put(fields[0], Money.parse(fields[1], 0, RoundingMode.UNNECESSARY));
+					}
+					reader.close();
+					return rates;
+				}
+				finally
+				{
+					connection.disconnect();
+				}
+			}
+		};
+	}
+}
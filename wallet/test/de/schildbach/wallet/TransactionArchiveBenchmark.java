@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+
+import com.google.fastcoin.core.Address;
+import com.google.fastcoin.core.ECKey;
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.Sha256Hash;
+import com.google.fastcoin.core.Transaction;
+import com.google.fastcoin.core.TransactionInput;
+import com.google.fastcoin.core.TransactionOutPoint;
+import com.google.fastcoin.core.Utils;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.wallet.WalletTransaction;
+
+/**
+ * Compares saving and loading a wallet holding its whole history against a wallet whose old history went to a
+ * {@link TransactionArchive}. Run with the numbers of transactions to try, defaults to 10000 and 100000.
+ *
+ * @author Andreas Schildbach
+ */
+public final class TransactionArchiveBenchmark
+{
+	private static final int PAGE_SIZE = 50;
+
+	public static final class Report
+	{
+		public final int numTransactions;
+		public final long fullSaveMs;
+		public final long fullLoadMs;
+		public final long fullBytes;
+		public final int numArchived;
+		public final long archiveMs;
+		public final long liveSaveMs;
+		public final long liveLoadMs;
+		public final long liveBytes;
+		public final long archiveBytes;
+		public final long indexLoadMs;
+		public final long pageMs;
+
+		public Report(final int numTransactions, final long fullSaveMs, final long fullLoadMs, final long fullBytes, final int numArchived,
+				final long archiveMs, final long liveSaveMs, final long liveLoadMs, final long liveBytes, final long archiveBytes,
+				final long indexLoadMs, final long pageMs)
+		{
+			this.numTransactions = numTransactions;
+			this.fullSaveMs = fullSaveMs;
+			this.fullLoadMs = fullLoadMs;
+			this.fullBytes = fullBytes;
+			this.numArchived = numArchived;
+			this.archiveMs = archiveMs;
+			this.liveSaveMs = liveSaveMs;
+			this.liveLoadMs = liveLoadMs;
+			this.liveBytes = liveBytes;
+			this.archiveBytes = archiveBytes;
+			this.indexLoadMs = indexLoadMs;
+			this.pageMs = pageMs;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.US, "%d txs: full wallet save %dms load %dms (%d kB); archived %d in %dms; "
+					+ "live wallet save %dms load %dms (%d kB); archive %d kB, index load %dms, page of %d %dms", numTransactions, fullSaveMs,
+					fullLoadMs, fullBytes / 1024, numArchived, archiveMs, liveSaveMs, liveLoadMs, liveBytes / 1024, archiveBytes / 1024,
+					indexLoadMs, PAGE_SIZE, pageMs);
+		}
+	}
+
+	public static void main(final String[] args) throws Exception
+	{
+		final int[] sizes = args.length > 0 ? new int[args.length] : new int[] { 10000, 100000 };
+		for (int i = 0; i < args.length; i++)
+			sizes[i] = Integer.parseInt(args[i]);
+
+		for (final int size : sizes)
+			System.out.println(run(size));
+	}
+
+	/**
+	 * @param numTransactions
+	 *            history size, half of it payments to the wallet and half spending them
+	 */
+	public static Report run(final int numTransactions) throws Exception
+	{
+		final NetworkParameters params = UnitTestParams.get();
+		final Wallet wallet = history(params, numTransactions);
+
+		final File fullFile = File.createTempFile("wallet-full", null);
+		final File liveFile = File.createTempFile("wallet-live", null);
+		final File archiveFile = File.createTempFile("archive", null);
+		archiveFile.delete();
+
+		try
+		{
+			long start = System.currentTimeMillis();
+			wallet.saveToFile(fullFile);
+			final long fullSaveMs = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			Wallet.loadFromFile(fullFile);
+			final long fullLoadMs = System.currentTimeMillis() - start;
+
+			final TransactionArchive archive = new TransactionArchive(archiveFile);
+			start = System.currentTimeMillis();
+			final int numArchived = archive.archive(wallet, TransactionArchive.MIN_DEPTH, TransactionArchive.MIN_AGE_MS);
+			final long archiveMs = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			archive.writeSnapshot(wallet, liveFile);
+			final long liveSaveMs = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			Wallet.loadFromFile(liveFile);
+			final long liveLoadMs = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			final TransactionArchive reloaded = new TransactionArchive(archiveFile);
+			final long indexLoadMs = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			if (reloaded.page(params, wallet.getLastBlockSeenHeight(), 0, PAGE_SIZE).size() != Math.min(PAGE_SIZE, numArchived))
+				throw new IllegalStateException("short page");
+			final long pageMs = System.currentTimeMillis() - start;
+
+			return new Report(numTransactions, fullSaveMs, fullLoadMs, fullFile.length(), numArchived, archiveMs, liveSaveMs, liveLoadMs,
+					liveFile.length(), archiveFile.length(), indexLoadMs, pageMs);
+		}
+		finally
+		{
+			fullFile.delete();
+			liveFile.delete();
+			archiveFile.delete();
+		}
+	}
+
+	/**
+	 * Builds a wallet of old, deeply buried payments, each spent again.
+	 */
+	static Wallet history(@Nonnull final NetworkParameters params, final int numTransactions)
+	{
+		final ECKey key = new ECKey();
+		final Address address = key.toAddress(params);
+		final Address otherAddress = new ECKey().toAddress(params);
+		final Wallet wallet = new Wallet(params);
+		wallet.addKey(key);
+
+		final int bestHeight = numTransactions + TransactionArchive.MIN_DEPTH * 2;
+		final long time = System.currentTimeMillis() - TransactionArchive.MIN_AGE_MS * 2;
+
+		for (int i = 0; i < numTransactions / 2; i++)
+		{
+			final Transaction received = new Transaction(params);
+			received.addInput(new TransactionInput(params, received, new byte[0], new TransactionOutPoint(params, 0, Sha256Hash.create(Utils
+					.bigIntegerToBytes(BigInteger.valueOf(i), 8)))));
+			received.addOutput(Utils.toNanoCoins(1, 0), address);
+
+			final Transaction spent = new Transaction(params);
+			spent.addInput(received.getOutput(0));
+			spent.addOutput(Utils.toNanoCoins(1, 0), otherAddress);
+			received.getOutput(0).markAsSpent(spent.getInput(0));
+
+			bury(received, i * 2, bestHeight, time + i * 2000);
+			bury(spent, i * 2 + 1, bestHeight, time + i * 2000 + 1000);
+
+			wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, received));
+			wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, spent));
+		}
+
+		wallet.setLastBlockSeenHeight(bestHeight);
+
+		return wallet;
+	}
+
+	private static void bury(@Nonnull final Transaction tx, final int height, final int bestHeight, final long time)
+	{
+		tx.setUpdateTime(new Date(time));
+		tx.getConfidence().setAppearedAtChainHeight(height);
+		tx.getConfidence().setDepthInBlocks(bestHeight - height + 1);
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.fastcoin.core.ECKey;
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.Sha256Hash;
+import com.google.fastcoin.core.Transaction;
+import com.google.fastcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.fastcoin.core.TransactionInput;
+import com.google.fastcoin.core.TransactionOutPoint;
+import com.google.fastcoin.core.Utils;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.store.WalletProtobufSerializer;
+import com.google.fastcoin.wallet.WalletTransaction;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class TransactionArchiveTest
+{
+	@Test
+	public void archiveAndPage() throws Exception
+	{
+		final Wallet wallet = TransactionArchiveBenchmark.history(UnitTestParams.get(), 100);
+		final File file = File.createTempFile("archive", null);
+		file.delete();
+
+		try
+		{
+			final TransactionArchive archive = new TransactionArchive(file);
+			assertEquals(100, archive.archive(wallet, TransactionArchive.MIN_DEPTH, TransactionArchive.MIN_AGE_MS));
+			assertEquals(0, archive.archive(wallet, TransactionArchive.MIN_DEPTH, TransactionArchive.MIN_AGE_MS));
+
+			final TransactionArchive reloaded = new TransactionArchive(file);
+			assertEquals(100, reloaded.size());
+
+			final List<Transaction> page = reloaded.page(wallet.getParams(), wallet.getLastBlockSeenHeight(), 10, 20);
+			assertEquals(20, page.size());
+			for (int i = 0; i < page.size(); i++)
+			{
+				final Transaction tx = page.get(i);
+				assertTrue(reloaded.contains(tx.getHash()));
+				assertEquals(ConfidenceType.BUILDING, tx.getConfidence().getConfidenceType());
+				assertEquals(wallet.getTransaction(tx.getHash()).getValue(wallet), reloaded.getValue(tx, wallet));
+				if (i > 0)
+					assertTrue(page.get(i - 1).getUpdateTime().getTime() >= tx.getUpdateTime().getTime());
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void snapshotLoadsWithLiveNeighbours() throws Exception
+	{
+		final NetworkParameters params = UnitTestParams.get();
+		final Wallet wallet = TransactionArchiveBenchmark.history(params, 100);
+		final int bestHeight = wallet.getLastBlockSeenHeight();
+
+		// deeply buried, but too recent to archive
+		final Transaction received = new Transaction(params);
+		received.addInput(new TransactionInput(params, received, new byte[0], new TransactionOutPoint(params, 0, Sha256Hash.create(new byte[] { 1 }))));
+		received.addOutput(Utils.toNanoCoins(1, 0), wallet.getKeys().get(0).toAddress(params));
+		received.setUpdateTime(new Date());
+		received.getConfidence().setAppearedAtChainHeight(1);
+		received.getConfidence().setDepthInBlocks(bestHeight);
+
+		// archivable on its own, but the live transaction above refers to it
+		final Transaction spent = new Transaction(params);
+		spent.addInput(received.getOutput(0));
+		spent.addOutput(Utils.toNanoCoins(1, 0), new ECKey().toAddress(params));
+		received.getOutput(0).markAsSpent(spent.getInput(0));
+		spent.setUpdateTime(new Date(System.currentTimeMillis() - TransactionArchive.MIN_AGE_MS * 2));
+		spent.getConfidence().setAppearedAtChainHeight(2);
+		spent.getConfidence().setDepthInBlocks(bestHeight - 1);
+
+		wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, received));
+		wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, spent));
+
+		final File file = File.createTempFile("archive", null);
+		file.delete();
+		final File snapshotFile = File.createTempFile("wallet", null);
+
+		try
+		{
+			final TransactionArchive archive = new TransactionArchive(file);
+			assertEquals(100, archive.archive(wallet, TransactionArchive.MIN_DEPTH, TransactionArchive.MIN_AGE_MS));
+			assertFalse(archive.contains(spent.getHash()));
+
+			archive.writeSnapshot(wallet, snapshotFile);
+
+			final InputStream is = new FileInputStream(snapshotFile);
+			try
+			{
+				final Wallet loaded = new WalletProtobufSerializer().readWallet(is);
+				assertEquals(2, loaded.getTransactions(true).size());
+				assertEquals(spent.getHash(), loaded.getTransaction(received.getHash()).getOutput(0).getSpentBy().getParentTransaction().getHash());
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		finally
+		{
+			file.delete();
+			snapshotFile.delete();
+		}
+	}
+
+	@Test
+	public void tornRecordIsCutOff() throws Exception
+	{
+		final Wallet wallet = TransactionArchiveBenchmark.history(UnitTestParams.get(), 10);
+		final File file = File.createTempFile("archive", null);
+		file.delete();
+
+		try
+		{
+			assertEquals(10, new TransactionArchive(file).archive(wallet, TransactionArchive.MIN_DEPTH, TransactionArchive.MIN_AGE_MS));
+			final long length = file.length();
+
+			final FileOutputStream os = new FileOutputStream(file, true);
+			os.write(new byte[] { 1, 2, 3 });
+			os.close();
+
+			final TransactionArchive reloaded = new TransactionArchive(file);
+			assertNull(reloaded.getLoadProblem());
+			assertEquals(10, reloaded.size());
+			assertEquals(length, file.length());
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void unreadableArchiveIsKept() throws Exception
+	{
+		final File file = File.createTempFile("archive", null);
+
+		try
+		{
+			final FileOutputStream os = new FileOutputStream(file);
+			os.write(new byte[] { 0, 0, 0, 99 });
+			os.close();
+
+			final TransactionArchive archive = new TransactionArchive(file);
+			assertNotNull(archive.getLoadProblem());
+			assertEquals(0, archive.archive(TransactionArchiveBenchmark.history(UnitTestParams.get(), 10), TransactionArchive.MIN_DEPTH,
+					TransactionArchive.MIN_AGE_MS));
+			assertEquals(4, file.length());
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
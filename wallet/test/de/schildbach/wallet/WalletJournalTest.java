@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.fastcoin.core.ECKey;
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.Sha256Hash;
+import com.google.fastcoin.core.Transaction;
+import com.google.fastcoin.core.TransactionConfidence;
+import com.google.fastcoin.core.TransactionInput;
+import com.google.fastcoin.core.TransactionOutPoint;
+import com.google.fastcoin.core.Utils;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.utils.Threading;
+import com.google.fastcoin.wallet.WalletTransaction;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class WalletJournalTest
+{
+	private final NetworkParameters params = UnitTestParams.get();
+
+	private File walletFile;
+	private File journalFile;
+	private Wallet wallet;
+	private ECKey key;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		walletFile = File.createTempFile("wallet", null);
+		journalFile = File.createTempFile("journal", null);
+		journalFile.delete();
+
+		key = new ECKey();
+		wallet = new Wallet(params);
+		wallet.addKey(key);
+		wallet.saveToFile(walletFile);
+	}
+
+	@After
+	public void tearDown()
+	{
+		walletFile.delete();
+		journalFile.delete();
+	}
+
+	@Test
+	public void replayAfterCrash() throws Exception
+	{
+		final WalletJournal journal = new WalletJournal(wallet, walletFile, journalFile, null, null);
+		final Transaction tx = pendingTx(1);
+		wallet.receivePending(tx, null);
+		Threading.waitForUserCode();
+		journal.close(); // crash, no compaction
+
+		assertTrue(journalFile.length() > 0);
+		assertEquals(journalFile.length(), journal.getBytesWritten());
+
+		final Wallet restored = Wallet.loadFromFile(walletFile);
+		assertNull(restored.getTransaction(tx.getHash()));
+
+		assertEquals(1, WalletJournal.replay(restored, journalFile));
+		assertNotNull(restored.getTransaction(tx.getHash()));
+		assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), restored.getBalance(Wallet.BalanceType.ESTIMATED));
+
+		// replaying twice is harmless
+		assertEquals(0, WalletJournal.replay(restored, journalFile));
+	}
+
+	@Test
+	public void compact() throws Exception
+	{
+		final WalletJournal journal = new WalletJournal(wallet, walletFile, journalFile, null, null);
+		final Transaction tx = pendingTx(2);
+		wallet.receivePending(tx, null);
+		Threading.waitForUserCode();
+
+		journal.compact();
+		journal.close();
+
+		assertFalse(journalFile.exists());
+		assertEquals(1, journal.getNumCompactions());
+		assertNotNull(Wallet.loadFromFile(walletFile).getTransaction(tx.getHash()));
+	}
+
+	@Test
+	public void depthChangeNotJournaled() throws Exception
+	{
+		final Transaction tx = pendingTx(3);
+		tx.getConfidence().setAppearedAtChainHeight(1);
+		tx.getConfidence().setDepthInBlocks(1);
+		wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+		wallet.saveToFile(walletFile);
+
+		final WalletJournal journal = new WalletJournal(wallet, walletFile, journalFile, null, null);
+		tx.getConfidence().setDepthInBlocks(2);
+		tx.getConfidence().queueListeners(TransactionConfidence.Listener.ChangeReason.DEPTH);
+		Threading.waitForUserCode();
+		journal.close();
+
+		assertEquals(0, journal.getJournalBytesWritten());
+		assertFalse(journalFile.exists());
+	}
+
+	private Transaction pendingTx(final int nonce)
+	{
+		final Transaction tx = new Transaction(params);
+		tx.addInput(new TransactionInput(params, tx, new byte[0], new TransactionOutPoint(params, 0, Sha256Hash.create(Utils
+				.bigIntegerToBytes(BigInteger.valueOf(nonce), 8)))));
+		tx.addOutput(Utils.toNanoCoins(1, 0), key.toAddress(params));
+		return tx;
+	}
+}
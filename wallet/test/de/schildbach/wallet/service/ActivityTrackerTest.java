@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ActivityTrackerTest
+{
+	private static final long MINUTE = 60 * 1000;
+	private static final int TRANSACTIONS = 0;
+	private static final int BLOCKS = 1;
+	private static final int[] IDLE_TIMEOUTS = { 10, 3 };
+
+	private ActivityTracker tracker;
+	private long now;
+
+	@Before
+	public void setUp()
+	{
+		tracker = new ActivityTracker(2, 9, MINUTE, 0.3);
+		now = 1000 * MINUTE;
+		tracker.advance(now);
+	}
+
+	@Test
+	public void idle()
+	{
+		tick();
+		assertFalse(tracker.isIdle(now, 2, IDLE_TIMEOUTS)); // not enough history yet
+
+		tick();
+		assertTrue(tracker.isIdle(now, 2, IDLE_TIMEOUTS));
+		assertEquals(0, tracker.ewma(now, BLOCKS), 0);
+		assertEquals("0/0, 0/0", tracker.toString());
+	}
+
+	@Test
+	public void bursty()
+	{
+		tracker.add(now, TRANSACTIONS, 5);
+		tracker.add(now, BLOCKS, 1);
+
+		for (int i = 0; i < 3; i++)
+		{
+			tick();
+			assertFalse(tracker.isIdle(now, 2, IDLE_TIMEOUTS));
+		}
+
+		// blocks quiet now, but the transaction burst keeps us up
+		for (int i = 3; i < 9; i++)
+		{
+			tick();
+			assertFalse(tracker.isIdle(now, 2, IDLE_TIMEOUTS));
+		}
+
+		// burst fell out of the ring
+		tick();
+		assertTrue(tracker.isIdle(now, 2, IDLE_TIMEOUTS));
+		assertEquals(0, tracker.sum(now, TRANSACTIONS, 9));
+		assertTrue(tracker.ewma(now, TRANSACTIONS) > 0);
+		assertTrue(tracker.ewma(now, TRANSACTIONS) < 5 * 0.3);
+	}
+
+	@Test
+	public void replaying()
+	{
+		for (int i = 0; i < 20; i++)
+		{
+			tracker.add(now, BLOCKS, 500);
+			tick();
+			assertFalse(tracker.isIdle(now, 2, IDLE_TIMEOUTS));
+		}
+
+		assertEquals(9 * 500, tracker.sum(now, BLOCKS, 100));
+		assertEquals(3 * 500, tracker.sum(now, BLOCKS, 3));
+		assertEquals(500, tracker.ewma(now, BLOCKS), 1);
+		assertEquals(0, tracker.sum(now, TRANSACTIONS, 9));
+
+		// gap longer than the ring clears everything
+		now += 30 * MINUTE;
+		assertEquals(0, tracker.sum(now, BLOCKS, 9));
+		assertTrue(tracker.isIdle(now, 2, IDLE_TIMEOUTS));
+	}
+
+	private void tick()
+	{
+		now += MINUTE;
+		tracker.advance(now);
+	}
+}
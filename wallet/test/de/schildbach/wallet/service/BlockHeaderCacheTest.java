@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.fastcoin.core.Address;
+import com.google.fastcoin.core.ECKey;
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.StoredBlock;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.store.BlockStore;
+import com.google.fastcoin.store.MemoryBlockStore;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class BlockHeaderCacheTest
+{
+	private BlockStore store;
+	private Address address;
+	private BlockHeaderCache cache;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		final NetworkParameters params = UnitTestParams.get();
+		store = new MemoryBlockStore(params);
+		address = new ECKey().toAddress(params);
+		cache = new BlockHeaderCache(8);
+	}
+
+	@Test
+	public void wrapAround() throws Exception
+	{
+		final List<StoredBlock> chain = extend(store.getChainHead(), 20, true);
+
+		final List<StoredBlock> recent = cache.getRecentBlocks(8);
+		assertEquals(8, recent.size());
+		for (int i = 0; i < 8; i++)
+			assertEquals(chain.get(chain.size() - 1 - i), recent.get(i));
+		assertEquals(20, cache.getChainHead().getHeight());
+
+		// older blocks were overwritten
+		assertNull(cache.getRecentBlocks(9));
+	}
+
+	@Test
+	public void reorgReplacesHeights() throws Exception
+	{
+		final List<StoredBlock> chain = extend(store.getChainHead(), 10, true);
+
+		// a longer fork from height 7 becomes the best chain in one go
+		final List<StoredBlock> fork = extend(chain.get(6), 4, false);
+		cache.onChainHead(fork.get(3), store);
+
+		final List<StoredBlock> recent = cache.getRecentBlocks(8);
+		for (int i = 0; i < 4; i++)
+			assertEquals(fork.get(3 - i), recent.get(i));
+		for (int i = 4; i < 8; i++)
+			assertEquals(chain.get(10 - i), recent.get(i));
+	}
+
+	@Test
+	public void reorgToLowerHeadDropsAbandonedHeights() throws Exception
+	{
+		final List<StoredBlock> chain = extend(store.getChainHead(), 10, true);
+
+		final List<StoredBlock> fork = extend(chain.get(6), 2, false);
+		cache.onChainHead(fork.get(1), store);
+
+		assertEquals(fork.get(1), cache.getChainHead());
+		// the slot of abandoned height 10 is shared with height 2, so only 7 blocks remain
+		assertNull(cache.getRecentBlocks(8));
+		final List<StoredBlock> recent = cache.getRecentBlocks(7);
+		assertEquals(7, recent.size());
+		assertEquals(fork.get(1), recent.get(0));
+		assertEquals(fork.get(0), recent.get(1));
+		for (int i = 2; i < 7; i++)
+			assertEquals(chain.get(8 - i), recent.get(i));
+	}
+
+	private List<StoredBlock> extend(final StoredBlock base, final int numBlocks, final boolean cacheEach) throws Exception
+	{
+		final List<StoredBlock> blocks = new ArrayList<StoredBlock>(numBlocks);
+		StoredBlock prev = base;
+		for (int i = 0; i < numBlocks; i++)
+		{
+			final StoredBlock block = prev.build(prev.getHeader().createNextBlock(address));
+			store.put(block);
+			blocks.add(block);
+			if (cacheEach)
+				cache.onChainHead(block, store);
+			prev = block;
+		}
+		return blocks;
+	}
+}
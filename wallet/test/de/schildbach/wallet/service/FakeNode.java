@@ -0,0 +1,465 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.fastcoin.core.Block;
+import com.google.fastcoin.core.BloomFilter;
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.ProtocolException;
+import com.google.fastcoin.core.ScriptException;
+import com.google.fastcoin.core.Sha256Hash;
+import com.google.fastcoin.core.Transaction;
+import com.google.fastcoin.core.TransactionInput;
+import com.google.fastcoin.core.TransactionOutput;
+import com.google.fastcoin.core.Utils;
+import com.google.fastcoin.core.VarInt;
+import com.google.fastcoin.core.VersionMessage;
+import com.google.fastcoin.script.ScriptChunk;
+
+/**
+ * Minimal stand-in for a Fastcoin node on the loopback interface. It serves a fixed chain, as headers in answer to
+ * getheaders and as blocks in answer to getblocks/getdata, and answers pings. Once the client loaded a bloom filter,
+ * blocks are served as merkleblock followed by the matching transactions, like a real node does for wallets. Everything
+ * else is ignored.
+ *
+ * @author Andreas Schildbach
+ */
+public final class FakeNode
+{
+	private static final int MAX_HEADERS = 2000;
+	private static final int MAX_INV = 500;
+	private static final int INV_TYPE_BLOCK = 2;
+	private static final int INV_TYPE_FILTERED_BLOCK = 3;
+	private static final int PROTOCOL_VERSION = 70001; // bloom filtering
+
+	private final NetworkParameters params;
+	private final List<Block> chain;
+	private final int baseHeight;
+	private final Map<Sha256Hash, Integer> index = new HashMap<Sha256Hash, Integer>();
+	private final ServerSocket serverSocket;
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+
+	private static final Logger log = LoggerFactory.getLogger(FakeNode.class);
+
+	/**
+	 * @param chain
+	 *            consecutive blocks, the first one being the one the client starts from
+	 * @param baseHeight
+	 *            height of the first block
+	 */
+	public FakeNode(@Nonnull final NetworkParameters params, @Nonnull final List<Block> chain, final int baseHeight) throws IOException
+	{
+		this.params = params;
+		this.chain = chain;
+		this.baseHeight = baseHeight;
+
+		for (int i = 0; i < chain.size(); i++)
+			index.put(chain.get(i).getHash(), i);
+
+		serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+
+		final Thread acceptThread = new Thread("fake node")
+		{
+			@Override
+			public void run()
+			{
+				acceptLoop();
+			}
+		};
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	public InetAddress getAddress()
+	{
+		return serverSocket.getInetAddress();
+	}
+
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	public int getBestHeight()
+	{
+		return baseHeight + chain.size() - 1;
+	}
+
+	public long getBytesIn()
+	{
+		return bytesIn.get();
+	}
+
+	public long getBytesOut()
+	{
+		return bytesOut.get();
+	}
+
+	public void close()
+	{
+		try
+		{
+			serverSocket.close();
+		}
+		catch (final IOException x)
+		{
+			// swallow
+		}
+	}
+
+	private void acceptLoop()
+	{
+		while (!serverSocket.isClosed())
+		{
+			try
+			{
+				final Socket socket = serverSocket.accept();
+				final Thread connectionThread = new Thread("fake node connection")
+				{
+					@Override
+					public void run()
+					{
+						serve(socket);
+					}
+				};
+				connectionThread.setDaemon(true);
+				connectionThread.start();
+			}
+			catch (final IOException x)
+			{
+				if (!serverSocket.isClosed())
+					log.info("problem accepting connection", x);
+			}
+		}
+	}
+
+	private void serve(@Nonnull final Socket socket)
+	{
+		try
+		{
+			final DataInputStream is = new DataInputStream(socket.getInputStream());
+			final OutputStream os = new BufferedOutputStream(socket.getOutputStream());
+			BloomFilter filter = null;
+
+			while (true)
+			{
+				final byte[] header = new byte[24];
+				is.readFully(header);
+
+				if (Utils.readUint32BE(header, 0) != params.getPacketMagic())
+					throw new IOException("wrong packet magic");
+
+				int commandLength = 0;
+				while (commandLength < 12 && header[4 + commandLength] != 0)
+					commandLength++;
+				final String command = new String(header, 4, commandLength, "US-ASCII");
+
+				final byte[] payload = new byte[(int) Utils.readUint32(header, 16)];
+				is.readFully(payload);
+				bytesIn.addAndGet(header.length + payload.length);
+
+				if ("version".equals(command))
+				{
+					final VersionMessage version = new VersionMessage(params, getBestHeight());
+					version.clientVersion = PROTOCOL_VERSION;
+					version.localServices = VersionMessage.NODE_NETWORK;
+					send(os, "version", version.bitcoinSerialize());
+					send(os, "verack", new byte[0]);
+				}
+				else if ("filterload".equals(command))
+				{
+					filter = new BloomFilter(params, payload);
+				}
+				else if ("filterclear".equals(command))
+				{
+					filter = null;
+				}
+				else if ("getheaders".equals(command))
+				{
+					send(os, "headers", headers(locate(payload)));
+				}
+				else if ("getblocks".equals(command))
+				{
+					send(os, "inv", inv(locate(payload)));
+				}
+				else if ("getdata".equals(command))
+				{
+					final VarInt count = new VarInt(payload, 0);
+					int offset = count.getOriginalSizeInBytes();
+					for (int i = 0; i < count.value; i++)
+					{
+						final long type = Utils.readUint32(payload, offset);
+						final byte[] hash = new byte[32];
+						System.arraycopy(payload, offset + 4, hash, 0, 32);
+						offset += 36;
+
+						final Integer height = index.get(new Sha256Hash(Utils.reverseBytes(hash)));
+						if (height == null)
+							continue;
+
+						final Block block = chain.get(height);
+						if (type == INV_TYPE_FILTERED_BLOCK && filter != null)
+						{
+							final List<Transaction> matched = new ArrayList<Transaction>();
+							send(os, "merkleblock", merkleBlock(block, filter, matched));
+							for (final Transaction tx : matched)
+								send(os, "tx", tx.bitcoinSerialize());
+						}
+						else if (type == INV_TYPE_BLOCK || type == INV_TYPE_FILTERED_BLOCK)
+						{
+							send(os, "block", block.bitcoinSerialize());
+						}
+					}
+				}
+				else if ("ping".equals(command))
+				{
+					send(os, "pong", payload);
+				}
+
+				os.flush();
+			}
+		}
+		catch (final EOFException x)
+		{
+			// client went away
+		}
+		catch (final IOException x)
+		{
+			log.info("fake node connection closed: " + x);
+		}
+		catch (final ProtocolException x)
+		{
+			log.info("fake node connection closed: " + x);
+		}
+		finally
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (final IOException x)
+			{
+				// swallow
+			}
+		}
+	}
+
+	/**
+	 * @return index of the first block after the best locator hash we know
+	 */
+	private int locate(@Nonnull final byte[] payload)
+	{
+		final VarInt count = new VarInt(payload, 4);
+		int offset = 4 + count.getOriginalSizeInBytes();
+
+		for (int i = 0; i < count.value; i++)
+		{
+			final byte[] hash = new byte[32];
+			System.arraycopy(payload, offset, hash, 0, 32);
+			offset += 32;
+
+			final Integer height = index.get(new Sha256Hash(Utils.reverseBytes(hash)));
+			if (height != null)
+				return height + 1;
+		}
+
+		return 1;
+	}
+
+	private byte[] headers(final int start) throws IOException
+	{
+		final int end = Math.min(start + MAX_HEADERS, chain.size());
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		payload.write(new VarInt(Math.max(end - start, 0)).encode());
+
+		for (int i = start; i < end; i++)
+		{
+			payload.write(chain.get(i).cloneAsHeader().bitcoinSerialize(), 0, 80);
+			payload.write(0); // no transactions
+		}
+
+		return payload.toByteArray();
+	}
+
+	private byte[] inv(final int start) throws IOException
+	{
+		final int end = Math.min(start + MAX_INV, chain.size());
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		payload.write(new VarInt(Math.max(end - start, 0)).encode());
+
+		final byte[] type = new byte[4];
+		Utils.uint32ToByteArrayLE(INV_TYPE_BLOCK, type, 0);
+
+		for (int i = start; i < end; i++)
+		{
+			payload.write(type);
+			payload.write(Utils.reverseBytes(chain.get(i).getHash().getBytes()));
+		}
+
+		return payload.toByteArray();
+	}
+
+	/**
+	 * Builds a merkleblock message as specified by BIP 37, collecting the transactions matching the filter.
+	 */
+	private byte[] merkleBlock(@Nonnull final Block block, @Nonnull final BloomFilter filter, @Nonnull final List<Transaction> matched)
+			throws IOException
+	{
+		final List<Transaction> transactions = block.getTransactions();
+		final int numTransactions = transactions != null ? transactions.size() : 0;
+		final List<byte[]> leaves = new ArrayList<byte[]>(numTransactions);
+		final boolean[] matches = new boolean[numTransactions];
+
+		for (int i = 0; i < numTransactions; i++)
+		{
+			final Transaction tx = transactions.get(i);
+			leaves.add(Utils.reverseBytes(tx.getHash().getBytes()));
+			matches[i] = matches(tx, filter);
+			if (matches[i])
+				matched.add(tx);
+		}
+
+		final List<Boolean> bits = new ArrayList<Boolean>();
+		final List<byte[]> hashes = new ArrayList<byte[]>();
+		if (numTransactions > 0)
+		{
+			int height = 0;
+			while (treeWidth(numTransactions, height) > 1)
+				height++;
+			traverse(height, 0, leaves, matches, bits, hashes);
+		}
+
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		payload.write(block.cloneAsHeader().bitcoinSerialize(), 0, 80);
+		final byte[] count = new byte[4];
+		Utils.uint32ToByteArrayLE(numTransactions, count, 0);
+		payload.write(count);
+		payload.write(new VarInt(hashes.size()).encode());
+		for (final byte[] hash : hashes)
+			payload.write(hash);
+
+		final byte[] flags = new byte[(bits.size() + 7) / 8];
+		for (int i = 0; i < bits.size(); i++)
+			if (bits.get(i))
+				flags[i / 8] |= 1 << (i % 8);
+		payload.write(new VarInt(flags.length).encode());
+		payload.write(flags);
+
+		return payload.toByteArray();
+	}
+
+	private static boolean matches(@Nonnull final Transaction tx, @Nonnull final BloomFilter filter)
+	{
+		if (filter.contains(Utils.reverseBytes(tx.getHash().getBytes())))
+			return true;
+
+		try
+		{
+			for (final TransactionOutput output : tx.getOutputs())
+				for (final ScriptChunk chunk : output.getScriptPubKey().getChunks())
+					if (!chunk.isOpCode && chunk.data != null && filter.contains(chunk.data))
+						return true;
+		}
+		catch (final ScriptException x)
+		{
+			// unparseable scripts don't match
+		}
+
+		if (!tx.isCoinBase())
+			for (final TransactionInput input : tx.getInputs())
+				if (filter.contains(input.getOutpoint().bitcoinSerialize()))
+					return true;
+
+		return false;
+	}
+
+	private static int treeWidth(final int numTransactions, final int height)
+	{
+		return (numTransactions + (1 << height) - 1) >> height;
+	}
+
+	private static byte[] treeHash(final int height, final int pos, @Nonnull final List<byte[]> leaves)
+	{
+		if (height == 0)
+			return leaves.get(pos);
+
+		final byte[] left = treeHash(height - 1, pos * 2, leaves);
+		final byte[] right = pos * 2 + 1 < treeWidth(leaves.size(), height - 1) ? treeHash(height - 1, pos * 2 + 1, leaves) : left;
+		final byte[] concat = new byte[64];
+		System.arraycopy(left, 0, concat, 0, 32);
+		System.arraycopy(right, 0, concat, 32, 32);
+		return Utils.doubleDigest(concat);
+	}
+
+	private static void traverse(final int height, final int pos, @Nonnull final List<byte[]> leaves, @Nonnull final boolean[] matches,
+			@Nonnull final List<Boolean> bits, @Nonnull final List<byte[]> hashes)
+	{
+		boolean parentOfMatch = false;
+		for (int i = pos << height; i < Math.min((pos + 1) << height, leaves.size()); i++)
+			parentOfMatch |= matches[i];
+		bits.add(parentOfMatch);
+
+		if (height == 0 || !parentOfMatch)
+		{
+			hashes.add(treeHash(height, pos, leaves));
+		}
+		else
+		{
+			traverse(height - 1, pos * 2, leaves, matches, bits, hashes);
+			if (pos * 2 + 1 < treeWidth(leaves.size(), height - 1))
+				traverse(height - 1, pos * 2 + 1, leaves, matches, bits, hashes);
+		}
+	}
+
+	private void send(@Nonnull final OutputStream os, @Nonnull final String command, @Nonnull final byte[] payload) throws IOException
+	{
+		final byte[] header = new byte[24];
+		Utils.uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+
+		final byte[] commandBytes = command.getBytes("US-ASCII");
+		System.arraycopy(commandBytes, 0, header, 4, commandBytes.length);
+
+		Utils.uint32ToByteArrayLE(payload.length, header, 16);
+		System.arraycopy(Utils.doubleDigest(payload), 0, header, 20, 4);
+
+		os.write(header);
+		os.write(payload);
+		bytesOut.addAndGet(header.length + payload.length);
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.fastcoin.core.AddressMessage;
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.PeerAddress;
+import com.google.fastcoin.core.VarInt;
+import com.google.fastcoin.params.UnitTestParams;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class PeerAddressStoreTest
+{
+	private static final InetSocketAddress FAST = new InetSocketAddress("127.0.0.1", 9526);
+	private static final InetSocketAddress SLOW = new InetSocketAddress("127.0.0.2", 9526);
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = File.createTempFile("peers", null);
+		file.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		file.delete();
+	}
+
+	@Test
+	public void roundTripRankedByLatency() throws Exception
+	{
+		final long now = System.currentTimeMillis();
+
+		final PeerAddressStore store = new PeerAddressStore(file);
+		store.recordSuccess(SLOW, now);
+		store.recordLatency(SLOW, 900);
+		store.recordSuccess(FAST, now);
+		store.recordLatency(FAST, 40);
+		store.save().get();
+
+		final PeerAddressStore reloaded = new PeerAddressStore(file);
+		assertEquals(2, reloaded.size());
+		assertArrayEquals(new InetSocketAddress[] { FAST, SLOW }, reloaded.getPeers(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void answersOnlyFirstDiscoveryOfSession() throws Exception
+	{
+		final PeerAddressStore store = new PeerAddressStore(file);
+		store.recordSuccess(FAST, System.currentTimeMillis());
+
+		assertEquals(1, store.getPeers(5, TimeUnit.SECONDS).length);
+		assertEquals(0, store.getPeers(5, TimeUnit.SECONDS).length);
+
+		store.save();
+
+		assertEquals(1, store.getPeers(5, TimeUnit.SECONDS).length);
+	}
+
+	@Test
+	public void dropsPeersThatKeepFailing() throws Exception
+	{
+		final PeerAddressStore store = new PeerAddressStore(file);
+		store.recordSuccess(FAST, System.currentTimeMillis());
+		store.save().get();
+
+		for (int i = 0; i < 3; i++)
+		{
+			final PeerAddressStore session = new PeerAddressStore(file);
+			assertEquals(1, session.getPeers(5, TimeUnit.SECONDS).length);
+			session.recordAttempt(FAST);
+			session.save().get(); // tried, but never connected
+		}
+
+		assertEquals(0, new PeerAddressStore(file).getPeers(5, TimeUnit.SECONDS).length);
+	}
+
+	@Test
+	public void keepsPeersNeverTried() throws Exception
+	{
+		final PeerAddressStore store = new PeerAddressStore(file);
+		store.recordSuccess(FAST, System.currentTimeMillis());
+		store.save().get();
+
+		for (int i = 0; i < 3; i++)
+		{
+			final PeerAddressStore session = new PeerAddressStore(file);
+			assertEquals(1, session.getPeers(5, TimeUnit.SECONDS).length);
+			session.save().get(); // offered, but enough other peers connected
+		}
+
+		assertEquals(1, new PeerAddressStore(file).getPeers(5, TimeUnit.SECONDS).length);
+	}
+
+	@Test
+	public void addressMessageRefreshesLastSeen() throws Exception
+	{
+		final PeerAddressStore store = new PeerAddressStore(file);
+		final long before = System.currentTimeMillis();
+
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		payload.write(new VarInt(1).encode());
+		payload.write(new PeerAddress(SLOW.getAddress(), SLOW.getPort(), NetworkParameters.PROTOCOL_VERSION).bitcoinSerialize());
+		store.onPreMessageReceived(null, new AddressMessage(UnitTestParams.get(), payload.toByteArray()));
+
+		assertTrue(store.getEntry(SLOW).lastSeen >= before);
+		assertEquals(0, store.getEntry(SLOW).lastSuccess);
+		assertArrayEquals(new InetSocketAddress[] { SLOW }, store.getPeers(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.fastcoin.core.AbstractPeerEventListener;
+import com.google.fastcoin.core.Address;
+import com.google.fastcoin.core.Block;
+import com.google.fastcoin.core.BlockChain;
+import com.google.fastcoin.core.ECKey;
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.Peer;
+import com.google.fastcoin.core.PeerGroup;
+import com.google.fastcoin.core.Sha256Hash;
+import com.google.fastcoin.core.StoredBlock;
+import com.google.fastcoin.core.Transaction;
+import com.google.fastcoin.core.TransactionInput;
+import com.google.fastcoin.core.TransactionOutPoint;
+import com.google.fastcoin.core.Utils;
+import com.google.fastcoin.core.Wallet;
+import com.google.fastcoin.params.MainNetParams;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.store.BlockStoreException;
+import com.google.fastcoin.store.SPVBlockStore;
+import com.google.fastcoin.utils.Threading;
+
+import de.schildbach.wallet.WalletJournal;
+
+/**
+ * Drives the {@link BlockChain}, {@link SPVBlockStore} and {@link PeerGroup} wiring of {@link BlockchainServiceImpl},
+ * as set up by {@link BlockchainPeers}, against a {@link FakeNode} on the local JVM, without Android and without network,
+ * and reports throughput and resource usage.
+ *
+ * <p>
+ * Run with <code>headers &lt;path to fastcoin-blockchain&gt;</code> to replay the bundled headers, or with
+ * <code>synthetic &lt;number of blocks&gt;</code> for filtered blocks carrying wallet transactions. The synthetic run fails if
+ * the sync metrics didn't see every filtered block.
+ * </p>
+ *
+ * @author Andreas Schildbach
+ */
+public final class SyncHarnessBenchmark
+{
+	private static final long TIMEOUT_MS = 10 * 60 * 1000;
+
+	private static final Logger log = LoggerFactory.getLogger(SyncHarnessBenchmark.class);
+
+	public static final class Report
+	{
+		public final int numBlocks;
+		public final long durationMs;
+		public final long timeToFirstPeerMs;
+		public final long cpuMs;
+		public final long peakHeapBytes;
+		public final long bytesIn;
+		public final int numFilteredBlocks;
+		public final int numWalletTransactions;
+		public final long walletBytesWritten;
+
+		public Report(final int numBlocks, final long durationMs, final long timeToFirstPeerMs, final long cpuMs, final long peakHeapBytes,
+				final long bytesIn, final int numFilteredBlocks, final int numWalletTransactions, final long walletBytesWritten)
+		{
+			this.numBlocks = numBlocks;
+			this.durationMs = durationMs;
+			this.timeToFirstPeerMs = timeToFirstPeerMs;
+			this.cpuMs = cpuMs;
+			this.peakHeapBytes = peakHeapBytes;
+			this.bytesIn = bytesIn;
+			this.numFilteredBlocks = numFilteredBlocks;
+			this.numWalletTransactions = numWalletTransactions;
+			this.walletBytesWritten = walletBytesWritten;
+		}
+
+		public double blocksPerSecond()
+		{
+			return durationMs > 0 ? numBlocks * 1000.0 / durationMs : 0;
+		}
+
+		public double walletBytesPerBlock()
+		{
+			return numBlocks > 0 ? (double) walletBytesWritten / numBlocks : 0;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.US, "%d blocks in %d ms (%.1f blocks/s), first peer after %d ms, cpu %d ms, peak heap %d kB, "
+					+ "%d bytes in, %d filtered blocks, %d wallet txs, %d wallet bytes written (%.1f/block)", numBlocks, durationMs,
+					blocksPerSecond(), timeToFirstPeerMs, cpuMs, peakHeapBytes / 1024, bytesIn, numFilteredBlocks, numWalletTransactions,
+					walletBytesWritten, walletBytesPerBlock());
+		}
+	}
+
+	public static void main(final String[] args) throws Exception
+	{
+		final Report report;
+
+		if (args.length == 2 && "headers".equals(args[0]))
+		{
+			report = replayHeaders(new File(args[1]));
+		}
+		else if (args.length == 2 && "synthetic".equals(args[0]))
+		{
+			final int numBlocks = Integer.parseInt(args[1]);
+			report = syncSynthetic(numBlocks, 10);
+
+			// every block goes through the sync metrics, otherwise their numbers can't be trusted
+			if (report.numFilteredBlocks != numBlocks)
+				throw new IllegalStateException("sync metrics saw " + report.numFilteredBlocks + " of " + numBlocks + " filtered blocks");
+		}
+		else
+		{
+			throw new IllegalArgumentException("usage: headers <blockchain file> | synthetic <number of blocks>");
+		}
+
+		log.info("{}", report);
+		System.exit(0);
+	}
+
+	/**
+	 * Replays the headers held by a bundled block store, starting from its oldest retarget block.
+	 */
+	public static Report replayHeaders(@Nonnull final File blockChainFile) throws Exception
+	{
+		final NetworkParameters params = MainNetParams.get();
+		final List<Block> chain = new ArrayList<Block>();
+		int baseHeight = 0;
+
+		final File copy = File.createTempFile("blockchain", null);
+		try
+		{
+			copy(blockChainFile, copy);
+			final SPVBlockStore bundledStore = new SPVBlockStore(params, copy);
+
+			final List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+			for (StoredBlock block = bundledStore.getChainHead(); block != null; block = block.getPrev(bundledStore))
+				blocks.add(block);
+			bundledStore.close();
+			Collections.reverse(blocks);
+
+			// start at a retarget block, so difficulty transitions find their way back
+			int start = 0;
+			while (start < blocks.size() && blocks.get(start).getHeight() % params.getInterval() != 0)
+				start++;
+			if (start == blocks.size())
+				throw new IllegalStateException("no retarget block in " + blockChainFile);
+
+			baseHeight = blocks.get(start).getHeight();
+			for (final StoredBlock block : blocks.subList(start, blocks.size()))
+				chain.add(block.getHeader());
+		}
+		finally
+		{
+			copy.delete();
+		}
+
+		final FakeNode node = new FakeNode(params, chain, baseHeight);
+		final File storeFile = File.createTempFile("blockchain", null);
+		storeFile.delete();
+
+		try
+		{
+			final SPVBlockStore blockStore = new SPVBlockStore(params, storeFile);
+			final StoredBlock base = new StoredBlock(chain.get(0).cloneAsHeader(), BigInteger.ONE, baseHeight);
+			blockStore.put(base);
+			blockStore.setChainHead(base);
+
+			final BlockChain blockChain = new BlockChain(params, blockStore);
+
+			// the service always has a wallet, though this one has no keys to filter for
+			return sync(params, blockChain, new Wallet(params), null, node, Long.MAX_VALUE);
+		}
+		finally
+		{
+			node.close();
+			storeFile.delete();
+		}
+	}
+
+	/**
+	 * Syncs a generated chain, every given number of blocks paying to the wallet. Blocks are filtered by the wallet's
+	 * bloom filter, as in the app.
+	 */
+	public static Report syncSynthetic(final int numBlocks, final int walletTxInterval) throws Exception
+	{
+		final NetworkParameters params = UnitTestParams.get();
+		final ECKey walletKey = new ECKey();
+		walletKey.setCreationTimeSeconds(params.getGenesisBlock().getTimeSeconds());
+		final Address walletAddress = walletKey.toAddress(params);
+		final Address otherAddress = new ECKey().toAddress(params);
+
+		final List<Block> chain = new ArrayList<Block>(numBlocks + 1);
+		chain.add(params.getGenesisBlock());
+
+		for (int i = 1; i <= numBlocks; i++)
+		{
+			final Block block = chain.get(i - 1).createNextBlock(otherAddress);
+
+			if (i % walletTxInterval == 0)
+			{
+				final Transaction tx = new Transaction(params);
+				tx.addInput(new TransactionInput(params, tx, new byte[0], new TransactionOutPoint(params, 0, Sha256Hash.create(Utils
+						.bigIntegerToBytes(BigInteger.valueOf(i), 8)))));
+				tx.addOutput(Utils.toNanoCoins(1, 0), walletAddress);
+				block.addTransaction(tx);
+				block.solve();
+			}
+
+			chain.add(block);
+		}
+
+		final FakeNode node = new FakeNode(params, chain, 0);
+		final File storeFile = File.createTempFile("blockchain", null);
+		storeFile.delete();
+		final File walletFile = File.createTempFile("wallet", null);
+		final File journalFile = File.createTempFile("journal", null);
+		journalFile.delete();
+
+		try
+		{
+			final Wallet wallet = new Wallet(params);
+			wallet.addKey(walletKey);
+			final WalletJournal journal = new WalletJournal(wallet, walletFile, journalFile, null, null);
+
+			final SPVBlockStore blockStore = new SPVBlockStore(params, storeFile);
+			final BlockChain blockChain = new BlockChain(params, wallet, blockStore);
+
+			final Report report = sync(params, blockChain, wallet, journal, node, 0);
+			journal.close();
+			return report;
+		}
+		finally
+		{
+			node.close();
+			storeFile.delete();
+			walletFile.delete();
+			journalFile.delete();
+		}
+	}
+
+	private static Report sync(@Nonnull final NetworkParameters params, @Nonnull final BlockChain blockChain, @Nonnull final Wallet wallet,
+			@CheckForNull final WalletJournal journal, @Nonnull final FakeNode node, final long fastCatchupTimeSecs) throws InterruptedException,
+			BlockStoreException, IOException
+	{
+		final int startHeight = blockChain.getBestChainHeight();
+		final AtomicLong firstPeerAt = new AtomicLong();
+
+		final File peersFile = File.createTempFile("peers", null);
+		peersFile.delete();
+
+		try
+		{
+			// the fake node is the only peer the store knows, and the only discovery source
+			final PeerAddressStore peerAddressStore = new PeerAddressStore(peersFile);
+			peerAddressStore.recordSuccess(new InetSocketAddress(node.getAddress(), node.getPort()), System.currentTimeMillis());
+			final RacingPeerDiscovery peerDiscovery = new RacingPeerDiscovery(null, params.getPort(), false, 1);
+			peerDiscovery.addSource("stored", peerAddressStore);
+
+			final PeerManager peerManager = new PeerManager();
+			final SyncMetrics syncMetrics = new SyncMetrics(wallet, new ActivityTracker(2, 60, 60 * 1000, 0.1), new SyncMetrics.Traffic()
+			{
+				@Override
+				public long rxBytes()
+				{
+					return node.getBytesOut();
+				}
+
+				@Override
+				public long txBytes()
+				{
+					return node.getBytesIn();
+				}
+			});
+
+			final PeerGroup peerGroup = BlockchainPeers.create(params, blockChain, wallet, peerManager, peerAddressStore, syncMetrics,
+					peerDiscovery, 1);
+			peerGroup.setUserAgent("SyncHarness", "1.0");
+			peerGroup.setFastCatchupTimeSecs(fastCatchupTimeSecs);
+			peerGroup.addEventListener(new AbstractPeerEventListener()
+			{
+				@Override
+				public void onPeerConnected(final Peer peer, final int peerCount)
+				{
+					firstPeerAt.compareAndSet(0, System.currentTimeMillis());
+				}
+			});
+
+			final long cpuStart = processCpuNanos();
+			final long start = System.currentTimeMillis();
+			long lastCheck = start;
+			long peakHeap = 0;
+
+			peerGroup.startAndWait();
+			peerGroup.startBlockChainDownload(new AbstractPeerEventListener());
+
+			while (blockChain.getBestChainHeight() < node.getBestHeight())
+			{
+				final long now = System.currentTimeMillis();
+				if (now - start > TIMEOUT_MS)
+					throw new IllegalStateException("sync timed out at height " + blockChain.getBestChainHeight());
+
+				if (now - lastCheck >= PeerManager.CHECK_INTERVAL_MS)
+				{
+					peerManager.check(peerGroup);
+					lastCheck = now;
+				}
+
+				peakHeap = Math.max(peakHeap, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+				Thread.sleep(50);
+			}
+
+			final long durationMs = System.currentTimeMillis() - start;
+			final long cpuMs = (processCpuNanos() - cpuStart) / 1000000;
+			final SyncStats stats = syncMetrics.getStats(0, -1);
+
+			BlockchainPeers.release(peerGroup, wallet, peerManager, peerAddressStore, syncMetrics);
+			peerGroup.stopAndWait();
+			peerAddressStore.save();
+
+			// wallet listeners run on the user thread, then save as the service does on shutdown
+			long walletBytesWritten = 0;
+			if (journal != null)
+			{
+				Threading.waitForUserCode();
+				journal.compact();
+				walletBytesWritten = journal.getBytesWritten();
+			}
+
+			return new Report(blockChain.getBestChainHeight() - startHeight, durationMs, firstPeerAt.get() > 0 ? firstPeerAt.get() - start
+					: -1, cpuMs, peakHeap, stats.bytesIn, stats.filteredBlocks, wallet.getTransactions(false).size(), walletBytesWritten);
+		}
+		finally
+		{
+			peersFile.delete();
+		}
+	}
+
+	private static long processCpuNanos()
+	{
+		final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		else
+			return 0;
+	}
+
+	private static void copy(@Nonnull final File from, @Nonnull final File to) throws IOException
+	{
+		final InputStream is = new FileInputStream(from);
+		try
+		{
+			final OutputStream os = new FileOutputStream(to);
+			try
+			{
+				final byte[] buffer = new byte[4096];
+				int n;
+				while ((n = is.read(buffer)) != -1)
+					os.write(buffer, 0, n);
+			}
+			finally
+			{
+				os.close();
+			}
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.FileAppender;
+
+/**
+ * Measures the latency of a single {@code log.info} call with the file appender used before, writing on the calling
+ * thread, against {@link AsyncLogAppender}. Run with the number of calls, defaults to 100000.
+ *
+ * @author Andreas Schildbach
+ */
+public final class AsyncLogAppenderBenchmark
+{
+	private static final String PATTERN = "%d{HH:mm:ss.SSS} [%thread] %logger{0} - %msg%n";
+
+	public static final class Report
+	{
+		public final String name;
+		public final int numCalls;
+		public final long meanNanos;
+		public final long p50Nanos;
+		public final long p99Nanos;
+		public final long maxNanos;
+		public final long numDropped;
+
+		public Report(@Nonnull final String name, final long[] callNanos, final long numDropped)
+		{
+			this.name = name;
+			this.numCalls = callNanos.length;
+			this.numDropped = numDropped;
+
+			long sum = 0;
+			for (final long nanos : callNanos)
+				sum += nanos;
+			this.meanNanos = sum / callNanos.length;
+
+			final long[] sorted = callNanos.clone();
+			Arrays.sort(sorted);
+			this.p50Nanos = sorted[sorted.length / 2];
+			this.p99Nanos = sorted[sorted.length * 99 / 100];
+			this.maxNanos = sorted[sorted.length - 1];
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.US, "%s: %d calls, mean %dns, p50 %dns, p99 %dns, max %dns, dropped %d", name, numCalls, meanNanos, p50Nanos,
+					p99Nanos, maxNanos, numDropped);
+		}
+	}
+
+	public static void main(final String[] args) throws Exception
+	{
+		final int numCalls = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+		System.out.println(runSync(numCalls));
+		System.out.println(runAsync(numCalls));
+	}
+
+	public static Report runSync(final int numCalls) throws Exception
+	{
+		final LoggerContext context = new LoggerContext();
+		final File file = File.createTempFile("sync", ".log");
+
+		final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+		encoder.setContext(context);
+		encoder.setPattern(PATTERN);
+		encoder.start();
+
+		final FileAppender<ILoggingEvent> appender = new FileAppender<ILoggingEvent>();
+		appender.setContext(context);
+		appender.setFile(file.getAbsolutePath());
+		appender.setEncoder(encoder);
+		appender.start();
+
+		try
+		{
+			return new Report("sync file appender", measure(context, appender, numCalls), 0);
+		}
+		finally
+		{
+			appender.stop();
+			file.delete();
+		}
+	}
+
+	public static Report runAsync(final int numCalls) throws Exception
+	{
+		final LoggerContext context = new LoggerContext();
+		final File dir = File.createTempFile("async", null);
+		dir.delete();
+		dir.mkdir();
+
+		final PatternLayout layout = new PatternLayout();
+		layout.setContext(context);
+		layout.setPattern(PATTERN);
+		layout.start();
+
+		final AsyncLogAppender appender = new AsyncLogAppender();
+		appender.setContext(context);
+		appender.setLayout(layout);
+		appender.setFile(new File(dir, "wallet.log"));
+		appender.start();
+
+		try
+		{
+			final long[] callNanos = measure(context, appender, numCalls);
+			appender.stop();
+			return new Report("async appender", callNanos, appender.getNumDropped());
+		}
+		finally
+		{
+			for (final File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+	}
+
+	private static long[] measure(@Nonnull final LoggerContext context, @Nonnull final Appender<ILoggingEvent> appender, final int numCalls)
+	{
+		final Logger log = context.getLogger(AsyncLogAppenderBenchmark.class);
+		log.addAppender(appender);
+		log.setLevel(Level.INFO);
+
+		final long[] callNanos = new long[numCalls];
+		for (int i = 0; i < numCalls; i++)
+		{
+			final long start = System.nanoTime();
+			log.info("peer {} sent block {} of {}", new Object[] { "127.0.0.1", i, numCalls });
+			callNanos[i] = System.nanoTime() - start;
+		}
+
+		return callNanos;
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class AsyncLogAppenderTest
+{
+	private LoggerContext context;
+	private File dir;
+	private AsyncLogAppender appender;
+	private Logger log;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		context = new LoggerContext();
+		dir = File.createTempFile("log", null);
+		dir.delete();
+		dir.mkdir();
+
+		final PatternLayout layout = new PatternLayout();
+		layout.setContext(context);
+		layout.setPattern("%msg%n");
+		layout.start();
+
+		appender = new AsyncLogAppender();
+		appender.setContext(context);
+		appender.setLayout(layout);
+		appender.setFile(new File(dir, "wallet.log"));
+		appender.setCapacity(16);
+		appender.setMaxFileSize(64);
+
+		log = context.getLogger(AsyncLogAppenderTest.class);
+		log.addAppender(appender);
+		log.setLevel(Level.INFO);
+	}
+
+	@After
+	public void tearDown()
+	{
+		appender.stop();
+		for (final File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void dropWhenFull() throws Exception
+	{
+		appender.start();
+
+		// holding the appender's lock keeps the writer thread from draining
+		synchronized (appender)
+		{
+			for (int i = 0; i < 20; i++)
+				log.info("info {}", i);
+			log.warn("warn");
+
+			// the warning evicted the oldest event
+			assertEquals(17, appender.getNumAppended());
+			assertEquals(5, appender.getNumDropped());
+		}
+	}
+
+	@Test
+	public void flushAndWait() throws Exception
+	{
+		appender.start();
+
+		log.info("crash");
+
+		// written before the flush interval is up
+		assertTrue(appender.flushAndWait(2000));
+		assertTrue(new File(dir, "wallet.log").length() > 0);
+	}
+
+	@Test
+	public void rotateBySize() throws Exception
+	{
+		appender.start();
+
+		for (int i = 0; i < 10; i++)
+		{
+			log.info("a line long enough to exceed the maximum file size soon {}", i);
+			appender.flush();
+			Thread.sleep(50);
+		}
+		appender.stop();
+
+		int numRotated = 0;
+		for (final File file : dir.listFiles())
+			if (file.getName().endsWith(".log.gz"))
+				numRotated++;
+		assertTrue(numRotated > 0);
+		assertEquals(10, appender.getNumAppended());
+		assertEquals(0, appender.getNumDropped());
+	}
+}
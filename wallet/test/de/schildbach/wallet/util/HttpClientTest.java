@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.schildbach.wallet.Constants;
+
+/**
+ * Runs the client against a local HTTP server.
+ *
+ * @author Andreas Schildbach
+ */
+public class HttpClientTest
+{
+	private static final String ETAG = "\"v1\"";
+	private static final String CONTENT = "USD 500\n";
+
+	private HttpServer server;
+	private HttpClient client;
+	private int numFullResponses = 0;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler()
+		{
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException
+			{
+				if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+				{
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+
+				final ByteArrayOutputStream body = new ByteArrayOutputStream();
+				final OutputStream gzip = new GZIPOutputStream(body);
+				if ("POST".equals(exchange.getRequestMethod()))
+					Io.copy(exchange.getRequestBody(), gzip);
+				else
+					gzip.write(CONTENT.getBytes(Constants.UTF_8));
+				gzip.close();
+
+				assertEquals("gzip", exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				exchange.getResponseHeaders().set("ETag", ETAG);
+				exchange.sendResponseHeaders(200, body.size());
+				final OutputStream os = exchange.getResponseBody();
+				body.writeTo(os);
+				os.close();
+
+				synchronized (HttpClientTest.this)
+				{
+					numFullResponses++;
+				}
+			}
+		});
+		server.start();
+
+		client = new HttpClient(null);
+	}
+
+	@After
+	public void tearDown()
+	{
+		server.stop(0);
+	}
+
+	@Test
+	public void gzip() throws Exception
+	{
+		final HttpClient.Response response = client.execute(new HttpClient.Request(url("/gzip")));
+		assertTrue(response.isOk());
+		assertEquals(CONTENT, read(response));
+	}
+
+	@Test
+	public void post() throws Exception
+	{
+		final byte[] body = "payment".getBytes(Constants.UTF_8);
+		final HttpClient.Response response = client.execute(new HttpClient.Request(url("/post")).post("application/octet-stream", body));
+		assertTrue(response.isOk());
+		assertEquals("payment", read(response));
+	}
+
+	@Test
+	public void conditional() throws Exception
+	{
+		final HttpClient.Response first = client.execute(new HttpClient.Request(url("/ticker")).conditional());
+		assertTrue(first.isOk());
+		read(first);
+		first.commit();
+
+		final HttpClient.Response second = client.execute(new HttpClient.Request(url("/ticker")).conditional());
+		assertTrue(second.isNotModified());
+		second.close();
+
+		// unconditional requests don't send validators
+		final HttpClient.Response third = client.execute(new HttpClient.Request(url("/ticker")));
+		assertTrue(third.isOk());
+		third.close();
+
+		synchronized (this)
+		{
+			assertEquals(2, numFullResponses);
+		}
+
+		final HttpClient.HostStats stats = client.getStats().get("127.0.0.1");
+		assertEquals(3, stats.numRequests);
+		assertEquals(1, stats.numNotModified);
+		assertEquals(0, stats.numFailures);
+	}
+
+	@Test
+	public void uncommittedNotConditional() throws Exception
+	{
+		// e.g. the body could not be parsed
+		final HttpClient.Response first = client.execute(new HttpClient.Request(url("/ticker")).conditional());
+		assertTrue(first.isOk());
+		first.close();
+
+		final HttpClient.Response second = client.execute(new HttpClient.Request(url("/ticker")).conditional());
+		assertTrue(second.isOk());
+		second.close();
+
+		synchronized (this)
+		{
+			assertEquals(2, numFullResponses);
+		}
+	}
+
+	@Test
+	public void failureCounted() throws Exception
+	{
+		final URL url = url("/down");
+		server.stop(0);
+
+		try
+		{
+			client.execute(new HttpClient.Request(url).timeout(1000)).close();
+		}
+		catch (final IOException x)
+		{
+			// expected
+		}
+
+		final HttpClient.HostStats stats = client.getStats().get("127.0.0.1");
+		assertEquals(1, stats.numFailures);
+		assertFalse(stats.averageMs() < 0);
+	}
+
+	private URL url(final String path) throws IOException
+	{
+		return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+	}
+
+	private static String read(final HttpClient.Response response) throws IOException
+	{
+		try
+		{
+			final InputStream is = response.getInputStream();
+			final ByteArrayOutputStream content = new ByteArrayOutputStream();
+			Io.copy(is, content);
+			return new String(content.toByteArray(), Constants.UTF_8);
+		}
+		finally
+		{
+			response.close();
+		}
+	}
+}
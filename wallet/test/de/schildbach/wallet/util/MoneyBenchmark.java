@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.wallet.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Converts wallet balances to local currency via a FST price and a FST rate, the way the exchange rates provider and
+ * {@link WalletUtils#localValue} do, once with {@link Double} and {@link BigInteger} as done before and once with
+ * {@link Money}. Reports time and allocated bytes per conversion, and how many rates deviate from the exact decimal
+ * result. Run with the number of conversions, defaults to 100000.
+ *
+ * @author Andreas Schildbach
+ */
+public final class MoneyBenchmark
+{
+	private static final BigInteger ONE_FST = BigInteger.valueOf(Money.ONE_UNIT);
+
+	public static final class Report
+	{
+		public final int numConversions;
+		public final long bigIntegerNanos;
+		public final long bigIntegerBytes;
+		public final long moneyNanos;
+		public final long moneyBytes;
+		public final int doubleDrift;
+		public final int moneyDrift;
+
+		private Report(final int numConversions, final long[] bigInteger, final long[] money, final int doubleDrift, final int moneyDrift)
+		{
+			this.numConversions = numConversions;
+			this.bigIntegerNanos = bigInteger[0];
+			this.bigIntegerBytes = bigInteger[1];
+			this.moneyNanos = money[0];
+			this.moneyBytes = money[1];
+			this.doubleDrift = doubleDrift;
+			this.moneyDrift = moneyDrift;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.US, "%d conversions: double/BigInteger %dns %d bytes, %d rates off; Money %dns %d bytes, %d rates off",
+					numConversions, bigIntegerNanos, bigIntegerBytes, doubleDrift, moneyNanos, moneyBytes, moneyDrift);
+		}
+	}
+
+	public static void main(final String[] args) throws Exception
+	{
+		final int numConversions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+		System.out.println(run(numConversions));
+	}
+
+	public static Report run(final int numConversions)
+	{
+		final Random random = new Random(0);
+		final String[] prices = new String[numConversions];
+		final long[] rates = new long[numConversions];
+		final BigInteger[] balances = new BigInteger[numConversions];
+		for (int i = 0; i < numConversions; i++)
+		{
+			// FST price in BTC as quoted by cryptsy, BTC rate with cents, balance up to a million coins
+			prices[i] = Money.valueOf(1 + random.nextInt(1000000)).toString();
+			rates[i] = (10000 + random.nextInt(10000000)) * 1000000l;
+			balances[i] = BigInteger.valueOf((long) (random.nextDouble() * 1000000 * Money.ONE_UNIT));
+		}
+
+		int doubleDrift = 0;
+		int moneyDrift = 0;
+		for (int i = 0; i < numConversions; i++)
+		{
+			final BigInteger exact = new BigDecimal(prices[i]).multiply(BigDecimal.valueOf(rates[i])).setScale(0, RoundingMode.DOWN).toBigInteger();
+			if (!exact.equals(doubleRate(prices[i], rates[i])))
+				doubleDrift++;
+			if (exact.longValue() != moneyRate(prices[i], rates[i]).longValue())
+				moneyDrift++;
+		}
+
+		return new Report(numConversions, measure(prices, rates, balances, false), measure(prices, rates, balances, true), doubleDrift,
+				moneyDrift);
+	}
+
+	/**
+	 * @return nanos and allocated bytes per conversion, the latter -1 if the JVM can't tell
+	 */
+	private static long[] measure(final String[] prices, final long[] rates, final BigInteger[] balances, final boolean money)
+	{
+		final int numConversions = prices.length;
+
+		// warm up
+		for (int i = 0; i < numConversions; i++)
+			convert(prices[i], rates[i], balances[i], money);
+
+		final long startBytes = allocatedBytes();
+		final long start = System.nanoTime();
+		for (int i = 0; i < numConversions; i++)
+			convert(prices[i], rates[i], balances[i], money);
+		final long nanos = System.nanoTime() - start;
+		final long bytes = startBytes >= 0 ? allocatedBytes() - startBytes : -1;
+
+		return new long[] { nanos / numConversions, bytes >= 0 ? bytes / numConversions : -1 };
+	}
+
+	private static BigInteger convert(final String price, final long rate, final BigInteger balance, final boolean money)
+	{
+		if (money)
+			return Money.valueOf(balance).multiply(moneyRate(price, rate), RoundingMode.HALF_UP).toBigInteger();
+
+		// the way it was done before
+		return balance.multiply(doubleRate(price, rate)).divide(ONE_FST);
+	}
+
+	private static BigInteger doubleRate(final String price, final long rate)
+	{
+		final Double fstPrice = Double.valueOf(price);
+		return BigInteger.valueOf((long) (fstPrice * BigInteger.valueOf(rate).longValue()));
+	}
+
+	private static Money moneyRate(final String price, final long rate)
+	{
+		return Money.valueOf(rate).multiply(Money.parse(price, 0, RoundingMode.HALF_UP), RoundingMode.DOWN);
+	}
+
+	private static long allocatedBytes()
+	{
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		else
+			return -1;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class MoneyTest
+{
+	@Test
+	public void parse() throws Exception
+	{
+		assertEquals(123450000000l, Money.parse("1234.5", 0, RoundingMode.UNNECESSARY).longValue());
+		assertEquals(-1, Money.parse("-0.00000001", 0, RoundingMode.UNNECESSARY).longValue());
+		assertEquals(100000, Money.parse("1", 3, RoundingMode.UNNECESSARY).longValue());
+		assertEquals(50000000, Money.parse(".5", 0, RoundingMode.UNNECESSARY).longValue());
+		assertEquals(150000000, Money.parse("1.5e0", 0, RoundingMode.UNNECESSARY).longValue());
+
+		assertEquals(2, Money.parse("0.000000015", 0, RoundingMode.HALF_UP).longValue());
+		assertEquals(1, Money.parse("0.000000015", 0, RoundingMode.HALF_DOWN).longValue());
+		assertEquals(2, Money.parse("0.000000015", 0, RoundingMode.HALF_EVEN).longValue());
+		assertEquals(2, Money.parse("0.0000000150001", 0, RoundingMode.HALF_DOWN).longValue());
+		assertEquals(1, Money.parse("0.000000019", 0, RoundingMode.DOWN).longValue());
+		assertEquals(-2, Money.parse("-0.000000011", 0, RoundingMode.FLOOR).longValue());
+		assertEquals(-1, Money.parse("-0.000000011", 0, RoundingMode.CEILING).longValue());
+		assertEquals(1, Money.parse("0.0000000100", 0, RoundingMode.UNNECESSARY).longValue());
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void parseRoundingNecessary() throws Exception
+	{
+		Money.parse("0.000000015", 0, RoundingMode.UNNECESSARY);
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void parseOutOfRange() throws Exception
+	{
+		Money.parse("92233720368.54775808", 0, RoundingMode.UNNECESSARY);
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void parseGarbage() throws Exception
+	{
+		Money.parse("1.2.3", 0, RoundingMode.UNNECESSARY);
+	}
+
+	@Test
+	public void format() throws Exception
+	{
+		assertEquals("1.00", Money.valueOf(100000000).format("", "-", 2, 0));
+		assertEquals("1.23", Money.valueOf(123456789).format("", "-", 2, 0));
+		assertEquals("1.2346", Money.valueOf(123456789).format("", "-", 4, 0));
+		assertEquals("1.234568", Money.valueOf(123456789).format("", "-", 6, 0));
+		assertEquals("1.23456789", Money.valueOf(123456789).format("", "-", 8, 0));
+		assertEquals("1.10", Money.valueOf(110000000).format("", "-", 8, 0));
+		assertEquals("0.0001", Money.valueOf(10000).format("", "-", 8, 0));
+		assertEquals("+0.01", Money.valueOf(500000).format("+", "-", 2, 0));
+		assertEquals("-0.01", Money.valueOf(-500000).format("+", "-", 2, 0));
+		assertEquals("-0.00", Money.valueOf(-1).format("+", "-", 2, 0));
+
+		assertEquals("1234.57", Money.valueOf(123456789).format("", "-", 2, 3));
+		assertEquals("1234.5679", Money.valueOf(123456789).format("", "-", 4, 3));
+		assertEquals("1234.56789", Money.valueOf(123456789).format("", "-", 5, 3));
+		assertEquals("1234.50", Money.valueOf(123450000).format("", "-", 5, 3));
+		assertEquals("0.00001", Money.valueOf(1).format("", "-", 5, 3));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void formatUnsupportedPrecision() throws Exception
+	{
+		Money.ONE.format("", "-", 3, 0);
+	}
+
+	@Test
+	public void multiplyDivideMatchesBigInteger() throws Exception
+	{
+		final Random random = new Random(0);
+
+		for (int i = 0; i < 10000; i++)
+		{
+			final long a = random.nextLong() >> random.nextInt(63);
+			final long b = random.nextLong() >> random.nextInt(63);
+			final long c = (random.nextLong() >> random.nextInt(63)) | 1;
+
+			final BigInteger[] expected = BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)).divideAndRemainder(BigInteger.valueOf(c));
+			if (expected[0].bitLength() > 62)
+				continue;
+
+			// BigInteger truncates towards zero, same as RoundingMode.DOWN
+			assertEquals(expected[0].longValue(), Money.multiplyDivide(a, b, c, RoundingMode.DOWN));
+
+			final int sign = Long.signum(a) * Long.signum(b) * Long.signum(c);
+			final long up = expected[1].signum() != 0 ? expected[0].longValue() + sign : expected[0].longValue();
+			assertEquals(up, Money.multiplyDivide(a, b, c, RoundingMode.UP));
+		}
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void multiplyOverflow() throws Exception
+	{
+		Money.valueOf(Long.MAX_VALUE / 2).multiply(Money.valueOf(3 * Money.ONE_UNIT), RoundingMode.DOWN);
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void addOverflow() throws Exception
+	{
+		Money.valueOf(Long.MAX_VALUE).add(Money.valueOf(1));
+	}
+
+	@Test
+	public void noDrift() throws Exception
+	{
+		final Money tenth = Money.parse("0.1", 0, RoundingMode.UNNECESSARY);
+		Money sum = Money.ZERO;
+		for (int i = 0; i < 10; i++)
+			sum = sum.add(tenth);
+		assertEquals(Money.ONE, sum);
+
+		// converting back and forth at a rate with few decimals is stable
+		final Money rate = Money.parse("512.34", 0, RoundingMode.UNNECESSARY);
+		final Money coins = Money.parse("0.5", 0, RoundingMode.UNNECESSARY);
+		Money value = coins;
+		for (int i = 0; i < 1000; i++)
+			value = value.multiply(rate, RoundingMode.HALF_UP).divide(rate, RoundingMode.HALF_UP);
+		assertEquals(coins, value);
+
+		assertEquals("256.17", coins.multiply(rate, RoundingMode.HALF_UP).format("", "-", 2, 0));
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class StartupTraceTest
+{
+	@Test
+	public void writeAndRead() throws Exception
+	{
+		final File file = File.createTempFile("trace", null);
+
+		try
+		{
+			StartupTrace.reset();
+			final StartupTrace.Span span = StartupTrace.begin("first");
+			Thread.sleep(5);
+			span.end();
+			StartupTrace.begin("open");
+			StartupTrace.finish(file);
+			StartupTrace.begin("late").end();
+			StartupTrace.finish(file);
+
+			final List<String[]> lines = StartupTrace.read(file);
+			assertEquals(3, lines.size());
+			assertEquals("total", lines.get(0)[0]);
+			assertEquals("first", lines.get(1)[0]);
+			assertEquals(Thread.currentThread().getName(), lines.get(1)[1]);
+			assertTrue(Long.parseLong(lines.get(1)[3]) >= 5000);
+			assertEquals("open", lines.get(2)[0]);
+			assertEquals(-1, Long.parseLong(lines.get(2)[3]));
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}